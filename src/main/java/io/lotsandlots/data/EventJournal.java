@@ -0,0 +1,620 @@
+package io.lotsandlots.data;
+
+import com.typesafe.config.Config;
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.ConfigWrapper;
+import io.lotsandlots.util.FixedPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of placed orders and the decisions that led to them, kept in memory-mapped segment files:
+ * - Appending copies the record straight into the mapped segment under a short lock. Nothing waits on the disk or on
+ *   SQLite, and a JVM crash doesn't lose records since the pages belong to the OS.
+ * - A background thread forces segments to disk and compacts new records into SQLite in one transaction per pass.
+ *   Each segment's header holds how far it has been compacted, so compaction resumes where it left off.
+ * - Segments roll over when full and are deleted once compacted and older than the retention period, so replaying
+ *   the journal on startup sees every order placed within that period.
+ *
+ * Each record is its body length and CRC32 followed by the body, so a record torn by a crash is detected and cut off.
+ */
+public class EventJournal {
+
+    public static final byte DECISION = 1;
+    public static final byte ORDER_PLACED = 2;
+
+    private static final Config CONFIG = ConfigWrapper.getConfig();
+    private static final Logger LOG = LoggerFactory.getLogger(EventJournal.class);
+    private static final int MAGIC = 0x4c4e4c4a;
+    private static final int SEGMENT_HEADER_SIZE = 8; // Magic, compacted position
+    private static final int RECORD_HEADER_SIZE = 8; // Body length, CRC32 of body
+    private static final int RECORD_FIXED_BODY_SIZE = 1 + 8 + 4 + 8 + 8 + 8 + 2 + 2;
+
+    private static EventJournal INSTANCE;
+
+    private final Object compactionLock = new Object();
+    private final SqliteDatabase db;
+    private final File directory;
+    private final ScheduledExecutorService flusher;
+    private final int segmentSizeBytes;
+    private final List<Segment> segments = new ArrayList<>(); // Oldest first, the last one is appended to
+
+    private long compactIntervalMillis = 1000L;
+    private long flushIntervalMillis = 200L;
+    private boolean isOpen = false;
+    private long retentionSeconds = 86400L;
+
+    EventJournal(File directory, int segmentSizeBytes, SqliteDatabase db) {
+        if (CONFIG.hasPath("journal.compactIntervalMillis")) {
+            compactIntervalMillis = CONFIG.getLong("journal.compactIntervalMillis");
+        }
+        if (CONFIG.hasPath("journal.flushIntervalMillis")) {
+            flushIntervalMillis = CONFIG.getLong("journal.flushIntervalMillis");
+        }
+        if (CONFIG.hasPath("journal.retentionSeconds")) {
+            retentionSeconds = CONFIG.getLong("journal.retentionSeconds");
+        }
+        this.db = db;
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create directory " + directory);
+            }
+            File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+            if (files != null) {
+                // Sequence numbers are zero padded, so name order is sequence order.
+                Arrays.sort(files);
+                for (File file : files) {
+                    segments.add(Segment.open(file, sequenceOf(file), file.length()));
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.add(newSegment(0L));
+            }
+            createTables();
+            isOpen = true;
+            LOG.info("Initialized EventJournal:{}, segmentCount={} segmentSizeBytes={}",
+                    directory, segments.size(), segmentSizeBytes);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to initialize EventJournal:{}", directory, e);
+        }
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(
+                this::compact, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized EventJournal getInstance() {
+        if (INSTANCE == null) {
+            String directory = CONFIG.hasPath("journal.directory")
+                    ? CONFIG.getString("journal.directory")
+                    : "data/journal";
+            int segmentSizeBytes = CONFIG.hasPath("journal.segmentSizeBytes")
+                    ? CONFIG.getInt("journal.segmentSizeBytes")
+                    : 67108864;
+            INSTANCE = new EventJournal(new File(directory), segmentSizeBytes, SqliteDatabase.getInstance());
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return The instance if getInstance has created one, without creating it otherwise, e.g. during shutdown.
+     */
+    public static synchronized EventJournal getInstanceIfInitialized() {
+        return INSTANCE;
+    }
+
+    public void appendDecision(String symbol, int symbolId, String decision) {
+        append(DECISION, System.currentTimeMillis(), symbol, symbolId, 0L, 0L, 0L, decision);
+    }
+
+    public void appendPlacedOrder(Order order) {
+        append(ORDER_PLACED,
+               order.getPlacedTimeMillis(),
+               order.getSymbol(),
+               order.getSymbolId(),
+               order.getOrderId(),
+               order.getLimitPriceMicros(),
+               order.getOrderedQuantity(),
+               order.getOrderAction());
+    }
+
+    /**
+     * Stops the background thread, then compacts and forces every segment to disk one last time. Records appended
+     * afterwards are dropped.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for flush, directory={}", directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            isOpen = false;
+        }
+        LOG.info("Closed EventJournal:{}", directory);
+    }
+
+    /**
+     * Copies records appended since the last pass into SQLite. Placed buy orders also go to placed_etrade_buy_order.
+     * Segments that are fully compacted and past retention are deleted afterwards.
+     */
+    public void compact() {
+        if (db == null) {
+            return;
+        }
+        synchronized (compactionLock) {
+            for (Segment segment : snapshot()) {
+                int startPosition = segment.compactedPosition;
+                int endPosition = segment.committedPosition();
+                if (startPosition >= endPosition) {
+                    continue;
+                }
+                try {
+                    db.executeInTransaction(connection -> {
+                        try (PreparedStatement eventStmt = connection.prepareStatement(
+                                "INSERT OR REPLACE INTO journal_event ("
+                                        + "description,"
+                                        + "event_id,"
+                                        + "event_time,"
+                                        + "event_type,"
+                                        + "limit_price,"
+                                        + "order_id,"
+                                        + "quantity,"
+                                        + "symbol,"
+                                        + "symbol_id"
+                                        + ") VALUES(?,?,?,?,?,?,?,?,?);");
+                             PreparedStatement orderStmt = connection.prepareStatement(
+                                "INSERT OR REPLACE INTO placed_etrade_buy_order ("
+                                        + "limit_price,"
+                                        + "order_id,"
+                                        + "ordered_quantity,"
+                                        + "placed_time,"
+                                        + "symbol,"
+                                        + "symbol_id"
+                                        + ") VALUES(?,?,?,?,?,?);")) {
+                            segment.read(startPosition, endPosition, record -> {
+                                bindEvent(eventStmt, segment, record);
+                                if (record.isPlacedBuyOrder()) {
+                                    bindPlacedBuyOrder(orderStmt, record);
+                                }
+                            });
+                            eventStmt.executeBatch();
+                            orderStmt.executeBatch();
+                        }
+                    });
+                    segment.setCompactedPosition(endPosition);
+                } catch (SQLException | RuntimeException e) {
+                    LOG.warn("Failed to compact segment, will retry, file={} compactedPosition={}",
+                            segment.file, startPosition, e);
+                    return;
+                }
+            }
+            deleteRetiredSegments();
+        }
+    }
+
+    /**
+     * Forces records appended since the last flush to disk.
+     */
+    public void flush() {
+        for (Segment segment : snapshot()) {
+            segment.flush();
+        }
+    }
+
+    /**
+     * Calls back with every valid record still on disk, oldest first, whether or not it has been compacted yet.
+     */
+    public void replay(RecordCallback callback) {
+        for (Segment segment : snapshot()) {
+            try {
+                segment.read(SEGMENT_HEADER_SIZE, segment.committedPosition(), callback);
+            } catch (SQLException e) {
+                // Only thrown by compaction callbacks.
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    int getSegmentCount() {
+        return snapshot().size();
+    }
+
+    private void append(byte type,
+                        long timeMillis,
+                        String symbol,
+                        int symbolId,
+                        long orderId,
+                        long priceMicros,
+                        long quantity,
+                        String text) {
+        byte[] symbolBytes = encode(symbol);
+        byte[] textBytes = encode(text);
+        int recordSize = RECORD_HEADER_SIZE + RECORD_FIXED_BODY_SIZE + symbolBytes.length + textBytes.length;
+        if (recordSize > segmentSizeBytes - SEGMENT_HEADER_SIZE) {
+            LOG.warn("Dropped record larger than a segment, recordSize={} symbol={}", recordSize, symbol);
+            return;
+        }
+        synchronized (this) {
+            if (!isOpen) {
+                LOG.warn("Dropped record, journal is not open, type={} symbol={}", type, symbol);
+                return;
+            }
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.remaining() < recordSize) {
+                try {
+                    segment = newSegment(segment.sequence + 1L);
+                    segments.add(segment);
+                } catch (IOException e) {
+                    LOG.error("Failed to roll segment, dropped record, type={} symbol={}", type, symbol, e);
+                    return;
+                }
+            }
+            segment.append(type, timeMillis, symbolBytes, symbolId, orderId, priceMicros, quantity, textBytes);
+        }
+    }
+
+    private void bindEvent(PreparedStatement stmt, Segment segment, Record record) throws SQLException {
+        stmt.setString(1, record.text);
+        // Unique and stable across passes, so compacting a record twice after a crash just replaces its row.
+        stmt.setLong(2, (segment.sequence << 32) | record.position);
+        stmt.setLong(3, record.timeMillis);
+        stmt.setInt(4, record.type);
+        stmt.setDouble(5, FixedPoint.toDouble(record.priceMicros));
+        stmt.setLong(6, record.orderId);
+        stmt.setLong(7, record.quantity);
+        stmt.setString(8, record.symbol);
+        stmt.setInt(9, record.symbolId);
+        stmt.addBatch();
+    }
+
+    private void bindPlacedBuyOrder(PreparedStatement stmt, Record record) throws SQLException {
+        stmt.setDouble(1, FixedPoint.toDouble(record.priceMicros));
+        stmt.setString(2, Long.toString(record.orderId));
+        stmt.setLong(3, record.quantity);
+        stmt.setLong(4, record.timeMillis / 1000L);
+        stmt.setString(5, record.symbol);
+        stmt.setInt(6, record.symbolId);
+        stmt.addBatch();
+    }
+
+    private void createTables() {
+        if (db == null) {
+            return;
+        }
+        try {
+            db.executeSql(
+                    "CREATE TABLE IF NOT EXISTS journal_event ("
+                            + "description text,"
+                            + "event_id integer PRIMARY KEY,"
+                            + "event_time integer,"
+                            + "event_type integer,"
+                            + "limit_price real,"
+                            + "order_id integer,"
+                            + "quantity integer,"
+                            + "symbol text,"
+                            + "symbol_id integer"
+                            + ");"
+            );
+            db.executeSql(
+                    "CREATE TABLE IF NOT EXISTS placed_etrade_buy_order ("
+                            + "limit_price real,"
+                            + "order_id text PRIMARY KEY,"
+                            + "ordered_quantity integer,"
+                            + "placed_time integer,"
+                            + "symbol text,"
+                            + "symbol_id integer"
+                            + ");"
+            );
+            db.addColumnIfMissing("placed_etrade_buy_order", "symbol_id", "integer");
+        } catch (SQLException e) {
+            // Records stay in the journal until compaction succeeds.
+            LOG.error("Failed to create 'journal_event' and 'placed_etrade_buy_order' tables", e);
+        }
+    }
+
+    private void deleteRetiredSegments() {
+        long cutoffMillis = System.currentTimeMillis() - retentionSeconds * 1000L;
+        synchronized (this) {
+            // The last segment is the one being appended to, so it's never deleted.
+            while (segments.size() > 1) {
+                Segment segment = segments.get(0);
+                if (segment.compactedPosition < segment.writePosition || segment.lastTimeMillis >= cutoffMillis) {
+                    break;
+                }
+                segment.close();
+                if (!segment.file.delete()) {
+                    LOG.warn("Failed to delete segment, file={}", segment.file);
+                }
+                segments.remove(0);
+                LOG.info("Deleted retired segment, file={}", segment.file);
+            }
+        }
+    }
+
+    private Segment newSegment(long sequence) throws IOException {
+        File file = new File(directory, String.format("segment-%019d.log", sequence));
+        return Segment.open(file, sequence, segmentSizeBytes);
+    }
+
+    private synchronized List<Segment> snapshot() {
+        return new ArrayList<>(segments);
+    }
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // Lengths are stored as unsigned shorts.
+        return bytes.length > 0xFFFF ? Arrays.copyOf(bytes, 0xFFFF) : bytes;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    public interface RecordCallback {
+
+        void call(Record record) throws SQLException;
+    }
+
+    /**
+     * A journal record as read back from a segment. For placed orders the text is the order action.
+     */
+    public static class Record {
+
+        int nextPosition;
+        long orderId;
+        int position;
+        long priceMicros;
+        long quantity;
+        String symbol;
+        int symbolId;
+        String text;
+        long timeMillis;
+        byte type;
+
+        public long getOrderId() {
+            return orderId;
+        }
+
+        public long getPriceMicros() {
+            return priceMicros;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public int getSymbolId() {
+            return symbolId;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public boolean isPlacedBuyOrder() {
+            return type == ORDER_PLACED && "BUY".equals(text);
+        }
+    }
+
+    private static class Segment {
+
+        private final FileChannel channel;
+        private final File file;
+        private final MappedByteBuffer buffer; // Only absolute reads and writes, position is never moved
+        private final ByteBuffer appendBuffer; // Guarded by the journal
+        private final long sequence;
+
+        private volatile int compactedPosition;
+        private int flushedCompactedPosition;
+        private int flushedPosition;
+        private long lastTimeMillis = 0L; // Guarded by the journal
+        private volatile int writePosition;
+
+        private Segment(File file, long sequence, FileChannel channel, MappedByteBuffer buffer) {
+            this.appendBuffer = buffer.duplicate();
+            this.buffer = buffer;
+            this.channel = channel;
+            this.file = file;
+            this.sequence = sequence;
+        }
+
+        static Segment open(File file, long sequence, long sizeBytes) throws IOException {
+            boolean isNew = !file.exists();
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, sizeBytes);
+            Segment segment = new Segment(file, sequence, channel, buffer);
+            if (isNew) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, SEGMENT_HEADER_SIZE);
+                buffer.force();
+            } else if (buffer.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException("Not a journal segment, file=" + file);
+            }
+            segment.compactedPosition = buffer.getInt(4);
+            segment.recover();
+            return segment;
+        }
+
+        void append(byte type,
+                    long timeMillis,
+                    byte[] symbolBytes,
+                    int symbolId,
+                    long orderId,
+                    long priceMicros,
+                    long quantity,
+                    byte[] textBytes) {
+            int bodyPosition = writePosition + RECORD_HEADER_SIZE;
+            appendBuffer.position(bodyPosition);
+            appendBuffer.put(type);
+            appendBuffer.putLong(timeMillis);
+            appendBuffer.putInt(symbolId);
+            appendBuffer.putLong(orderId);
+            appendBuffer.putLong(priceMicros);
+            appendBuffer.putLong(quantity);
+            appendBuffer.putShort((short) symbolBytes.length);
+            appendBuffer.put(symbolBytes);
+            appendBuffer.putShort((short) textBytes.length);
+            appendBuffer.put(textBytes);
+            int bodyLength = appendBuffer.position() - bodyPosition;
+            appendBuffer.putInt(writePosition, bodyLength);
+            appendBuffer.putInt(writePosition + 4, crcOf(bodyPosition, bodyLength));
+            writePosition = bodyPosition + bodyLength;
+            lastTimeMillis = Math.max(lastTimeMillis, timeMillis);
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close segment, file={}", file, e);
+            }
+        }
+
+        /**
+         * @return End of the records appended so far. Reading up to it sees every byte of those records, since
+         * writePosition is only advanced once a record is complete.
+         */
+        int committedPosition() {
+            return writePosition;
+        }
+
+        synchronized void flush() {
+            int position = writePosition;
+            int compacted = compactedPosition;
+            if (position > flushedPosition || compacted != flushedCompactedPosition) {
+                buffer.force();
+                flushedCompactedPosition = compacted;
+                flushedPosition = position;
+            }
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        void read(int startPosition, int endPosition, RecordCallback callback) throws SQLException {
+            ByteBuffer readBuffer = buffer.duplicate();
+            int position = startPosition;
+            while (position < endPosition) {
+                int bodyLength = readBuffer.getInt(position);
+                readBuffer.position(position + RECORD_HEADER_SIZE);
+                Record record = new Record();
+                record.nextPosition = position + RECORD_HEADER_SIZE + bodyLength;
+                record.position = position;
+                record.type = readBuffer.get();
+                record.timeMillis = readBuffer.getLong();
+                record.symbolId = readBuffer.getInt();
+                record.orderId = readBuffer.getLong();
+                record.priceMicros = readBuffer.getLong();
+                record.quantity = readBuffer.getLong();
+                record.symbol = decode(readBuffer);
+                record.text = decode(readBuffer);
+                callback.call(record);
+                position = record.nextPosition;
+            }
+        }
+
+        void setCompactedPosition(int compactedPosition) {
+            this.compactedPosition = compactedPosition;
+            buffer.putInt(4, compactedPosition);
+        }
+
+        private int crcOf(int bodyPosition, int bodyLength) {
+            ByteBuffer body = buffer.duplicate();
+            body.position(bodyPosition);
+            body.limit(bodyPosition + bodyLength);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Finds the end of the valid records. Anything after a torn record is zeroed, so later appends can't leave
+         * stale bytes behind that a scan would mistake for a record.
+         */
+        private void recover() {
+            int position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int bodyLength = buffer.getInt(position);
+                if (bodyLength == 0) {
+                    break;
+                }
+                int bodyPosition = position + RECORD_HEADER_SIZE;
+                if (bodyLength < RECORD_FIXED_BODY_SIZE
+                        || bodyLength > buffer.capacity() - bodyPosition
+                        || buffer.getInt(position + 4) != crcOf(bodyPosition, bodyLength)) {
+                    LOG.warn("Truncated torn record, file={} position={}", file, position);
+                    for (int i = position; i < buffer.capacity(); i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    break;
+                }
+                lastTimeMillis = Math.max(lastTimeMillis, buffer.getLong(bodyPosition + 1));
+                position = bodyPosition + bodyLength;
+            }
+            writePosition = position;
+            flushedPosition = position;
+            compactedPosition = Math.min(Math.max(compactedPosition, SEGMENT_HEADER_SIZE), position);
+            flushedCompactedPosition = compactedPosition;
+        }
+
+        private static String decode(ByteBuffer readBuffer) {
+            int length = readBuffer.getShort() & 0xFFFF;
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            readBuffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -2,36 +2,113 @@ package io.lotsandlots.data;
 
 import com.typesafe.config.Config;
 import io.lotsandlots.util.ConfigWrapper;
+import io.lotsandlots.util.LatencyHistogram;
+import io.lotsandlots.util.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * SQLite storage engine. All connections are long-lived and opened in WAL mode. Reads run concurrently on a bounded
+ * pool of reader connections while writes are queued to a single writer thread that owns the only writer connection,
+ * so readers never wait on writers and writers never contend with each other for SQLite's write lock.
+ *
+ * Each call is timed by statement type into lotsandlots_sqlite_statement_seconds, including any wait for the writer
+ * thread or a reader connection, and the number of writes waiting for the writer is exported as a gauge.
+ */
 public class SqliteDatabase {
 
     private static final Config CONFIG = ConfigWrapper.getConfig();
     private static final Logger LOG = LoggerFactory.getLogger(SqliteDatabase.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final LatencyHistogram BATCH_LATENCY = statementLatency("batch");
+    private static final LatencyHistogram QUERY_LATENCY = statementLatency("query");
+    private static final LatencyHistogram SQL_LATENCY = statementLatency("sql");
+    private static final LatencyHistogram TRANSACTION_LATENCY = statementLatency("transaction");
+    private static final LatencyHistogram UPDATE_LATENCY = statementLatency("update");
 
     private static SqliteDatabase DB;
 
+    private final BlockingQueue<Connection> readerConnections;
+    private final List<Connection> allReaderConnections = new ArrayList<>();
     private final String url;
+    private final ThreadPoolExecutor writer;
+
+    private int busyTimeoutMillis = 5000;
+    private int cacheSizeKibibytes = 16384;
+    private boolean isInitialized = false;
+    private long mmapSizeBytes = 268435456L;
+    private long readerAcquireTimeoutMillis = 5000L;
+    private int readerPoolSize = 4;
+    private Connection writerConnection;
+    private volatile Thread writerThread;
 
     public SqliteDatabase(String url) throws SQLException {
+        if (CONFIG.hasPath("data.busyTimeoutMillis")) {
+            busyTimeoutMillis = CONFIG.getInt("data.busyTimeoutMillis");
+        }
+        if (CONFIG.hasPath("data.cacheSizeKibibytes")) {
+            cacheSizeKibibytes = CONFIG.getInt("data.cacheSizeKibibytes");
+        }
+        if (CONFIG.hasPath("data.mmapSizeBytes")) {
+            mmapSizeBytes = CONFIG.getLong("data.mmapSizeBytes");
+        }
+        if (CONFIG.hasPath("data.readerAcquireTimeoutMillis")) {
+            readerAcquireTimeoutMillis = CONFIG.getLong("data.readerAcquireTimeoutMillis");
+        }
+        if (CONFIG.hasPath("data.readerPoolSize")) {
+            readerPoolSize = Math.max(1, CONFIG.getInt("data.readerPoolSize"));
+        }
         this.url = url;
-        try (Connection conn = DriverManager.getConnection(url)) {
-            DatabaseMetaData meta = conn.getMetaData();
-            LOG.info("Initialized SqliteDatabase:{} using {}", url, meta.getDriverName());
+        this.readerConnections = new ArrayBlockingQueue<>(readerPoolSize);
+        this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "sqlite-writer");
+            thread.setDaemon(true);
+            writerThread = thread;
+            return thread;
+        });
+        METRICS.gauge("lotsandlots_sqlite_writer_queue_depth",
+                      "Writes queued for the SQLite writer thread.",
+                      () -> writer.getQueue().size());
+        try {
+            // The writer connection is opened first so the database file exists and is switched to WAL mode before
+            // any reader connects.
+            writerConnection = newConnection();
+            for (int i = 0; i < readerPoolSize; i++) {
+                Connection readerConnection = newConnection();
+                allReaderConnections.add(readerConnection);
+                readerConnections.add(readerConnection);
+            }
+            isInitialized = true;
+            DatabaseMetaData meta = writerConnection.getMetaData();
+            LOG.info("Initialized SqliteDatabase:{} using {}, busyTimeoutMillis={} cacheSizeKibibytes={} "
+                            + "mmapSizeBytes={} readerPoolSize={}",
+                    url, meta.getDriverName(), busyTimeoutMillis, cacheSizeKibibytes, mmapSizeBytes, readerPoolSize);
         } catch (SQLException e) {
-            LOG.error("Failed to initialized SqliteDatabase:{}", url, e);
+            closeConnections();
+            writer.shutdown();
+            throw e;
         }
     }
 
-    public static SqliteDatabase getInstance() {
+    public static synchronized SqliteDatabase getInstance() {
         if (DB == null) {
             String url = CONFIG.hasPath("data.url")
                     ? CONFIG.getString("data.url")
@@ -45,30 +122,268 @@ public class SqliteDatabase {
         return DB;
     }
 
-    public Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(url);
+    /**
+     * @return The instance if getInstance has created one, without creating it otherwise, e.g. during shutdown.
+     */
+    public static synchronized SqliteDatabase getInstanceIfInitialized() {
+        return DB;
+    }
+
+    /**
+     * Stops the writer thread after draining queued writes and closes every connection.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for queued writes, url={}", url);
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnections();
+        isInitialized = false;
+        LOG.info("Closed SqliteDatabase:{}", url);
+    }
+
+    private void closeConnections() {
+        List<Connection> connections = new ArrayList<>(allReaderConnections);
+        connections.add(writerConnection);
+        for (Connection connection : connections) {
+            if (connection == null) {
+                continue;
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.warn("Failed to close connection, url={}", url, e);
+            }
+        }
+    }
+
+    /**
+     * Adds a column to a table created by an older version, since CREATE TABLE IF NOT EXISTS leaves existing tables
+     * as they are.
+     */
+    public void addColumnIfMissing(String table, String column, String type) throws SQLException {
+        executeOnWriter(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                try (ResultSet resultSet = stmt.executeQuery("PRAGMA table_info(" + table + ");")) {
+                    while (resultSet.next()) {
+                        if (column.equals(resultSet.getString("name"))) {
+                            return;
+                        }
+                    }
+                }
+                stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type + ";");
+                LOG.info("Added column, table={} column={}", table, column);
+            }
+        });
+    }
+
+    public void executeSql(String sql) throws SQLException {
+        long timeStartedNanos = System.nanoTime();
+        try {
+            executeOnWriter(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(sql);
+                }
+            });
+        } finally {
+            SQL_LATENCY.recordSince(timeStartedNanos);
+        }
+    }
+
+    /**
+     * Queues a batched write to the writer thread and waits for it to complete. The callback binds parameters and
+     * calls addBatch once per row, then every row is executed with a single executeBatch and committed in one
+     * transaction. If any row fails the whole batch is rolled back.
+     *
+     * @return Number of rows in the batch.
+     */
+    public int executePreparedBatch(String sql, PreparedStatementCallback callback) throws SQLException {
+        long timeStartedNanos = System.nanoTime();
+        int[] rowCount = new int[1];
+        try {
+            runInTransaction(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    callback.call(stmt);
+                    rowCount[0] = stmt.executeBatch().length;
+                }
+            });
+        } finally {
+            BATCH_LATENCY.recordSince(timeStartedNanos);
+        }
+        return rowCount[0];
+    }
+
+    /**
+     * Queues a batched write to the writer thread without waiting for it, for callers that treat SQLite as
+     * write-behind persistence. Failures surface through the returned Future.
+     *
+     * @return Future holding the number of rows in the batch once it has been committed.
+     */
+    public Future<Integer> submitPreparedBatch(String sql, PreparedStatementCallback callback) throws SQLException {
+        return submitPreparedBatch(sql, callback, null);
     }
 
-    public synchronized void executeSql(String sql) throws SQLException {
-        try (Connection c = DriverManager.getConnection(url); Statement stmt = c.createStatement()) {
-            stmt.execute(sql);
+    /**
+     * Same as {@link #submitPreparedBatch(String, PreparedStatementCallback)}, and also adds the time the batch took
+     * on the writer thread to writeNanos, leaving out the time it spent queued.
+     */
+    public Future<Integer> submitPreparedBatch(String sql,
+                                               PreparedStatementCallback callback,
+                                               LongAdder writeNanos) throws SQLException {
+        if (!isInitialized) {
+            throw new SQLException("SqliteDatabase is not initialized, url=" + url);
+        }
+        return writer.submit(() -> {
+            long timeStartedNanos = System.nanoTime();
+            try {
+                return executePreparedBatch(sql, callback);
+            } finally {
+                if (writeNanos != null) {
+                    writeNanos.add(System.nanoTime() - timeStartedNanos);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a read on one of the pooled reader connections. The callback must not issue writes.
+     */
+    public void executePreparedQuery(String sql, PreparedStatementCallback callback) throws SQLException {
+        long timeStartedNanos = System.nanoTime();
+        try {
+            Connection connection = acquireReaderConnection();
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                callback.call(stmt);
+            } finally {
+                readerConnections.offer(connection);
+            }
+        } finally {
+            QUERY_LATENCY.recordSince(timeStartedNanos);
+        }
+    }
+
+    /**
+     * Queues a write to the writer thread and waits for it to complete.
+     */
+    public void executePreparedUpdate(String sql, PreparedStatementCallback callback) throws SQLException {
+        long timeStartedNanos = System.nanoTime();
+        try {
+            executeOnWriter(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    callback.call(stmt);
+                }
+            });
+        } finally {
+            UPDATE_LATENCY.recordSince(timeStartedNanos);
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    Connection acquireReaderConnection() throws SQLException {
+        if (!isInitialized) {
+            throw new SQLException("SqliteDatabase is not initialized, url=" + url);
+        }
+        try {
+            Connection connection = readerConnections.poll(readerAcquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a reader connection, readerPoolSize=" + readerPoolSize);
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
         }
     }
 
-    public synchronized void executePreparedQuery(String sql, PreparedStatementCallback callback) throws SQLException {
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement stmt = c.prepareStatement(sql)) {
-            callback.call(stmt);
+    /**
+     * Queues a unit of work to the writer thread and waits for it to complete. Every statement the callback issues on
+     * the writer connection is committed together, or rolled back together if the callback throws.
+     */
+    public void executeInTransaction(ConnectionCallback callback) throws SQLException {
+        long timeStartedNanos = System.nanoTime();
+        try {
+            runInTransaction(callback);
+        } finally {
+            TRANSACTION_LATENCY.recordSince(timeStartedNanos);
         }
     }
 
-    public synchronized void executePreparedUpdate(String sql, PreparedStatementCallback callback) throws SQLException {
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement stmt = c.prepareStatement(sql)) {
-            callback.call(stmt);
+    private void runInTransaction(ConnectionCallback callback) throws SQLException {
+        executeOnWriter(connection -> {
+            connection.setAutoCommit(false);
+            try {
+                callback.call(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    void executeOnWriter(ConnectionCallback callback) throws SQLException {
+        if (!isInitialized) {
+            throw new SQLException("SqliteDatabase is not initialized, url=" + url);
+        }
+        if (Thread.currentThread() == writerThread) {
+            // Already on the writer thread, queueing would deadlock.
+            callback.call(writerConnection);
+            return;
+        }
+        Future<?> future = writer.submit(() -> {
+            callback.call(writerConnection);
+            return null;
+        });
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for writer", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Failed to execute write", cause);
         }
     }
 
+    private static LatencyHistogram statementLatency(String type) {
+        return METRICS.histogram("lotsandlots_sqlite_statement_seconds",
+                                 "Latency of SQLite calls by statement type, including queueing for a connection.",
+                                 "type", type);
+    }
+
+    private Connection newConnection() throws SQLException {
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setBusyTimeout(busyTimeoutMillis);
+        // A negative cache_size is interpreted by SQLite as a number of KiB rather than pages.
+        sqliteConfig.setCacheSize(-cacheSizeKibibytes);
+        sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(mmapSizeBytes));
+        sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        return sqliteConfig.createConnection(url);
+    }
+
+    public interface ConnectionCallback {
+
+        void call(Connection connection) throws SQLException;
+    }
+
     public interface PreparedStatementCallback {
 
         void call(PreparedStatement stmt) throws SQLException;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package io.lotsandlots.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps ticker symbols to dense int ids, starting at 0, so per-symbol state can be kept in arrays and BitSets indexed
+ * by id instead of maps keyed by String. A symbol gets its id the first time it is seen and keeps it for good: ids
+ * are persisted to the symbol table and reloaded on startup, so SQLite rows can store the id instead of the ticker.
+ */
+public class SymbolDictionary {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SymbolDictionary.class);
+
+    private static SymbolDictionary INSTANCE;
+
+    private final SqliteDatabase db;
+    private final Map<String, Integer> symbolToId = new ConcurrentHashMap<>();
+    private volatile String[] idToSymbol = new String[64];
+    private int size = 0;
+
+    SymbolDictionary(SqliteDatabase db) {
+        this.db = db;
+        if (db != null) {
+            try {
+                db.executeSql(
+                        "CREATE TABLE IF NOT EXISTS symbol ("
+                                + "symbol_id integer PRIMARY KEY,"
+                                + "symbol text UNIQUE"
+                                + ");"
+                );
+                db.executePreparedQuery("SELECT symbol_id, symbol FROM symbol;", stmt -> {
+                    try (ResultSet resultSet = stmt.executeQuery()) {
+                        while (resultSet.next()) {
+                            put(resultSet.getInt(1), resultSet.getString(2));
+                        }
+                    }
+                });
+            } catch (SQLException e) {
+                LOG.error("Failed to load 'symbol' table", e);
+            }
+        }
+        LOG.info("Initialized SymbolDictionary, symbolCount={}", symbolToId.size());
+    }
+
+    public static synchronized SymbolDictionary getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new SymbolDictionary(SqliteDatabase.getInstance());
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return The id of symbol, or -1 if it has not been seen yet.
+     */
+    public int find(String symbol) {
+        Integer id = symbolToId.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return The id of symbol, assigning the next free id if it has not been seen yet.
+     */
+    public int idOf(String symbol) {
+        Integer id = symbolToId.get(symbol);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = symbolToId.get(symbol);
+            if (id != null) {
+                return id;
+            }
+            int newId = size;
+            put(newId, symbol);
+            persist(newId, symbol);
+            return newId;
+        }
+    }
+
+    /**
+     * @return One more than the highest id assigned so far, e.g. the length of an array indexed by id.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The symbol with the given id, or null if no symbol has that id.
+     */
+    public String symbolOf(int id) {
+        String[] symbols = idToSymbol;
+        return id >= 0 && id < symbols.length ? symbols[id] : null;
+    }
+
+    private synchronized void put(int id, String symbol) {
+        String[] symbols = idToSymbol;
+        if (id >= symbols.length) {
+            symbols = Arrays.copyOf(symbols, Math.max(symbols.length * 2, id + 1));
+        }
+        symbols[id] = symbol.intern();
+        // The array is published before the map entry, so an id handed out is always resolvable.
+        idToSymbol = symbols;
+        symbolToId.put(symbols[id], id);
+        size = Math.max(size, id + 1);
+    }
+
+    private void persist(int id, String symbol) {
+        if (db == null) {
+            return;
+        }
+        try {
+            db.submitPreparedBatch("INSERT OR IGNORE INTO symbol (symbol_id, symbol) VALUES(?,?);", stmt -> {
+                stmt.setInt(1, id);
+                stmt.setString(2, symbol);
+                stmt.addBatch();
+            });
+        } catch (SQLException e) {
+            LOG.warn("Failed to persist symbol, symbol={} symbolId={}", symbol, id, e);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package io.lotsandlots.etrade;
+
+import com.typesafe.config.Config;
+import io.lotsandlots.etrade.model.Lot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides how often each position's lots are fetched. A symbol is hot when its last price is within
+ * lotsFetchHotDistanceRatio of a lot's follow or target price, or when it has been moving fast enough to reach one
+ * before the next cold fetch. Hot symbols are fetched every lotsFetchHotIntervalSeconds, cold symbols every
+ * lotsFetchColdIntervalSeconds, and symbols in between are spaced by their estimated time to the nearest threshold.
+ * No more than maxLotsFetchesPerMinute lots requests are granted in any 60 second window.
+ */
+public class AdaptiveLotsFetchPlanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveLotsFetchPlanner.class);
+    private static final long BUDGET_WINDOW_MILLIS = 60000L;
+    // Weight of the latest observation in the per symbol velocity moving average.
+    private static final double VELOCITY_SMOOTHING = 0.3;
+
+    private final Deque<Long> grantedFetchTimesMillis = new ArrayDeque<>();
+    private final Map<String, SymbolState> symbolToState = new ConcurrentHashMap<>();
+
+    private boolean enabled = false;
+    private long coldIntervalSeconds = 300L;
+    private double hotDistanceRatio = 0.01;
+    private long hotIntervalSeconds = 10L;
+    private int maxLotsFetchesPerMinute = 60;
+
+    public AdaptiveLotsFetchPlanner(Config config) {
+        if (config.hasPath("etrade.adaptiveLotsFetchEnabled")) {
+            enabled = config.getBoolean("etrade.adaptiveLotsFetchEnabled");
+        }
+        if (config.hasPath("etrade.lotsFetchColdIntervalSeconds")) {
+            coldIntervalSeconds = config.getLong("etrade.lotsFetchColdIntervalSeconds");
+        }
+        if (config.hasPath("etrade.lotsFetchHotDistanceRatio")) {
+            hotDistanceRatio = config.getDouble("etrade.lotsFetchHotDistanceRatio");
+        }
+        if (config.hasPath("etrade.lotsFetchHotIntervalSeconds")) {
+            hotIntervalSeconds = Math.max(1L, config.getLong("etrade.lotsFetchHotIntervalSeconds"));
+        }
+        if (config.hasPath("etrade.maxLotsFetchesPerMinute")) {
+            maxLotsFetchesPerMinute = Math.max(1, config.getInt("etrade.maxLotsFetchesPerMinute"));
+        }
+        coldIntervalSeconds = Math.max(hotIntervalSeconds, coldIntervalSeconds);
+        LOG.info("Initialized AdaptiveLotsFetchPlanner, enabled={} coldIntervalSeconds={} hotDistanceRatio={} "
+                        + "hotIntervalSeconds={} maxLotsFetchesPerMinute={}",
+                enabled, coldIntervalSeconds, hotDistanceRatio, hotIntervalSeconds, maxLotsFetchesPerMinute);
+    }
+
+    public long getHotIntervalSeconds() {
+        return hotIntervalSeconds;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record a last price seen in a portfolio or lots response and fold the move since the previous one into the
+     * symbol's velocity.
+     *
+     * @param lastPriceMicros Last price in FixedPoint micros.
+     */
+    public void recordPrice(String symbol, long lastPriceMicros, long timeMillis) {
+        if (lastPriceMicros <= 0L) {
+            return;
+        }
+        SymbolState state = symbolToState.computeIfAbsent(symbol, s -> new SymbolState());
+        synchronized (state) {
+            if (state.lastPriceMicros > 0L && timeMillis > state.lastPriceTimeMillis) {
+                double elapsedSeconds = (timeMillis - state.lastPriceTimeMillis) / 1000D;
+                double ratioPerSecond = (double) Math.abs(lastPriceMicros - state.lastPriceMicros)
+                        / state.lastPriceMicros / elapsedSeconds;
+                state.velocity = state.velocity * (1D - VELOCITY_SMOOTHING) + ratioPerSecond * VELOCITY_SMOOTHING;
+            }
+            state.lastPriceMicros = lastPriceMicros;
+            state.lastPriceTimeMillis = timeMillis;
+        }
+    }
+
+    /**
+     * Record the follow and target prices of a freshly fetched position.
+     */
+    public void recordLots(String symbol, List<Lot> lots, long timeMillis) {
+        long[] thresholdsMicros = new long[lots.size() * 2];
+        int thresholdCount = 0;
+        long lastPriceMicros = 0L;
+        for (Lot lot : lots) {
+            thresholdsMicros[thresholdCount++] = lot.getFollowPriceMicros();
+            thresholdsMicros[thresholdCount++] = lot.getTargetPriceMicros();
+            if (lot.getLastPriceMicros() > 0L) {
+                lastPriceMicros = lot.getLastPriceMicros();
+            }
+        }
+        recordPrice(symbol, lastPriceMicros, timeMillis);
+        SymbolState state = symbolToState.computeIfAbsent(symbol, s -> new SymbolState());
+        synchronized (state) {
+            state.thresholdsMicros = Arrays.copyOf(thresholdsMicros, thresholdCount);
+            state.lastLotsFetchTimeMillis = timeMillis;
+        }
+    }
+
+    /**
+     * Forget symbols that are no longer held.
+     */
+    public void retainSymbols(Collection<String> symbols) {
+        symbolToState.keySet().retainAll(symbols);
+    }
+
+    /**
+     * @return Distance from the last price to the nearest follow or target price, as a ratio of the last price, or
+     * null if the symbol has no price or thresholds yet.
+     */
+    Double distanceRatio(String symbol) {
+        SymbolState state = symbolToState.get(symbol);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            if (state.lastPriceMicros <= 0L || state.thresholdsMicros.length == 0) {
+                return null;
+            }
+            long nearestMicros = Long.MAX_VALUE;
+            for (long thresholdMicros : state.thresholdsMicros) {
+                nearestMicros = Math.min(nearestMicros, Math.abs(state.lastPriceMicros - thresholdMicros));
+            }
+            return (double) nearestMicros / state.lastPriceMicros;
+        }
+    }
+
+    /**
+     * @return How long to wait between lots fetches for the symbol, 0 if it has never been fetched.
+     */
+    long fetchIntervalMillis(String symbol) {
+        SymbolState state = symbolToState.get(symbol);
+        double velocity;
+        if (state == null) {
+            return 0L;
+        }
+        synchronized (state) {
+            if (state.lastLotsFetchTimeMillis == 0L) {
+                return 0L;
+            }
+            velocity = state.velocity;
+        }
+        Double distanceRatio = distanceRatio(symbol);
+        // Symbols without thresholds yet, e.g. after a failed fetch, are retried as if they were hot.
+        if (distanceRatio == null || distanceRatio <= hotDistanceRatio) {
+            return hotIntervalSeconds * 1000L;
+        }
+        if (velocity <= 0D) {
+            return coldIntervalSeconds * 1000L;
+        }
+        // Fetch twice within the estimated time it takes the price to cover the remaining distance.
+        long secondsToThreshold = (long) (distanceRatio / velocity / 2D);
+        return Math.max(hotIntervalSeconds, Math.min(coldIntervalSeconds, secondsToThreshold)) * 1000L;
+    }
+
+    /**
+     * Pick the symbols whose lots are due, most overdue first, and charge them against the budget.
+     */
+    public List<String> acquireDueSymbols(Collection<String> symbols, long nowMillis) {
+        List<DueSymbol> dueSymbols = new ArrayList<>();
+        for (String symbol : symbols) {
+            long intervalMillis = fetchIntervalMillis(symbol);
+            SymbolState state = symbolToState.get(symbol);
+            long lastFetchMillis;
+            if (state == null) {
+                lastFetchMillis = 0L;
+            } else {
+                synchronized (state) {
+                    lastFetchMillis = state.lastLotsFetchTimeMillis;
+                }
+            }
+            long elapsedMillis = nowMillis - lastFetchMillis;
+            if (elapsedMillis >= intervalMillis) {
+                double overdue = intervalMillis == 0L ? Double.MAX_VALUE : (double) elapsedMillis / intervalMillis;
+                dueSymbols.add(new DueSymbol(symbol, overdue));
+            }
+        }
+        dueSymbols.sort((a, b) -> Double.compare(b.overdue, a.overdue));
+
+        List<String> acquired = new ArrayList<>();
+        synchronized (grantedFetchTimesMillis) {
+            while (!grantedFetchTimesMillis.isEmpty()
+                    && grantedFetchTimesMillis.peekFirst() <= nowMillis - BUDGET_WINDOW_MILLIS) {
+                grantedFetchTimesMillis.pollFirst();
+            }
+            for (DueSymbol dueSymbol : dueSymbols) {
+                if (grantedFetchTimesMillis.size() >= maxLotsFetchesPerMinute) {
+                    LOG.debug("Lots fetch budget exhausted, deferredSymbols={}",
+                            dueSymbols.size() - acquired.size());
+                    break;
+                }
+                grantedFetchTimesMillis.addLast(nowMillis);
+                acquired.add(dueSymbol.symbol);
+                // Claim the slot now, so a concurrent full fetch doesn't request the same symbol again.
+                symbolToState.computeIfAbsent(dueSymbol.symbol, s -> new SymbolState()).claim(nowMillis);
+            }
+        }
+        return acquired;
+    }
+
+    private static class DueSymbol {
+
+        private final double overdue;
+        private final String symbol;
+
+        DueSymbol(String symbol, double overdue) {
+            this.overdue = overdue;
+            this.symbol = symbol;
+        }
+    }
+
+    private static class SymbolState {
+
+        private long lastLotsFetchTimeMillis = 0L;
+        private long lastPriceMicros = 0L;
+        private long lastPriceTimeMillis = 0L;
+        private long[] thresholdsMicros = new long[0];
+        private double velocity = 0D;
+
+        synchronized void claim(long timeMillis) {
+            lastLotsFetchTimeMillis = timeMillis;
+        }
+    }
+}
@@ -3,130 +3,89 @@ package io.lotsandlots.etrade;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.typesafe.config.Config;
-import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.data.EventJournal;
+import io.lotsandlots.data.SymbolDictionary;
 import io.lotsandlots.etrade.api.OrderDetail;
 import io.lotsandlots.etrade.api.PortfolioResponse;
 import io.lotsandlots.etrade.api.QuoteResponse;
+import io.lotsandlots.etrade.model.Lot;
 import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.oauth.SecurityContext;
-import io.lotsandlots.etrade.rest.Message;
 import io.lotsandlots.util.ConfigWrapper;
 import io.lotsandlots.util.EmailHelper;
+import io.lotsandlots.util.FixedPoint;
+import io.lotsandlots.util.SymbolLaneExecutor;
+import io.lotsandlots.util.TaskScheduler;
+import io.lotsandlots.util.TradingWindow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.ResponseEntity;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPortfolioDataFetchCompletionHandler,
         EtradePortfolioDataFetcher.OnPositionLotsUpdateHandler {
 
     private static final Config CONFIG = ConfigWrapper.getConfig();
-    private static final SqliteDatabase DB = SqliteDatabase.getInstance();
-    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newFixedThreadPool(5);
+    private static final EventJournal JOURNAL = EventJournal.getInstance();
     private static final Logger LOG = LoggerFactory.getLogger(EtradeBuyOrderController.class);
+    private static final SymbolDictionary SYMBOLS = SymbolDictionary.getInstance();
 
-    private final ExecutorService executor;
-    private final Set<String> buyOrderEnabledSymbols = new HashSet<>();
-    private final Map<String, Cache<Long, Order>> placedBuyOrderCache = new HashMap<>();
+    private final SymbolLaneExecutor laneExecutor;
+    // Orders placed in the last 24 hours, indexed by SymbolDictionary id. Grown as symbols are seen.
+    private final List<Cache<Long, Order>> placedBuyOrderCaches = new ArrayList<>(64);
+    private final TradingWindow tradingWindow;
 
     private EmailHelper emailHelper = new EmailHelper();
     private EtradePortfolioDataFetcher portfolioDataFetcher;
     private EtradeOrdersDataFetcher ordersDataFetcher;
-    private int buyOrderCreationStartDayOfWeek = 1;
-    private int buyOrderCreationStartHour = 13;
-    private int buyOrderCreationStartMinute = 30;
-    private int buyOrderCreationStopDayOfWeek = 6;
-    private int buyOrderCreationStopHour = 20;
+    private EtradeQuoteService quoteService = null;
     private long haltBuyOrderCashBalance = 0L;
-    private float idealLotSize = 1000F;
     private long maxBuyOrdersPerSymbolPerDay = 3L;
-    private float minLotSize = 900F;
 
     public EtradeBuyOrderController(EtradePortfolioDataFetcher portfolioDataFetcher,
                                     EtradeOrdersDataFetcher ordersDataFetcher) {
-        this(portfolioDataFetcher, ordersDataFetcher, DEFAULT_EXECUTOR);
+        this(portfolioDataFetcher,
+             ordersDataFetcher,
+             new SymbolLaneExecutor("buy", TaskScheduler.getInstance().getExecutor()));
     }
 
     public EtradeBuyOrderController(EtradePortfolioDataFetcher portfolioDataFetcher,
                                     EtradeOrdersDataFetcher ordersDataFetcher,
-                                    ExecutorService executor) {
-        this.executor = executor;
+                                    SymbolLaneExecutor laneExecutor) {
+        this.laneExecutor = laneExecutor;
         this.ordersDataFetcher = ordersDataFetcher;
         this.portfolioDataFetcher = portfolioDataFetcher;
 
-        if (CONFIG.hasPath("etrade.enableBuyOrderCreation")) {
-            buyOrderEnabledSymbols.addAll(CONFIG.getStringList("etrade.enableBuyOrderCreation"));
-        }
-        if (CONFIG.hasPath("etrade.buyOrderCreationStartDayOfWeek")) {
-            buyOrderCreationStartDayOfWeek = CONFIG.getInt("etrade.buyOrderCreationStartDayOfWeek");
-        }
-        if (CONFIG.hasPath("etrade.buyOrderCreationStartHour")) {
-            buyOrderCreationStartHour = CONFIG.getInt("etrade.buyOrderCreationStartHour");
-        }
-        if (CONFIG.hasPath("etrade.buyOrderCreationStartMinute")) {
-            buyOrderCreationStartMinute = CONFIG.getInt("etrade.buyOrderCreationStartMinute");
-        }
-        if (CONFIG.hasPath("etrade.buyOrderCreationStopDayOfWeek")) {
-            buyOrderCreationStopDayOfWeek = CONFIG.getInt("etrade.buyOrderCreationStopDayOfWeek");
-        }
-        if (CONFIG.hasPath("etrade.buyOrderCreationStopHour")) {
-            buyOrderCreationStopHour = CONFIG.getInt("etrade.buyOrderCreationStopHour");
-        }
+        tradingWindow = TradingWindow.fromConfig(CONFIG);
         if (CONFIG.hasPath("etrade.haltBuyOrderCashBalance")) {
             haltBuyOrderCashBalance = CONFIG.getLong("etrade.haltBuyOrderCashBalance");
         }
-        if (CONFIG.hasPath("etrade.idealLotSize")) {
-            idealLotSize = (float) CONFIG.getLong("etrade.idealLotSize");
-        }
         if (CONFIG.hasPath("etrade.maxBuyOrdersPerSymbolPerDay")) {
             maxBuyOrdersPerSymbolPerDay = CONFIG.getLong("etrade.maxBuyOrdersPerSymbolPerDay");
         }
-        if (CONFIG.hasPath("etrade.minLotSize")) {
-            minLotSize = (float) CONFIG.getLong("etrade.minLotSize");
-        }
-        try {
-            DB.executeSql(
-                    "CREATE TABLE IF NOT EXISTS placed_etrade_buy_order ("
-                            + "limit_price real,"
-                            + "order_id text PRIMARY KEY,"
-                            + "ordered_quantity integer,"
-                            + "placed_time integer,"
-                            + "symbol text"
-                    + ");"
-            );
-            portfolioDataFetcher.addOnPortfolioDataFetchCompletionHandler(this);
-            portfolioDataFetcher.addOnPositionLotsUpdateHandler(this);
-            LOG.info("Initialized EtradeBuyOrderCreator, haltBuyOrderCashBalance={} idealLotSize={} "
-                            + "maxBuyOrdersPerSymbolPerDay={} minLotSize={}",
-                    haltBuyOrderCashBalance, idealLotSize, maxBuyOrdersPerSymbolPerDay, minLotSize);
-        } catch (SQLException e) {
-            LOG.error("Failed to create 'placed_etrade_order' table", e);
-        }
+        replayPlacedBuyOrders(System.currentTimeMillis());
+        portfolioDataFetcher.addOnPortfolioDataFetchCompletionHandler(this);
+        portfolioDataFetcher.addOnPositionLotsUpdateHandler(this);
+        LOG.info("Initialized EtradeBuyOrderCreator, haltBuyOrderCashBalance={} maxBuyOrdersPerSymbolPerDay={}",
+                haltBuyOrderCashBalance, maxBuyOrdersPerSymbolPerDay);
     }
 
     void cachePlacedBuyOrder(String symbol, Order order) {
-        placedBuyOrderCache.get(symbol).put(order.getOrderId(), order);
+        placedBuyOrderCache(SYMBOLS.idOf(symbol)).put(order.getOrderId(), order);
     }
 
     void enableNewSymbol(String symbol) {
-        if (!placedBuyOrderCache.containsKey(symbol)) {
-            placedBuyOrderCache.put(symbol, CacheBuilder.newBuilder()
-                                                        .expireAfterWrite(24, TimeUnit.HOURS)
-                                                        .build());
-        }
+        placedBuyOrderCache(SYMBOLS.idOf(symbol));
     }
 
-    long getBuyOrdersCreatedInLast24Hours(String symbol) {
-        return placedBuyOrderCache.get(symbol).size();
+    synchronized long getBuyOrdersCreatedInLast24Hours(int symbolId) {
+        if (symbolId >= placedBuyOrderCaches.size() || placedBuyOrderCaches.get(symbolId) == null) {
+            return 0L;
+        }
+        return placedBuyOrderCaches.get(symbolId).size();
     }
 
     /**
@@ -155,23 +114,27 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
             return;
         }
         LOG.debug("Checking for buying enabled symbols with no lots");
-        int freshnessThreshold = (int) (
-                (System.currentTimeMillis() / 1000L) - portfolioDataFetcher.getPortfolioDataExpirationSeconds()
-        );
-        for (String symbol : buyOrderEnabledSymbols) {
+        Map<String, List<Lot>> symbolToLotsIndex = portfolioDataFetcher.getSymbolToLotsIndex();
+        List<String> symbolsWithoutLots = new LinkedList<>();
+        for (String symbol : TradingPolicyTable.getCurrent().getBuyOrderEnabledSymbols()) {
             // TODO:
             // - How do we know if a cache miss is not due to data fetching or server side data quality problems?
             // - One option could be to build and maintain an internal representation of what the portfolio should
             //   look like. For example, if we haven't sold any lots, we should have the same number of lots after
             //   fetching data. If that is not the case, we should assume our data is not reliable.
-            LotCountPreparedStatementCallback callback = new LotCountPreparedStatementCallback(
-                    symbol, freshnessThreshold, totals);
-            try {
-                DB.executePreparedQuery(
-                        "SELECT COUNT(*) FROM etrade_lot WHERE symbol == ? AND updated_time > ?;",
-                        callback);
-            } catch (SQLException e) {
-                LOG.error("Failed execute: {}", callback.getStatement(), e);
+            List<Lot> lots = symbolToLotsIndex.get(symbol);
+            if (lots == null || lots.isEmpty()) {
+                LOG.info("Did not find any lots, symbol={}", symbol);
+                symbolsWithoutLots.add(symbol);
+            } else {
+                LOG.debug("Skipping buy order creation, found {} lots, symbol={}", lots.size(), symbol);
+            }
+        }
+        if (!symbolsWithoutLots.isEmpty()) {
+            // Queue every quote up front so the runnables below share batched quote requests.
+            getQuoteService().prefetchQuotes(symbolsWithoutLots);
+            for (String symbol : symbolsWithoutLots) {
+                laneExecutor.execute(SYMBOLS.idOf(symbol), new InitialBuyOrderRunnable(symbol, totals));
             }
         }
     }
@@ -180,16 +143,23 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
     public void handlePositionLotsUpdate(String symbol,
                                          PortfolioResponse.Totals totals) {
         if (isBuyOrderCreationEnabled(symbol)) {
-            executor.submit(new OnPositionLotsUpdateRunnable(symbol, totals));
+            laneExecutor.execute(SYMBOLS.idOf(symbol), new OnPositionLotsUpdateRunnable(symbol, totals));
+        }
+    }
+
+    synchronized EtradeQuoteService getQuoteService() {
+        if (quoteService == null) {
+            quoteService = EtradeQuoteService.getInstance();
         }
+        return quoteService;
     }
 
-    boolean isBelowMaxBuyOrdersPerDayLimit(String symbol) {
-        return placedBuyOrderCache.get(symbol).size() < maxBuyOrdersPerSymbolPerDay;
+    boolean isBelowMaxBuyOrdersPerDayLimit(int symbolId) {
+        return getBuyOrdersCreatedInLast24Hours(symbolId) < maxBuyOrdersPerSymbolPerDay;
     }
 
     boolean isBuyOrderCreationEnabled(String symbol) {
-        return buyOrderEnabledSymbols.contains(symbol);
+        return TradingPolicyTable.getCurrent().isBuyOrderCreationEnabled(SYMBOLS.idOf(symbol));
     }
 
     /**
@@ -212,7 +182,7 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
         instrument.setOrderAction("BUY");
         instrument.setProduct(product);
         instrument.setQuantityType("QUANTITY");
-        long quantity = quantityFromLastPrice(lastPrice);
+        long quantity = quantityFromLastPrice(TradingPolicyTable.getCurrent().get(symbol), lastPrice);
         LOG.debug("Preparing buy order, symbol={} quantity={} estimatedLotSize={}",
                 symbol, quantity, quantity * lastPrice);
         instrument.setQuantity(quantity);
@@ -226,12 +196,54 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
         return orderDetail;
     }
 
-    long quantityFromLastPrice(float lastPrice) {
-        if (lastPrice >= idealLotSize) {
+    /**
+     * @return The placed buy order cache of a symbol, created on first use.
+     */
+    synchronized Cache<Long, Order> placedBuyOrderCache(int symbolId) {
+        while (symbolId >= placedBuyOrderCaches.size()) {
+            placedBuyOrderCaches.add(null);
+        }
+        Cache<Long, Order> placedBuyOrderCache = placedBuyOrderCaches.get(symbolId);
+        if (placedBuyOrderCache == null) {
+            placedBuyOrderCache = CacheBuilder.newBuilder()
+                                              .expireAfterWrite(24, TimeUnit.HOURS)
+                                              .build();
+            placedBuyOrderCaches.set(symbolId, placedBuyOrderCache);
+        }
+        return placedBuyOrderCache;
+    }
+
+    /**
+     * Rebuild the placed buy order caches from the journal, so a restart doesn't reset the per day limit. Replayed
+     * orders expire 24 hours after the replay rather than after they were placed, which errs on the side of buying
+     * less.
+     */
+    void replayPlacedBuyOrders(long currentTimeMillis) {
+        long cutoffMillis = currentTimeMillis - TimeUnit.HOURS.toMillis(24);
+        int[] replayedCount = new int[1];
+        JOURNAL.replay(record -> {
+            if (record.isPlacedBuyOrder() && record.getTimeMillis() > cutoffMillis) {
+                Order order = new Order();
+                order.setLimitPriceMicros(record.getPriceMicros());
+                order.setOrderAction(record.getText());
+                order.setOrderId(record.getOrderId());
+                order.setOrderedQuantity(record.getQuantity());
+                order.setPlacedTimeMillis(record.getTimeMillis());
+                order.setSymbol(record.getSymbol());
+                order.setSymbolId(SYMBOLS.idOf(record.getSymbol()));
+                cachePlacedBuyOrder(order.getSymbol(), order);
+                replayedCount[0]++;
+            }
+        });
+        LOG.info("Replayed placed buy orders from journal, replayedCount={}", replayedCount[0]);
+    }
+
+    long quantityFromLastPrice(TradingPolicy policy, float lastPrice) {
+        if (lastPrice >= policy.getIdealLotSize()) {
             return 1L;
         } else {
-            long quantity = Math.round(idealLotSize / lastPrice);
-            if (quantity * lastPrice < minLotSize) {
+            long quantity = Math.round(policy.getIdealLotSize() / lastPrice);
+            if (quantity * lastPrice < policy.getMinLotSize()) {
                 quantity++;
             }
             return quantity;
@@ -263,44 +275,42 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
         this.portfolioDataFetcher = portfolioDataFetcher;
     }
 
+    synchronized void setQuoteService(EtradeQuoteService quoteService) {
+        this.quoteService = quoteService;
+    }
+
     /**
      * Functionally abstract but not officially declared to make testing easier.
      */
     class BuyOrderRunnable extends EtradeOrderCreator {
 
         protected final String symbol;
+        protected final int symbolId;
         protected PortfolioResponse.Totals totals;
 
         BuyOrderRunnable(String symbol, PortfolioResponse.Totals totals) {
             this.symbol = symbol;
+            this.symbolId = SYMBOLS.idOf(symbol);
             this.totals = totals;
         }
 
-        public boolean canProceedWithBuyOrderCreation(Float lastPrice) {
+        /**
+         * @param lastPriceMicros Last price in FixedPoint micros.
+         */
+        public boolean canProceedWithBuyOrderCreation(long lastPriceMicros) {
             if (!canProceedWithBuyOrderCreation()) {
                 return false;
             }
-            String constraintsConfigKey = "etrade.buyOrderCreationConstraints." + symbol;
-            if (CONFIG.hasPath(constraintsConfigKey)) {
-                String maxPriceConfigKey = constraintsConfigKey + ".maxPrice";
-                if (CONFIG.hasPath(maxPriceConfigKey)) {
-                    float maxPrice = (float) CONFIG.getDouble(maxPriceConfigKey);
-                    if (lastPrice > maxPrice) {
-                        LOG.debug("Skipping buy order creation, lastPrice above maxPrice, symbol={}, lastPrice={}, maxPrice={}",
-                                symbol, lastPrice, maxPrice);
-                        return false;
-                    }
-                }
-                String minPriceConfigKey = constraintsConfigKey + ".minPrice";
-                float minPrice = 1F;
-                if (CONFIG.hasPath(minPriceConfigKey)) {
-                    minPrice = (float) CONFIG.getDouble(minPriceConfigKey);
-                }
-                if (lastPrice < minPrice) {
-                    LOG.debug("Skipping buy order creation, lastPrice below minPrice, symbol={}, lastPrice={}, minPrice={}",
-                            symbol, lastPrice, minPrice);
-                    return false;
-                }
+            TradingPolicy policy = TradingPolicyTable.getCurrent().get(symbolId);
+            if (lastPriceMicros > policy.getMaxPriceMicros()) {
+                LOG.debug("Skipping buy order creation, lastPrice above maxPrice, symbol={}, lastPrice={}, maxPrice={}",
+                        symbol, FixedPoint.toDouble(lastPriceMicros), policy.getMaxPrice());
+                return false;
+            }
+            if (lastPriceMicros < policy.getMinPriceMicros()) {
+                LOG.debug("Skipping buy order creation, lastPrice below minPrice, symbol={}, lastPrice={}, minPrice={}",
+                        symbol, FixedPoint.toDouble(lastPriceMicros), policy.getMinPrice());
+                return false;
             }
             return true;
         }
@@ -329,14 +339,19 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
                 LOG.debug("Skipping buy order creation, a buy order already exists, symbol={}", symbol);
                 return false;
             }
-            if (totals.getCashBalance() < haltBuyOrderCashBalance) {
+            Float cashBalance = totals == null ? null : totals.getCashBalance();
+            if (cashBalance == null) {
+                LOG.debug("Skipping buy order creation, portfolio totals have not been fetched, symbol={}", symbol);
+                return false;
+            }
+            if (cashBalance < haltBuyOrderCashBalance) {
                 LOG.info("Skipping buy order creation, cashBalance below haltBuyOrderCashBalance {} < {}, symbol={}",
-                        totals.getCashBalance(), haltBuyOrderCashBalance, symbol);
+                        cashBalance, haltBuyOrderCashBalance, symbol);
                 return false;
             }
-            if (!isBelowMaxBuyOrdersPerDayLimit(symbol)) {
+            if (!isBelowMaxBuyOrdersPerDayLimit(symbolId)) {
                 LOG.debug("Skipping buy order creation, {} buy orders have been created in the last 24 hours, symbol={}",
-                        getBuyOrdersCreatedInLast24Hours(symbol), symbol);
+                        getBuyOrdersCreatedInLast24Hours(symbolId), symbol);
                 return false;
             }
             return true;
@@ -357,29 +372,21 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
         public boolean isEmbargoedTimeWindow() {
             OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
             int currentDayOfWeek = this.currentDayOfWeek(now);
-            if (currentDayOfWeek < buyOrderCreationStartDayOfWeek
-                    || currentDayOfWeek >= buyOrderCreationStopDayOfWeek) {
-                LOG.debug( "Skipping buy order creation, currentDayOfWeek={}, "
-                                + "buyOrderCreationStartDayOfWeek={}, buyOrderCreationStopDayOfWeek={}",
-                        currentDayOfWeek, buyOrderCreationStartDayOfWeek, buyOrderCreationStopDayOfWeek
-                );
-                return true;
-            }
             int currentHour = this.currentHour(now);
             int currentMinute = this.currentMinute(now);
-            if (currentHour < buyOrderCreationStartHour
-                    || (currentHour == buyOrderCreationStartHour && currentMinute < buyOrderCreationStartMinute)
-                    || currentHour >= buyOrderCreationStopHour) {
-                LOG.debug( "Skipping buy order creation, currentHour={} currentMinute={} "
-                                + "buyOrderCreationStartHour={} buyOrderCreationStartMinute={} buyOrderCreationStopHour={}",
-                        currentHour, currentMinute,
-                        buyOrderCreationStartHour, buyOrderCreationStartMinute, buyOrderCreationStopHour
-                );
+            if (!tradingWindow.isOpen(currentDayOfWeek, currentHour, currentMinute)) {
+                LOG.debug("Skipping buy order creation, currentDayOfWeek={} currentHour={} currentMinute={} {}",
+                        currentDayOfWeek, currentHour, currentMinute, tradingWindow);
                 return true;
             }
             return false;
         }
 
+        @Override
+        void handlePlaceOrderFailure() {
+            ordersDataFetcher.requestFullReconcile();
+        }
+
         @Override
         public void run() {
         }
@@ -401,36 +408,26 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
 
             float lastTradedPrice;
             try {
-                Message quoteMessage = new Message();
-                quoteMessage.setRequiresOauth(true);
-                quoteMessage.setHttpMethod("GET");
-                quoteMessage.setUrl(getApiConfig().getQuoteUrl() + symbol);
-                setOAuthHeader(securityContext, quoteMessage);
-
-                ResponseEntity<QuoteResponse> quoteResponseEntity =
-                        getRestTemplateFactory()
-                                .newCustomRestTemplate().doGet(quoteMessage, QuoteResponse.class);
-                QuoteResponse quoteResponse = quoteResponseEntity.getBody();
-                if (quoteResponse == null) {
-                    throw new RuntimeException("Empty response");
-                }
-                lastTradedPrice = quoteResponse.getQuoteDataList().get(0).getAllQuoteDetails().getLastTrade();
+                QuoteResponse.QuoteData quoteData = getQuoteService().getQuote(symbol);
+                lastTradedPrice = quoteData.getAllQuoteDetails().getLastTrade();
                 LOG.debug("Fetched quote, symbol={}, lastTradedPrice={}", symbol, lastTradedPrice);
             } catch (Exception e) {
                 LOG.debug("Skipping buy order creation due to failure to fetch quote, symbol={}", symbol, e);
                 return;
             }
-            if (canProceedWithBuyOrderCreation(lastTradedPrice)) {
+            if (canProceedWithBuyOrderCreation(FixedPoint.toMicros(lastTradedPrice))) {
+                recordDecision(symbol, String.format("Did not find any lots, lastTradedPrice=%f", lastTradedPrice));
                 try {
                     // Send notification
                     emailHelper.sendMessage(
                             "Did not find any lots",
                             String.format("%s: lastTradedPrice=%f", symbol, lastTradedPrice));
                     // Create buy order
-                    placeOrder(
+                    Order order = placeOrder(
                             securityContext,
                             UUID.randomUUID().toString().substring(0, 8),
                             newBuyOrderDetailFromLastPrice(symbol, lastTradedPrice));
+                    cachePlacedBuyOrder(symbol, order);
                 } catch (Exception e) {
                     LOG.debug("Failed to create buy orders, symbol={}", symbol, e);
                 }
@@ -438,46 +435,9 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
         }
     }
 
-    class LotCountPreparedStatementCallback implements SqliteDatabase.PreparedStatementCallback {
-
-        private final int freshnessThreshold;
-        private final String symbol;
-        private final PortfolioResponse.Totals totals;
-
-        private PreparedStatement statement;
-
-        LotCountPreparedStatementCallback(String symbol, int freshnessThreshold, PortfolioResponse.Totals totals) {
-            this.freshnessThreshold = freshnessThreshold;
-            this.symbol = symbol;
-            this.totals = totals;
-        }
-
-        @Override
-        public void call(PreparedStatement stmt) throws SQLException {
-            this.statement = stmt;
-            stmt.setString(1, symbol);
-            stmt.setInt(2, freshnessThreshold);
-            ResultSet rs = stmt.executeQuery();
-            int count = rs.getInt(1);
-            rs.close();
-            if (count  == 0) {
-                LOG.info("Did not find any lots, symbol={}", symbol);
-                executor.submit(new InitialBuyOrderRunnable(symbol, totals));
-            } else {
-                LOG.debug("Skipping buy order creation, found {} lots, symbol={}", count, symbol);
-            }
-        }
-
-        public PreparedStatement getStatement() {
-            return statement;
-        }
-    }
-
-    class OnPositionLotsUpdateRunnable extends BuyOrderRunnable implements SqliteDatabase.PreparedStatementCallback {
+    class OnPositionLotsUpdateRunnable extends BuyOrderRunnable {
 
-        int freshnessThreshold;
         SecurityContext securityContext;
-        PreparedStatement statement;
 
         OnPositionLotsUpdateRunnable(String symbol, PortfolioResponse.Totals totals) {
             super(symbol, totals);
@@ -485,19 +445,51 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
         }
 
         @Override
-        public void call(PreparedStatement stmt) throws SQLException {
-            statement = stmt;
-            stmt.setString(1, symbol);
-            stmt.setInt(2, freshnessThreshold);
-            ResultSet rs = stmt.executeQuery();
-            float acquiredPrice = rs.getFloat("acquired_price");
-            float followPrice = rs.getFloat("follow_price");
-            float lastPrice = rs.getFloat("last_price");
-            rs.close();
-            if (lastPrice < followPrice) {
+        public void run() {
+            if (!securityContext.isInitialized()) {
+                LOG.warn("SecurityContext not initialized, please go to /etrade/authorize");
+                return;
+            }
+            if (getApiConfig().getOrdersPreviewUrl() == null) {
+                LOG.warn("Please configure etrade.accountIdKey");
+                return;
+            }
+            Long lastSuccessfulPortfolioFetchTimeMillis = portfolioDataFetcher.getLastSuccessfulFetchTimeMillis();
+            if (lastSuccessfulPortfolioFetchTimeMillis == null) {
+                LOG.debug("Skipping buy order creation, portfolio data fetch has not occurred, symbol={}", symbol);
+                return;
+            }
+            long portfolioDeltaMillis = System.currentTimeMillis() - lastSuccessfulPortfolioFetchTimeMillis;
+            long portfolioThresholdMillis = portfolioDataFetcher.getPortfolioDataExpirationSeconds() * 1000L;
+            if (portfolioDeltaMillis > portfolioThresholdMillis) {
+                LOG.warn("Skipping buy order creation due to portfolio data staleness, "
+                                + "lastSuccessfulFetchTimeMillis={} deltaMillis={} thresholdMillis={} symbol={}",
+                        lastSuccessfulPortfolioFetchTimeMillis, portfolioDeltaMillis, portfolioThresholdMillis, symbol);
+                return;
+            }
+            List<Lot> lots = portfolioDataFetcher.getSymbolToLotsIndex().get(symbol);
+            if (lots == null || lots.isEmpty()) {
+                return;
+            }
+            Lot lowestLot = null;
+            for (Lot lot : lots) {
+                if (lowestLot == null || lot.getFollowPriceMicros() < lowestLot.getFollowPriceMicros()) {
+                    lowestLot = lot;
+                }
+            }
+            long lastPriceMicros = lowestLot.getLastPriceMicros();
+            if (lastPriceMicros < lowestLot.getFollowPriceMicros()) {
+                double acquiredPrice = FixedPoint.toDouble(lowestLot.getPriceMicros());
+                double followPrice = FixedPoint.toDouble(lowestLot.getFollowPriceMicros());
+                double lastPrice = FixedPoint.toDouble(lastPriceMicros);
                 LOG.debug("Lowest {} lot, acquiredPrice={}, lastPrice={} followPrice={}",
                         symbol, acquiredPrice, lastPrice, followPrice);
-                if (canProceedWithBuyOrderCreation(lastPrice)) {
+                if (canProceedWithBuyOrderCreation(lastPriceMicros)) {
+                    recordDecision(symbol, String.format(
+                            "Follow threshold breached, acquiredPrice=%f, lastPrice=%f, followPrice=%f",
+                            acquiredPrice,
+                            lastPrice,
+                            followPrice));
                     try {
                         // Send notification
                         emailHelper.sendMessage(
@@ -509,38 +501,16 @@ public class EtradeBuyOrderController implements EtradePortfolioDataFetcher.OnPo
                                         lastPrice,
                                         followPrice));
                         // Create buy order
-                        placeOrder(
+                        Order order = placeOrder(
                                 securityContext,
                                 UUID.randomUUID().toString().substring(0, 8),
-                                newBuyOrderDetailFromLastPrice(symbol, lastPrice));
+                                newBuyOrderDetailFromLastPrice(symbol, (float) lastPrice));
+                        cachePlacedBuyOrder(symbol, order);
                     } catch (Exception e) {
                         LOG.debug("Failed to create buy orders, symbol={}", symbol, e);
                     }
                 }
             }
         }
-
-        @Override
-        public void run() {
-            if (!securityContext.isInitialized()) {
-                LOG.warn("SecurityContext not initialized, please go to /etrade/authorize");
-                return;
-            }
-            if (getApiConfig().getOrdersPreviewUrl() == null) {
-                LOG.warn("Please configure etrade.accountIdKey");
-                return;
-            }
-            freshnessThreshold = (int) (
-                    (System.currentTimeMillis() / 1000L) - portfolioDataFetcher.getPortfolioDataExpirationSeconds()
-            );
-            try {
-                DB.executePreparedQuery(
-                        "SELECT acquired_price,follow_price,last_price FROM etrade_lot WHERE follow_price == "
-                                + "(SELECT min(follow_price) FROM etrade_lot WHERE symbol == ? AND updated_time > ?);",
-                        this);
-            } catch (SQLException e) {
-                LOG.error("Failed execute: {}", statement, e);
-            }
-        }
     }
 }
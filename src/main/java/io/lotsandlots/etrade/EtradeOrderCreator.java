@@ -3,14 +3,20 @@ package io.lotsandlots.etrade;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.data.EventJournal;
+import io.lotsandlots.data.SymbolDictionary;
 import io.lotsandlots.etrade.api.OrderDetail;
 import io.lotsandlots.etrade.api.PlaceOrderRequest;
 import io.lotsandlots.etrade.api.PlaceOrderResponse;
 import io.lotsandlots.etrade.api.PreviewOrderRequest;
 import io.lotsandlots.etrade.api.PreviewOrderResponse;
+import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.etrade.rest.RequestPriority;
+import io.lotsandlots.util.FixedPoint;
+import io.lotsandlots.util.LatencyHistogram;
+import io.lotsandlots.util.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
@@ -18,15 +24,20 @@ import org.springframework.http.ResponseEntity;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class EtradeOrderCreator extends EtradeDataFetcher {
 
-    private static final SqliteDatabase DB = SqliteDatabase.getInstance();
+    private static final EventJournal JOURNAL = EventJournal.getInstance();
     private static final Logger LOG = LoggerFactory.getLogger(EtradeOrderCreator.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final ConcurrentMap<String, MetricsRegistry.Counter> ORDERS_PLACED = new ConcurrentHashMap<>();
+    private static final LatencyHistogram PLACEMENT_FAILED = placementLatency("error");
+    private static final LatencyHistogram PLACEMENT_SUCCEEDED = placementLatency("success");
+    private static final SymbolDictionary SYMBOLS = SymbolDictionary.getInstance();
 
     protected static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
             .setSerializationInclusion(JsonInclude.Include.NON_NULL);
@@ -41,13 +52,14 @@ public abstract class EtradeOrderCreator extends EtradeDataFetcher {
         Message ordersPreviewMessage = new Message();
         ordersPreviewMessage.setRequiresOauth(true);
         ordersPreviewMessage.setHttpMethod("POST");
+        ordersPreviewMessage.setPriority(RequestPriority.PREVIEW);
         ordersPreviewMessage.setContentType(MediaType.APPLICATION_JSON_VALUE);
         ordersPreviewMessage.setUrl(getApiConfig().getOrdersPreviewUrl());
         setOAuthHeader(securityContext, ordersPreviewMessage);
 
         ResponseEntity<PreviewOrderResponse> previewOrderResponseEntity =
                 getRestTemplateFactory()
-                        .newCustomRestTemplate()
+                        .getRestTemplate()
                         .doPost(ordersPreviewMessage,
                                 OBJECT_MAPPER.writeValueAsString(payload),
                                 PreviewOrderResponse.class);
@@ -74,9 +86,50 @@ public abstract class EtradeOrderCreator extends EtradeDataFetcher {
         return previewOrderRequest;
     }
 
-    void placeOrder(SecurityContext securityContext,
-                    String clientOrderId,
-                    OrderDetail orderDetail)
+    /**
+     * Previews and places an order, then journals it. Nothing here waits on SQLite, the journal is compacted into it
+     * in the background. The preview and place requests are timed separately by EtradeRestTemplate, the whole of it
+     * goes to lotsandlots_order_placement_seconds.
+     *
+     * @return The placed order.
+     */
+    Order placeOrder(SecurityContext securityContext,
+                     String clientOrderId,
+                     OrderDetail orderDetail)
+            throws GeneralSecurityException, JsonProcessingException, UnsupportedEncodingException {
+        long timeStartedNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            Order order = previewAndPlaceOrder(securityContext, clientOrderId, orderDetail);
+            succeeded = true;
+            ordersPlaced(order.getOrderAction() == null ? "" : order.getOrderAction()).increment();
+            return order;
+        } finally {
+            (succeeded ? PLACEMENT_SUCCEEDED : PLACEMENT_FAILED).recordSince(timeStartedNanos);
+        }
+    }
+
+    private static MetricsRegistry.Counter ordersPlaced(String orderAction) {
+        MetricsRegistry.Counter counter = ORDERS_PLACED.get(orderAction);
+        if (counter == null) {
+            counter = ORDERS_PLACED.computeIfAbsent(
+                    orderAction,
+                    action -> METRICS.counter("lotsandlots_orders_placed_total",
+                                              "Orders placed with E*Trade.",
+                                              "action", action));
+        }
+        return counter;
+    }
+
+    private static LatencyHistogram placementLatency(String outcome) {
+        return METRICS.histogram("lotsandlots_order_placement_seconds",
+                                 "Time to preview and place an order, including waits for rate limit permits.",
+                                 "outcome", outcome);
+    }
+
+    private Order previewAndPlaceOrder(SecurityContext securityContext,
+                                       String clientOrderId,
+                                       OrderDetail orderDetail)
             throws GeneralSecurityException, JsonProcessingException, UnsupportedEncodingException {
 
         PreviewOrderRequest previewOrderRequest = newPreviewOrderRequest(
@@ -102,70 +155,66 @@ public abstract class EtradeOrderCreator extends EtradeDataFetcher {
         Message orderPlaceMessage = new Message();
         orderPlaceMessage.setRequiresOauth(true);
         orderPlaceMessage.setHttpMethod("POST");
+        orderPlaceMessage.setPriority(RequestPriority.ORDER);
         orderPlaceMessage.setContentType(MediaType.APPLICATION_JSON_VALUE);
         orderPlaceMessage.setUrl(getApiConfig().getOrdersPlaceUrl());
         setOAuthHeader(securityContext, orderPlaceMessage);
 
-        ResponseEntity<PlaceOrderResponse> placeOrderResponseEntity =
-                getRestTemplateFactory()
-                        .newCustomRestTemplate()
-                        .doPost(orderPlaceMessage,
-                                OBJECT_MAPPER.writeValueAsString(payload),
-                                PlaceOrderResponse.class);
-        PlaceOrderResponse placeOrderResponse = placeOrderResponseEntity.getBody();
+        PlaceOrderResponse placeOrderResponse;
+        try {
+            ResponseEntity<PlaceOrderResponse> placeOrderResponseEntity =
+                    getRestTemplateFactory()
+                            .getRestTemplate()
+                            .doPost(orderPlaceMessage,
+                                    OBJECT_MAPPER.writeValueAsString(payload),
+                                    PlaceOrderResponse.class);
+            placeOrderResponse = placeOrderResponseEntity.getBody();
+        } catch (RuntimeException e) {
+            handlePlaceOrderFailure();
+            throw e;
+        }
         if (placeOrderResponse == null) {
+            handlePlaceOrderFailure();
             throw new RuntimeException("Empty place order response");
         } else if (LOG.isDebugEnabled()) {
             LOG.debug("PlaceOrderResponse{}", OBJECT_MAPPER.writeValueAsString(placeOrderResponse));
         }
-        PlacedOrderInsertPreparedStatementCallback callback = new PlacedOrderInsertPreparedStatementCallback(
-                placeOrderResponse, previewOrderRequest);
-        try {
-            DB.executePreparedUpdate(
-                    "INSERT OR REPLACE INTO placed_etrade_buy_order ("
-                            + "limit_price,"
-                            + "order_id,"
-                            + "ordered_quantity,"
-                            + "placed_time,"
-                            + "symbol,"
-                        + ") VALUES(?,?,?,?,?);",
-                    callback);
-        } catch (SQLException e) {
-            LOG.error("Failed to execute: {}", callback);
-        }
+        Order order = newPlacedOrder(placeOrderResponse, previewOrderRequest);
+        JOURNAL.appendPlacedOrder(order);
+        return order;
     }
 
-    static class PlacedOrderInsertPreparedStatementCallback implements SqliteDatabase.PreparedStatementCallback {
-
-        private final PlaceOrderResponse placeOrderResponse;
-        private final PreviewOrderRequest previewOrderRequest;
-
-        private PreparedStatement statement;
-
-        PlacedOrderInsertPreparedStatementCallback(
-                PlaceOrderResponse placeOrderResponse, PreviewOrderRequest previewOrderRequest) {
-            this.placeOrderResponse = placeOrderResponse;
-            this.previewOrderRequest = previewOrderRequest;
-        }
+    /**
+     * Called when a place request fails after its preview succeeded. E*Trade may have placed the order anyway, so
+     * controllers override this to have the orders data fetcher find out.
+     */
+    void handlePlaceOrderFailure() {
+    }
 
-        @Override
-        public void call(PreparedStatement stmt) throws SQLException {
-            statement = stmt;
-            OrderDetail orderDetail = placeOrderResponse.getOrderDetailList().get(0);
-            OrderDetail.Instrument instrument = orderDetail.getInstrumentList().get(0);
-
-            stmt.setFloat(1, orderDetail.getLimitPrice());
-            stmt.setString(3, placeOrderResponse.getOrderIdList().get(0).getOrderId().toString());
-            stmt.setInt(4, instrument.getQuantity().intValue());
-            stmt.setInt(5, (int) (placeOrderResponse.getPlacedTime() / 1000L));
-            stmt.setString(7, previewOrderRequest.getOrderDetailList().get(0).getInstrumentList().get(0)
-                    .getProduct()
-                    .getSymbol());
-            stmt.executeUpdate();
-        }
+    /**
+     * Journal a decision the controllers acted on, so it outlives the log files and ends up in SQLite.
+     */
+    void recordDecision(String symbol, String decision) {
+        JOURNAL.appendDecision(symbol, SYMBOLS.idOf(symbol), decision);
+    }
 
-        public PreparedStatement getStatement() {
-            return statement;
-        }
+    Order newPlacedOrder(PlaceOrderResponse placeOrderResponse, PreviewOrderRequest previewOrderRequest) {
+        OrderDetail orderDetail = placeOrderResponse.getOrderDetailList().get(0);
+        OrderDetail.Instrument instrument = orderDetail.getInstrumentList().get(0);
+        String symbol = previewOrderRequest.getOrderDetailList().get(0).getInstrumentList().get(0)
+                .getProduct()
+                .getSymbol();
+
+        Order order = new Order();
+        order.setLimitPriceMicros(FixedPoint.toMicros(orderDetail.getLimitPrice()));
+        order.setOrderAction(instrument.getOrderAction());
+        order.setOrderId(placeOrderResponse.getOrderIdList().get(0).getOrderId());
+        order.setOrderedQuantity(instrument.getQuantity().longValue());
+        order.setPlacedTimeMillis(placeOrderResponse.getPlacedTime() == null
+                ? System.currentTimeMillis()
+                : placeOrderResponse.getPlacedTime());
+        order.setSymbol(symbol);
+        order.setSymbolId(SYMBOLS.idOf(symbol));
+        return order;
     }
 }
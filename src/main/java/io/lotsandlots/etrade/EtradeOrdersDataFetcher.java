@@ -2,13 +2,17 @@ package io.lotsandlots.etrade;
 
 import com.typesafe.config.Config;
 import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.data.SymbolDictionary;
 import io.lotsandlots.etrade.api.OrderDetail;
 import io.lotsandlots.etrade.api.OrdersResponse;
 import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.etrade.rest.RequestPriority;
 import io.lotsandlots.util.ConfigWrapper;
 import io.lotsandlots.util.DateFormatter;
+import io.lotsandlots.util.FixedPoint;
+import io.lotsandlots.util.MetricsRegistry;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,21 +22,39 @@ import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
 
     private static final Config CONFIG = ConfigWrapper.getConfig();
     private static final SqliteDatabase DB = SqliteDatabase.getInstance();
     private static final Logger LOG = LoggerFactory.getLogger(EtradeOrdersDataFetcher.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final SymbolDictionary SYMBOLS = SymbolDictionary.getInstance();
+    // 60 seconds * 60 minutes * 24 hours * 180 days = 15552000 seconds
+    private static final long FULL_RECONCILE_LOOKBACK_SECONDS = 15552000L;
 
+    private final AtomicBoolean fullReconcileRequested = new AtomicBoolean(false);
+    private final List<OnOrdersDataFetchCompletionHandler> onOrdersDataFetchCompletionHandlers = new LinkedList<>();
+    private volatile Long lastFullReconcileTimeMillis = null;
+    private volatile Long lastSuccessfulFetchStartTimeMillis = null;
     private Long ordersDataExpirationSeconds = 120L;
     private Long ordersDataFetchIntervalSeconds = 60L;
-    private Map<String, List<Order>> symbolToBuyOrdersIndex = new HashMap<>();
-    private Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
-
+    private Long ordersFullReconcileIntervalSeconds = 3600L;
+    private long ordersGeneration = 0L;
+    private volatile Long openOrdersFromTimeSeconds = null;
+    private long pendingOpenOrdersFromTimeSeconds = Long.MAX_VALUE;
+    private Map<String, List<Order>> pendingSymbolToBuyOrdersIndex = new HashMap<>();
+    private Map<String, List<Order>> pendingSymbolToSellOrdersIndex = new HashMap<>();
+    private volatile Map<String, List<Order>> symbolToBuyOrdersIndex = new HashMap<>();
+    private volatile Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
 
     public EtradeOrdersDataFetcher() {
         if (CONFIG.hasPath("etrade.ordersDataExpirationSeconds")) {
@@ -41,6 +63,9 @@ public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
         if (CONFIG.hasPath("etrade.ordersDataFetchIntervalSeconds")) {
             ordersDataFetchIntervalSeconds = CONFIG.getLong("etrade.ordersDataFetchIntervalSeconds");
         }
+        if (CONFIG.hasPath("etrade.ordersFullReconcileIntervalSeconds")) {
+            ordersFullReconcileIntervalSeconds = CONFIG.getLong("etrade.ordersFullReconcileIntervalSeconds");
+        }
         try {
             DB.executeSql(
                     "CREATE TABLE IF NOT EXISTS etrade_order ("
@@ -50,32 +75,58 @@ public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
                             + "ordered_quantity integer,"
                             + "placed_time integer,"
                             + "status text,"
-                            + "symbol text,"
+                            + "symbol_id integer,"
                             + "updated_time integer"
                             + ");"
             );
+            DB.addColumnIfMissing("etrade_order", "symbol_id", "integer");
         } catch (SQLException e) {
             LOG.error("Failed to create 'order' table", e);
         }
-        LOG.info("Initialized EtradeOrdersDataFetcher, ordersDataExpirationSeconds={} ordersDataFetchIntervalSeconds={}",
-                ordersDataExpirationSeconds, ordersDataFetchIntervalSeconds);
+        LOG.info("Initialized EtradeOrdersDataFetcher, ordersDataExpirationSeconds={} ordersDataFetchIntervalSeconds={} "
+                        + "ordersFullReconcileIntervalSeconds={}",
+                ordersDataExpirationSeconds, ordersDataFetchIntervalSeconds, ordersFullReconcileIntervalSeconds);
+    }
+
+    public void addOnOrdersDataFetchCompletionHandler(OnOrdersDataFetchCompletionHandler handler) {
+        onOrdersDataFetchCompletionHandlers.add(handler);
+    }
+
+    /**
+     * Add a newly placed sell order to the current index so that it is not placed again before the next fetch
+     * completes. A fetch that was already in progress may swap in an index without it, so callers should also wait
+     * for getLastSuccessfulFetchStartTimeMillis to pass the time the order was placed before acting on the index.
+     */
+    public synchronized void addSellOrder(String symbol, Order order) {
+        List<Order> sellOrders = symbolToSellOrdersIndex.get(symbol);
+        List<Order> updatedSellOrders = new ArrayList<>(sellOrders == null ? 1 : sellOrders.size() + 1);
+        if (sellOrders != null) {
+            updatedSellOrders.addAll(sellOrders);
+        }
+        updatedSellOrders.add(order);
+        Map<String, List<Order>> updatedIndex = new HashMap<>(symbolToSellOrdersIndex);
+        updatedIndex.put(symbol, Collections.unmodifiableList(updatedSellOrders));
+        symbolToSellOrdersIndex = Collections.unmodifiableMap(updatedIndex);
     }
 
     void fetchOrdersResponse(SecurityContext securityContext,
-                             String marker)
+                             String marker,
+                             long fetchTimeSeconds,
+                             boolean fullReconcile)
             throws GeneralSecurityException, UnsupportedEncodingException {
-        Message ordersMessage = newOrdersMessage(marker);
+        Message ordersMessage = newOrdersMessage(marker, fullReconcile);
         setOAuthHeader(securityContext, ordersMessage);
         ResponseEntity<OrdersResponse> ordersResponseResponseEntity = getRestTemplateFactory()
-                .newCustomRestTemplate()
+                .getRestTemplate()
                 .doGet(ordersMessage, OrdersResponse.class);
         OrdersResponse ordersResponse = ordersResponseResponseEntity.getBody();
         if (ordersResponse == null) {
             throw new RuntimeException("Empty orders response");
         } else {
-            handleOrderResponse(ordersResponse);
+            handleOrderResponse(ordersResponse, fetchTimeSeconds, fullReconcile);
             if (ordersResponse.hasMarker()) {
-                fetchOrdersResponse(securityContext, ordersResponse.getMarker().toString());
+                fetchOrdersResponse(
+                        securityContext, ordersResponse.getMarker().toString(), fetchTimeSeconds, fullReconcile);
             }
         }
     }
@@ -88,6 +139,29 @@ public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
         return ordersDataFetchIntervalSeconds;
     }
 
+    /**
+     * Epoch milliseconds at which the last successful fetch started, or null if none has completed. Orders placed or
+     * cancelled before this time are reflected in the indexes as E*Trade reported them.
+     */
+    public Long getLastSuccessfulFetchStartTimeMillis() {
+        return lastSuccessfulFetchStartTimeMillis;
+    }
+
+    /**
+     * Epoch seconds at which the oldest order that was open as of the last completed fetch was placed, or null if
+     * nothing has been fetched yet. Incremental fetches only need to look back this far.
+     */
+    public Long getOpenOrdersFromTimeSeconds() {
+        return openOrdersFromTimeSeconds;
+    }
+
+    /**
+     * Number of completed orders fetches. Both indexes are replaced together when a fetch completes.
+     */
+    public synchronized long getOrdersGeneration() {
+        return ordersGeneration;
+    }
+
     public Map<String, List<Order>> getSymbolToBuyOrdersIndex() {
         return symbolToBuyOrdersIndex;
     }
@@ -99,49 +173,247 @@ public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
         this.symbolToSellOrdersIndex = symbolToSellOrdersIndex;
     }
 
-    void handleOrderResponse(OrdersResponse ordersResponse) {
-        for (OrdersResponse.Order ordersResponseOrder : ordersResponse.getOrderList()) {
-            List<OrderDetail> orderDetails = ordersResponseOrder.getOrderDetailList();
-            if (orderDetails.size() == 1) {
-                OrderDetail orderDetail = orderDetails.get(0);
-                if (!orderDetail.getStatus().equals("OPEN") && !orderDetail.getStatus().equals("PARTIAL")) {
+    /**
+     * Make the next fetch a full reconcile over every order from the last 180 days rather than only open orders, e.g.
+     * after an order request failed and the order's state on E*Trade is unknown.
+     */
+    public void requestFullReconcile() {
+        fullReconcileRequested.set(true);
+    }
+
+    boolean isFullReconcileRequested() {
+        return fullReconcileRequested.get();
+    }
+
+    boolean isFullReconcileDue(long currentTimeMillis) {
+        if (openOrdersFromTimeSeconds == null || lastFullReconcileTimeMillis == null) {
+            return true;
+        }
+        return currentTimeMillis - lastFullReconcileTimeMillis >= ordersFullReconcileIntervalSeconds * 1000L;
+    }
+
+    /**
+     * Drop a cancelled sell order from the current index so that it is not acted upon again before the next fetch
+     * completes.
+     */
+    public synchronized void removeSellOrder(String symbol, long orderId) {
+        List<Order> sellOrders = symbolToSellOrdersIndex.get(symbol);
+        if (sellOrders == null) {
+            return;
+        }
+        List<Order> remainingSellOrders = new ArrayList<>(sellOrders.size());
+        for (Order order : sellOrders) {
+            if (order.getOrderId() != orderId) {
+                remainingSellOrders.add(order);
+            }
+        }
+        Map<String, List<Order>> updatedIndex = new HashMap<>(symbolToSellOrdersIndex);
+        if (remainingSellOrders.isEmpty()) {
+            updatedIndex.remove(symbol);
+        } else {
+            updatedIndex.put(symbol, Collections.unmodifiableList(remainingSellOrders));
+        }
+        symbolToSellOrdersIndex = Collections.unmodifiableMap(updatedIndex);
+    }
+
+    /**
+     * Index one page of orders and upsert it as a single batch in a single transaction. Every row written during a
+     * fetch cycle is stamped with the cycle's fetch time, so when the last page arrives any row with an older stamp
+     * belongs to an order that is no longer open and is deleted in the same transaction. The in-memory indexes are
+     * replaced with the orders gathered across every page at the same point.
+     * <p>
+     * An incremental fetch only asks for OPEN orders, so it cannot tell whether a PARTIAL order is still open.
+     * PARTIAL orders are then carried over from the current indexes and kept in SQLite until the next full reconcile.
+     *
+     * @param ordersResponse OrdersResponse page from E*Trade's orders API.
+     * @param fetchTimeSeconds Epoch seconds at which the current fetch cycle started.
+     * @param fullReconcile Whether the page is from a full reconcile rather than an incremental fetch.
+     */
+    void handleOrderResponse(OrdersResponse ordersResponse, long fetchTimeSeconds, boolean fullReconcile) {
+        List<Order> orders = new LinkedList<>();
+        if (ordersResponse.getOrderList() != null) {
+            for (OrdersResponse.Order ordersResponseOrder : ordersResponse.getOrderList()) {
+                Order order = newOrder(ordersResponseOrder);
+                if (order != null) {
+                    orders.add(order);
+                }
+            }
+        }
+        synchronized (this) {
+            for (Order order : orders) {
+                Map<String, List<Order>> pendingIndex = order.getOrderAction().equals("BUY")
+                        ? pendingSymbolToBuyOrdersIndex
+                        : pendingSymbolToSellOrdersIndex;
+                pendingIndex.computeIfAbsent(order.getSymbol(), symbol -> new ArrayList<>()).add(order);
+                pendingOpenOrdersFromTimeSeconds = Math.min(
+                        pendingOpenOrdersFromTimeSeconds, order.getPlacedTimeMillis() / 1000L);
+            }
+        }
+        boolean isLastPage = !ordersResponse.hasMarker();
+        if (isLastPage) {
+            swapOrdersIndexes(fetchTimeSeconds, fullReconcile);
+        }
+
+        OrderInsertPreparedStatementCallback callback = new OrderInsertPreparedStatementCallback(
+                orders, fetchTimeSeconds);
+        try {
+            DB.executeInTransaction(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT OR REPLACE INTO etrade_order ("
+                                + "limit_price,"
+                                + "order_action,"
+                                + "order_id,"
+                                + "ordered_quantity,"
+                                + "placed_time,"
+                                + "status,"
+                                + "symbol_id,"
+                                + "updated_time"
+                            + ") VALUES(?,?,?,?,?,?,?,?);")) {
+                    callback.call(stmt);
+                    stmt.executeBatch();
+                }
+                if (isLastPage) {
+                    try (PreparedStatement stmt = connection.prepareStatement(fullReconcile
+                            ? "DELETE FROM etrade_order WHERE updated_time < ?;"
+                            : "DELETE FROM etrade_order WHERE updated_time < ? AND status != 'PARTIAL';")) {
+                        stmt.setLong(1, fetchTimeSeconds);
+                        int deletedCount = stmt.executeUpdate();
+                        if (deletedCount > 0) {
+                            LOG.info("Deleted stale orders, count={}", deletedCount);
+                        }
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            LOG.error("Failed to execute: {}", callback.getStatement(), e);
+        }
+    }
+
+    /**
+     * Convert an open buy or sell order from E*Trade's response into our model. Missing numbers become 0.
+     *
+     * @return Order or null if the order is not an open, single instrument buy or sell order.
+     */
+    Order newOrder(OrdersResponse.Order ordersResponseOrder) {
+        List<OrderDetail> orderDetails = ordersResponseOrder.getOrderDetailList();
+        if (orderDetails.size() != 1) {
+            LOG.warn("Expected Order to include one OrderDetail");
+            return null;
+        }
+        OrderDetail orderDetail = orderDetails.get(0);
+        if (!orderDetail.getStatus().equals("OPEN") && !orderDetail.getStatus().equals("PARTIAL")) {
+            return null;
+        }
+        List<OrderDetail.Instrument> instruments = orderDetail.getInstrumentList();
+        if (instruments.size() != 1) {
+            LOG.warn("Expected OrderDetail to include one Instrument");
+            return null;
+        }
+        OrderDetail.Instrument instrument = instruments.get(0);
+        if (!instrument.getOrderAction().equals("BUY") && !instrument.getOrderAction().equals("SELL")) {
+            return null;
+        }
+        Order order = new Order();
+        if (orderDetail.getLimitPrice() != null) {
+            order.setLimitPriceMicros(FixedPoint.toMicros(orderDetail.getLimitPrice()));
+        }
+        OrderDetail.Lots lots = instrument.getLots();
+        if (lots != null
+                && lots.getLotList() != null
+                && lots.getLotList().size() == 1
+                && lots.getLotList().get(0).getId() != null) {
+            order.setLotId(lots.getLotList().get(0).getId());
+        }
+        order.setOrderAction(instrument.getOrderAction());
+        if (ordersResponseOrder.getOrderId() != null) {
+            order.setOrderId(ordersResponseOrder.getOrderId());
+        }
+        if (instrument.getOrderedQuantity() != null) {
+            order.setOrderedQuantity(instrument.getOrderedQuantity());
+        }
+        if (orderDetail.getPlacedTime() != null) {
+            order.setPlacedTimeMillis(orderDetail.getPlacedTime());
+        }
+        order.setStatus(orderDetail.getStatus());
+        order.setSymbol(instrument.getProduct().getSymbol());
+        order.setSymbolId(SYMBOLS.idOf(order.getSymbol()));
+        return order;
+    }
+
+    /**
+     * Start gathering orders for a new fetch generation, discarding anything gathered by an incomplete one.
+     */
+    synchronized void resetPendingOrdersIndexes() {
+        pendingSymbolToBuyOrdersIndex = new HashMap<>();
+        pendingSymbolToSellOrdersIndex = new HashMap<>();
+        pendingOpenOrdersFromTimeSeconds = Long.MAX_VALUE;
+    }
+
+    private synchronized void swapOrdersIndexes(long fetchTimeSeconds, boolean fullReconcile) {
+        if (!fullReconcile) {
+            carryOverPartialOrders(symbolToBuyOrdersIndex, pendingSymbolToBuyOrdersIndex);
+            carryOverPartialOrders(symbolToSellOrdersIndex, pendingSymbolToSellOrdersIndex);
+        }
+        symbolToBuyOrdersIndex = freeze(pendingSymbolToBuyOrdersIndex);
+        symbolToSellOrdersIndex = freeze(pendingSymbolToSellOrdersIndex);
+        // Any order placed after this fetch started will be at least as recent as the fetch time.
+        openOrdersFromTimeSeconds = Math.min(pendingOpenOrdersFromTimeSeconds, fetchTimeSeconds);
+        ordersGeneration++;
+        resetPendingOrdersIndexes();
+    }
+
+    private static void carryOverPartialOrders(Map<String, List<Order>> symbolToOrdersIndex,
+                                               Map<String, List<Order>> pendingSymbolToOrdersIndex) {
+        for (Map.Entry<String, List<Order>> entry : symbolToOrdersIndex.entrySet()) {
+            for (Order order : entry.getValue()) {
+                if (!"PARTIAL".equals(order.getStatus())) {
                     continue;
                 }
-                OrderInsertPreparedStatementCallback callback = new OrderInsertPreparedStatementCallback(
-                        ordersResponseOrder.getOrderId().toString(), orderDetail);
-                try {
-                    DB.executePreparedUpdate(
-                            "INSERT OR REPLACE INTO etrade_order ("
-                                    + "limit_price,"
-                                    + "order_action,"
-                                    + "order_id,"
-                                    + "ordered_quantity,"
-                                    + "placed_time,"
-                                    + "status,"
-                                    + "symbol,"
-                                    + "updated_time"
-                                + ") VALUES(?,?,?,?,?,?,?,?);",
-                            callback);
-                } catch (SQLException e) {
-                    LOG.error("Failed to execute: {}", callback.getStatement(), e);
+                List<Order> pendingOrders = pendingSymbolToOrdersIndex.computeIfAbsent(
+                        entry.getKey(), symbol -> new ArrayList<>());
+                boolean isFetched = false;
+                for (Order pendingOrder : pendingOrders) {
+                    if (pendingOrder.getOrderId() == order.getOrderId()) {
+                        isFetched = true;
+                        break;
+                    }
+                }
+                if (!isFetched) {
+                    pendingOrders.add(order);
                 }
-            } else {
-                LOG.warn("Expected Order to include one OrderDetail");
             }
         }
     }
 
-    Message newOrdersMessage(String marker) {
+    private static Map<String, List<Order>> freeze(Map<String, List<Order>> symbolToOrdersIndex) {
+        Map<String, List<Order>> frozenIndex = new HashMap<>();
+        for (Map.Entry<String, List<Order>> entry : symbolToOrdersIndex.entrySet()) {
+            frozenIndex.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(frozenIndex);
+    }
+
+    /**
+     * A full reconcile pages through every order from the last 180 days. Otherwise only open orders are requested,
+     * starting from the day the oldest order that was still open as of the last completed fetch was placed, so the
+     * response size follows the number of open orders instead of the length of the order history.
+     */
+    Message newOrdersMessage(String marker, boolean fullReconcile) {
         Message ordersMessage = new Message();
         ordersMessage.setRequiresOauth(true);
         ordersMessage.setHttpMethod("GET");
+        ordersMessage.setPriority(RequestPriority.ACCOUNT);
         ordersMessage.setUrl(getApiConfig().getOrdersUrl());
         String ordersQueryString = getApiConfig().getOrdersQueryString();
 
         long currentTimeMillis = System.currentTimeMillis();
-        // 60 seconds * 60 minutes * 24 hours * 180 days = 15552000 seconds
-        ordersQueryString += "&fromDate=" + DateFormatter.epochSecondsToDateString(
-                (currentTimeMillis  / 1000L) - 15552000, "MMddyyyy");
+        long fromTimeSeconds = (currentTimeMillis / 1000L) - FULL_RECONCILE_LOOKBACK_SECONDS;
+        Long openOrdersFromTimeSeconds = this.openOrdersFromTimeSeconds;
+        if (!fullReconcile && openOrdersFromTimeSeconds != null) {
+            ordersQueryString += "&status=OPEN";
+            fromTimeSeconds = Math.max(fromTimeSeconds, openOrdersFromTimeSeconds);
+        }
+        ordersQueryString += "&fromDate=" + DateFormatter.epochSecondsToDateString(fromTimeSeconds, "MMddyyyy");
         ordersQueryString += "&toDate=" + DateFormatter.epochSecondsToDateString(
                 currentTimeMillis / 1000L, "MMddyyyy");
 
@@ -163,51 +435,74 @@ public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
             LOG.warn("Please configure etrade.accountIdKey");
             return;
         }
-        LOG.info("Fetching orders data");
         long timeStartedMillis = System.currentTimeMillis();
+        // Take the request atomically, so one made while this fetch runs is kept for the next fetch.
+        boolean fullReconcile = fullReconcileRequested.getAndSet(false) | isFullReconcileDue(timeStartedMillis);
+        LOG.info("Fetching orders data, fullReconcile={}", fullReconcile);
+        resetPendingOrdersIndexes();
         try {
-            fetchOrdersResponse(securityContext, null);
+            fetchOrdersResponse(securityContext, null, timeStartedMillis / 1000L, fullReconcile);
             long currentTimeMillis = System.currentTimeMillis();
-            LOG.info("Fetched orders data, duration={}ms", currentTimeMillis - timeStartedMillis);
+            recordFetchCycle("success", currentTimeMillis - timeStartedMillis);
+            LOG.info("Fetched orders data, duration={}ms fullReconcile={} openOrdersFromTimeSeconds={}",
+                    currentTimeMillis - timeStartedMillis, fullReconcile, openOrdersFromTimeSeconds);
+            if (fullReconcile) {
+                lastFullReconcileTimeMillis = currentTimeMillis;
+            }
+            lastSuccessfulFetchStartTimeMillis = timeStartedMillis;
             setLastSuccessfulFetchTimeMillis(currentTimeMillis);
+            for (OnOrdersDataFetchCompletionHandler handler : onOrdersDataFetchCompletionHandlers) {
+                try {
+                    handler.handleOrdersDataFetchCompletion(timeStartedMillis, currentTimeMillis);
+                } catch (Exception e) {
+                    LOG.error("Failed to handle orders data fetch completion event", e);
+                }
+            }
         } catch (Exception e) {
             long currentTimeMillis = System.currentTimeMillis();
-            LOG.info("Failed to fetch orders data, duration={}ms", currentTimeMillis - timeStartedMillis, e);
+            recordFetchCycle("error", currentTimeMillis - timeStartedMillis);
+            LOG.info("Failed to fetch orders data, duration={}ms fullReconcile={}",
+                    currentTimeMillis - timeStartedMillis, fullReconcile, e);
+            if (fullReconcile) {
+                fullReconcileRequested.set(true);
+            }
             setLastFailedFetchTimeMillis(currentTimeMillis);
         }
     }
 
+    private static void recordFetchCycle(String outcome, long durationMillis) {
+        METRICS.histogram("lotsandlots_fetch_cycle_seconds",
+                          "Duration of data fetch cycles, from the first request until the data is indexed.",
+                          "fetcher", "orders",
+                          "outcome", outcome)
+               .record(durationMillis, TimeUnit.MILLISECONDS);
+    }
+
     static class OrderInsertPreparedStatementCallback implements SqliteDatabase.PreparedStatementCallback {
 
-        private final OrderDetail orderDetail;
-        private final String orderId;
+        private final List<Order> orders;
+        private final long updatedTimeSeconds;
 
         private PreparedStatement statement;
 
-        OrderInsertPreparedStatementCallback(String orderId, OrderDetail orderDetail) {
-            this.orderDetail = orderDetail;
-            this.orderId = orderId;
+        OrderInsertPreparedStatementCallback(List<Order> orders, long updatedTimeSeconds) {
+            this.orders = orders;
+            this.updatedTimeSeconds = updatedTimeSeconds;
         }
 
         @Override
         public void call(PreparedStatement stmt) throws SQLException {
             this.statement = stmt;
-            List<OrderDetail.Instrument> instruments = orderDetail.getInstrumentList();
-            if (instruments.size() == 1) {
-                OrderDetail.Instrument instrument = instruments.get(0);
-                if (instrument.getOrderAction().equals("BUY") || instrument.getOrderAction().equals("SELL")) {
-                    stmt.setFloat(1, orderDetail.getLimitPrice());
-                    stmt.setString(2, instrument.getOrderAction());
-                    stmt.setString(3, orderId);
-                    stmt.setInt(4, instrument.getOrderedQuantity().intValue());
-                    stmt.setInt(5, (int) (orderDetail.getPlacedTime() / 1000L));
-                    stmt.setString(6, orderDetail.getStatus());
-                    stmt.setString(7, instrument.getProduct().getSymbol());
-                    stmt.setInt(8, (int) (System.currentTimeMillis() / 1000L));
-                    stmt.executeUpdate();
-                }
-            } else {
-                LOG.warn("Expected OrderDetail to include one Instrument");
+            for (Order order : orders) {
+                stmt.setDouble(1, FixedPoint.toDouble(order.getLimitPriceMicros()));
+                stmt.setString(2, order.getOrderAction());
+                stmt.setString(3, Long.toString(order.getOrderId()));
+                stmt.setInt(4, (int) order.getOrderedQuantity());
+                stmt.setInt(5, (int) (order.getPlacedTimeMillis() / 1000L));
+                stmt.setString(6, order.getStatus());
+                stmt.setInt(7, order.getSymbolId());
+                stmt.setLong(8, updatedTimeSeconds);
+                stmt.addBatch();
             }
         }
 
@@ -215,4 +510,9 @@ public class EtradeOrdersDataFetcher extends EtradeDataFetcher {
             return statement;
         }
     }
+
+    public interface OnOrdersDataFetchCompletionHandler {
+
+        void handleOrdersDataFetchCompletion(long timeFetchStarted, long timeFetchStopped);
+    }
 }
@@ -2,46 +2,83 @@ package io.lotsandlots.etrade;
 
 import com.typesafe.config.Config;
 import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.data.SymbolDictionary;
 import io.lotsandlots.etrade.api.PortfolioResponse;
-import io.lotsandlots.etrade.api.PositionLotsResponse;
+import io.lotsandlots.etrade.api.PortfolioResponseDecoder;
+import io.lotsandlots.etrade.api.PositionLotsResponseDecoder;
+import io.lotsandlots.etrade.model.Lot;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.etrade.rest.RequestPriority;
 import io.lotsandlots.util.ConfigWrapper;
+import io.lotsandlots.util.FixedPoint;
+import io.lotsandlots.util.MetricsRegistry;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.ResponseEntity;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
 
     private static final Config CONFIG = ConfigWrapper.getConfig();
     private static final SqliteDatabase DB = SqliteDatabase.getInstance();
     private static final Logger LOG = LoggerFactory.getLogger(EtradePortfolioDataFetcher.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final SymbolDictionary SYMBOLS = SymbolDictionary.getInstance();
 
+    private final AdaptiveLotsFetchPlanner adaptiveLotsFetchPlanner = new AdaptiveLotsFetchPlanner(CONFIG);
     private final List<OnPortfolioDataFetchCompletionHandler> onPortfolioDataFetchCompletionHandlers = new LinkedList<>();
     private final List<OnPositionLotsUpdateHandler> onPositionLotsUpdateHandlers = new LinkedList<>();
+    private final Set<String> fetchedSymbols = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lotsGeneration = new AtomicLong();
+    private final ExecutorService lotsFetchExecutor;
+    private final Queue<Future<?>> pendingLotFetches = new ConcurrentLinkedQueue<>();
+    private final Queue<Future<Integer>> pendingLotWrites = new ConcurrentLinkedQueue<>();
+    private final LongAdder lotWriteNanos = new LongAdder();
+    private final Map<String, List<Lot>> symbolToLotsIndex = new ConcurrentHashMap<>();
+    private final Map<String, PortfolioResponse.Position> symbolToPositionIndex = new ConcurrentHashMap<>();
+    private int maxLotsFetchesInFlight = 8;
     private Long portfolioDataExpirationSeconds = 120L;
     private Long portfolioDataFetchIntervalSeconds = 60L;
-    private Double defaultOrderCreationThreshold = 0.03;
-    private PortfolioResponse.Totals totals = new PortfolioResponse.Totals();
+    private volatile PortfolioResponse.Totals totals = new PortfolioResponse.Totals();
 
     public EtradePortfolioDataFetcher() {
-        if (CONFIG.hasPath("etrade.defaultOrderCreationThreshold")) {
-            defaultOrderCreationThreshold = CONFIG.getDouble("etrade.defaultOrderCreationThreshold");
+        if (CONFIG.hasPath("etrade.maxLotsFetchesInFlight")) {
+            maxLotsFetchesInFlight = Math.max(1, CONFIG.getInt("etrade.maxLotsFetchesInFlight"));
         }
         if (CONFIG.hasPath("etrade.portfolioDataExpirationSeconds")) {
             portfolioDataExpirationSeconds = CONFIG.getLong("etrade.portfolioDataExpirationSeconds");
         }
-        if (CONFIG.hasPath("etrade.portfolioDataFetchInterval")) {
-            portfolioDataFetchIntervalSeconds = CONFIG.getLong("etrade.portfolioDataFetchInterval");
+        if (CONFIG.hasPath("etrade.portfolioDataFetchIntervalSeconds")) {
+            portfolioDataFetchIntervalSeconds = CONFIG.getLong("etrade.portfolioDataFetchIntervalSeconds");
         }
+        // The pool size bounds how many lots requests are in flight at once, further positions queue up behind them.
+        lotsFetchExecutor = Executors.newFixedThreadPool(maxLotsFetchesInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "etrade-lots-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
         try {
             DB.executeSql(
                     "CREATE TABLE IF NOT EXISTS etrade_lot ("
@@ -51,17 +88,19 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
                             + "last_price real,"
                             + "lot_id text PRIMARY KEY,"
                             + "remaining_qty real,"
-                            + "symbol text,"
+                            + "symbol_id integer,"
                             + "target_price real,"
                             + "updated_time integer"
                             + ");"
             );
+            DB.addColumnIfMissing("etrade_lot", "symbol_id", "integer");
         } catch (SQLException e) {
             LOG.error("Failed to create 'etrade_lot' table", e);
         }
-        LOG.info("Initialized EtradePortfolioDataFetcher, defaultOrderCreationThreshold={} "
+        LOG.info("Initialized EtradePortfolioDataFetcher, maxLotsFetchesInFlight={} "
                         + "portfolioDataExpirationSeconds={} portfolioDataFetchIntervalSeconds={}",
-                defaultOrderCreationThreshold, portfolioDataExpirationSeconds, portfolioDataFetchIntervalSeconds);
+                maxLotsFetchesInFlight,
+                portfolioDataExpirationSeconds, portfolioDataFetchIntervalSeconds);
     }
 
     public void addOnPortfolioDataFetchCompletionHandler(OnPortfolioDataFetchCompletionHandler handler) {
@@ -73,7 +112,12 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
     }
 
     /**
-     * Call E*Trade's portfolio API and process position data.
+     * Call E*Trade's portfolio API and process position data. The response is decoded as it is read, and a lots
+     * request for each position is handed off to a bounded pool as soon as the position has been decoded, so lots
+     * requests run while the rest of the portfolio is still being read. Call awaitPendingLotFetches to wait for them
+     * to finish. E*Trade sends the page's Totals after its positions, so OnPositionLotsUpdateHandlers are only called
+     * for a position once both its lots and the page's Totals are in. With adaptive lots fetching enabled, positions
+     * that are already indexed only have their lots requested when the AdaptiveLotsFetchPlanner says they are due.
      *
      * @param securityContext SecurityContext object from EtradeRestTemplateFactory.
      * @param pageNumber String for paginating results. Null for initial invocation.
@@ -86,6 +130,7 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
         Message portfolioMessage = new Message();
         portfolioMessage.setRequiresOauth(true);
         portfolioMessage.setHttpMethod("GET");
+        portfolioMessage.setPriority(RequestPriority.ACCOUNT);
         portfolioMessage.setUrl(getApiConfig().getPortfolioUrl());
         String portfolioQueryString = getApiConfig().getPortfolioQueryString();
         if (!StringUtils.isBlank(pageNumber)) {
@@ -93,90 +138,182 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
         }
         portfolioMessage.setQueryString(portfolioQueryString);
         setOAuthHeader(securityContext, portfolioMessage);
-        ResponseEntity<PortfolioResponse> portfolioResponseResponseEntity = getRestTemplateFactory()
-                .newCustomRestTemplate()
-                .doGet(portfolioMessage, PortfolioResponse.class);
-        PortfolioResponse portfolioResponse = portfolioResponseResponseEntity.getBody();
-        if (portfolioResponse == null) {
-            throw new RuntimeException("Empty portfolio response");
-        } else {
-            totals = portfolioResponse.getTotals(); // Update portfolio totals
-            LOG.info("Portfolio cash={}, todaysGainLossPct={}, todaysGainLoss={}, "
-                            + "totalGainLossPct={}, totalGainLoss={}, totalPaid={}, totalValue={}",
-                    totals.getCashBalance(),
-                    totals.getTodaysGainLossPct(),
-                    totals.getTodaysGainLoss(),
-                    totals.getTotalGainLossPct(),
-                    totals.getTotalGainLoss(),
-                    totals.getTotalPricePaid(),
-                    totals.getTotalMarketValue()
-            );
-            PortfolioResponse.AccountPortfolio accountPortfolio = portfolioResponse.getAccountPortfolio();
-            for (PortfolioResponse.Position freshPositionData : accountPortfolio.getPositionList()) {
-                String symbol = freshPositionData.getSymbolDescription();
-                fetchPositionLotsResponse(securityContext, symbol, freshPositionData);
-            }
-            if (accountPortfolio.hasNextPageNo()) {
-                fetchPortfolioResponse(securityContext, accountPortfolio.getNextPageNo());
-            }
+        PortfolioHandler portfolioHandler = new PortfolioHandler(securityContext, System.currentTimeMillis());
+        String nextPageNo;
+        try {
+            nextPageNo = getRestTemplateFactory()
+                    .getRestTemplate()
+                    .doGetStreaming(portfolioMessage, response ->
+                            PortfolioResponseDecoder.decode(response.getBody(), portfolioHandler));
+        } finally {
+            // Without Totals in the page, fall back to the latest known.
+            portfolioHandler.completeTotals(totals);
+        }
+        if (nextPageNo != null) {
+            fetchPortfolioResponse(securityContext, nextPageNo);
         }
     }
 
     void fetchPositionLotsResponse(SecurityContext securityContext,
                                    String symbol,
                                    PortfolioResponse.Position position)
-            throws GeneralSecurityException, UnsupportedEncodingException{
+            throws GeneralSecurityException, UnsupportedEncodingException {
+        indexPositionLots(securityContext, symbol, position);
+        handlePositionLotsUpdate(symbol, totals);
+    }
+
+    private void handlePositionLotsUpdate(String symbol, PortfolioResponse.Totals totals) {
+        for (OnPositionLotsUpdateHandler handler : onPositionLotsUpdateHandlers) {
+            handler.handlePositionLotsUpdate(symbol, totals);
+        }
+    }
+
+    /**
+     * Fetch a position's lots, swap them into the lots index and queue their write to SQLite.
+     */
+    void indexPositionLots(SecurityContext securityContext,
+                           String symbol,
+                           PortfolioResponse.Position position)
+            throws GeneralSecurityException, UnsupportedEncodingException {
         Message lotsMessage = new Message();
         lotsMessage.setRequiresOauth(true);
         lotsMessage.setHttpMethod("GET");
+        lotsMessage.setPriority(RequestPriority.LOTS);
         lotsMessage.setUrl(position.getLotsDetails());
         setOAuthHeader(securityContext, lotsMessage);
-        ResponseEntity<PositionLotsResponse> positionLotsResponseResponseEntity = getRestTemplateFactory()
-                .newCustomRestTemplate()
-                .doGet(lotsMessage, PositionLotsResponse.class);
-        PositionLotsResponse positionLotsResponse = positionLotsResponseResponseEntity.getBody();
-        if (positionLotsResponse == null) {
-            throw new RuntimeException("Empty response");
-        } else {
-            Double orderCreationThreshold = defaultOrderCreationThreshold;
-            String overrideOrderCreationThresholdPath = "etrade.overrideOrderCreationThresholds." + symbol;
-            if (CONFIG.hasPath(overrideOrderCreationThresholdPath)) {
-                orderCreationThreshold = CONFIG.getDouble(overrideOrderCreationThresholdPath);
+        int symbolId = SYMBOLS.idOf(symbol);
+        double orderCreationThreshold = TradingPolicyTable.getCurrent().get(symbolId).getOrderCreationThreshold();
+        // Lots are converted to fixed point records straight from the decoder's fields.
+        List<Lot> lots = new ArrayList<>();
+        getRestTemplateFactory()
+                .getRestTemplate()
+                .doGetStreaming(lotsMessage, response -> PositionLotsResponseDecoder.decode(
+                        response.getBody(),
+                        lotFields -> lots.add(newLot(symbol, symbolId, position, orderCreationThreshold, lotFields))));
+
+        // Controllers read lots from the in-memory index, so the position is swapped in before any handler
+        // runs and SQLite is only written behind it.
+        symbolToLotsIndex.put(symbol, Collections.unmodifiableList(lots));
+        fetchedSymbols.add(symbol);
+        adaptiveLotsFetchPlanner.recordLots(symbol, lots, System.currentTimeMillis());
+        // Every lot of a position is upserted in a single transaction so SQLite commits once per position
+        // instead of once per lot.
+        LotInsertPreparedStatementCallback callback = new LotInsertPreparedStatementCallback(lots);
+        try {
+            pendingLotWrites.add(DB.submitPreparedBatch(
+                    "INSERT OR REPLACE INTO etrade_lot ("
+                            + "acquired_date,"
+                            + "acquired_price,"
+                            + "follow_price,"
+                            + "last_price,"
+                            + "lot_id,"
+                            + "remaining_qty,"
+                            + "symbol_id,"
+                            + "target_price,"
+                            + "updated_time"
+                        + ") VALUES(?,?,?,?,?,?,?,?,?);",
+                    callback,
+                    lotWriteNanos));
+        } catch (SQLException e) {
+            LOG.error("Failed to execute: {}", callback.getStatement(), e);
+        }
+    }
+
+    /**
+     * Convert a decoded lot into a Lot. Follow and target prices are derived from the acquired price here, once.
+     */
+    static Lot newLot(String symbol,
+                      int symbolId,
+                      PortfolioResponse.Position position,
+                      double orderCreationThreshold,
+                      PositionLotsResponseDecoder.LotFields lotFields) {
+        long priceMicros = lotFields.getPriceMicros();
+        long marketValueMicros = lotFields.getMarketValueMicros();
+        long remainingQtyMicros = lotFields.getRemainingQtyMicros();
+        Lot lot = new Lot();
+        lot.setAcquiredTimeMillis(lotFields.getAcquiredDate());
+        lot.setFollowPriceMicros(FixedPoint.multiply(priceMicros, 1D - orderCreationThreshold));
+        lot.setLastPriceMicros(FixedPoint.divide(marketValueMicros, remainingQtyMicros));
+        lot.setLotId(lotFields.getPositionLotId());
+        lot.setMarketValueMicros(marketValueMicros);
+        lot.setPositionCostMicros(position.getTotalCost() == null ? 0L : FixedPoint.toMicros(position.getTotalCost()));
+        lot.setPositionPctOfPortfolioMicros(
+                position.getPctOfPortfolio() == null ? 0L : FixedPoint.toMicros(position.getPctOfPortfolio()));
+        lot.setPriceMicros(priceMicros);
+        lot.setRemainingQtyMicros(remainingQtyMicros);
+        lot.setSymbol(symbol);
+        lot.setSymbolId(symbolId);
+        lot.setTargetPriceMicros(FixedPoint.multiply(priceMicros, 1D + orderCreationThreshold));
+        lot.setTotalCostForGainPctMicros(lotFields.getTotalCostForGainPctMicros());
+        return lot;
+    }
+
+    /**
+     * Fetch lots for the positions the AdaptiveLotsFetchPlanner considers due, between full portfolio fetches.
+     * Positions come from the latest portfolio fetch, so this does nothing until one has completed.
+     */
+    void fetchDuePositionLots(SecurityContext securityContext) throws ExecutionException, InterruptedException {
+        List<String> dueSymbols = adaptiveLotsFetchPlanner.acquireDueSymbols(
+                symbolToPositionIndex.keySet(), System.currentTimeMillis());
+        if (dueSymbols.isEmpty()) {
+            return;
+        }
+        List<Future<?>> lotFetches = new LinkedList<>();
+        for (String symbol : dueSymbols) {
+            PortfolioResponse.Position position = symbolToPositionIndex.get(symbol);
+            if (position == null) {
+                continue;
             }
-            Integer lotCount = positionLotsResponse.getPositionLots().size();
-            for (PositionLotsResponse.PositionLot lot : positionLotsResponse.getPositionLots()) {
-                lot.setSymbol(symbol);
-                lot.setTotalLotCount(lotCount);
-                lot.setTotalPositionCost(position.getTotalCost());
-                lot.setPositionPctOfPortfolio(position.getPctOfPortfolio());
-                lot.setOrderCreationThreshold(orderCreationThreshold);
-                lot.setFollowPrice(lot.getPrice() * (1F - orderCreationThreshold.floatValue()));
-                lot.setTargetPrice(lot.getPrice() * (1F + orderCreationThreshold.floatValue()));
-
-                LotInsertPreparedStatementCallback callback = new LotInsertPreparedStatementCallback(
-                        lot, orderCreationThreshold.floatValue());
-                try {
-                    DB.executePreparedUpdate(
-                            "INSERT OR REPLACE INTO etrade_lot ("
-                                    + "acquired_date,"
-                                    + "acquired_price,"
-                                    + "follow_price,"
-                                    + "last_price,"
-                                    + "lot_id,"
-                                    + "remaining_qty,"
-                                    + "symbol,"
-                                    + "target_price,"
-                                    + "updated_time"
-                                + ") VALUES(?,?,?,?,?,?,?,?,?);",
-                            callback);
-                } catch (SQLException e) {
-                    LOG.error("Failed to execute: {}", callback.getStatement(), e);
+            lotFetches.add(lotsFetchExecutor.submit(() -> {
+                fetchPositionLotsResponse(securityContext, symbol, position);
+                return null;
+            }));
+        }
+        ExecutionException firstFailure = null;
+        for (Future<?> lotFetch : lotFetches) {
+            try {
+                lotFetch.get();
+            } catch (ExecutionException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                } else {
+                    firstFailure.addSuppressed(e.getCause());
                 }
             }
-            for (OnPositionLotsUpdateHandler handler : onPositionLotsUpdateHandlers) {
-                handler.handlePositionLotsUpdate(symbol, totals);
-            }
         }
+        awaitPendingLotWrites();
+        LOG.info("Fetched due position lots, symbols={}", dueSymbols);
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+
+    AdaptiveLotsFetchPlanner getAdaptiveLotsFetchPlanner() {
+        return adaptiveLotsFetchPlanner;
+    }
+
+    /**
+     * Runnable for refreshing hot positions between full portfolio fetches, scheduled every
+     * etrade.lotsFetchHotIntervalSeconds when etrade.adaptiveLotsFetchEnabled is set.
+     */
+    public Runnable getDuePositionLotsFetcher() {
+        return new DuePositionLotsFetcher();
+    }
+
+    public long getLotsFetchHotIntervalSeconds() {
+        return adaptiveLotsFetchPlanner.getHotIntervalSeconds();
+    }
+
+    public boolean isAdaptiveLotsFetchEnabled() {
+        return adaptiveLotsFetchPlanner.isEnabled();
+    }
+
+    /**
+     * Number of completed portfolio fetches. The lots index changes position by position while a fetch is in
+     * progress, and positions that were not part of the latest fetch are dropped when it completes.
+     */
+    public long getLotsGeneration() {
+        return lotsGeneration.get();
     }
 
     public Long getPortfolioDataExpirationSeconds() {
@@ -187,6 +324,62 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
         return portfolioDataFetchIntervalSeconds;
     }
 
+    public Map<String, List<Lot>> getSymbolToLotsIndex() {
+        return symbolToLotsIndex;
+    }
+
+    /**
+     * Wait for every lots request submitted during the current fetch to settle, whether or not it succeeds.
+     *
+     * @throws ExecutionException Wrapping the first failure, after all requests have settled.
+     */
+    void awaitPendingLotFetches() throws ExecutionException, InterruptedException {
+        ExecutionException firstFailure = null;
+        Future<?> pendingLotFetch;
+        while ((pendingLotFetch = pendingLotFetches.poll()) != null) {
+            try {
+                pendingLotFetch.get();
+            } catch (ExecutionException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                } else {
+                    firstFailure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+
+    /**
+     * Wait for lot writes queued during the current fetch to be committed.
+     *
+     * @return Number of rows written.
+     */
+    long awaitPendingLotWrites() {
+        long rowsWritten = 0L;
+        Future<Integer> pendingLotWrite;
+        while ((pendingLotWrite = pendingLotWrites.poll()) != null) {
+            try {
+                rowsWritten += pendingLotWrite.get();
+            } catch (ExecutionException e) {
+                LOG.error("Failed to write lots to 'etrade_lot'", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Stop the lots fetch threads. Lots fetches still queued are dropped, and ones in flight are interrupted.
+     */
+    public void shutdown() {
+        lotsFetchExecutor.shutdownNow();
+    }
+
     @Override
     public void run() {
         SecurityContext securityContext = getRestTemplateFactory().getSecurityContext();
@@ -200,11 +393,32 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
         }
         LOG.info("Fetching portfolio data");
         long timeStartedMillis = System.currentTimeMillis();
+        fetchedSymbols.clear();
+        lotWriteNanos.reset();
         try {
-            fetchPortfolioResponse(securityContext, null);
+            try {
+                fetchPortfolioResponse(securityContext, null);
+            } finally {
+                awaitPendingLotFetches();
+            }
+            // Positions that are no longer held were not part of this fetch.
+            symbolToLotsIndex.keySet().retainAll(fetchedSymbols);
+            symbolToPositionIndex.keySet().retainAll(fetchedSymbols);
+            adaptiveLotsFetchPlanner.retainSymbols(fetchedSymbols);
+            long generation = lotsGeneration.incrementAndGet();
             long timeStoppedMillis = System.currentTimeMillis();
             setLastSuccessfulFetchTimeMillis(timeStoppedMillis);
-            LOG.info("Fetched portfolio and lots data, duration={}ms", timeStoppedMillis - timeStartedMillis);
+            long rowsWritten = awaitPendingLotWrites();
+            long writeMillis = TimeUnit.NANOSECONDS.toMillis(lotWriteNanos.sum());
+            recordFetchCycle("success", System.currentTimeMillis() - timeStartedMillis);
+            METRICS.counter("lotsandlots_lot_rows_written_total", "Lot rows written to SQLite.").add(rowsWritten);
+            LOG.info("Fetched portfolio and lots data, duration={}ms generation={} lotRowsWritten={} "
+                            + "lotWriteDuration={}ms lotRowsPerSecond={}",
+                    timeStoppedMillis - timeStartedMillis,
+                    generation,
+                    rowsWritten,
+                    writeMillis,
+                    writeMillis > 0 ? rowsWritten * 1000L / writeMillis : rowsWritten);
             for (OnPortfolioDataFetchCompletionHandler handler : onPortfolioDataFetchCompletionHandlers) {
                 try {
                     handler.handlePortfolioDataFetchCompletion(timeStartedMillis, timeStoppedMillis, totals);
@@ -213,36 +427,140 @@ public class EtradePortfolioDataFetcher extends EtradeDataFetcher {
                 }
             }
         } catch (Exception e) {
+            awaitPendingLotWrites();
             long timeFailedMillis = System.currentTimeMillis();
+            recordFetchCycle("error", timeFailedMillis - timeStartedMillis);
             LOG.info("Failed to fetch portfolio and lots data, duration={}ms", timeFailedMillis - timeStartedMillis, e);
             setLastFailedFetchTimeMillis(timeFailedMillis);
         }
     }
 
+    private static void recordFetchCycle(String outcome, long durationMillis) {
+        METRICS.histogram("lotsandlots_fetch_cycle_seconds",
+                          "Duration of data fetch cycles, from the first request until the data is indexed.",
+                          "fetcher", "portfolio",
+                          "outcome", outcome)
+               .record(durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    class PortfolioHandler implements PortfolioResponseDecoder.PortfolioHandler {
+
+        private final long nowMillis;
+        private final CompletableFuture<PortfolioResponse.Totals> pageTotals = new CompletableFuture<>();
+        private final SecurityContext securityContext;
+
+        PortfolioHandler(SecurityContext securityContext, long nowMillis) {
+            this.nowMillis = nowMillis;
+            this.securityContext = securityContext;
+        }
+
+        /**
+         * Release the handler calls waiting on this page's Totals, if the page did not include any.
+         */
+        void completeTotals(PortfolioResponse.Totals fallbackTotals) {
+            pageTotals.complete(fallbackTotals);
+        }
+
+        @Override
+        public void handlePosition(PortfolioResponseDecoder.PositionFields positionFields) {
+            String symbol = positionFields.getSymbolDescription();
+            PortfolioResponse.Position position = new PortfolioResponse.Position();
+            position.setLotsDetails(positionFields.getLotsDetails());
+            position.setMarketValue(positionFields.getMarketValue());
+            position.setPctOfPortfolio(positionFields.getPctOfPortfolio());
+            position.setPositionId(positionFields.getPositionId());
+            position.setPricePaid(positionFields.getPricePaid());
+            position.setQuantity((int) positionFields.getQuantity());
+            position.setSymbolDescription(symbol);
+            position.setTotalCost(positionFields.getTotalCost());
+            symbolToPositionIndex.put(symbol, position);
+            if (positionFields.getQuantity() > 0F) {
+                adaptiveLotsFetchPlanner.recordPrice(symbol, FixedPoint.divide(
+                        FixedPoint.toMicros(positionFields.getMarketValue()),
+                        FixedPoint.toMicros(positionFields.getQuantity())), nowMillis);
+            }
+            if (adaptiveLotsFetchPlanner.isEnabled()
+                    && symbolToLotsIndex.containsKey(symbol)
+                    && adaptiveLotsFetchPlanner.acquireDueSymbols(
+                            Collections.singletonList(symbol), nowMillis).isEmpty()) {
+                // Not due yet, keep the lots from an earlier fetch.
+                fetchedSymbols.add(symbol);
+                return;
+            }
+            pendingLotFetches.add(lotsFetchExecutor.submit(() -> {
+                indexPositionLots(securityContext, symbol, position);
+                // Runs here if the Totals are already in, otherwise on the decoding thread once they are.
+                pageTotals.thenAccept(decodedTotals -> {
+                    try {
+                        handlePositionLotsUpdate(symbol, decodedTotals);
+                    } catch (Exception e) {
+                        LOG.error("Failed to handle position lots update, symbol={}", symbol, e);
+                    }
+                });
+                return null;
+            }));
+        }
+
+        @Override
+        public void handleTotals(PortfolioResponse.Totals freshTotals) {
+            totals = freshTotals; // Update portfolio totals
+            pageTotals.complete(freshTotals);
+            LOG.info("Portfolio cash={}, todaysGainLossPct={}, todaysGainLoss={}, "
+                            + "totalGainLossPct={}, totalGainLoss={}, totalPaid={}, totalValue={}",
+                    totals.getCashBalance(),
+                    totals.getTodaysGainLossPct(),
+                    totals.getTodaysGainLoss(),
+                    totals.getTotalGainLossPct(),
+                    totals.getTotalGainLoss(),
+                    totals.getTotalPricePaid(),
+                    totals.getTotalMarketValue()
+            );
+        }
+    }
+
+    class DuePositionLotsFetcher implements Runnable {
+
+        @Override
+        public void run() {
+            SecurityContext securityContext = getRestTemplateFactory().getSecurityContext();
+            if (!securityContext.isInitialized()) {
+                return;
+            }
+            try {
+                fetchDuePositionLots(securityContext);
+            } catch (ExecutionException e) {
+                LOG.error("Failed to fetch due position lots", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     static class LotInsertPreparedStatementCallback implements SqliteDatabase.PreparedStatementCallback {
 
-        private final PositionLotsResponse.PositionLot lot;
-        private final float orderCreationThreshold;
+        private final List<Lot> lots;
         private PreparedStatement statement;
 
-        LotInsertPreparedStatementCallback(PositionLotsResponse.PositionLot lot, float orderCreationThreshold) {
-            this.lot = lot;
-            this.orderCreationThreshold = orderCreationThreshold;
+        LotInsertPreparedStatementCallback(List<Lot> lots) {
+            this.lots = lots;
         }
 
         @Override
         public void call(PreparedStatement stmt) throws SQLException {
             this.statement = stmt;
-            stmt.setInt(1, (int) (lot.getAcquiredDate() / 1000L));
-            stmt.setFloat(2, lot.getPrice());
-            stmt.setFloat(3, lot.getPrice() * (1F - orderCreationThreshold));
-            stmt.setFloat(4, lot.getMarketValue() / lot.getRemainingQty());
-            stmt.setString(5, lot.getPositionLotId().toString());
-            stmt.setFloat(6, lot.getRemainingQty());
-            stmt.setString(7, lot.getSymbol());
-            stmt.setFloat(8, lot.getPrice() * (1F + orderCreationThreshold));
-            stmt.setInt(9, (int) (System.currentTimeMillis() / 1000L));
-            stmt.executeUpdate();
+            int updatedTime = (int) (System.currentTimeMillis() / 1000L);
+            for (Lot lot : lots) {
+                stmt.setInt(1, (int) (lot.getAcquiredTimeMillis() / 1000L));
+                stmt.setDouble(2, FixedPoint.toDouble(lot.getPriceMicros()));
+                stmt.setDouble(3, FixedPoint.toDouble(lot.getFollowPriceMicros()));
+                stmt.setDouble(4, FixedPoint.toDouble(lot.getLastPriceMicros()));
+                stmt.setString(5, Long.toString(lot.getLotId()));
+                stmt.setDouble(6, FixedPoint.toDouble(lot.getRemainingQtyMicros()));
+                stmt.setInt(7, lot.getSymbolId());
+                stmt.setDouble(8, FixedPoint.toDouble(lot.getTargetPriceMicros()));
+                stmt.setInt(9, updatedTime);
+                stmt.addBatch();
+            }
         }
 
         public PreparedStatement getStatement() {
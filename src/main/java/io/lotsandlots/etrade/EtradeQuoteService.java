@@ -0,0 +1,243 @@
+package io.lotsandlots.etrade;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+import io.lotsandlots.etrade.api.ApiConfig;
+import io.lotsandlots.etrade.api.QuoteResponse;
+import io.lotsandlots.etrade.oauth.EtradeOAuthClient;
+import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
+import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.etrade.rest.RequestPriority;
+import io.lotsandlots.util.ConfigWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches quotes for many symbols at a time. Requests made within etrade.quoteBatchLingerMillis of each other are
+ * coalesced into requests of up to 25 symbols, which is the most E*Trade's quote API accepts, and every quote is
+ * cached for etrade.quoteCacheTtlMillis so that callers in the same cycle share one fetch. Batches are sent one after
+ * another, and each batch's quotes time out if its request has not finished within the request timeouts.
+ */
+public class EtradeQuoteService implements EtradeOAuthClient {
+
+    private static final Config CONFIG = ConfigWrapper.getConfig();
+    private static final Logger LOG = LoggerFactory.getLogger(EtradeQuoteService.class);
+    static final int MAX_SYMBOLS_PER_REQUEST = 25;
+    private static EtradeQuoteService QUOTE_SERVICE = null;
+
+    private final ScheduledExecutorService batchExecutor;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Map<String, CompletableFuture<QuoteResponse.QuoteData>> inFlightQuotes = new ConcurrentHashMap<>();
+    private final Cache<String, QuoteResponse.QuoteData> quoteCache;
+    private final Queue<String> queuedSymbols = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService timeoutExecutor;
+
+    private ApiConfig apiConfig = EtradeRestTemplateFactory.getTemplateFactory().getApiConfig();
+    private long quoteBatchLingerMillis = 20L;
+    private long quoteCacheTtlMillis = 5000L;
+    private long quoteTimeoutMillis;
+    private EtradeRestTemplateFactory restTemplateFactory = EtradeRestTemplateFactory.getTemplateFactory();
+
+    EtradeQuoteService() {
+        if (CONFIG.hasPath("etrade.quoteBatchLingerMillis")) {
+            quoteBatchLingerMillis = CONFIG.getLong("etrade.quoteBatchLingerMillis");
+        }
+        if (CONFIG.hasPath("etrade.quoteCacheTtlMillis")) {
+            quoteCacheTtlMillis = CONFIG.getLong("etrade.quoteCacheTtlMillis");
+        }
+        quoteTimeoutMillis = restTemplateFactory.getRequestTimeoutMillis();
+        batchExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "etrade-quote-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeoutExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "etrade-quote-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        quoteCache = CacheBuilder.newBuilder()
+                                 .expireAfterWrite(quoteCacheTtlMillis, TimeUnit.MILLISECONDS)
+                                 .build();
+        LOG.info("Initialized EtradeQuoteService, quoteBatchLingerMillis={} quoteCacheTtlMillis={} "
+                        + "quoteTimeoutMillis={}",
+                quoteBatchLingerMillis, quoteCacheTtlMillis, quoteTimeoutMillis);
+    }
+
+    public static synchronized EtradeQuoteService getInstance() {
+        if (QUOTE_SERVICE == null) {
+            QUOTE_SERVICE = new EtradeQuoteService();
+        }
+        return QUOTE_SERVICE;
+    }
+
+    ApiConfig getApiConfig() {
+        return apiConfig;
+    }
+    void setApiConfig(ApiConfig apiConfig) {
+        this.apiConfig = apiConfig;
+    }
+
+    EtradeRestTemplateFactory getRestTemplateFactory() {
+        return restTemplateFactory;
+    }
+    void setRestTemplateFactory(EtradeRestTemplateFactory restTemplateFactory) {
+        this.restTemplateFactory = restTemplateFactory;
+    }
+
+    void setQuoteTimeoutMillis(long quoteTimeoutMillis) {
+        this.quoteTimeoutMillis = quoteTimeoutMillis;
+    }
+
+    /**
+     * Returns a cached quote, or waits for the batch that the symbol is fetched in.
+     *
+     * @throws ExecutionException If the quote could not be fetched, or its batch's request did not finish within
+     *                            the request timeouts.
+     */
+    public QuoteResponse.QuoteData getQuote(String symbol) throws ExecutionException, InterruptedException {
+        return getQuoteAsync(symbol).get();
+    }
+
+    public CompletableFuture<QuoteResponse.QuoteData> getQuoteAsync(String symbol) {
+        QuoteResponse.QuoteData quoteData = quoteCache.getIfPresent(symbol);
+        if (quoteData != null) {
+            return CompletableFuture.completedFuture(quoteData);
+        }
+        CompletableFuture<QuoteResponse.QuoteData> newFuture = new CompletableFuture<>();
+        CompletableFuture<QuoteResponse.QuoteData> inFlightFuture = inFlightQuotes.putIfAbsent(symbol, newFuture);
+        if (inFlightFuture != null) {
+            return inFlightFuture;
+        }
+        queuedSymbols.add(symbol);
+        if (flushScheduled.compareAndSet(false, true)) {
+            batchExecutor.schedule(this::flushQueuedSymbols, quoteBatchLingerMillis, TimeUnit.MILLISECONDS);
+        }
+        return newFuture;
+    }
+
+    /**
+     * Queue quotes for every symbol without waiting, so that they go out in as few batches as possible before
+     * individual callers ask for them.
+     */
+    public void prefetchQuotes(Collection<String> symbols) {
+        for (String symbol : symbols) {
+            getQuoteAsync(symbol);
+        }
+    }
+
+    QuoteResponse fetchQuoteResponse(List<String> symbols)
+            throws GeneralSecurityException, UnsupportedEncodingException {
+        Message quoteMessage = new Message();
+        quoteMessage.setRequiresOauth(true);
+        quoteMessage.setHttpMethod("GET");
+        quoteMessage.setPriority(RequestPriority.QUOTE);
+        quoteMessage.setUrl(getApiConfig().getQuoteUrl() + String.join(",", symbols));
+        setOAuthHeader(getRestTemplateFactory().getSecurityContext(), quoteMessage);
+        ResponseEntity<QuoteResponse> quoteResponseEntity = getRestTemplateFactory()
+                .getRestTemplate()
+                .doGet(quoteMessage, QuoteResponse.class);
+        QuoteResponse quoteResponse = quoteResponseEntity.getBody();
+        if (quoteResponse == null || quoteResponse.getQuoteDataList() == null) {
+            throw new RuntimeException("Empty quote response");
+        }
+        return quoteResponse;
+    }
+
+    void fetchQuotes(List<String> symbols) {
+        Map<String, CompletableFuture<QuoteResponse.QuoteData>> batchFutures = new HashMap<>();
+        for (String symbol : symbols) {
+            CompletableFuture<QuoteResponse.QuoteData> future = inFlightQuotes.get(symbol);
+            if (future != null) {
+                batchFutures.put(symbol, future);
+            }
+        }
+        // The timeout starts when the batch is sent, so that batches queued behind it are not charged for its request.
+        ScheduledFuture<?> timeout = timeoutExecutor.schedule(
+                () -> expireQuotes(batchFutures), quoteTimeoutMillis, TimeUnit.MILLISECONDS);
+        Map<String, QuoteResponse.QuoteData> symbolToQuoteData = new HashMap<>();
+        Exception fetchException = null;
+        try {
+            List<QuoteResponse.QuoteData> quoteDataList = fetchQuoteResponse(symbols).getQuoteDataList();
+            for (int i = 0; i < quoteDataList.size(); i++) {
+                QuoteResponse.QuoteData quoteData = quoteDataList.get(i);
+                // Quotes come back in the order they were requested when the product is left out.
+                String symbol = quoteData.getProduct() == null
+                        ? (i < symbols.size() ? symbols.get(i) : null)
+                        : quoteData.getProduct().getSymbol();
+                if (symbol != null && quoteData.getAllQuoteDetails() != null) {
+                    symbolToQuoteData.put(symbol, quoteData);
+                    quoteCache.put(symbol, quoteData);
+                }
+            }
+            LOG.debug("Fetched quotes, symbolCount={} quoteCount={}", symbols.size(), symbolToQuoteData.size());
+        } catch (Exception e) {
+            LOG.debug("Failed to fetch quotes, symbols={}", symbols, e);
+            fetchException = e;
+        } finally {
+            timeout.cancel(false);
+        }
+        for (Map.Entry<String, CompletableFuture<QuoteResponse.QuoteData>> entry : batchFutures.entrySet()) {
+            String symbol = entry.getKey();
+            CompletableFuture<QuoteResponse.QuoteData> future = entry.getValue();
+            inFlightQuotes.remove(symbol, future);
+            QuoteResponse.QuoteData quoteData = symbolToQuoteData.get(symbol);
+            if (quoteData != null) {
+                future.complete(quoteData);
+            } else if (fetchException != null) {
+                future.completeExceptionally(fetchException);
+            } else {
+                future.completeExceptionally(new RuntimeException("Quote response did not include " + symbol));
+            }
+        }
+    }
+
+    private void expireQuotes(Map<String, CompletableFuture<QuoteResponse.QuoteData>> batchFutures) {
+        for (Map.Entry<String, CompletableFuture<QuoteResponse.QuoteData>> entry : batchFutures.entrySet()) {
+            String symbol = entry.getKey();
+            // Later callers queue the symbol again instead of sharing the timed out quote.
+            inFlightQuotes.remove(symbol, entry.getValue());
+            entry.getValue().completeExceptionally(new TimeoutException(
+                    String.format("Timed out waiting for quote, symbol=%s quoteTimeoutMillis=%d",
+                                  symbol, quoteTimeoutMillis)));
+        }
+    }
+
+    private void flushQueuedSymbols() {
+        // Symbols queued after this point schedule their own flush.
+        flushScheduled.set(false);
+        List<String> batch = new ArrayList<>(MAX_SYMBOLS_PER_REQUEST);
+        String symbol;
+        while ((symbol = queuedSymbols.poll()) != null) {
+            batch.add(symbol);
+            if (batch.size() == MAX_SYMBOLS_PER_REQUEST) {
+                fetchQuotes(batch);
+                batch = new ArrayList<>(MAX_SYMBOLS_PER_REQUEST);
+            }
+        }
+        if (!batch.isEmpty()) {
+            fetchQuotes(batch);
+        }
+    }
+}
@@ -3,13 +3,20 @@ package io.lotsandlots.etrade;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.typesafe.config.Config;
 import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.data.SymbolDictionary;
 import io.lotsandlots.etrade.api.CancelOrderRequest;
 import io.lotsandlots.etrade.api.CancelOrderResponse;
 import io.lotsandlots.etrade.api.OrderDetail;
 import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.etrade.rest.RequestPriority;
 import io.lotsandlots.util.ConfigWrapper;
+import io.lotsandlots.util.FixedPoint;
+import io.lotsandlots.util.SymbolLaneExecutor;
+import io.lotsandlots.util.TaskScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
@@ -17,57 +24,52 @@ import org.springframework.http.ResponseEntity;
 
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.security.GeneralSecurityException;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnPositionLotsUpdateHandler {
 
     private static final Config CONFIG = ConfigWrapper.getConfig();
     private static final SqliteDatabase DB = SqliteDatabase.getInstance();
-    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newFixedThreadPool(5);
     private static final Logger LOG = LoggerFactory.getLogger(EtradeSellOrderController.class);
+    private static final SymbolDictionary SYMBOLS = SymbolDictionary.getInstance();
 
     private boolean cancelAllOrdersOnLotsOrdersMismatch = true;
-    private final ExecutorService executor;
+    private final SymbolLaneExecutor laneExecutor;
     private final EtradeOrdersDataFetcher ordersDataFetcher;
     private final EtradePortfolioDataFetcher portfolioDataFetcher;
-    private final List<String> sellOrderDisabledSymbols = new LinkedList<>();
+    private final Map<String, Long> symbolToLastOrderChangeTimeMillis = new ConcurrentHashMap<>();
 
     public EtradeSellOrderController(EtradePortfolioDataFetcher portfolioDataFetcher,
                                      EtradeOrdersDataFetcher ordersDataFetcher) {
-        this(portfolioDataFetcher, ordersDataFetcher, DEFAULT_EXECUTOR);
+        this(portfolioDataFetcher,
+             ordersDataFetcher,
+             new SymbolLaneExecutor("sell", TaskScheduler.getInstance().getExecutor()));
     }
 
     public EtradeSellOrderController(EtradePortfolioDataFetcher portfolioDataFetcher,
                                      EtradeOrdersDataFetcher ordersDataFetcher,
-                                     ExecutorService executor) {
+                                     SymbolLaneExecutor laneExecutor) {
         if (CONFIG.hasPath("etrade.cancelAllOrdersOnLotsOrdersMismatch")) {
             cancelAllOrdersOnLotsOrdersMismatch = CONFIG.getBoolean("etrade.cancelAllOrdersOnLotsOrdersMismatch");
         }
-        if (CONFIG.hasPath("etrade.disableSellOrderCreation")) {
-            sellOrderDisabledSymbols.addAll(CONFIG.getStringList("etrade.disableSellOrderCreation"));
-        }
 
-        this.executor = executor;
+        this.laneExecutor = laneExecutor;
         this.ordersDataFetcher = ordersDataFetcher;
         this.portfolioDataFetcher = portfolioDataFetcher;
 
         portfolioDataFetcher.addOnPositionLotsUpdateHandler(this);
 
-        LOG.info("Initialized EtradeSellOrderCreator, cancelAllOrdersOnLotsOrdersMismatch={} sellOrderDisabledSymbols={}",
-                cancelAllOrdersOnLotsOrdersMismatch, sellOrderDisabledSymbols
-        );
+        LOG.info("Initialized EtradeSellOrderCreator, cancelAllOrdersOnLotsOrdersMismatch={}",
+                cancelAllOrdersOnLotsOrdersMismatch);
     }
 
     @Override
@@ -88,14 +90,41 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
                 LOG.warn("Skipping sell order creation due to orders data staleness, "
                                 + "lastSuccessfulFetchTimeMillis={} deltaMillis={} thresholdMillis={} symbol={}",
                         lastSuccessfulFetchTimeMillis, deltaMillis, thresholdMillis, symbol);
+            } else if (isAwaitingOrdersFetch(symbol)) {
+                // Due lots are refreshed more often than orders, most of these updates come before the next fetch.
+                LOG.debug("Skipping sell order creation until orders are fetched after the last order change, "
+                        + "symbol={}", symbol);
             } else {
-                executor.submit(new OnPositionLotsUpdateRunnable(symbol));
+                laneExecutor.execute(SYMBOLS.idOf(symbol), new OnPositionLotsUpdateRunnable(symbol));
             }
         }
     }
 
+    /**
+     * Whether sell orders were placed or cancelled for the symbol after the last successful orders fetch started.
+     * Until such a fetch completes, the sell orders index may not show them, and acting on it could place the same
+     * sell orders again.
+     */
+    boolean isAwaitingOrdersFetch(String symbol) {
+        Long lastOrderChangeTimeMillis = symbolToLastOrderChangeTimeMillis.get(symbol);
+        if (lastOrderChangeTimeMillis == null) {
+            return false;
+        }
+        Long lastSuccessfulFetchStartTimeMillis = ordersDataFetcher.getLastSuccessfulFetchStartTimeMillis();
+        if (lastSuccessfulFetchStartTimeMillis != null
+                && lastSuccessfulFetchStartTimeMillis > lastOrderChangeTimeMillis) {
+            symbolToLastOrderChangeTimeMillis.remove(symbol, lastOrderChangeTimeMillis);
+            return false;
+        }
+        return true;
+    }
+
+    void recordOrderChange(String symbol, long timeMillis) {
+        symbolToLastOrderChangeTimeMillis.put(symbol, timeMillis);
+    }
+
     boolean isSellOrderCreationDisabled(String symbol) {
-        return sellOrderDisabledSymbols.contains(symbol);
+        return TradingPolicyTable.getCurrent().isSellOrderCreationDisabled(SYMBOLS.idOf(symbol));
     }
 
     OnPositionLotsUpdateRunnable newSymbolToLotsIndexPutEventRunnable(String symbol) {
@@ -132,7 +161,7 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
             this.symbol = symbol;
         }
 
-        void cancelOrder(SecurityContext securityContext, Long orderId)
+        void cancelOrder(SecurityContext securityContext, long orderId)
                 throws GeneralSecurityException, JsonProcessingException, UnsupportedEncodingException {
             CancelOrderRequest cancelOrderRequest = new CancelOrderRequest();
             cancelOrderRequest.setOrderId(orderId);
@@ -145,12 +174,13 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
             Message orderCancelMessage = new Message();
             orderCancelMessage.setRequiresOauth(true);
             orderCancelMessage.setHttpMethod("PUT");
+            orderCancelMessage.setPriority(RequestPriority.ORDER);
             orderCancelMessage.setContentType(MediaType.APPLICATION_JSON_VALUE);
             orderCancelMessage.setUrl(getApiConfig().getOrdersCancelUrl());
             setOAuthHeader(securityContext, orderCancelMessage);
             ResponseEntity<CancelOrderResponse> cancelOrderResponseEntity =
                     getRestTemplateFactory()
-                            .newCustomRestTemplate()
+                            .getRestTemplate()
                             .doPut(orderCancelMessage,
                                    OBJECT_MAPPER.writeValueAsString(payload),
                                    CancelOrderResponse.class);
@@ -160,8 +190,9 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
             } else if (LOG.isDebugEnabled()) {
                 LOG.debug("CancelOrderResponse{}", OBJECT_MAPPER.writeValueAsString(cancelOrderResponse));
             }
+            ordersDataFetcher.removeSellOrder(symbol, orderId);
             DeleteOrderPreparedStatementCallback callback =
-                    new DeleteOrderPreparedStatementCallback(orderId.toString());
+                    new DeleteOrderPreparedStatementCallback(Long.toString(orderId));
             try {
                 DB.executePreparedUpdate("DELETE FROM etrade_order WHERE order_id == ?;", callback);
             } catch (SQLException e) {
@@ -169,6 +200,11 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
             }
         }
 
+        @Override
+        void handlePlaceOrderFailure() {
+            ordersDataFetcher.requestFullReconcile();
+        }
+
         @Override
         public void run() {
             SecurityContext securityContext = getRestTemplateFactory().getSecurityContext();
@@ -180,40 +216,39 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
                 LOG.warn("Please configure etrade.accountIdKey");
                 return;
             }
-            int freshnessThreshold = (int) (
-                    (System.currentTimeMillis() / 1000L) - portfolioDataFetcher.getPortfolioDataExpirationSeconds()
-            );
-            String sql;
-
-            List<String> sellOrderIdList = new LinkedList<>();
-            sql = "SELECT order_id FROM etrade_order WHERE symbol == ? AND order_action == \"SELL\" AND updated_time > ?;";
-            try (Connection conn = DB.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, symbol);
-                stmt.setInt(2, freshnessThreshold);
-                ResultSet rs = stmt.executeQuery();
-                while (rs.next()) {
-                    sellOrderIdList.add(rs.getString("order_id"));
-                }
-                rs.close();
-            } catch (SQLException e) {
-                LOG.error("Failed to select from 'etrade_order', symbol={}", symbol, e);
+            Long lastSuccessfulPortfolioFetchTimeMillis = portfolioDataFetcher.getLastSuccessfulFetchTimeMillis();
+            if (lastSuccessfulPortfolioFetchTimeMillis == null) {
+                LOG.debug("Skipping sell order creation, portfolio data fetch has not occurred, symbol={}", symbol);
                 return;
             }
-            // TODO: Check for orders fetch completion.
-            int lotCount;
-            sql = "SELECT COUNT(*) FROM etrade_lot WHERE symbol == ? AND updated_time > ?;";
-            try (Connection conn = DB.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, symbol);
-                stmt.setInt(2, freshnessThreshold);
-                ResultSet rs = stmt.executeQuery();
-                lotCount = rs.getInt(1);
-                rs.close();
-            } catch (SQLException e) {
-                LOG.error("Failed to select from 'etrade_lot', symbol={}", symbol, e);
+            long portfolioDeltaMillis = System.currentTimeMillis() - lastSuccessfulPortfolioFetchTimeMillis;
+            long portfolioThresholdMillis = portfolioDataFetcher.getPortfolioDataExpirationSeconds() * 1000L;
+            if (portfolioDeltaMillis > portfolioThresholdMillis) {
+                LOG.warn("Skipping sell order creation due to portfolio data staleness, "
+                                + "lastSuccessfulFetchTimeMillis={} deltaMillis={} thresholdMillis={} symbol={}",
+                        lastSuccessfulPortfolioFetchTimeMillis, portfolioDeltaMillis, portfolioThresholdMillis, symbol);
                 return;
             }
-            LOG.debug("Found {} sell orders for {} lots, symbol={}", sellOrderIdList.size(), lotCount, symbol);
-            if (sellOrderIdList.size() == lotCount) {
+            if (isAwaitingOrdersFetch(symbol)) {
+                LOG.debug("Skipping sell order reconciliation until orders are fetched after the last order change, "
+                        + "symbol={}", symbol);
+                return;
+            }
+            List<Order> sellOrders = ordersDataFetcher.getSymbolToSellOrdersIndex().get(symbol);
+            if (sellOrders == null) {
+                sellOrders = new LinkedList<>();
+            }
+            List<LotToSell> lots = new LinkedList<>();
+            List<Lot> positionLots = portfolioDataFetcher.getSymbolToLotsIndex().get(symbol);
+            if (positionLots != null) {
+                for (Lot lot : positionLots) {
+                    lots.add(new LotToSell(lot.getLotId(), lot.getRemainingShares(), lot.getTargetPriceMicros()));
+                }
+            }
+            SellOrderDiff diff = diffSellOrders(sellOrders, lots);
+            LOG.debug("Found {} sell orders for {} lots, ordersToCancel={} lotsToSell={} symbol={}",
+                    sellOrders.size(), lots.size(), diff.orderIdsToCancel.size(), diff.lotsToSell.size(), symbol);
+            if (diff.isEmpty()) {
                 return;
             }
             if (!cancelAllOrdersOnLotsOrdersMismatch) {
@@ -221,27 +256,36 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
                         + "cancelAllOrdersOnLotsOrdersMismatch=false");
                 return;
             }
-            if (sellOrderIdList.size() > 0) {
-                LOG.info("Canceling {} existing sell orders, symbol={}", sellOrderIdList.size(), symbol);
+            try {
+                cancelAndPlaceOrders(securityContext, diff);
+            } finally {
+                recordOrderChange(symbol, System.currentTimeMillis());
+            }
+        }
+
+        private void cancelAndPlaceOrders(SecurityContext securityContext, SellOrderDiff diff) {
+            if (!diff.orderIdsToCancel.isEmpty()) {
+                LOG.info("Canceling {} orphaned sell orders, symbol={}", diff.orderIdsToCancel.size(), symbol);
+                recordDecision(symbol, "Canceling " + diff.orderIdsToCancel.size() + " orphaned sell orders");
                 try {
-                    for (String orderId : sellOrderIdList) {
-                        cancelOrder(securityContext, Long.parseLong(orderId));
+                    for (Long orderId : diff.orderIdsToCancel) {
+                        cancelOrder(securityContext, orderId);
                     }
                 } catch (Exception e) {
-                    LOG.debug("Failed to cancel all sell orders, symbol={}", symbol, e);
+                    // Placing orders for lots that may still have an open order could sell them twice. The order may
+                    // have been filled or canceled already, which only a full reconcile will find out.
+                    LOG.debug("Failed to cancel orphaned sell orders, symbol={}", symbol, e);
+                    ordersDataFetcher.requestFullReconcile();
                     return;
                 }
             }
-            //
-            LOG.info("Creating sell orders for {} lots, symbol={}", lotCount, symbol);
-            sql = "SELECT lot_id,remaining_qty,target_price FROM etrade_lot WHERE symbol == ? AND updated_time > ?;";
-            try (Connection conn = DB.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, symbol);
-                stmt.setInt(2, freshnessThreshold);
-                ResultSet rs = stmt.executeQuery();
-                while (rs.next()) {
-                    Float remainingQty = rs.getFloat("remaining_qty");
-
+            if (diff.lotsToSell.isEmpty()) {
+                return;
+            }
+            LOG.info("Creating sell orders for {} lots, symbol={}", diff.lotsToSell.size(), symbol);
+            recordDecision(symbol, "Creating sell orders for " + diff.lotsToSell.size() + " lots");
+            try {
+                for (LotToSell lot : diff.lotsToSell) {
                     String clientOrderId = UUID.randomUUID().toString().substring(0, 8);
 
                     OrderDetail.Product product = new OrderDetail.Product();
@@ -249,15 +293,13 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
                     product.setSymbol(symbol);
 
                     OrderDetail.Lots instrumentLots = new OrderDetail.Lots();
-                    instrumentLots.newLotList(
-                            Long.parseLong(rs.getString("lot_id")),
-                            remainingQty.longValue());
+                    instrumentLots.newLotList(lot.lotId, lot.quantity);
 
                     OrderDetail.Instrument instrument = new OrderDetail.Instrument();
                     instrument.setLots(instrumentLots);
                     instrument.setOrderAction("SELL");
                     instrument.setProduct(product);
-                    instrument.setQuantity(remainingQty.longValue());
+                    instrument.setQuantity(lot.quantity);
                     instrument.setQuantityType("QUANTITY");
 
                     OrderDetail orderDetail = new OrderDetail();
@@ -266,16 +308,93 @@ public class EtradeSellOrderController implements EtradePortfolioDataFetcher.OnP
                     orderDetail.setOrderTerm("GOOD_UNTIL_CANCEL");
                     orderDetail.setMarketSession("REGULAR");
                     orderDetail.setPriceType("LIMIT");
-                    orderDetail.setLimitPrice(
-                            BigDecimal.valueOf(rs.getFloat("target_price"))
-                                    .setScale(2, RoundingMode.HALF_UP)
-                                    .floatValue());
-                    placeOrder(securityContext, clientOrderId, orderDetail);
+                    orderDetail.setLimitPrice(BigDecimal.valueOf(lot.limitPriceCents, 2));
+                    Order order = placeOrder(securityContext, clientOrderId, orderDetail);
+                    order.setLotId(lot.lotId);
+                    order.setStatus("OPEN");
+                    ordersDataFetcher.addSellOrder(symbol, order);
                 }
-                rs.close();
             } catch (Exception e) {
                 LOG.debug("Unable to finish creating sell orders, symbol={}", symbol, e);
             }
         }
     }
+
+    /**
+     * Match open sell orders to lots. An order placed against a lot is kept when its lot is still held with the same
+     * quantity and limit price. Orders that E*Trade returned without a lot id are matched to any remaining lot with
+     * the same quantity and limit price. Whatever is left over on either side needs to be cancelled or created.
+     */
+    static SellOrderDiff diffSellOrders(List<Order> sellOrders, List<LotToSell> lots) {
+        Map<Long, LotToSell> unmatchedLotsById = new LinkedHashMap<>();
+        for (LotToSell lot : lots) {
+            unmatchedLotsById.put(lot.lotId, lot);
+        }
+        List<Long> orderIdsToCancel = new LinkedList<>();
+        List<Order> ordersWithoutLotId = new LinkedList<>();
+        for (Order order : sellOrders) {
+            if (!order.hasLotId()) {
+                ordersWithoutLotId.add(order);
+                continue;
+            }
+            LotToSell lot = unmatchedLotsById.get(order.getLotId());
+            if (lot != null && isOrderForLot(order, lot)) {
+                unmatchedLotsById.remove(lot.lotId);
+            } else {
+                orderIdsToCancel.add(order.getOrderId());
+            }
+        }
+        for (Order order : ordersWithoutLotId) {
+            LotToSell matchedLot = null;
+            for (LotToSell lot : unmatchedLotsById.values()) {
+                if (isOrderForLot(order, lot)) {
+                    matchedLot = lot;
+                    break;
+                }
+            }
+            if (matchedLot == null) {
+                orderIdsToCancel.add(order.getOrderId());
+            } else {
+                unmatchedLotsById.remove(matchedLot.lotId);
+            }
+        }
+        return new SellOrderDiff(orderIdsToCancel, new LinkedList<>(unmatchedLotsById.values()));
+    }
+
+    private static boolean isOrderForLot(Order order, LotToSell lot) {
+        return order.getOrderedQuantity() == lot.quantity
+                && FixedPoint.toCents(order.getLimitPriceMicros()) == lot.limitPriceCents;
+    }
+
+    static class SellOrderDiff {
+
+        final List<Long> orderIdsToCancel;
+        final List<LotToSell> lotsToSell;
+
+        SellOrderDiff(List<Long> orderIdsToCancel, List<LotToSell> lotsToSell) {
+            this.orderIdsToCancel = orderIdsToCancel;
+            this.lotsToSell = lotsToSell;
+        }
+
+        boolean isEmpty() {
+            return orderIdsToCancel.isEmpty() && lotsToSell.isEmpty();
+        }
+    }
+
+    /**
+     * Lot fields copied out of the lots index before any orders are placed. Sell orders are for whole shares at the
+     * target price rounded to cents.
+     */
+    static class LotToSell {
+
+        final long limitPriceCents;
+        final long lotId;
+        final long quantity;
+
+        LotToSell(long lotId, long quantity, long targetPriceMicros) {
+            this.limitPriceCents = FixedPoint.toCents(targetPriceMicros);
+            this.lotId = lotId;
+            this.quantity = quantity;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package io.lotsandlots.etrade;
+
+import io.lotsandlots.util.FixedPoint;
+
+/**
+ * Trading settings for one symbol, resolved from etrade.* config when a TradingPolicyTable is built so that nothing
+ * has to be looked up by config path while lots and orders are being processed.
+ */
+public final class TradingPolicy {
+
+    private final boolean buyOrderCreationEnabled;
+    private final float idealLotSize;
+    private final float maxPrice;
+    private final long maxPriceMicros;
+    private final float minLotSize;
+    private final float minPrice;
+    private final long minPriceMicros;
+    private final double orderCreationThreshold;
+    private final boolean sellOrderCreationDisabled;
+
+    TradingPolicy(boolean buyOrderCreationEnabled,
+                  float idealLotSize,
+                  float maxPrice,
+                  float minLotSize,
+                  float minPrice,
+                  double orderCreationThreshold,
+                  boolean sellOrderCreationDisabled) {
+        this.buyOrderCreationEnabled = buyOrderCreationEnabled;
+        this.idealLotSize = idealLotSize;
+        this.maxPrice = maxPrice;
+        this.maxPriceMicros = FixedPoint.toMicros(maxPrice);
+        this.minLotSize = minLotSize;
+        this.minPrice = minPrice;
+        this.minPriceMicros = FixedPoint.toMicros(minPrice);
+        this.orderCreationThreshold = orderCreationThreshold;
+        this.sellOrderCreationDisabled = sellOrderCreationDisabled;
+    }
+
+    public float getIdealLotSize() {
+        return idealLotSize;
+    }
+
+    /**
+     * Highest last price a buy order may be created at, or positive infinity if the symbol has no maxPrice.
+     */
+    public float getMaxPrice() {
+        return maxPrice;
+    }
+
+    /**
+     * maxPrice in FixedPoint micros, Long.MAX_VALUE if the symbol has no maxPrice.
+     */
+    public long getMaxPriceMicros() {
+        return maxPriceMicros;
+    }
+
+    public float getMinLotSize() {
+        return minLotSize;
+    }
+
+    /**
+     * Lowest last price a buy order may be created at, or negative infinity if the symbol has no buy order creation
+     * constraints.
+     */
+    public float getMinPrice() {
+        return minPrice;
+    }
+
+    /**
+     * minPrice in FixedPoint micros, Long.MIN_VALUE if the symbol has no buy order creation constraints.
+     */
+    public long getMinPriceMicros() {
+        return minPriceMicros;
+    }
+
+    public double getOrderCreationThreshold() {
+        return orderCreationThreshold;
+    }
+
+    public boolean isBuyOrderCreationEnabled() {
+        return buyOrderCreationEnabled;
+    }
+
+    public boolean isSellOrderCreationDisabled() {
+        return sellOrderCreationDisabled;
+    }
+
+    @Override
+    public String toString() {
+        return "TradingPolicy{buyOrderCreationEnabled=" + buyOrderCreationEnabled
+                + " idealLotSize=" + idealLotSize
+                + " maxPrice=" + maxPrice
+                + " minLotSize=" + minLotSize
+                + " minPrice=" + minPrice
+                + " orderCreationThreshold=" + orderCreationThreshold
+                + " sellOrderCreationDisabled=" + sellOrderCreationDisabled + "}";
+    }
+}
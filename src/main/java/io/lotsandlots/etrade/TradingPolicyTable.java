@@ -0,0 +1,178 @@
+package io.lotsandlots.etrade;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
+import io.lotsandlots.data.SymbolDictionary;
+import io.lotsandlots.util.ConfigWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable symbol to TradingPolicy lookup compiled from the etrade block of the config. Symbols that are not
+ * mentioned anywhere in the config share the default policy. The current table is replaced as a whole, so readers
+ * always see a consistent set of policies. Policies and flags are also indexed by SymbolDictionary id, for callers
+ * that already hold one.
+ */
+public final class TradingPolicyTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TradingPolicyTable.class);
+    private static volatile TradingPolicyTable CURRENT = null;
+
+    private final BitSet buyOrderEnabledSymbolIds = new BitSet();
+    private final Set<String> buyOrderEnabledSymbols;
+    private final TradingPolicy defaultPolicy;
+    private final TradingPolicy[] policiesBySymbolId;
+    private final BitSet sellOrderDisabledSymbolIds = new BitSet();
+    private final Map<String, TradingPolicy> symbolToPolicy;
+
+    private TradingPolicyTable(TradingPolicy defaultPolicy,
+                               Map<String, TradingPolicy> symbolToPolicy,
+                               Set<String> buyOrderEnabledSymbols,
+                               SymbolDictionary symbolDictionary) {
+        this.buyOrderEnabledSymbols = Collections.unmodifiableSet(buyOrderEnabledSymbols);
+        this.defaultPolicy = defaultPolicy;
+        this.symbolToPolicy = Collections.unmodifiableMap(symbolToPolicy);
+
+        int maxSymbolId = -1;
+        for (String symbol : symbolToPolicy.keySet()) {
+            maxSymbolId = Math.max(maxSymbolId, symbolDictionary.idOf(symbol));
+        }
+        policiesBySymbolId = new TradingPolicy[maxSymbolId + 1];
+        for (Map.Entry<String, TradingPolicy> entry : symbolToPolicy.entrySet()) {
+            int symbolId = symbolDictionary.idOf(entry.getKey());
+            policiesBySymbolId[symbolId] = entry.getValue();
+            buyOrderEnabledSymbolIds.set(symbolId, entry.getValue().isBuyOrderCreationEnabled());
+            sellOrderDisabledSymbolIds.set(symbolId, entry.getValue().isSellOrderCreationDisabled());
+        }
+    }
+
+    public static TradingPolicyTable getCurrent() {
+        TradingPolicyTable current = CURRENT;
+        if (current == null) {
+            synchronized (TradingPolicyTable.class) {
+                if (CURRENT == null) {
+                    CURRENT = fromConfig(ConfigWrapper.getConfig());
+                }
+                current = CURRENT;
+            }
+        }
+        return current;
+    }
+
+    public static void setCurrent(TradingPolicyTable tradingPolicyTable) {
+        CURRENT = tradingPolicyTable;
+        LOG.info("Swapped trading policies, buyOrderEnabledSymbols={} symbolCount={}",
+                tradingPolicyTable.buyOrderEnabledSymbols, tradingPolicyTable.symbolToPolicy.size());
+    }
+
+    public static TradingPolicyTable fromConfig(Config config) {
+        double defaultOrderCreationThreshold = 0.03;
+        if (config.hasPath("etrade.defaultOrderCreationThreshold")) {
+            defaultOrderCreationThreshold = config.getDouble("etrade.defaultOrderCreationThreshold");
+        }
+        float idealLotSize = 1000F;
+        if (config.hasPath("etrade.idealLotSize")) {
+            idealLotSize = (float) config.getLong("etrade.idealLotSize");
+        }
+        float minLotSize = 900F;
+        if (config.hasPath("etrade.minLotSize")) {
+            minLotSize = (float) config.getLong("etrade.minLotSize");
+        }
+        Set<String> buyOrderEnabledSymbols = new LinkedHashSet<>();
+        if (config.hasPath("etrade.enableBuyOrderCreation")) {
+            buyOrderEnabledSymbols.addAll(config.getStringList("etrade.enableBuyOrderCreation"));
+        }
+        Set<String> sellOrderDisabledSymbols = new HashSet<>();
+        if (config.hasPath("etrade.disableSellOrderCreation")) {
+            sellOrderDisabledSymbols.addAll(config.getStringList("etrade.disableSellOrderCreation"));
+        }
+        Config thresholds = config.hasPath("etrade.overrideOrderCreationThresholds")
+                ? config.getConfig("etrade.overrideOrderCreationThresholds")
+                : null;
+        Config constraints = config.hasPath("etrade.buyOrderCreationConstraints")
+                ? config.getConfig("etrade.buyOrderCreationConstraints")
+                : null;
+
+        Set<String> symbols = new HashSet<>(buyOrderEnabledSymbols);
+        symbols.addAll(sellOrderDisabledSymbols);
+        if (thresholds != null) {
+            symbols.addAll(thresholds.root().keySet());
+        }
+        if (constraints != null) {
+            symbols.addAll(constraints.root().keySet());
+        }
+        Map<String, TradingPolicy> symbolToPolicy = new HashMap<>();
+        for (String symbol : symbols) {
+            String symbolPath = ConfigUtil.joinPath(symbol);
+            double orderCreationThreshold = thresholds != null && thresholds.hasPath(symbolPath)
+                    ? thresholds.getDouble(symbolPath)
+                    : defaultOrderCreationThreshold;
+            float maxPrice = Float.POSITIVE_INFINITY;
+            float minPrice = Float.NEGATIVE_INFINITY;
+            if (constraints != null && constraints.hasPath(symbolPath)) {
+                Config symbolConstraints = constraints.getConfig(symbolPath);
+                if (symbolConstraints.hasPath("maxPrice")) {
+                    maxPrice = (float) symbolConstraints.getDouble("maxPrice");
+                }
+                // Constrained symbols are never bought below $1 unless configured otherwise.
+                minPrice = symbolConstraints.hasPath("minPrice")
+                        ? (float) symbolConstraints.getDouble("minPrice")
+                        : 1F;
+            }
+            symbolToPolicy.put(symbol, new TradingPolicy(
+                    buyOrderEnabledSymbols.contains(symbol),
+                    idealLotSize,
+                    maxPrice,
+                    minLotSize,
+                    minPrice,
+                    orderCreationThreshold,
+                    sellOrderDisabledSymbols.contains(symbol)));
+        }
+        TradingPolicy defaultPolicy = new TradingPolicy(
+                false,
+                idealLotSize,
+                Float.POSITIVE_INFINITY,
+                minLotSize,
+                Float.NEGATIVE_INFINITY,
+                defaultOrderCreationThreshold,
+                false);
+        return new TradingPolicyTable(
+                defaultPolicy, symbolToPolicy, buyOrderEnabledSymbols, SymbolDictionary.getInstance());
+    }
+
+    public TradingPolicy get(int symbolId) {
+        TradingPolicy policy = symbolId >= 0 && symbolId < policiesBySymbolId.length
+                ? policiesBySymbolId[symbolId]
+                : null;
+        return policy == null ? defaultPolicy : policy;
+    }
+
+    public TradingPolicy get(String symbol) {
+        TradingPolicy policy = symbolToPolicy.get(symbol);
+        return policy == null ? defaultPolicy : policy;
+    }
+
+    public Set<String> getBuyOrderEnabledSymbols() {
+        return buyOrderEnabledSymbols;
+    }
+
+    public TradingPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    public boolean isBuyOrderCreationEnabled(int symbolId) {
+        return symbolId >= 0 && buyOrderEnabledSymbolIds.get(symbolId);
+    }
+
+    public boolean isSellOrderCreationDisabled(int symbolId) {
+        return symbolId >= 0 && sellOrderDisabledSymbolIds.get(symbolId);
+    }
+}
@@ -0,0 +1,106 @@
+package io.lotsandlots.etrade;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches the file given by -Dconfig.file and swaps in a new TradingPolicyTable whenever it changes. A file that
+ * fails to parse leaves the current table in place.
+ */
+public class TradingPolicyWatcher implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TradingPolicyWatcher.class);
+
+    private final Path configFile;
+    private final WatchService watchService;
+
+    private Thread thread;
+
+    public TradingPolicyWatcher(Path configFile) throws IOException {
+        this.configFile = configFile.toAbsolutePath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.configFile.getParent().register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * @return A started watcher, or null if the application was not started with -Dconfig.file.
+     */
+    public static TradingPolicyWatcher startFromSystemProperty() throws IOException {
+        String configFile = System.getProperty("config.file");
+        if (configFile == null) {
+            LOG.info("Not watching trading policies, config.file is not set");
+            return null;
+        }
+        TradingPolicyWatcher watcher = new TradingPolicyWatcher(FileSystems.getDefault().getPath(configFile));
+        watcher.start();
+        return watcher;
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "trading-policy-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            LOG.info("Watching trading policies, configFile={}", configFile);
+        }
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close trading policy watch service", e);
+        }
+    }
+
+    void reload() {
+        try {
+            ConfigFactory.invalidateCaches();
+            Config config = ConfigFactory.load();
+            TradingPolicyTable.setCurrent(TradingPolicyTable.fromConfig(config));
+        } catch (Exception e) {
+            LOG.error("Failed to reload trading policies, keeping current policies, configFile={}", configFile, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (ClosedWatchServiceException e) {
+                LOG.info("Stopped watching trading policies, configFile={}", configFile);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Object context = event.context();
+                if (context instanceof Path && configFile.getFileName().equals(context)) {
+                    changed = true;
+                }
+            }
+            key.reset();
+            if (changed) {
+                reload();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,7 +18,7 @@ public class OrderDetail {
     @JsonProperty("Instrument")
     List<Instrument> instrumentList;
     @JsonSerialize(using = ToStringSerializer.class)
-    Float limitPrice;
+    BigDecimal limitPrice;
     String marketSession;
     String orderTerm;
     String orderType;
@@ -44,10 +45,10 @@ public class OrderDetail {
         this.instrumentList = instrumentList;
     }
 
-    public Float getLimitPrice() {
+    public BigDecimal getLimitPrice() {
         return limitPrice;
     }
-    public void setLimitPrice(Float limitPrice) {
+    public void setLimitPrice(BigDecimal limitPrice) {
         this.limitPrice = limitPrice;
     }
 
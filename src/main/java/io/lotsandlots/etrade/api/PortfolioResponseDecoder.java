@@ -0,0 +1,217 @@
+package io.lotsandlots.etrade.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a PortfolioResponse token by token. Positions are decoded one at a time into a reused PositionFields object
+ * and handed to a PortfolioHandler, skipping the quote details E*Trade nests in every position.
+ */
+public class PortfolioResponseDecoder {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PortfolioResponseDecoder() {}
+
+    /**
+     * @return The nextPageNo of the response, or null if this is the last page.
+     * @throws IOException If the body is empty or is not a PortfolioResponse.
+     */
+    public static String decode(InputStream inputStream, PortfolioHandler handler) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Empty portfolio response");
+            }
+            String nextPageNo = null;
+            PositionFields position = new PositionFields();
+            // The response is wrapped in a single PortfolioResponse field.
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    if ("AccountPortfolio".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            String accountNextPageNo = readAccountPortfolio(parser, position, handler);
+                            if (accountNextPageNo != null) {
+                                nextPageNo = accountNextPageNo;
+                            }
+                        }
+                    } else if ("Totals".equals(fieldName) && token == JsonToken.START_OBJECT) {
+                        handler.handleTotals(readTotals(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            return nextPageNo;
+        }
+    }
+
+    private static String readAccountPortfolio(JsonParser parser,
+                                               PositionFields position,
+                                               PortfolioHandler handler) throws IOException {
+        String nextPageNo = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("Position".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    position.reset();
+                    readPosition(parser, position);
+                    handler.handlePosition(position);
+                }
+            } else if ("nextPageNo".equals(fieldName) && token != JsonToken.VALUE_NULL) {
+                nextPageNo = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return nextPageNo;
+    }
+
+    private static void readPosition(JsonParser parser, PositionFields position) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            switch (fieldName) {
+                case "lotsDetails":
+                    position.lotsDetails = parser.getValueAsString();
+                    break;
+                case "marketValue":
+                    position.marketValue = PositionLotsResponseDecoder.readFloat(parser);
+                    break;
+                case "pctOfPortfolio":
+                    position.pctOfPortfolio = PositionLotsResponseDecoder.readFloat(parser);
+                    break;
+                case "positionId":
+                    position.positionId = PositionLotsResponseDecoder.readLong(parser);
+                    break;
+                case "pricePaid":
+                    position.pricePaid = PositionLotsResponseDecoder.readFloat(parser);
+                    break;
+                case "quantity":
+                    position.quantity = PositionLotsResponseDecoder.readFloat(parser);
+                    break;
+                case "symbolDescription":
+                    position.symbolDescription = parser.getValueAsString();
+                    break;
+                case "totalCost":
+                    position.totalCost = PositionLotsResponseDecoder.readFloat(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private static PortfolioResponse.Totals readTotals(JsonParser parser) throws IOException {
+        PortfolioResponse.Totals totals = new PortfolioResponse.Totals();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (fieldName) {
+                case "cashBalance":
+                    totals.setCashBalance(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                case "todaysGainLoss":
+                    totals.setTodaysGainLoss(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                case "todaysGainLossPct":
+                    totals.setTodaysGainLossPct(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                case "totalGainLoss":
+                    totals.setTotalGainLoss(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                case "totalGainLossPct":
+                    totals.setTotalGainLossPct(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                case "totalMarketValue":
+                    totals.setTotalMarketValue(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                case "totalPricePaid":
+                    totals.setTotalPricePaid(PositionLotsResponseDecoder.readFloat(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Fields of the position being decoded. The same object is reused for every position of a response, so handlers
+     * must copy what they keep.
+     */
+    public static class PositionFields {
+
+        private String lotsDetails;
+        private float marketValue;
+        private float pctOfPortfolio;
+        private long positionId;
+        private float pricePaid;
+        private float quantity;
+        private String symbolDescription;
+        private float totalCost;
+
+        void reset() {
+            lotsDetails = null;
+            marketValue = 0F;
+            pctOfPortfolio = 0F;
+            positionId = 0L;
+            pricePaid = 0F;
+            quantity = 0F;
+            symbolDescription = null;
+            totalCost = 0F;
+        }
+
+        public String getLotsDetails() {
+            return lotsDetails;
+        }
+
+        public float getMarketValue() {
+            return marketValue;
+        }
+
+        public float getPctOfPortfolio() {
+            return pctOfPortfolio;
+        }
+
+        public long getPositionId() {
+            return positionId;
+        }
+
+        public float getPricePaid() {
+            return pricePaid;
+        }
+
+        public float getQuantity() {
+            return quantity;
+        }
+
+        public String getSymbolDescription() {
+            return symbolDescription;
+        }
+
+        public float getTotalCost() {
+            return totalCost;
+        }
+    }
+
+    public interface PortfolioHandler {
+
+        void handlePosition(PositionFields position);
+
+        void handleTotals(PortfolioResponse.Totals totals);
+    }
+}
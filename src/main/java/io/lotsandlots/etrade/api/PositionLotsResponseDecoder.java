@@ -0,0 +1,275 @@
+package io.lotsandlots.etrade.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.lotsandlots.util.FixedPoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a PositionLotsResponse token by token. Each lot is decoded into one reused LotFields object and handed to a
+ * LotHandler before the next lot is read, so no PositionLot objects or lists are built for the response. Prices and
+ * quantities are parsed straight from the JSON text to micros. The PositionLotsResponse POJO is still what the proxy
+ * servlets return as is.
+ */
+public class PositionLotsResponseDecoder {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PositionLotsResponseDecoder() {}
+
+    /**
+     * @return Number of lots handed to the handler.
+     * @throws IOException If the body is empty or is not a PositionLotsResponse.
+     */
+    public static int decode(InputStream inputStream, LotHandler handler) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Empty response");
+            }
+            int lotCount = 0;
+            LotFields lot = new LotFields();
+            // The response is wrapped in a single PositionLotsResponse field.
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    if ("PositionLot".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            lot.reset();
+                            readLot(parser, lot);
+                            handler.handleLot(lot);
+                            lotCount++;
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            return lotCount;
+        }
+    }
+
+    private static void readLot(JsonParser parser, LotFields lot) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            switch (fieldName) {
+                case "acquiredDate":
+                    lot.acquiredDate = readLong(parser);
+                    break;
+                case "availableQty":
+                    lot.availableQtyMicros = readMicros(parser);
+                    break;
+                case "daysGain":
+                    lot.daysGainMicros = readMicros(parser);
+                    break;
+                case "daysGainPct":
+                    lot.daysGainPctMicros = readMicros(parser);
+                    break;
+                case "legNo":
+                    lot.legNo = (int) readLong(parser);
+                    break;
+                case "marketValue":
+                    lot.marketValueMicros = readMicros(parser);
+                    break;
+                case "orderNo":
+                    lot.orderNo = (int) readLong(parser);
+                    break;
+                case "originalQty":
+                    lot.originalQtyMicros = readMicros(parser);
+                    break;
+                case "positionId":
+                    lot.positionId = readLong(parser);
+                    break;
+                case "positionLotId":
+                    lot.positionLotId = readLong(parser);
+                    break;
+                case "price":
+                    lot.priceMicros = readMicros(parser);
+                    break;
+                case "remainingQty":
+                    lot.remainingQtyMicros = readMicros(parser);
+                    break;
+                case "termCode":
+                    lot.termCode = (int) readLong(parser);
+                    break;
+                case "totalCost":
+                    lot.totalCostMicros = readMicros(parser);
+                    break;
+                case "totalCostForGainPct":
+                    lot.totalCostForGainPctMicros = readMicros(parser);
+                    break;
+                case "totalGain":
+                    lot.totalGainMicros = readMicros(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Numbers are read the way the POJO path coerces them: quoted numbers are parsed and null becomes 0.
+     */
+    static float readFloat(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_NUMBER_INT:
+                return parser.getFloatValue();
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                return text.isEmpty() ? 0F : Float.parseFloat(text);
+            default:
+                parser.skipChildren();
+                return 0F;
+        }
+    }
+
+    static long readMicros(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_NUMBER_INT:
+                return FixedPoint.parseMicros(
+                        parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                return text.isEmpty() ? 0L : FixedPoint.parseMicros(text);
+            default:
+                parser.skipChildren();
+                return 0L;
+        }
+    }
+
+    static long readLong(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_NUMBER_INT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                return text.isEmpty() ? 0L : Long.parseLong(text);
+            default:
+                parser.skipChildren();
+                return 0L;
+        }
+    }
+
+    /**
+     * Numeric fields of the lot being decoded, with prices and quantities in micros. The same object is reused for
+     * every lot of a response, so handlers must copy what they keep.
+     */
+    public static class LotFields {
+
+        private long acquiredDate;
+        private long availableQtyMicros;
+        private long daysGainMicros;
+        private long daysGainPctMicros;
+        private int legNo;
+        private long marketValueMicros;
+        private int orderNo;
+        private long originalQtyMicros;
+        private long positionId;
+        private long positionLotId;
+        private long priceMicros;
+        private long remainingQtyMicros;
+        private int termCode;
+        private long totalCostMicros;
+        private long totalCostForGainPctMicros;
+        private long totalGainMicros;
+
+        void reset() {
+            acquiredDate = 0L;
+            availableQtyMicros = 0L;
+            daysGainMicros = 0L;
+            daysGainPctMicros = 0L;
+            legNo = 0;
+            marketValueMicros = 0L;
+            orderNo = 0;
+            originalQtyMicros = 0L;
+            positionId = 0L;
+            positionLotId = 0L;
+            priceMicros = 0L;
+            remainingQtyMicros = 0L;
+            termCode = 0;
+            totalCostMicros = 0L;
+            totalCostForGainPctMicros = 0L;
+            totalGainMicros = 0L;
+        }
+
+        public long getAcquiredDate() {
+            return acquiredDate;
+        }
+
+        public long getAvailableQtyMicros() {
+            return availableQtyMicros;
+        }
+
+        public long getDaysGainMicros() {
+            return daysGainMicros;
+        }
+
+        public long getDaysGainPctMicros() {
+            return daysGainPctMicros;
+        }
+
+        public int getLegNo() {
+            return legNo;
+        }
+
+        public long getMarketValueMicros() {
+            return marketValueMicros;
+        }
+
+        public int getOrderNo() {
+            return orderNo;
+        }
+
+        public long getOriginalQtyMicros() {
+            return originalQtyMicros;
+        }
+
+        public long getPositionId() {
+            return positionId;
+        }
+
+        public long getPositionLotId() {
+            return positionLotId;
+        }
+
+        public long getPriceMicros() {
+            return priceMicros;
+        }
+
+        public long getRemainingQtyMicros() {
+            return remainingQtyMicros;
+        }
+
+        public int getTermCode() {
+            return termCode;
+        }
+
+        public long getTotalCostMicros() {
+            return totalCostMicros;
+        }
+
+        public long getTotalCostForGainPctMicros() {
+            return totalCostForGainPctMicros;
+        }
+
+        public long getTotalGainMicros() {
+            return totalGainMicros;
+        }
+    }
+
+    public interface LotHandler {
+
+        void handleLot(LotFields lot);
+    }
+}
@@ -27,6 +27,9 @@ public class QuoteResponse {
         @JsonProperty("dateTimeUTC")
         private Long dateTime;
 
+        @JsonProperty("Product")
+        private Product product;
+
         private String quoteStatus;
 
         public AllQuoteDetails getAllQuoteDetails() {
@@ -43,6 +46,13 @@ public class QuoteResponse {
             this.dateTime = dateTime;
         }
 
+        public Product getProduct() {
+            return product;
+        }
+        public void setProduct(Product product) {
+            this.product = product;
+        }
+
         public String getQuoteStatus() {
             return quoteStatus;
         }
@@ -53,8 +63,40 @@ public class QuoteResponse {
 
     public static class AllQuoteDetails {
 
+        private Float ask;
+        private Long askSize;
+        private Float bid;
+        private Long bidSize;
         private Float lastTrade;
 
+        public Float getAsk() {
+            return ask;
+        }
+        public void setAsk(Float ask) {
+            this.ask = ask;
+        }
+
+        public Long getAskSize() {
+            return askSize;
+        }
+        public void setAskSize(Long askSize) {
+            this.askSize = askSize;
+        }
+
+        public Float getBid() {
+            return bid;
+        }
+        public void setBid(Float bid) {
+            this.bid = bid;
+        }
+
+        public Long getBidSize() {
+            return bidSize;
+        }
+        public void setBidSize(Long bidSize) {
+            this.bidSize = bidSize;
+        }
+
         public Float getLastTrade() {
             return lastTrade;
         }
@@ -62,4 +104,24 @@ public class QuoteResponse {
             this.lastTrade = lastTrade;
         }
     }
+
+    public static class Product {
+
+        private String securityType;
+        private String symbol;
+
+        public String getSecurityType() {
+            return securityType;
+        }
+        public void setSecurityType(String securityType) {
+            this.securityType = securityType;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+        public void setSymbol(String symbol) {
+            this.symbol = symbol;
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package io.lotsandlots.etrade.model;
+
+import io.lotsandlots.util.FixedPoint;
+
+/**
+ * A held lot as the controllers see it. Prices, quantities and percentages are FixedPoint micros and the symbol is
+ * interned, so a lot is a dozen primitives instead of a PositionLot full of boxed numbers.
+ */
+public class Lot {
+
+    long acquiredTimeMillis;
+    long followPriceMicros;
+    long lastPriceMicros;
+    long lotId;
+    long marketValueMicros;
+    long positionCostMicros; // Total cost of the position the lot belongs to
+    long positionPctOfPortfolioMicros;
+    long priceMicros; // Acquired price
+    long remainingQtyMicros;
+    String symbol;
+    int symbolId; // SymbolDictionary id
+    long targetPriceMicros;
+    long totalCostForGainPctMicros;
+
+    public long getAcquiredTimeMillis() {
+        return acquiredTimeMillis;
+    }
+    public void setAcquiredTimeMillis(long acquiredTimeMillis) {
+        this.acquiredTimeMillis = acquiredTimeMillis;
+    }
+
+    public long getFollowPriceMicros() {
+        return followPriceMicros;
+    }
+    public void setFollowPriceMicros(long followPriceMicros) {
+        this.followPriceMicros = followPriceMicros;
+    }
+
+    public long getLastPriceMicros() {
+        return lastPriceMicros;
+    }
+    public void setLastPriceMicros(long lastPriceMicros) {
+        this.lastPriceMicros = lastPriceMicros;
+    }
+
+    public long getLotId() {
+        return lotId;
+    }
+    public void setLotId(long lotId) {
+        this.lotId = lotId;
+    }
+
+    public long getMarketValueMicros() {
+        return marketValueMicros;
+    }
+    public void setMarketValueMicros(long marketValueMicros) {
+        this.marketValueMicros = marketValueMicros;
+    }
+
+    public long getPositionCostMicros() {
+        return positionCostMicros;
+    }
+    public void setPositionCostMicros(long positionCostMicros) {
+        this.positionCostMicros = positionCostMicros;
+    }
+
+    public long getPositionPctOfPortfolioMicros() {
+        return positionPctOfPortfolioMicros;
+    }
+    public void setPositionPctOfPortfolioMicros(long positionPctOfPortfolioMicros) {
+        this.positionPctOfPortfolioMicros = positionPctOfPortfolioMicros;
+    }
+
+    public long getPriceMicros() {
+        return priceMicros;
+    }
+    public void setPriceMicros(long priceMicros) {
+        this.priceMicros = priceMicros;
+    }
+
+    public long getRemainingQtyMicros() {
+        return remainingQtyMicros;
+    }
+    public long getRemainingShares() {
+        return FixedPoint.toUnits(remainingQtyMicros);
+    }
+    public void setRemainingQtyMicros(long remainingQtyMicros) {
+        this.remainingQtyMicros = remainingQtyMicros;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+    public void setSymbol(String symbol) {
+        this.symbol = symbol == null ? null : symbol.intern();
+    }
+
+    public int getSymbolId() {
+        return symbolId;
+    }
+    public void setSymbolId(int symbolId) {
+        this.symbolId = symbolId;
+    }
+
+    public long getTargetPriceMicros() {
+        return targetPriceMicros;
+    }
+    public void setTargetPriceMicros(long targetPriceMicros) {
+        this.targetPriceMicros = targetPriceMicros;
+    }
+
+    public long getTotalCostForGainPctMicros() {
+        return totalCostForGainPctMicros;
+    }
+    public void setTotalCostForGainPctMicros(long totalCostForGainPctMicros) {
+        this.totalCostForGainPctMicros = totalCostForGainPctMicros;
+    }
+}
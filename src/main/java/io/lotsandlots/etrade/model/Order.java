@@ -1,61 +1,88 @@
 package io.lotsandlots.etrade.model;
 
+/**
+ * An open order as the controllers see it. The limit price is FixedPoint micros, and the symbol, action and status
+ * are interned so orders share one String per distinct value.
+ */
 public class Order {
 
-    Float limitPrice;
+    long limitPriceMicros;
+    long lotId; // Only known when the order was placed against a single lot, 0 otherwise
     String orderAction;
-    Long orderId;
-    Long orderedQuantity;
-    Long placedTime;
+    long orderId;
+    long orderedQuantity;
+    long placedTimeMillis;
     String status;
     String symbol;
+    int symbolId; // SymbolDictionary id
 
-    public Float getLimitPrice() {
-        return limitPrice;
+    public long getLimitPriceMicros() {
+        return limitPriceMicros;
     }
-    public void setLimitPrice(Float limitPrice) {
-        this.limitPrice = limitPrice;
+    public void setLimitPriceMicros(long limitPriceMicros) {
+        this.limitPriceMicros = limitPriceMicros;
+    }
+
+    public long getLotId() {
+        return lotId;
+    }
+    public boolean hasLotId() {
+        return lotId != 0L;
+    }
+    public void setLotId(long lotId) {
+        this.lotId = lotId;
     }
 
     public String getOrderAction() {
         return orderAction;
     }
     public void setOrderAction(String orderAction) {
-        this.orderAction = orderAction;
+        this.orderAction = intern(orderAction);
     }
 
-    public Long getOrderId() {
+    public long getOrderId() {
         return orderId;
     }
-    public void setOrderId(Long orderId) {
+    public void setOrderId(long orderId) {
         this.orderId = orderId;
     }
 
-    public Long getOrderedQuantity() {
+    public long getOrderedQuantity() {
         return orderedQuantity;
     }
-    public void setOrderedQuantity(Long orderedQuantity) {
+    public void setOrderedQuantity(long orderedQuantity) {
         this.orderedQuantity = orderedQuantity;
     }
 
-    public Long getPlacedTime() {
-        return placedTime;
+    public long getPlacedTimeMillis() {
+        return placedTimeMillis;
     }
-    public void setPlacedTime(Long placedTime) {
-        this.placedTime = placedTime;
+    public void setPlacedTimeMillis(long placedTimeMillis) {
+        this.placedTimeMillis = placedTimeMillis;
     }
 
     public String getStatus() {
         return status;
     }
     public void setStatus(String status) {
-        this.status = status;
+        this.status = intern(status);
     }
 
     public String getSymbol() {
         return symbol;
     }
     public void setSymbol(String symbol) {
-        this.symbol = symbol;
+        this.symbol = intern(symbol);
+    }
+
+    public int getSymbolId() {
+        return symbolId;
+    }
+    public void setSymbolId(int symbolId) {
+        this.symbolId = symbolId;
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
     }
 }
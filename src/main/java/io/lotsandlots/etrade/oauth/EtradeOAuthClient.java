@@ -9,8 +9,6 @@ public interface EtradeOAuthClient {
 
     default void setOAuthHeader(SecurityContext securityContext, Message message)
             throws UnsupportedEncodingException, GeneralSecurityException {
-        OAuth1Helper oAuth1Helper = new OAuth1Helper(securityContext, message);
-        oAuth1Helper.computeOAuthSignature();
-        oAuth1Helper.setAuthorizationHeader();
+        OAuth1Signer.getInstance().sign(securityContext, message);
     }
 }
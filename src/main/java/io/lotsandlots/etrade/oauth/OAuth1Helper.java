@@ -63,8 +63,15 @@ public class OAuth1Helper {
     }
 
     public void computeOAuthSignature() throws UnsupportedEncodingException, GeneralSecurityException {
-        oauthNonce = new String(Base64.encodeBase64(String.valueOf(RANDOM.nextLong()).getBytes()));
-        timestamp = Long.toString(System.currentTimeMillis() / 1000);
+        computeOAuthSignature(
+                new String(Base64.encodeBase64(String.valueOf(RANDOM.nextLong()).getBytes())),
+                Long.toString(System.currentTimeMillis() / 1000));
+    }
+
+    void computeOAuthSignature(String oauthNonce, String timestamp)
+            throws UnsupportedEncodingException, GeneralSecurityException {
+        this.oauthNonce = oauthNonce;
+        this.timestamp = timestamp;
 
         Map<String, String[]> params = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         params.put("oauth_consumer_key", new String[] {securityContext.getOAuthConfig().getConsumerKey()});
@@ -0,0 +1,360 @@
+package io.lotsandlots.etrade.oauth;
+
+import io.lotsandlots.etrade.rest.Message;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Signs Messages with OAuth 1.0a HMAC-SHA1, producing the same headers as OAuth1Helper with far less garbage per
+ * request. Each thread keeps its own scratch buffers and a Mac that stays initialized until the consumer secret or
+ * token secret changes, and the encoded consumer key and token are computed once per token rather than per request.
+ */
+public final class OAuth1Signer {
+
+    private static final String CALLBACK = "oob";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+    private static final OAuth1Signer INSTANCE = new OAuth1Signer();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final String SIGNATURE_METHOD = "HMAC-SHA1";
+    private static final boolean[] URL_SAFE = new boolean[128];
+    // Characters in the unreserved character set MUST NOT be encoded
+    static {
+        for (int i = 'a'; i <= 'z'; i++) {
+            URL_SAFE[i] = true;
+        }
+        for (int i = 'A'; i <= 'Z'; i++) {
+            URL_SAFE[i] = true;
+        }
+        for (int i = '0'; i <= '9'; i++) {
+            URL_SAFE[i] = true;
+        }
+        URL_SAFE['-'] = true;
+        URL_SAFE['_'] = true;
+        URL_SAFE['.'] = true;
+        URL_SAFE['~'] = true;
+    }
+
+    private final ThreadLocal<SignerState> signerState = ThreadLocal.withInitial(SignerState::new);
+
+    private OAuth1Signer() {}
+
+    public static OAuth1Signer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the Authorization header of the Message, or the consumerKey query string for requests that don't need
+     * OAuth before the SecurityContext is initialized.
+     */
+    public void sign(SecurityContext securityContext, Message message) throws GeneralSecurityException {
+        sign(securityContext,
+             message,
+             Long.toHexString(RANDOM.nextLong()),
+             Long.toString(System.currentTimeMillis() / 1000));
+    }
+
+    void sign(SecurityContext securityContext, Message message, String oauthNonce, String timestamp)
+            throws GeneralSecurityException {
+        OAuthConfig oauthConfig = securityContext.getOAuthConfig();
+        if (!securityContext.isInitialized() && !message.isRequiresOauth()) {
+            // In case of quotes api call, delayed quotes will be returned
+            message.setQueryString("consumerKey=" + oauthConfig.getConsumerKey());
+            return;
+        }
+        SignerState state = signerState.get();
+        OAuthToken token = securityContext.getToken();
+        state.refresh(oauthConfig, token);
+        String verifierCode = token != null && StringUtils.isNotBlank(message.getVerifierCode())
+                ? message.getVerifierCode()
+                : null;
+
+        // Collect every signed parameter, then sort them by name.
+        state.paramCount = 0;
+        state.addParam("oauth_consumer_key", oauthConfig.getConsumerKey());
+        state.addParam("oauth_nonce", oauthNonce);
+        state.addParam("oauth_signature_method", SIGNATURE_METHOD);
+        state.addParam("oauth_timestamp", timestamp);
+        if (token != null) {
+            state.addParam("oauth_token", token.getOauthToken());
+            if (verifierCode != null) {
+                // OAuth1Helper signs the verifier in its encoded form.
+                state.addParam("oauth_verifier", encode(verifierCode));
+            }
+        } else {
+            state.addParam("oauth_callback", CALLBACK);
+            state.addParam("oauth_version", "1.0");
+        }
+        String queryString = message.getQueryString();
+        if (StringUtils.isNotBlank(queryString)) {
+            int start = 0;
+            while (start < queryString.length()) {
+                int end = queryString.indexOf('&', start);
+                if (end < 0) {
+                    end = queryString.length();
+                }
+                int separator = queryString.indexOf('=', start);
+                if (separator > start && separator < end) {
+                    state.putParam(queryString.substring(start, separator), queryString.substring(separator + 1, end));
+                }
+                start = end + 1;
+            }
+        }
+        state.sortParams();
+
+        // METHOD&encode(url)&encode(key=value&key=value), where keys and values are encoded once inside the
+        // normalized parameters and once more with them. Keys are stored encoded, values are not.
+        StringBuilder buffer = state.buffer;
+        buffer.setLength(0);
+        appendUpperCase(buffer, message.getHttpMethod());
+        buffer.append('&');
+        appendEncoded(buffer, message.getUrl(), false);
+        buffer.append('&');
+        for (int i = 0; i < state.paramCount; i++) {
+            if (i > 0) {
+                buffer.append("%26");
+            }
+            appendEncoded(buffer, state.paramKeys[i], false);
+            buffer.append("%3D");
+            appendEncoded(buffer, state.paramValues[i], true);
+        }
+        String signature = state.computeSignature();
+
+        buffer.setLength(0);
+        buffer.append(state.headerPrefix);
+        buffer.append("oauth_timestamp=\"").append(timestamp).append("\",");
+        buffer.append("oauth_nonce=\"");
+        appendEncoded(buffer, oauthNonce, false);
+        buffer.append("\",oauth_signature_method=\"").append(SIGNATURE_METHOD).append("\",");
+        buffer.append("oauth_signature=\"");
+        appendEncoded(buffer, signature, false);
+        buffer.append('"');
+        if (token != null) {
+            buffer.append(",oauth_token=\"").append(state.encodedToken).append('"');
+            if (verifierCode != null) {
+                buffer.append(",oauth_verifier=\"");
+                appendEncoded(buffer, verifierCode, false);
+                buffer.append('"');
+            }
+        } else {
+            buffer.append(",oauth_callback=\"" + CALLBACK + "\",oauth_version=\"1.0\"");
+        }
+        // Query parameters are repeated in the header, in query string order, as OAuth1Helper does.
+        for (int i = 0; i < state.queryParamCount; i++) {
+            buffer.append(',');
+            appendEncoded(buffer, state.queryKeys[i], false);
+            buffer.append("=\"");
+            appendEncoded(buffer, state.queryValues[i], false);
+            buffer.append('"');
+        }
+        message.setOAuthHeader(buffer.toString());
+        // Drop references to request values so they can be collected.
+        Arrays.fill(state.paramKeys, 0, state.paramCount, null);
+        Arrays.fill(state.paramValues, 0, state.paramCount, null);
+        Arrays.fill(state.queryKeys, 0, state.queryParamCount, null);
+        Arrays.fill(state.queryValues, 0, state.queryParamCount, null);
+    }
+
+    /**
+     * Percent-encode UTF-8 bytes of everything outside the unreserved set, like OAuth1Helper.encode.
+     *
+     * @param twice Encode the result a second time, as required for values inside the signature base string.
+     */
+    static void appendEncoded(StringBuilder buffer, String value, boolean twice) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 128) {
+                if (URL_SAFE[c]) {
+                    buffer.append(c);
+                } else {
+                    appendPercent(buffer, c, twice);
+                }
+            } else if (c < 0x800) {
+                appendPercent(buffer, 0xC0 | (c >> 6), twice);
+                appendPercent(buffer, 0x80 | (c & 0x3F), twice);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendPercent(buffer, 0xF0 | (codePoint >> 18), twice);
+                appendPercent(buffer, 0x80 | ((codePoint >> 12) & 0x3F), twice);
+                appendPercent(buffer, 0x80 | ((codePoint >> 6) & 0x3F), twice);
+                appendPercent(buffer, 0x80 | (codePoint & 0x3F), twice);
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are written as '?', like String.getBytes.
+                appendPercent(buffer, '?', twice);
+            } else {
+                appendPercent(buffer, 0xE0 | (c >> 12), twice);
+                appendPercent(buffer, 0x80 | ((c >> 6) & 0x3F), twice);
+                appendPercent(buffer, 0x80 | (c & 0x3F), twice);
+            }
+        }
+    }
+
+    static String encode(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (isUrlSafe(value)) {
+            return value;
+        }
+        StringBuilder buffer = new StringBuilder(value.length() * 3);
+        appendEncoded(buffer, value, false);
+        return buffer.toString();
+    }
+
+    private static void appendPercent(StringBuilder buffer, int b, boolean twice) {
+        buffer.append(twice ? "%25" : "%").append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    private static void appendUpperCase(StringBuilder buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.append(Character.toUpperCase(value.charAt(i)));
+        }
+    }
+
+    private static boolean isUrlSafe(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 128 || !URL_SAFE[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class SignerState {
+
+        private final StringBuilder buffer = new StringBuilder(512);
+        private byte[] bytes = new byte[512];
+        private String consumerKey;
+        private String encodedToken;
+        private String headerPrefix;
+        private Mac mac;
+        private String macSharedSecret;
+        private String macTokenSecret;
+        private int paramCount;
+        private String[] paramKeys = new String[16];
+        private String[] paramValues = new String[16];
+        private int queryParamCount;
+        private String[] queryKeys = new String[8];
+        private String[] queryValues = new String[8];
+        private String token;
+
+        void addParam(String key, String value) {
+            if (paramCount == paramKeys.length) {
+                paramKeys = Arrays.copyOf(paramKeys, paramCount * 2);
+                paramValues = Arrays.copyOf(paramValues, paramCount * 2);
+            }
+            paramKeys[paramCount] = encode(key);
+            paramValues[paramCount] = value;
+            paramCount++;
+        }
+
+        /**
+         * Add a query parameter. A repeated name replaces the earlier value in the signature, but only the first
+         * value is sent in the header.
+         */
+        void putParam(String key, String value) {
+            String encodedKey = encode(key);
+            boolean replaced = false;
+            for (int i = 0; i < paramCount; i++) {
+                if (paramKeys[i].equals(encodedKey)) {
+                    paramValues[i] = value;
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!replaced) {
+                addParam(key, value);
+            }
+            for (int i = 0; i < queryParamCount; i++) {
+                if (queryKeys[i].equals(key)) {
+                    return;
+                }
+            }
+            if (queryParamCount == queryKeys.length) {
+                queryKeys = Arrays.copyOf(queryKeys, queryParamCount * 2);
+                queryValues = Arrays.copyOf(queryValues, queryParamCount * 2);
+            }
+            queryKeys[queryParamCount] = key;
+            queryValues[queryParamCount] = value;
+            queryParamCount++;
+        }
+
+        /**
+         * Insertion sort, there are only ever a handful of parameters.
+         */
+        void sortParams() {
+            for (int i = 1; i < paramCount; i++) {
+                String key = paramKeys[i];
+                String value = paramValues[i];
+                int j = i - 1;
+                while (j >= 0 && paramKeys[j].compareTo(key) > 0) {
+                    paramKeys[j + 1] = paramKeys[j];
+                    paramValues[j + 1] = paramValues[j];
+                    j--;
+                }
+                paramKeys[j + 1] = key;
+                paramValues[j + 1] = value;
+            }
+        }
+
+        /**
+         * Rebuild cached key material if the consumer or token changed since this thread last signed.
+         */
+        void refresh(OAuthConfig oauthConfig, OAuthToken oauthToken) throws GeneralSecurityException {
+            queryParamCount = 0;
+            if (!Objects.equals(consumerKey, oauthConfig.getConsumerKey())) {
+                consumerKey = oauthConfig.getConsumerKey();
+                StringBuilder prefix = new StringBuilder("OAuth oauth_consumer_key=\"");
+                appendEncoded(prefix, consumerKey, false);
+                headerPrefix = prefix.append("\",").toString();
+            }
+            String tokenValue = oauthToken == null ? null : oauthToken.getOauthToken();
+            if (!Objects.equals(token, tokenValue)) {
+                token = tokenValue;
+                encodedToken = encode(tokenValue);
+            }
+            String sharedSecret = oauthConfig.getSharedSecret();
+            String tokenSecret = oauthToken == null ? null : oauthToken.getOauthTokenSecret();
+            if (mac == null
+                    || !Objects.equals(macSharedSecret, sharedSecret)
+                    || !Objects.equals(macTokenSecret, tokenSecret)) {
+                String key = StringUtils.isEmpty(tokenSecret)
+                        ? sharedSecret + "&"
+                        : sharedSecret + "&" + encode(tokenSecret);
+                Mac newMac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+                newMac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), HMAC_SHA1_ALGORITHM));
+                mac = newMac;
+                macSharedSecret = sharedSecret;
+                macTokenSecret = tokenSecret;
+            }
+        }
+
+        /**
+         * Sign the base string in the buffer. It only contains ASCII once encoded, so chars map straight to bytes.
+         */
+        String computeSignature() {
+            int length = buffer.length();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) buffer.charAt(i);
+            }
+            mac.update(bytes, 0, length);
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package io.lotsandlots.etrade.rest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket shared by every request to E*Trade. Permits refill at permitsPerSecond up to maxPermits, waiting
+ * requests are granted permits in RequestPriority order (first come first served within a class), and
+ * reservedPermits are held back for order traffic so bulk data refreshes can't drain the bucket. Async callers
+ * that can't be served right away are parked in the same queue as blocked callers. Whenever the head of the queue is
+ * a parked caller, it is granted its permit by whichever thread frees or refills one, so no thread ever blocks on
+ * its behalf.
+ */
+public class EtradeRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtradeRateLimiter.class);
+
+    private final Condition changed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final double maxPermits;
+    private final double permitsPerSecond;
+    private final double reservedPermits;
+    private final AtomicLongArray totalWaitMillisByPriority = new AtomicLongArray(RequestPriority.values().length);
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+    private ScheduledThreadPoolExecutor dispatchExecutor = null;
+    private long lastRefillNanos;
+    private double permits;
+    private ScheduledFuture<?> scheduledDispatch = null;
+    private long scheduledDispatchNanos;
+    private long waiterSequence = 0L;
+
+    public EtradeRateLimiter(double permitsPerSecond, double maxPermits, double reservedPermits) {
+        if (permitsPerSecond <= 0D) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.changed = lock.newCondition();
+        this.maxPermits = Math.max(1D, maxPermits);
+        this.permitsPerSecond = permitsPerSecond;
+        this.reservedPermits = Math.max(0D, Math.min(reservedPermits, this.maxPermits - 1D));
+        this.permits = this.maxPermits;
+        this.lastRefillNanos = System.nanoTime();
+        LOG.info("Initialized EtradeRateLimiter, maxPermits={} permitsPerSecond={} reservedPermits={}",
+                this.maxPermits, permitsPerSecond, this.reservedPermits);
+    }
+
+    /**
+     * Block until a permit is granted to the given priority class.
+     */
+    public void acquire(RequestPriority priority) throws InterruptedException {
+        long timeStartedNanos = System.nanoTime();
+        double floor = floorOf(priority);
+        List<AsyncWaiter> granted = Collections.emptyList();
+        lock.lock();
+        try {
+            Waiter waiter = new Waiter(priority, waiterSequence++);
+            waiters.add(waiter);
+            // A new head of the queue has to be able to overtake lower priority waiters that are already parked.
+            changed.signalAll();
+            try {
+                while (true) {
+                    refill(System.nanoTime());
+                    if (waiters.peek() != waiter) {
+                        changed.await();
+                    } else if (permits >= floor + 1D) {
+                        permits -= 1D;
+                        break;
+                    } else {
+                        double missingPermits = floor + 1D - permits;
+                        changed.awaitNanos((long) Math.ceil(missingPermits / permitsPerSecond * 1e9D));
+                    }
+                }
+            } finally {
+                waiters.remove(waiter);
+                changed.signalAll();
+                granted = grantAsyncWaiters();
+            }
+        } finally {
+            lock.unlock();
+            // Parked waiters granted on the way out are completed even if this thread was interrupted.
+            completeAsyncWaiters(granted);
+        }
+        recordWait(priority, timeStartedNanos);
+    }
+
+    /**
+     * Take a permit without blocking the calling thread.
+     *
+     * @return A future that completes once a permit has been granted to the given priority class.
+     */
+    public CompletableFuture<Void> acquireAsync(RequestPriority priority) {
+        AsyncWaiter asyncWaiter;
+        List<AsyncWaiter> granted;
+        lock.lock();
+        try {
+            if (tryAcquireLocked(priority)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            asyncWaiter = new AsyncWaiter(priority, waiterSequence++);
+            waiters.add(asyncWaiter);
+            changed.signalAll();
+            granted = grantAsyncWaiters();
+        } finally {
+            lock.unlock();
+        }
+        completeAsyncWaiters(granted);
+        return asyncWaiter.future;
+    }
+
+    /**
+     * Take a permit if one is available to the given priority class and no request of the same or a higher class
+     * is waiting, whether blocked in acquire or parked by acquireAsync.
+     */
+    public boolean tryAcquire(RequestPriority priority) {
+        lock.lock();
+        try {
+            return tryAcquireLocked(priority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    double getAvailablePermits() {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            return permits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total time requests of the given class have spent waiting for a permit.
+     */
+    public long getTotalWaitMillis(RequestPriority priority) {
+        return totalWaitMillisByPriority.get(priority.ordinal());
+    }
+
+    /**
+     * @return Requests waiting for a permit, whether blocked in acquire or parked by acquireAsync.
+     */
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean tryAcquireLocked(RequestPriority priority) {
+        // The queue is in priority order, so its head is the highest class that is waiting.
+        Waiter head = waiters.peek();
+        if (head != null && head.priority.compareTo(priority) <= 0) {
+            return false;
+        }
+        refill(System.nanoTime());
+        if (permits >= floorOf(priority) + 1D) {
+            permits -= 1D;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Grant permits to parked async waiters for as long as one is at the head of the queue and its class can take a
+     * permit. If the head is parked but short of permits, a dispatch is scheduled for when it will have them. Must
+     * be called with the lock held; the returned waiters are completed after it is released.
+     */
+    private List<AsyncWaiter> grantAsyncWaiters() {
+        refill(System.nanoTime());
+        List<AsyncWaiter> granted = Collections.emptyList();
+        Waiter head;
+        while ((head = waiters.peek()) instanceof AsyncWaiter) {
+            double missingPermits = floorOf(head.priority) + 1D - permits;
+            if (missingPermits > 0D) {
+                scheduleDispatch((long) Math.ceil(missingPermits / permitsPerSecond * 1e9D));
+                break;
+            }
+            permits -= 1D;
+            waiters.poll();
+            if (granted.isEmpty()) {
+                granted = new ArrayList<>();
+            }
+            granted.add((AsyncWaiter) head);
+        }
+        if (!granted.isEmpty()) {
+            // A blocked waiter may now be at the head of the queue.
+            changed.signalAll();
+        }
+        return granted;
+    }
+
+    private void completeAsyncWaiters(List<AsyncWaiter> granted) {
+        for (AsyncWaiter asyncWaiter : granted) {
+            recordWait(asyncWaiter.priority, asyncWaiter.timeStartedNanos);
+            asyncWaiter.future.complete(null);
+        }
+    }
+
+    private void dispatchAsyncWaiters() {
+        List<AsyncWaiter> granted;
+        lock.lock();
+        try {
+            scheduledDispatch = null;
+            granted = grantAsyncWaiters();
+        } finally {
+            lock.unlock();
+        }
+        completeAsyncWaiters(granted);
+    }
+
+    private double floorOf(RequestPriority priority) {
+        return priority.isOrderTraffic() ? 0D : reservedPermits;
+    }
+
+    private void recordWait(RequestPriority priority, long timeStartedNanos) {
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timeStartedNanos);
+        if (waitMillis > 0L) {
+            totalWaitMillisByPriority.addAndGet(priority.ordinal(), waitMillis);
+            LOG.debug("Waited for E*Trade rate limit, priority={} waitMillis={}", priority, waitMillis);
+        }
+    }
+
+    private void refill(long nowNanos) {
+        double elapsedSeconds = (nowNanos - lastRefillNanos) / 1e9D;
+        if (elapsedSeconds > 0D) {
+            permits = Math.min(maxPermits, permits + elapsedSeconds * permitsPerSecond);
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Make sure a dispatch runs within delayNanos. A later one is replaced, since a new head of the queue may need
+     * fewer permits than the one it overtook. Must be called with the lock held.
+     */
+    private void scheduleDispatch(long delayNanos) {
+        long dispatchNanos = System.nanoTime() + delayNanos;
+        if (scheduledDispatch != null) {
+            if (scheduledDispatchNanos - dispatchNanos <= 0L) {
+                return;
+            }
+            scheduledDispatch.cancel(false);
+        }
+        if (dispatchExecutor == null) {
+            dispatchExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "etrade-rate-limiter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dispatchExecutor.setRemoveOnCancelPolicy(true);
+        }
+        scheduledDispatch = dispatchExecutor.schedule(this::dispatchAsyncWaiters, delayNanos, TimeUnit.NANOSECONDS);
+        scheduledDispatchNanos = dispatchNanos;
+    }
+
+    private static class AsyncWaiter extends Waiter {
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final long timeStartedNanos = System.nanoTime();
+
+        AsyncWaiter(RequestPriority priority, long sequence) {
+            super(priority, sequence);
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+
+        final RequestPriority priority;
+        final long sequence;
+
+        Waiter(RequestPriority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,29 +1,98 @@
 package io.lotsandlots.etrade.rest;
 
 import com.google.common.annotations.VisibleForTesting;
+import io.lotsandlots.util.LatencyHistogram;
+import io.lotsandlots.util.MetricsRegistry;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * RestTemplate for E*Trade Messages. The doGet/doPost/doPut methods block the calling thread, while their Async
+ * counterparts hand the exchange to a non-blocking CloseableHttpAsyncClient and return right away. Async responses are
+ * read with this template's message converters and error handler, like blocking ones. Both take a permit from the
+ * EtradeRateLimiter first, when one is set. doGetStreaming hands the response body to a ResponseExtractor instead of
+ * binding it to a POJO, for responses that are decoded token by token.
+ *
+ * Every exchange is timed from when it leaves the rate limiter until the response is read, into the
+ * lotsandlots_etrade_request_seconds histogram labelled by endpoint and outcome. Time spent waiting for a permit goes
+ * to lotsandlots_etrade_rate_limit_wait_seconds instead.
+ */
 public class EtradeRestTemplate extends RestTemplate {
 
     private static final Logger LOG = LoggerFactory.getLogger(EtradeRestTemplate.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final Map<RequestPriority, LatencyHistogram> RATE_LIMIT_WAIT = newRateLimitWait();
+    private static final ConcurrentMap<String, RequestLatency> REQUEST_LATENCY = new ConcurrentHashMap<>();
+
+    private CloseableHttpAsyncClient asyncHttpClient = null;
+    private EtradeRateLimiter rateLimiter = null;
 
     public EtradeRestTemplate(ClientHttpRequestFactory factory) {
         super(factory);
     }
 
+    public CloseableHttpAsyncClient getAsyncHttpClient() {
+        return asyncHttpClient;
+    }
+    public void setAsyncHttpClient(CloseableHttpAsyncClient asyncHttpClient) {
+        this.asyncHttpClient = asyncHttpClient;
+    }
+
+    public EtradeRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+    public void setRateLimiter(EtradeRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
     public <T> ResponseEntity<T> doGet(Message message, Class<T> responseType) {
+        acquirePermit(message);
         HttpHeaders httpHeaders = httpHeadersFromMessage(message);
         String url = urlStringFromMessage(message);
         LOG.debug("Executing GET Message, url={} headers={}", url, httpHeaders);
-        return doGetExchange(url, new HttpEntity<>(httpHeaders), responseType);
+        long timeStartedNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            ResponseEntity<T> responseEntity = doGetExchange(url, new HttpEntity<>(httpHeaders), responseType);
+            succeeded = true;
+            return responseEntity;
+        } finally {
+            recordRequest(message, timeStartedNanos, succeeded);
+        }
     }
 
     @VisibleForTesting
@@ -31,11 +100,53 @@ public class EtradeRestTemplate extends RestTemplate {
         return super.exchange(url, HttpMethod.GET, httpEntity, responseType);
     }
 
+    public <T> T doGetStreaming(Message message, ResponseExtractor<T> responseExtractor) {
+        acquirePermit(message);
+        HttpHeaders httpHeaders = httpHeadersFromMessage(message);
+        String url = urlStringFromMessage(message);
+        LOG.debug("Executing streaming GET Message, url={} headers={}", url, httpHeaders);
+        long timeStartedNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = doGetStreamingExchange(url, httpHeaders, responseExtractor);
+            succeeded = true;
+            return result;
+        } finally {
+            recordRequest(message, timeStartedNanos, succeeded);
+        }
+    }
+
+    @VisibleForTesting
+    <T> T doGetStreamingExchange(String url, HttpHeaders httpHeaders, ResponseExtractor<T> responseExtractor) {
+        return super.execute(
+                url, HttpMethod.GET, request -> request.getHeaders().putAll(httpHeaders), responseExtractor);
+    }
+
+    public <T> CompletableFuture<ResponseEntity<T>> doGetAsync(Message message, Class<T> responseType) {
+        HttpHeaders httpHeaders = httpHeadersFromMessage(message);
+        String url = urlStringFromMessage(message);
+        LOG.debug("Executing async GET Message, url={} headers={}", url, httpHeaders);
+        return acquirePermitAsync(message).thenCompose(permit -> {
+            long timeStartedNanos = System.nanoTime();
+            return doExchangeAsync(url, HttpMethod.GET, new HttpEntity<>(httpHeaders), responseType)
+                    .whenComplete((responseEntity, e) -> recordRequest(message, timeStartedNanos, e == null));
+        });
+    }
+
     public <T> ResponseEntity<T> doPost(Message message, String payload, Class<T> template) {
+        acquirePermit(message);
         HttpHeaders httpHeaders = httpHeadersFromMessage(message);
         String url = urlStringFromMessage(message);
         LOG.debug("Executing POST Message, url={} headers={} payload={}", url, httpHeaders, payload);
-        return doPostExchange(url, new HttpEntity<>(payload, httpHeaders), template);
+        long timeStartedNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            ResponseEntity<T> responseEntity = doPostExchange(url, new HttpEntity<>(payload, httpHeaders), template);
+            succeeded = true;
+            return responseEntity;
+        } finally {
+            recordRequest(message, timeStartedNanos, succeeded);
+        }
     }
 
     @VisibleForTesting
@@ -43,11 +154,31 @@ public class EtradeRestTemplate extends RestTemplate {
         return super.exchange(url, HttpMethod.POST, httpEntity, template);
     }
 
+    public <T> CompletableFuture<ResponseEntity<T>> doPostAsync(Message message, String payload, Class<T> template) {
+        HttpHeaders httpHeaders = httpHeadersFromMessage(message);
+        String url = urlStringFromMessage(message);
+        LOG.debug("Executing async POST Message, url={} headers={} payload={}", url, httpHeaders, payload);
+        return acquirePermitAsync(message).thenCompose(permit -> {
+            long timeStartedNanos = System.nanoTime();
+            return doExchangeAsync(url, HttpMethod.POST, new HttpEntity<>(payload, httpHeaders), template)
+                    .whenComplete((responseEntity, e) -> recordRequest(message, timeStartedNanos, e == null));
+        });
+    }
+
     public <T> ResponseEntity<T> doPut(Message message, String payload, Class<T> template) {
+        acquirePermit(message);
         HttpHeaders httpHeaders = httpHeadersFromMessage(message);
         String url = urlStringFromMessage(message);
         LOG.debug("Executing PUT Message, url={} headers={} payload={}", url, httpHeaders, payload);
-        return doPutExchange(url, new HttpEntity<>(payload, httpHeaders), template);
+        long timeStartedNanos = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            ResponseEntity<T> responseEntity = doPutExchange(url, new HttpEntity<>(payload, httpHeaders), template);
+            succeeded = true;
+            return responseEntity;
+        } finally {
+            recordRequest(message, timeStartedNanos, succeeded);
+        }
     }
 
     @VisibleForTesting
@@ -55,6 +186,171 @@ public class EtradeRestTemplate extends RestTemplate {
         return super.exchange(url, HttpMethod.PUT, httpEntity, template);
     }
 
+    public <T> CompletableFuture<ResponseEntity<T>> doPutAsync(Message message, String payload, Class<T> template) {
+        HttpHeaders httpHeaders = httpHeadersFromMessage(message);
+        String url = urlStringFromMessage(message);
+        LOG.debug("Executing async PUT Message, url={} headers={} payload={}", url, httpHeaders, payload);
+        return acquirePermitAsync(message).thenCompose(permit -> {
+            long timeStartedNanos = System.nanoTime();
+            return doExchangeAsync(url, HttpMethod.PUT, new HttpEntity<>(payload, httpHeaders), template)
+                    .whenComplete((responseEntity, e) -> recordRequest(message, timeStartedNanos, e == null));
+        });
+    }
+
+    @VisibleForTesting
+    <T> CompletableFuture<ResponseEntity<T>> doExchangeAsync(String url,
+                                                            HttpMethod httpMethod,
+                                                            HttpEntity<String> httpEntity,
+                                                            Class<T> responseType) {
+        CompletableFuture<ResponseEntity<T>> future = new CompletableFuture<>();
+        if (asyncHttpClient == null) {
+            future.completeExceptionally(new IllegalStateException("Async client is not configured"));
+            return future;
+        }
+        // The I/O reactor threads are only started by the first async request.
+        if (!asyncHttpClient.isRunning()) {
+            asyncHttpClient.start();
+        }
+        HttpRequestBase request = newAsyncRequest(url, httpMethod, httpEntity);
+        asyncHttpClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse httpResponse) {
+                try {
+                    future.complete(readAsyncResponse(request.getURI(), httpMethod, httpResponse, responseType));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(new ResourceAccessException(
+                        String.format("I/O error on %s request for \"%s\": %s", httpMethod, url, e.getMessage()),
+                        e instanceof IOException ? (IOException) e : new IOException(e)));
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    static HttpRequestBase newAsyncRequest(String url, HttpMethod httpMethod, HttpEntity<String> httpEntity) {
+        HttpRequestBase request;
+        switch (httpMethod) {
+            case GET:
+                request = new HttpGet(url);
+                break;
+            case POST:
+                request = new HttpPost(url);
+                break;
+            case PUT:
+                request = new HttpPut(url);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported async method, httpMethod=" + httpMethod);
+        }
+        for (Map.Entry<String, List<String>> header : httpEntity.getHeaders().entrySet()) {
+            for (String value : header.getValue()) {
+                request.addHeader(header.getKey(), value);
+            }
+        }
+        if (httpEntity.getBody() != null && request instanceof HttpEntityEnclosingRequestBase) {
+            ((HttpEntityEnclosingRequestBase) request).setEntity(
+                    new StringEntity(httpEntity.getBody(), StandardCharsets.UTF_8));
+        }
+        return request;
+    }
+
+    <T> ResponseEntity<T> readAsyncResponse(URI uri,
+                                            HttpMethod httpMethod,
+                                            HttpResponse httpResponse,
+                                            Class<T> responseType) throws IOException {
+        try (ClientHttpResponse response = new AsyncClientHttpResponse(httpResponse)) {
+            if (getErrorHandler().hasError(response)) {
+                getErrorHandler().handleError(uri, httpMethod, response);
+            }
+            return this.<T>responseEntityExtractor(responseType).extractData(response);
+        }
+    }
+
+    void acquirePermit(Message message) {
+        if (rateLimiter == null) {
+            return;
+        }
+        long timeStartedNanos = System.nanoTime();
+        try {
+            rateLimiter.acquire(message.getPriority());
+            RATE_LIMIT_WAIT.get(message.getPriority()).recordSince(timeStartedNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceAccessException("Interrupted while waiting for E*Trade rate limit, url="
+                    + message.getUrl());
+        }
+    }
+
+    CompletableFuture<Void> acquirePermitAsync(Message message) {
+        if (rateLimiter == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long timeStartedNanos = System.nanoTime();
+        LatencyHistogram rateLimitWait = RATE_LIMIT_WAIT.get(message.getPriority());
+        return rateLimiter.acquireAsync(message.getPriority()).whenComplete((ignored, e) -> {
+            if (e == null) {
+                rateLimitWait.recordSince(timeStartedNanos);
+            }
+        });
+    }
+
+    private static Map<RequestPriority, LatencyHistogram> newRateLimitWait() {
+        Map<RequestPriority, LatencyHistogram> rateLimitWait = new EnumMap<>(RequestPriority.class);
+        for (RequestPriority priority : RequestPriority.values()) {
+            rateLimitWait.put(priority, METRICS.histogram("lotsandlots_etrade_rate_limit_wait_seconds",
+                                                          "Time spent waiting for an E*Trade rate limit permit.",
+                                                          "priority", priority.name()));
+        }
+        return rateLimitWait;
+    }
+
+    /**
+     * Name of the E*Trade API a request goes to, with account keys and ids left out so the metric stays small.
+     */
+    static String endpointOf(String url) {
+        if (url == null) {
+            return "other";
+        } else if (url.contains("/oauth/")) {
+            return "oauth";
+        } else if (url.contains("/market/quote")) {
+            return "quote";
+        } else if (url.endsWith("/accounts/list")) {
+            return "accounts";
+        } else if (url.endsWith("/orders/cancel")) {
+            return "cancel";
+        } else if (url.endsWith("/orders/place")) {
+            return "place";
+        } else if (url.endsWith("/orders/preview")) {
+            return "preview";
+        } else if (url.endsWith("/orders")) {
+            return "orders";
+        } else if (url.endsWith("/portfolio")) {
+            return "portfolio";
+        } else if (url.contains("/portfolio/")) {
+            return "lots";
+        }
+        return "other";
+    }
+
+    void recordRequest(Message message, long timeStartedNanos, boolean succeeded) {
+        String endpoint = endpointOf(message.getUrl());
+        RequestLatency requestLatency = REQUEST_LATENCY.get(endpoint);
+        if (requestLatency == null) {
+            requestLatency = REQUEST_LATENCY.computeIfAbsent(endpoint, RequestLatency::new);
+        }
+        (succeeded ? requestLatency.success : requestLatency.error).recordSince(timeStartedNanos);
+    }
+
     HttpHeaders httpHeadersFromMessage(Message message) {
         HttpHeaders httpHeaders = new HttpHeaders();
         if (StringUtils.isNotBlank(message.getContentType())) {
@@ -73,4 +369,76 @@ public class EtradeRestTemplate extends RestTemplate {
             return message.getUrl();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A response from the async client, as the ClientHttpResponse that message converters and error handlers read.
+     */
+    private static class AsyncClientHttpResponse implements ClientHttpResponse {
+
+        private final HttpResponse httpResponse;
+        private HttpHeaders headers = null;
+
+        AsyncClientHttpResponse(HttpResponse httpResponse) {
+            this.httpResponse = httpResponse;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() {
+            return HttpStatus.valueOf(getRawStatusCode());
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return httpResponse.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getStatusText() {
+            return httpResponse.getStatusLine().getReasonPhrase();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            if (headers == null) {
+                headers = new HttpHeaders();
+                for (Header header : httpResponse.getAllHeaders()) {
+                    headers.add(header.getName(), header.getValue());
+                }
+            }
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return httpResponse.getEntity() == null
+                    ? StreamUtils.emptyInput()
+                    : httpResponse.getEntity().getContent();
+        }
+
+        @Override
+        public void close() {
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+        }
+    }
+
+    /**
+     * The histograms of an endpoint, looked up in MetricsRegistry once rather than per request.
+     */
+    private static class RequestLatency {
+
+        private final LatencyHistogram error;
+        private final LatencyHistogram success;
+
+        RequestLatency(String endpoint) {
+            error = histogram(endpoint, "error");
+            success = histogram(endpoint, "success");
+        }
+
+        private static LatencyHistogram histogram(String endpoint, String outcome) {
+            return METRICS.histogram("lotsandlots_etrade_request_seconds",
+                                     "Latency of E*Trade API requests, excluding the wait for a rate limit permit.",
+                                     "endpoint", endpoint,
+                                     "outcome", outcome);
+        }
+    }
+}
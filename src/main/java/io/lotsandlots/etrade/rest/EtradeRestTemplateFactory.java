@@ -4,16 +4,36 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.typesafe.config.Config;
 import io.lotsandlots.etrade.api.ApiConfig;
+import io.lotsandlots.etrade.api.CancelOrderResponse;
+import io.lotsandlots.etrade.api.OrdersResponse;
+import io.lotsandlots.etrade.api.PlaceOrderResponse;
+import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.etrade.api.PositionLotsResponse;
+import io.lotsandlots.etrade.api.PreviewOrderResponse;
+import io.lotsandlots.etrade.api.QuoteResponse;
 import io.lotsandlots.etrade.oauth.OAuthConfig;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.util.ConfigWrapper;
+import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.LaxRedirectStrategy;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
@@ -28,19 +48,40 @@ import org.springframework.util.MultiValueMap;
 import javax.net.ssl.SSLContext;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class EtradeRestTemplateFactory {
 
     private static final Logger LOG = LoggerFactory.getLogger(EtradeRestTemplateFactory.class);
     private static final Config CONFIG = ConfigWrapper.getConfig();
+    // Deserializers for these are built while the factory is initialized rather than on the first response.
+    private static final List<Class<?>> PREWARMED_RESPONSE_TYPES = Arrays.asList(
+            CancelOrderResponse.class,
+            OrdersResponse.class,
+            PlaceOrderResponse.class,
+            PortfolioResponse.class,
+            PositionLotsResponse.class,
+            PreviewOrderResponse.class,
+            QuoteResponse.class);
     private static EtradeRestTemplateFactory TEMPLATE_FACTORY = null;
 
     private final ApiConfig apiConfig;
+    private final CloseableHttpAsyncClient asyncHttpClient;
     private final ClientHttpRequestFactory clientHttpRequestFactory;
+    private final ObjectMapper objectMapper;
+    private final EtradeRateLimiter rateLimiter;
+    private final EtradeRestTemplate restTemplate;
 
+    private int asyncIoThreadCount = 2;
+    private int asyncMaxConnectionsPerRoute = 100;
+    private int asyncMaxConnectionsTotal = 200;
     private int connectTimeoutMillis = 3000;
     private int connectionRequestTimeoutMillis = 3000;
+    private int maxConnectionsPerRoute = 20;
+    private double rateLimitBurst = 8D;
+    private double rateLimitPermitsPerSecond = 4D;
+    private double rateLimitReservedPermits = 1D;
     private int readTimeoutMillis = 9000;
     private SecurityContext securityContext;
     private int socketTimeoutMillis = 3000;
@@ -71,12 +112,33 @@ public class EtradeRestTemplateFactory {
             apiConfig.setPortfolioQueryString(CONFIG.getString("etrade.portfolioQueryParams"));
             apiConfig.setQuoteUrl(CONFIG.getString("etrade.quoteUrl"));
 
+            if (CONFIG.hasPath("etrade.asyncIoThreadCount")) {
+                asyncIoThreadCount = Math.max(1, CONFIG.getInt("etrade.asyncIoThreadCount"));
+            }
+            if (CONFIG.hasPath("etrade.asyncMaxConnectionsPerRoute")) {
+                asyncMaxConnectionsPerRoute = CONFIG.getInt("etrade.asyncMaxConnectionsPerRoute");
+            }
+            if (CONFIG.hasPath("etrade.asyncMaxConnectionsTotal")) {
+                asyncMaxConnectionsTotal = CONFIG.getInt("etrade.asyncMaxConnectionsTotal");
+            }
             if (CONFIG.hasPath("etrade.connectTimeoutMillis")) {
                 connectTimeoutMillis = CONFIG.getInt("etrade.connectTimeoutMillis");
             }
             if (CONFIG.hasPath("etrade.connectionRequestTimeoutMillis")) {
                 connectionRequestTimeoutMillis = CONFIG.getInt("etrade.connectionRequestTimeoutMillis");
             }
+            if (CONFIG.hasPath("etrade.maxConnectionsPerRoute")) {
+                maxConnectionsPerRoute = CONFIG.getInt("etrade.maxConnectionsPerRoute");
+            }
+            if (CONFIG.hasPath("etrade.rateLimitBurst")) {
+                rateLimitBurst = CONFIG.getDouble("etrade.rateLimitBurst");
+            }
+            if (CONFIG.hasPath("etrade.rateLimitPermitsPerSecond")) {
+                rateLimitPermitsPerSecond = CONFIG.getDouble("etrade.rateLimitPermitsPerSecond");
+            }
+            if (CONFIG.hasPath("etrade.rateLimitReservedPermits")) {
+                rateLimitReservedPermits = CONFIG.getDouble("etrade.rateLimitReservedPermits");
+            }
             if (CONFIG.hasPath("etrade.readTimeoutMillis")) {
                 readTimeoutMillis = CONFIG.getInt("etrade.readTimeoutMillis");
             }
@@ -84,6 +146,10 @@ public class EtradeRestTemplateFactory {
                 socketTimeoutMillis = CONFIG.getInt("etrade.socketTimeoutMillis");
             }
             clientHttpRequestFactory = newClientHttpRequestFactory();
+            asyncHttpClient = newAsyncHttpClient();
+            objectMapper = newObjectMapper();
+            rateLimiter = new EtradeRateLimiter(rateLimitPermitsPerSecond, rateLimitBurst, rateLimitReservedPermits);
+            restTemplate = newCustomRestTemplate();
 
             securityContext = newSecurityContext();
         } catch (Exception e) {
@@ -104,6 +170,26 @@ public class EtradeRestTemplateFactory {
         return clientHttpRequestFactory;
     }
 
+    /**
+     * Longest a request can take once it has been sent to the client: waiting for a pooled connection, connecting,
+     * then reading the response.
+     */
+    public long getRequestTimeoutMillis() {
+        return (long) connectionRequestTimeoutMillis + connectTimeoutMillis + readTimeoutMillis;
+    }
+
+    public EtradeRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the shared EtradeRestTemplate. It is thread-safe and its message converters and ObjectMapper are built
+     * once, so callers should use it rather than building a template per request.
+     */
+    public EtradeRestTemplate getRestTemplate() {
+        return restTemplate;
+    }
+
     public SecurityContext getSecurityContext() {
         return securityContext;
     }
@@ -130,20 +216,78 @@ public class EtradeRestTemplateFactory {
         }
     }
 
-    private ClientHttpRequestFactory newClientHttpRequestFactory() throws GeneralSecurityException {
+    /**
+     * Close the async client. Its I/O reactor threads are only started by the first async request.
+     */
+    public void shutdown() {
+        try {
+            asyncHttpClient.close();
+        } catch (Exception e) {
+            LOG.warn("Failed to close async HTTP client", e);
+        }
+    }
+
+    private SSLContext newSSLContext() throws GeneralSecurityException {
+        return org.apache.http.ssl.SSLContexts
+                .custom()
+                .loadTrustMaterial(null, (x509Certificates, s) -> true)
+                .build();
+    }
+
+    /**
+     * Non-blocking client for the Async methods of EtradeRestTemplate. A few I/O reactor threads multiplex every
+     * connection, so the number of requests in flight is bounded by the connection limits rather than by threads.
+     * The E*Trade API host gets an explicit per route limit, since every request goes to it.
+     */
+    private CloseableHttpAsyncClient newAsyncHttpClient() throws GeneralSecurityException {
         RequestConfig config = RequestConfig.custom()
                 .setConnectTimeout(connectTimeoutMillis)
                 .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
                 .setRedirectsEnabled(true)
-                .setSocketTimeout(socketTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+                .build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setIoThreadCount(asyncIoThreadCount)
+                .setSoTimeout(readTimeoutMillis)
                 .build();
-        SSLContext sslContext = org.apache.http.ssl.SSLContexts
+        Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new SSLIOSessionStrategy(newSSLContext(), new NoopHostnameVerifier()))
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioReactorConfig), sessionStrategyRegistry);
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Failed to create async I/O reactor", e);
+        }
+        connectionManager.setMaxTotal(asyncMaxConnectionsTotal);
+        connectionManager.setDefaultMaxPerRoute(asyncMaxConnectionsPerRoute);
+        HttpHost apiHost = HttpHost.create(apiConfig.getBaseUrl());
+        connectionManager.setMaxPerRoute(
+                new HttpRoute(apiHost, null, "https".equalsIgnoreCase(apiHost.getSchemeName())),
+                asyncMaxConnectionsPerRoute);
+        return HttpAsyncClients
                 .custom()
-                .loadTrustMaterial(null, (x509Certificates, s) -> true)
+                .setDefaultRequestConfig(config)
+                .setConnectionManager(connectionManager)
+                .setRedirectStrategy(new LaxRedirectStrategy())
+                .build();
+    }
+
+    private ClientHttpRequestFactory newClientHttpRequestFactory() throws GeneralSecurityException {
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                .setRedirectsEnabled(true)
+                .setSocketTimeout(socketTimeoutMillis)
                 .build();
-        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, new NoopHostnameVerifier());
+        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(newSSLContext(), new NoopHostnameVerifier());
         PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
         connectionManager.setMaxTotal(100); // Setting this too low may cause more connection request timeouts
+        // Every E*Trade call goes to the same host, so the per route limit (2 by default) caps request concurrency.
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
         CloseableHttpClient client = HttpClientBuilder
                 .create()
                 .setDefaultRequestConfig(config)
@@ -168,6 +312,9 @@ public class EtradeRestTemplateFactory {
 
         EtradeRestTemplate oauthTemplate = new EtradeRestTemplate(clientHttpRequestFactory);
         oauthTemplate.setMessageConverters(converters);
+        // Every template shares one limiter, so the total request rate stays under E*Trade's limit.
+        oauthTemplate.setRateLimiter(rateLimiter);
+        oauthTemplate.setAsyncHttpClient(asyncHttpClient);
         return oauthTemplate;
     }
 
@@ -177,10 +324,18 @@ public class EtradeRestTemplateFactory {
         mediaTypeList.add(MediaType.APPLICATION_JSON);
         jsonConverter.setSupportedMediaTypes(mediaTypeList);
 
+        jsonConverter.setObjectMapper(objectMapper);
+        return jsonConverter;
+    }
+
+    private ObjectMapper newObjectMapper() {
         ObjectMapper mapper = new ObjectMapper();
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
               .configure(DeserializationFeature.UNWRAP_ROOT_VALUE, true);
-        jsonConverter.setObjectMapper(mapper);
-        return jsonConverter;
+        for (Class<?> responseType : PREWARMED_RESPONSE_TYPES) {
+            // Creating a reader eagerly resolves and caches the root deserializer on the mapper.
+            mapper.readerFor(responseType);
+        }
+        return mapper;
     }
 }
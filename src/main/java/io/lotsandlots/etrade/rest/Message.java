@@ -10,6 +10,7 @@ public class Message {
     private final MultiValueMap<String, String> headerMap = new LinkedMultiValueMap<>();
     private String httpMethod;
     private String oauthHeader;
+    private RequestPriority priority = RequestPriority.ACCOUNT;
     private String queryString;
     private boolean requiresOauth = false;
     private String url;
@@ -43,6 +44,13 @@ public class Message {
         this.oauthHeader = oauthHeader;
     }
 
+    public RequestPriority getPriority() {
+        return priority;
+    }
+    public void setPriority(RequestPriority priority) {
+        this.priority = priority;
+    }
+
     public String getQueryString() {
         return queryString;
     }
@@ -78,6 +86,7 @@ public class Message {
                 + "headerMap: " + headerMap + ", "
                 + "httpMethod: " + httpMethod + ", "
                 + "oauthHeader: " + oauthHeader + ", "
+                + "priority: " + priority + ", "
                 + "queryString: " + queryString + ", "
                 + "url: " + url + ", "
                 + "verifierCode: " + verifierCode
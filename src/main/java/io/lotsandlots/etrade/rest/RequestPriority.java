@@ -0,0 +1,27 @@
+package io.lotsandlots.etrade.rest;
+
+/**
+ * Priority classes for E*Trade requests, highest first. When requests are waiting on the EtradeRateLimiter, a
+ * higher class is always served before a lower one.
+ */
+public enum RequestPriority {
+
+    /** Placing and cancelling orders. */
+    ORDER,
+    /** Previewing an order before it is placed. */
+    PREVIEW,
+    QUOTE,
+    /** Per-position lots. */
+    LOTS,
+    /** Portfolio and orders pages. */
+    ACCOUNT,
+    /** Requests proxied for the web UI. */
+    PROXY;
+
+    /**
+     * Order traffic may use the permits that are held back from every other class.
+     */
+    public boolean isOrderTraffic() {
+        return this == ORDER || this == PREVIEW;
+    }
+}
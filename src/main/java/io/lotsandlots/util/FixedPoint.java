@@ -0,0 +1,129 @@
+package io.lotsandlots.util;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Conversions for prices, quantities and percentages held as long millionths ("micros") of a unit. Values from
+ * E*Trade responses are converted once, when they enter a model record, so lots and orders can be compared and
+ * rounded exactly instead of through float arithmetic.
+ */
+public final class FixedPoint {
+
+    public static final long MICROS_PER_CENT = 10000L;
+    public static final long MICROS_PER_UNIT = 1000000L;
+
+    private FixedPoint() {}
+
+    /**
+     * Infinities saturate to Long.MAX_VALUE and Long.MIN_VALUE, so unbounded limits still compare correctly.
+     */
+    public static long toMicros(double value) {
+        return Math.round(value * MICROS_PER_UNIT);
+    }
+
+    /**
+     * @return The value rounded half away from zero to whole micros.
+     * @throws ArithmeticException If the value does not fit in a long of micros.
+     */
+    public static long toMicros(BigDecimal value) {
+        return value.movePointRight(6).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * Parses decimal text, such as a JSON number, straight to micros, rounding half away from zero past the sixth
+     * decimal place, so that a price like 54321.17 is exactly 54321170000 micros rather than the nearest float.
+     *
+     * @throws NumberFormatException If the text is not a decimal number.
+     */
+    public static long parseMicros(char[] chars, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = i < end && chars[i] == '-';
+        if (negative || (i < end && chars[i] == '+')) {
+            i++;
+        }
+        long micros = 0L;
+        int integerDigits = 0;
+        int fractionDigits = -1;
+        boolean roundUp = false;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || (fractionDigits < 0 && integerDigits == 12)) {
+                // Exponents and values too large for the fast path are left to BigDecimal, which also rejects
+                // anything that is not a number.
+                return toMicros(new BigDecimal(new String(chars, offset, length)));
+            }
+            if (fractionDigits < 0) {
+                integerDigits++;
+            } else if (fractionDigits < 6) {
+                fractionDigits++;
+            } else {
+                // Only the first digit past micros decides the rounding.
+                if (fractionDigits == 6) {
+                    roundUp = c >= '5';
+                    fractionDigits++;
+                }
+                continue;
+            }
+            micros = micros * 10L + (c - '0');
+        }
+        if (integerDigits == 0 && fractionDigits <= 0) {
+            throw new NumberFormatException("Not a decimal number: " + new String(chars, offset, length));
+        }
+        for (int scale = Math.max(fractionDigits, 0); scale < 6; scale++) {
+            micros *= 10L;
+        }
+        if (roundUp) {
+            micros++;
+        }
+        return negative ? -micros : micros;
+    }
+
+    public static long parseMicros(String text) {
+        return parseMicros(text.toCharArray(), 0, text.length());
+    }
+
+    public static double toDouble(long micros) {
+        return (double) micros / MICROS_PER_UNIT;
+    }
+
+    /**
+     * @return The value rounded half away from zero to whole cents, e.g. for a limit price.
+     */
+    public static long toCents(long micros) {
+        if (micros < 0L) {
+            return -((-micros + MICROS_PER_CENT / 2L) / MICROS_PER_CENT);
+        }
+        return (micros + MICROS_PER_CENT / 2L) / MICROS_PER_CENT;
+    }
+
+    /**
+     * @return Whole units, truncated toward zero, e.g. whole shares of a quantity.
+     */
+    public static long toUnits(long micros) {
+        return micros / MICROS_PER_UNIT;
+    }
+
+    /**
+     * @return micros scaled by factor, rounded to the nearest micro.
+     */
+    public static long multiply(long micros, double factor) {
+        return Math.round(micros * factor);
+    }
+
+    /**
+     * @return dividendMicros / divisorMicros in micros, e.g. a last price from a market value and a quantity, or 0 if
+     * the divisor is 0.
+     */
+    public static long divide(long dividendMicros, long divisorMicros) {
+        if (divisorMicros == 0L) {
+            return 0L;
+        }
+        return Math.round((double) dividendMicros / divisorMicros * MICROS_PER_UNIT);
+    }
+}
@@ -1,7 +1,35 @@
 package io.lotsandlots.util;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.json.JsonSanitizer;
+import org.apache.commons.lang3.StringUtils;
+
 public class HtmlHelper {
 
+    // DataTables column renderers, for columns of the items served by ApiLotsServlet and ApiOrdersServlet.
+    public static final String RENDER_DOLLARS = "$.fn.dataTable.render.number('', '.', 2, '$')";
+    public static final String RENDER_PERCENT = "$.fn.dataTable.render.number('', '.', 2, '', '%')";
+    public static final String RENDER_TEXT = "$.fn.dataTable.render.text()";
+    // Epoch milliseconds as yyyy/MM/dd in UTC, like DateFormatter, and 0 as null.
+    public static final String RENDER_UTC_DATE = "function(data, type) {"
+            + "if (type !== 'display') { return data; }"
+            + "if (data === 0) { return 'null'; }"
+            + "var date = new Date(data);"
+            + "return date.getUTCFullYear()"
+            + " + '/' + ('0' + (date.getUTCMonth() + 1)).slice(-2)"
+            + " + '/' + ('0' + date.getUTCDate()).slice(-2);"
+            + "}";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * @return A DataTables column definition, e.g. {"data": "symbol", "render": ...}.
+     */
+    public static String dataTablesColumn(String data, String render) {
+        return "{\"data\": " + toJavaScriptString(data) + (render == null ? "" : ", \"render\": " + render) + "}";
+    }
+
     public static void appendDataTablesFeatures(StringBuilder htmlBuilder, String tableName, String... features) {
         htmlBuilder.append("<script>");
         htmlBuilder.append("$(document).ready(function() {");
@@ -20,6 +48,47 @@ public class HtmlHelper {
         htmlBuilder.append("<script src=\"https://cdn.datatables.net/1.11.3/js/jquery.dataTables.min.js\"></script>");
     }
 
+    /**
+     * Patch a table set up by appendDataTablesFeatures with the items pushed by ViewEtradeEventsServlet. An event
+     * carries every item of each symbol that changed, and they replace the table's rows of that symbol. A symbol with
+     * no items is removed. On a "reload" event, sent when the events since lastEventId are no longer kept, the page is
+     * loaded again.
+     *
+     * @param symbol If not blank, items of other symbols are ignored.
+     * @param firstItemOnly Add only the first item of each symbol, e.g. its lowest priced lot.
+     */
+    public static void appendLiveViewFeatures(StringBuilder htmlBuilder,
+                                              String tableName,
+                                              String eventName,
+                                              long lastEventId,
+                                              String symbol,
+                                              boolean firstItemOnly) {
+        htmlBuilder.append("<script>");
+        htmlBuilder.append("$(document).ready(function() {");
+            htmlBuilder.append("if (!window.EventSource) { return; }");
+            htmlBuilder.append("var table = $('#").append(tableName).append("').DataTable();");
+            htmlBuilder.append("var symbolFilter = ")
+                       .append(StringUtils.isBlank(symbol) ? "null" : toJavaScriptString(symbol.toUpperCase()))
+                       .append(";");
+            htmlBuilder.append("var source = new EventSource('events?lastEventId=").append(lastEventId).append("');");
+            htmlBuilder.append("source.addEventListener('").append(eventName).append("', function(event) {");
+                htmlBuilder.append("var symbolToItems = JSON.parse(event.data);");
+                htmlBuilder.append("Object.keys(symbolToItems).forEach(function(symbol) {");
+                    htmlBuilder.append("if (symbolFilter !== null && symbol !== symbolFilter) { return; }");
+                    htmlBuilder.append("table.rows(function(index, data) { return data.symbol === symbol; }).remove();");
+                    htmlBuilder.append("var items = symbolToItems[symbol];");
+                    htmlBuilder.append("table.rows.add(").append(firstItemOnly ? "items.slice(0, 1)" : "items").append(");");
+                htmlBuilder.append("});");
+                htmlBuilder.append("table.draw(false);");
+            htmlBuilder.append("});");
+            htmlBuilder.append("source.addEventListener('reload', function() {");
+                htmlBuilder.append("source.close();");
+                htmlBuilder.append("window.location.reload();");
+            htmlBuilder.append("});");
+        htmlBuilder.append("});");
+        htmlBuilder.append("</script>");
+    }
+
     public static void appendTableHeaderRow(StringBuilder htmlBuilder, String... columnNames) {
         htmlBuilder.append("<thead>");
         htmlBuilder.append("<tr>");
@@ -29,4 +98,15 @@ public class HtmlHelper {
         htmlBuilder.append("</tr>");
         htmlBuilder.append("</thead>");
     }
+
+    /**
+     * @return The value as a JavaScript string literal, safe to embed in a script element.
+     */
+    public static String toJavaScriptString(String value) {
+        try {
+            return JsonSanitizer.sanitize(OBJECT_MAPPER.writeValueAsString(value));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unable to write value as JSON", e);
+        }
+    }
 }
@@ -0,0 +1,149 @@
+package io.lotsandlots.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the manner of HdrHistogram:
+ * - Values below 16ns get a bucket each.
+ * - Every power of two above that is split into 8 buckets, so a reported quantile is never more than 12.5% above
+ *   the true value, from nanoseconds up to days.
+ * Recording is a few atomic increments and never allocates, so it is safe on hot paths. Counts cover everything
+ * recorded since the histogram was created.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKET_COUNT = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = LINEAR_BUCKET_COUNT + (63 - 4 + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0L) {
+            nanos = 0L;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        maxNanos.accumulate(nanos);
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time elapsed since timeStartedNanos, a value of System.nanoTime().
+     */
+    public void recordSince(long timeStartedNanos) {
+        record(System.nanoTime() - timeStartedNanos);
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        record(unit.toNanos(duration));
+    }
+
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * @param quantile Between 0 and 1, e.g. 0.99 for the 99th percentile.
+     * @return Upper bound of the bucket holding the quantile, capped at the largest value recorded, or 0 if nothing
+     *         has been recorded.
+     */
+    public long getQuantileNanos(double quantile) {
+        return snapshot().getQuantileNanos(quantile);
+    }
+
+    /**
+     * Copies the bucket counts, so several quantiles can be read from the same point in time.
+     */
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts[i] = counts.get(i);
+            count += bucketCounts[i];
+        }
+        return new Snapshot(bucketCounts, count, maxNanos.get(), sumNanos.sum());
+    }
+
+    static int bucketIndex(long nanos) {
+        if (nanos < LINEAR_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> shift) - SUB_BUCKET_COUNT;
+        return LINEAR_BUCKET_COUNT + (exponent - 4) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKET_COUNT) / SUB_BUCKET_COUNT + 4;
+        long subBucket = (index - LINEAR_BUCKET_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        int shift = exponent - SUB_BUCKET_BITS;
+        // The last bucket would overflow, its values run up to Long.MAX_VALUE.
+        return exponent == 63 && subBucket == 2 * SUB_BUCKET_COUNT - 1
+                ? Long.MAX_VALUE
+                : ((subBucket + 1L) << shift) - 1L;
+    }
+
+    public static class Snapshot {
+
+        private final long[] bucketCounts;
+        private final long count;
+        private final long maxNanos;
+        private final long sumNanos;
+
+        Snapshot(long[] bucketCounts, long count, long maxNanos, long sumNanos) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.maxNanos = maxNanos;
+            this.sumNanos = sumNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getSumNanos() {
+            return sumNanos;
+        }
+
+        public long getQuantileNanos(double quantile) {
+            if (count == 0L) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+            long seen = 0L;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package io.lotsandlots.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and latency histograms, written out in the Prometheus text format by MetricsServlet.
+ * A metric is identified by its name and label pairs, and asking for it again returns the same instance, so callers
+ * on hot paths should hold on to what they get back rather than look it up per event. Histograms are written as
+ * summaries, with quantiles in seconds over everything recorded since startup.
+ *
+ * Gauges and counters backed by a LongSupplier are read at scrape time. Registering one again under the same name and
+ * labels replaces the previous supplier.
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static MetricsRegistry REGISTRY = null;
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    MetricsRegistry() {
+    }
+
+    public static synchronized MetricsRegistry getInstance() {
+        if (REGISTRY == null) {
+            REGISTRY = new MetricsRegistry();
+        }
+        return REGISTRY;
+    }
+
+    /**
+     * @param labels Label names and values, alternating, e.g. "endpoint", "lots".
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER)
+                .children
+                .computeIfAbsent(labelsKey(labels), key -> new Counter());
+    }
+
+    /**
+     * Counter whose value is kept elsewhere, e.g. in an AtomicLong of the object being measured.
+     */
+    public void counter(String name, String help, LongSupplier supplier, String... labels) {
+        family(name, help, Type.COUNTER).children.put(labelsKey(labels), supplier);
+    }
+
+    public void gauge(String name, String help, LongSupplier supplier, String... labels) {
+        family(name, help, Type.GAUGE).children.put(labelsKey(labels), supplier);
+    }
+
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.SUMMARY)
+                .children
+                .computeIfAbsent(labelsKey(labels), key -> new LatencyHistogram());
+    }
+
+    public String toPrometheusText() {
+        StringWriter writer = new StringWriter();
+        try {
+            writePrometheusText(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public void writePrometheusText(Writer writer) throws IOException {
+        for (Family family : families.values()) {
+            writer.write("# HELP " + family.name + " " + family.help + "\n");
+            writer.write("# TYPE " + family.name + " " + family.type.name().toLowerCase() + "\n");
+            for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                String labelsKey = child.getKey();
+                Object metric = child.getValue();
+                if (metric instanceof Counter) {
+                    writeSample(writer, family.name, labelsKey, ((Counter) metric).get());
+                } else if (metric instanceof LongSupplier) {
+                    writeSample(writer, family.name, labelsKey, ((LongSupplier) metric).getAsLong());
+                } else if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) metric).snapshot();
+                    for (double quantile : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+                        writeSample(writer,
+                                    family.name,
+                                    labelsKey.isEmpty() ? quantileLabel : labelsKey + "," + quantileLabel,
+                                    seconds(snapshot.getQuantileNanos(quantile)));
+                    }
+                    writeSample(writer, family.name + "_sum", labelsKey, seconds(snapshot.getSumNanos()));
+                    writeSample(writer, family.name + "_count", labelsKey, snapshot.getCount());
+                }
+            }
+        }
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric already registered with another type, name=" + name
+                    + " type=" + family.type);
+        }
+        return family;
+    }
+
+    static String labelsKey(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected label names and values in pairs, got " + labels.length);
+        }
+        StringBuilder labelsKey = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                labelsKey.append(',');
+            }
+            labelsKey.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    labelsKey.append('\\').append(c);
+                } else if (c == '\n') {
+                    labelsKey.append("\\n");
+                } else {
+                    labelsKey.append(c);
+                }
+            }
+            labelsKey.append('"');
+        }
+        return labelsKey.toString();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9D;
+    }
+
+    private static void writeSample(Writer writer, String name, String labelsKey, Object value) throws IOException {
+        writer.write(name);
+        if (!labelsKey.isEmpty()) {
+            writer.write("{" + labelsKey + "}");
+        }
+        writer.write(" " + value + "\n");
+    }
+
+    public static class Counter {
+
+        private final LongAdder value = new LongAdder();
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        public void increment() {
+            value.increment();
+        }
+    }
+
+    private enum Type {
+        COUNTER,
+        GAUGE,
+        SUMMARY
+    }
+
+    private static class Family {
+
+        // Sorted by labels so scrapes list series in a stable order.
+        private final ConcurrentMap<String, Object> children = new ConcurrentSkipListMap<>();
+        private final String help;
+        private final String name;
+        private final Type type;
+
+        Family(String name, String help, Type type) {
+            this.help = help;
+            this.name = name;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.lotsandlots.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a shared executor in one lane per symbol, keyed by SymbolDictionary id:
+ * - At most one task per lane runs at a time, so decisions for a symbol never overlap.
+ * - Each lane holds at most one pending task. A task submitted while another is pending replaces it, since only the
+ *   decision based on the newest data is worth making.
+ * - Lanes don't block each other. A lane with a pending task goes to the back of the shared executor's queue after
+ *   each run instead of holding on to its worker.
+ */
+public class SymbolLaneExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SymbolLaneExecutor.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final Executor delegate;
+    private final String name;
+    private final AtomicLong submittedCount = new AtomicLong();
+
+    private Lane[] lanes = new Lane[64];
+
+    public SymbolLaneExecutor(String name, Executor delegate) {
+        this.delegate = delegate;
+        this.name = name;
+        METRICS.counter("lotsandlots_lane_tasks_coalesced_total",
+                        "Pending lane tasks replaced by a newer one before they ran.",
+                        coalescedCount::get,
+                        "lane", name);
+        METRICS.counter("lotsandlots_lane_tasks_submitted_total",
+                        "Tasks submitted to symbol lanes.",
+                        submittedCount::get,
+                        "lane", name);
+    }
+
+    /**
+     * Queue task in the lane of symbolId, replacing the lane's pending task if it has one.
+     */
+    public void execute(int symbolId, Runnable task) {
+        submittedCount.incrementAndGet();
+        lane(symbolId).offer(task);
+    }
+
+    /**
+     * Number of pending tasks that were replaced by a newer one before they ran.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    private synchronized Lane lane(int symbolId) {
+        if (symbolId >= lanes.length) {
+            lanes = Arrays.copyOf(lanes, Math.max(lanes.length * 2, symbolId + 1));
+        }
+        if (lanes[symbolId] == null) {
+            lanes[symbolId] = new Lane(symbolId);
+        }
+        return lanes[symbolId];
+    }
+
+    private class Lane implements Runnable {
+
+        private final int symbolId;
+
+        private Runnable pendingTask = null;
+        private boolean scheduled = false; // Queued on or running in the delegate
+
+        Lane(int symbolId) {
+            this.symbolId = symbolId;
+        }
+
+        void offer(Runnable task) {
+            synchronized (this) {
+                if (pendingTask != null) {
+                    coalescedCount.incrementAndGet();
+                    LOG.debug("Replaced pending task, name={} symbolId={}", name, symbolId);
+                }
+                pendingTask = task;
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = pendingTask;
+                pendingTask = null;
+            }
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } catch (Exception e) {
+                LOG.error("Task failed, name={} symbolId={}", name, symbolId, e);
+            } finally {
+                boolean hasPendingTask;
+                synchronized (this) {
+                    hasPendingTask = pendingTask != null;
+                    scheduled = hasPendingTask;
+                }
+                if (hasPendingTask) {
+                    schedule();
+                }
+            }
+        }
+
+        private void schedule() {
+            try {
+                delegate.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    pendingTask = null;
+                    scheduled = false;
+                }
+                LOG.warn("Dropped task, executor rejected it, name={} symbolId={}", name, symbolId, e);
+            }
+        }
+    }
+}
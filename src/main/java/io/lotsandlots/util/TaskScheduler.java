@@ -0,0 +1,257 @@
+package io.lotsandlots.util;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every periodic fetcher and every controller task on one shared worker pool. A single timer thread decides
+ * when each repeating task is due:
+ * - A tick is skipped if the task's previous run has not finished.
+ * - Each delay is randomized by +/- scheduler.jitterRatio so fetchers don't hit E*Trade in lockstep.
+ * - Outside the TradingWindow, tasks wait scheduler.offHoursIntervalSeconds instead of their usual interval.
+ */
+public class TaskScheduler {
+
+    private static final Config CONFIG = ConfigWrapper.getConfig();
+    private static final Logger LOG = LoggerFactory.getLogger(TaskScheduler.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static TaskScheduler SCHEDULER = null;
+
+    private final List<ScheduledTask<?>> scheduledTasks = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService timer;
+    private final TradingWindow tradingWindow;
+    private final ThreadPoolExecutor workers;
+
+    private double jitterRatio = 0.1;
+    private long offHoursIntervalSeconds = 900L;
+    private int workerThreads = 8;
+
+    TaskScheduler(TradingWindow tradingWindow) {
+        this.tradingWindow = tradingWindow;
+        if (CONFIG.hasPath("scheduler.jitterRatio")) {
+            jitterRatio = CONFIG.getDouble("scheduler.jitterRatio");
+        }
+        if (CONFIG.hasPath("scheduler.offHoursIntervalSeconds")) {
+            offHoursIntervalSeconds = CONFIG.getLong("scheduler.offHoursIntervalSeconds");
+        }
+        if (CONFIG.hasPath("scheduler.workerThreads")) {
+            workerThreads = Math.max(1, CONFIG.getInt("scheduler.workerThreads"));
+        }
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "scheduler-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(
+                workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "scheduler-worker-" + workerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        METRICS.gauge("lotsandlots_scheduler_active_workers",
+                      "Scheduler workers currently running a task.",
+                      workers::getActiveCount);
+        METRICS.gauge("lotsandlots_scheduler_queue_depth",
+                      "Tasks waiting for a scheduler worker.",
+                      () -> workers.getQueue().size());
+        LOG.info("Initialized TaskScheduler, jitterRatio={} offHoursIntervalSeconds={} workerThreads={} {}",
+                jitterRatio, offHoursIntervalSeconds, workerThreads, tradingWindow);
+    }
+
+    public static synchronized TaskScheduler getInstance() {
+        if (SCHEDULER == null) {
+            SCHEDULER = new TaskScheduler(TradingWindow.fromConfig(CONFIG));
+        }
+        return SCHEDULER;
+    }
+
+    /**
+     * Shared pool for one-off tasks, such as order controller runnables.
+     */
+    public ExecutorService getExecutor() {
+        return workers;
+    }
+
+    /**
+     * Number of tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    public int getActiveWorkerCount() {
+        return workers.getActiveCount();
+    }
+
+    public List<ScheduledTask<?>> getScheduledTasks() {
+        return new ArrayList<>(scheduledTasks);
+    }
+
+    boolean isMarketOpen() {
+        return tradingWindow.isOpen(OffsetDateTime.now(ZoneOffset.UTC));
+    }
+
+    long nextDelayMillis(long intervalSeconds) {
+        long baseMillis = (isMarketOpen() ? intervalSeconds : Math.max(intervalSeconds, offHoursIntervalSeconds))
+                * 1000L;
+        long jitterMillis = (long) (baseMillis * jitterRatio);
+        if (jitterMillis <= 0L) {
+            return baseMillis;
+        }
+        return baseMillis + ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1L);
+    }
+
+    /**
+     * Run a task after initialDelaySeconds and then roughly every intervalSeconds. A run that takes longer than
+     * intervalSeconds is interrupted.
+     */
+    public <T extends Runnable> ScheduledTask<T> scheduleRepeating(String name,
+                                                                   T runnable,
+                                                                   long initialDelaySeconds,
+                                                                   long intervalSeconds) {
+        ScheduledTask<T> task = new ScheduledTask<>(name, runnable, intervalSeconds);
+        scheduledTasks.add(task);
+        METRICS.counter("lotsandlots_scheduler_skipped_ticks_total",
+                        "Ticks skipped because the task's previous run was still in flight.",
+                        task::getSkippedCount,
+                        "task", name);
+        timer.schedule(task::tick, initialDelaySeconds, TimeUnit.SECONDS);
+        LOG.info("Scheduled task, name={} initialDelaySeconds={} intervalSeconds={}",
+                name, initialDelaySeconds, intervalSeconds);
+        return task;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public class ScheduledTask<T extends Runnable> {
+
+        private final AtomicBoolean inFlight = new AtomicBoolean(false);
+        private final long intervalSeconds;
+        private final AtomicLong lastRunMillis = new AtomicLong();
+        private final AtomicLong maxRunMillis = new AtomicLong();
+        private final String name;
+        private final AtomicLong runCount = new AtomicLong();
+        private final T runnable;
+        private final AtomicLong skippedCount = new AtomicLong();
+        private final AtomicLong totalRunMillis = new AtomicLong();
+
+        private volatile boolean cancelled = false;
+
+        ScheduledTask(String name, T runnable, long intervalSeconds) {
+            this.intervalSeconds = intervalSeconds;
+            this.name = name;
+            this.runnable = runnable;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            scheduledTasks.remove(this);
+        }
+
+        public long getLastRunMillis() {
+            return lastRunMillis.get();
+        }
+
+        public long getMaxRunMillis() {
+            return maxRunMillis.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRunCount() {
+            return runCount.get();
+        }
+
+        public T getRunnable() {
+            return runnable;
+        }
+
+        public long getSkippedCount() {
+            return skippedCount.get();
+        }
+
+        public long getTotalRunMillis() {
+            return totalRunMillis.get();
+        }
+
+        public boolean isInFlight() {
+            return inFlight.get();
+        }
+
+        void tick() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                if (inFlight.compareAndSet(false, true)) {
+                    AtomicBoolean started = new AtomicBoolean(false);
+                    Future<?> future = workers.submit(() -> {
+                        started.set(true);
+                        runTimed();
+                    });
+                    timer.schedule(() -> {
+                        if (!future.isDone()) {
+                            LOG.warn("Interrupting task that ran past its interval, name={} intervalSeconds={}",
+                                    name, intervalSeconds);
+                            // A run that never left the queue will not clear the in flight flag itself.
+                            if (future.cancel(true) && !started.get()) {
+                                inFlight.set(false);
+                            }
+                        }
+                    }, intervalSeconds, TimeUnit.SECONDS);
+                } else {
+                    skippedCount.incrementAndGet();
+                    LOG.info("Skipping tick, previous run still in flight, name={} skippedCount={}",
+                            name, skippedCount.get());
+                }
+            } catch (Exception e) {
+                inFlight.set(false);
+                LOG.error("Failed to submit task, name={}", name, e);
+            } finally {
+                if (!cancelled && !timer.isShutdown()) {
+                    timer.schedule(this::tick, nextDelayMillis(intervalSeconds), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        private void runTimed() {
+            long timeStartedMillis = System.currentTimeMillis();
+            try {
+                runnable.run();
+            } catch (Exception e) {
+                LOG.error("Task failed, name={}", name, e);
+            } finally {
+                long runMillis = System.currentTimeMillis() - timeStartedMillis;
+                lastRunMillis.set(runMillis);
+                maxRunMillis.accumulateAndGet(runMillis, Math::max);
+                totalRunMillis.addAndGet(runMillis);
+                runCount.incrementAndGet();
+                inFlight.set(false);
+            }
+        }
+    }
+}
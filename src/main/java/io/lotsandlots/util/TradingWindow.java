@@ -0,0 +1,63 @@
+package io.lotsandlots.util;
+
+import com.typesafe.config.Config;
+
+import java.time.OffsetDateTime;
+
+/**
+ * Days of the week and UTC hours during which the market is considered open. Defaults to regular US market hours,
+ * Monday 13:30 through Friday 20:00 UTC, and is overridden with the etrade.buyOrderCreation* settings.
+ */
+public class TradingWindow {
+
+    private int startDayOfWeek = 1;
+    private int startHour = 13;
+    private int startMinute = 30;
+    private int stopDayOfWeek = 6;
+    private int stopHour = 20;
+
+    public static TradingWindow fromConfig(Config config) {
+        TradingWindow tradingWindow = new TradingWindow();
+        if (config.hasPath("etrade.buyOrderCreationStartDayOfWeek")) {
+            tradingWindow.startDayOfWeek = config.getInt("etrade.buyOrderCreationStartDayOfWeek");
+        }
+        if (config.hasPath("etrade.buyOrderCreationStartHour")) {
+            tradingWindow.startHour = config.getInt("etrade.buyOrderCreationStartHour");
+        }
+        if (config.hasPath("etrade.buyOrderCreationStartMinute")) {
+            tradingWindow.startMinute = config.getInt("etrade.buyOrderCreationStartMinute");
+        }
+        if (config.hasPath("etrade.buyOrderCreationStopDayOfWeek")) {
+            tradingWindow.stopDayOfWeek = config.getInt("etrade.buyOrderCreationStopDayOfWeek");
+        }
+        if (config.hasPath("etrade.buyOrderCreationStopHour")) {
+            tradingWindow.stopHour = config.getInt("etrade.buyOrderCreationStopHour");
+        }
+        return tradingWindow;
+    }
+
+    /**
+     * @param dayOfWeek ISO day of the week, 1 (Monday) through 7 (Sunday).
+     * @param hour UTC hour of the day.
+     * @param minute Minute of the hour.
+     */
+    public boolean isOpen(int dayOfWeek, int hour, int minute) {
+        if (dayOfWeek < startDayOfWeek || dayOfWeek >= stopDayOfWeek) {
+            return false;
+        }
+        return !(hour < startHour || (hour == startHour && minute < startMinute) || hour >= stopHour);
+    }
+
+    public boolean isOpen(OffsetDateTime utcDateTime) {
+        return isOpen(utcDateTime.getDayOfWeek().getValue(), utcDateTime.getHour(), utcDateTime.getMinute());
+    }
+
+    @Override
+    public String toString() {
+        return "TradingWindow{startDayOfWeek=" + startDayOfWeek
+                + " startHour=" + startHour
+                + " startMinute=" + startMinute
+                + " stopDayOfWeek=" + stopDayOfWeek
+                + " stopHour=" + stopHour + "}";
+    }
+}
@@ -1,14 +1,17 @@
 package io.lotsandlots.web.listener;
 
 import com.typesafe.config.Config;
+import io.lotsandlots.data.EventJournal;
 import io.lotsandlots.data.SqliteDatabase;
 import io.lotsandlots.etrade.EtradeBuyOrderController;
 import io.lotsandlots.etrade.EtradeOrdersDataFetcher;
 import io.lotsandlots.etrade.EtradePortfolioDataFetcher;
 import io.lotsandlots.etrade.EtradeSellOrderController;
+import io.lotsandlots.etrade.TradingPolicyTable;
+import io.lotsandlots.etrade.TradingPolicyWatcher;
 import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
 import io.lotsandlots.util.ConfigWrapper;
-import io.lotsandlots.util.TimeBoxedRunnableRunner;
+import io.lotsandlots.util.TaskScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,13 +30,14 @@ public class LifecycleListener implements ServletContextListener {
 
     private static LifecycleListener LISTENER;
 
-    private TimeBoxedRunnableRunner<EtradeOrdersDataFetcher> etradeOrdersDataFetcherRunner;
-    private TimeBoxedRunnableRunner<EtradePortfolioDataFetcher> etradePortfolioDataFetcherRunner;
+    private TaskScheduler.ScheduledTask<EtradeOrdersDataFetcher> etradeOrdersDataFetcherTask;
+    private TaskScheduler.ScheduledTask<EtradePortfolioDataFetcher> etradePortfolioDataFetcherTask;
     private EtradeOrdersDataFetcher etradeOrdersDataFetcher;
     private EtradePortfolioDataFetcher etradePortfolioDataFetcher;
 
     private EtradeBuyOrderController buyOrderController;
     private EtradeSellOrderController sellOrderController;
+    private TradingPolicyWatcher tradingPolicyWatcher;
 
     @Override
     public void contextInitialized(ServletContextEvent contextEvent) {
@@ -43,6 +47,9 @@ public class LifecycleListener implements ServletContextListener {
             try {
                 // Initialize SQLite DB
                 SqliteDatabase.getInstance();
+                // Compile trading policies up front and keep them in sync with the config file.
+                TradingPolicyTable.getCurrent();
+                tradingPolicyWatcher = TradingPolicyWatcher.startFromSystemProperty();
                 // Until EtradeRestTemplateFactory is initialized, we won't be able to send requests to E*Trade.
                 EtradeRestTemplateFactory.init();
                 LOG.info("Initialized EtradeRestTemplateFactory");
@@ -60,19 +67,39 @@ public class LifecycleListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent contextEvent) {
+        if (tradingPolicyWatcher != null) {
+            tradingPolicyWatcher.stop();
+        }
+        TaskScheduler.getInstance().shutdown();
+        if (etradePortfolioDataFetcher != null) {
+            etradePortfolioDataFetcher.shutdown();
+        }
+        EtradeRestTemplateFactory templateFactory = EtradeRestTemplateFactory.getTemplateFactory();
+        if (templateFactory != null) {
+            templateFactory.shutdown();
+        }
+        // Compacting the journal needs the database, so it's closed first. Neither is created if startup never did.
+        EventJournal journal = EventJournal.getInstanceIfInitialized();
+        if (journal != null) {
+            journal.close();
+        }
+        SqliteDatabase db = SqliteDatabase.getInstanceIfInitialized();
+        if (db != null) {
+            db.close();
+        }
         LOG.info("Servlet context destroyed");
     }
 
-    public void setEtradeOrdersDataFetcherRunner(
-            TimeBoxedRunnableRunner<EtradeOrdersDataFetcher> etradeOrdersDataFetcherRunner) {
-        this.etradeOrdersDataFetcherRunner = etradeOrdersDataFetcherRunner;
-        this.etradeOrdersDataFetcher = etradeOrdersDataFetcherRunner.getRunnable();
+    public void setEtradeOrdersDataFetcherTask(
+            TaskScheduler.ScheduledTask<EtradeOrdersDataFetcher> etradeOrdersDataFetcherTask) {
+        this.etradeOrdersDataFetcherTask = etradeOrdersDataFetcherTask;
+        this.etradeOrdersDataFetcher = etradeOrdersDataFetcherTask.getRunnable();
     }
 
-    public void setEtradePortfolioDataFetcherRunner(
-            TimeBoxedRunnableRunner<EtradePortfolioDataFetcher> etradePortfolioDataFetcherRunner) {
-        this.etradePortfolioDataFetcherRunner = etradePortfolioDataFetcherRunner;
-        this.etradePortfolioDataFetcher = etradePortfolioDataFetcherRunner.getRunnable();
+    public void setEtradePortfolioDataFetcherTask(
+            TaskScheduler.ScheduledTask<EtradePortfolioDataFetcher> etradePortfolioDataFetcherTask) {
+        this.etradePortfolioDataFetcherTask = etradePortfolioDataFetcherTask;
+        this.etradePortfolioDataFetcher = etradePortfolioDataFetcherTask.getRunnable();
     }
 
     public static LifecycleListener getListener() {
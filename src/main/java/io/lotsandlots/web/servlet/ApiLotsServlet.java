@@ -0,0 +1,52 @@
+package io.lotsandlots.web.servlet;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiImplicitParam;
+import io.swagger.annotations.ApiImplicitParams;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Api(value = "/api")
+public class ApiLotsServlet extends HttpServlet implements SnapshotApiServlet {
+
+    private ViewEtradeEventPublisher eventPublisher = ViewEtradeEventPublisher.getInstance();
+
+    @ApiOperation(
+            httpMethod = "GET",
+            value = "Get lots as of the latest fetch generation, lowest priced first within each symbol.",
+            nickname = "apiLots")
+    @ApiImplicitParams({
+            @ApiImplicitParam(name = "symbol", dataType = "string", paramType = "query",
+                    value = "Only lots of this symbol.",
+                    example = "AAPL"),
+            @ApiImplicitParam(name = "lowestPricedOnly", dataType = "boolean", paramType = "query",
+                    value = "Only the lowest priced lot of each symbol.",
+                    example = "true"),
+            @ApiImplicitParam(name = "offset", dataType = "integer", paramType = "query",
+                    value = "Number of lots to skip.",
+                    example = "0"),
+            @ApiImplicitParam(name = "limit", dataType = "integer", paramType = "query",
+                    value = "Most lots to return.",
+                    example = "100")})
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Lots, with the total number that match and the snapshot version."),
+            @ApiResponse(code = 304, message = "If the lots have not changed since the version in If-None-Match."),
+            @ApiResponse(code = 400, message = "If offset or limit is not a non-negative integer.")})
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        doSnapshotGet(request,
+                      response,
+                      eventPublisher.getLotsSnapshot(),
+                      "true".equals(request.getParameter("lowestPricedOnly")));
+    }
+
+    void setEventPublisher(ViewEtradeEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+}
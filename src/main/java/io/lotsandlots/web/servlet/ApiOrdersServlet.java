@@ -0,0 +1,46 @@
+package io.lotsandlots.web.servlet;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiImplicitParam;
+import io.swagger.annotations.ApiImplicitParams;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Api(value = "/api")
+public class ApiOrdersServlet extends HttpServlet implements SnapshotApiServlet {
+
+    private ViewEtradeEventPublisher eventPublisher = ViewEtradeEventPublisher.getInstance();
+
+    @ApiOperation(
+            httpMethod = "GET",
+            value = "Get open orders as of the latest fetch generation, buy orders first within each symbol.",
+            nickname = "apiOrders")
+    @ApiImplicitParams({
+            @ApiImplicitParam(name = "symbol", dataType = "string", paramType = "query",
+                    value = "Only orders for this symbol.",
+                    example = "AAPL"),
+            @ApiImplicitParam(name = "offset", dataType = "integer", paramType = "query",
+                    value = "Number of orders to skip.",
+                    example = "0"),
+            @ApiImplicitParam(name = "limit", dataType = "integer", paramType = "query",
+                    value = "Most orders to return.",
+                    example = "100")})
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "Orders, with the total number that match and the snapshot version."),
+            @ApiResponse(code = 304, message = "If the orders have not changed since the version in If-None-Match."),
+            @ApiResponse(code = 400, message = "If offset or limit is not a non-negative integer.")})
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        doSnapshotGet(request, response, eventPublisher.getOrdersSnapshot(), false);
+    }
+
+    void setEventPublisher(ViewEtradeEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+}
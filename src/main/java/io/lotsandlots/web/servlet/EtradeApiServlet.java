@@ -4,6 +4,7 @@ import com.google.json.JsonSanitizer;
 import io.lotsandlots.etrade.oauth.EtradeOAuthClient;
 import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.etrade.rest.RequestPriority;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.web.error.InvalidParameterException;
 import org.apache.commons.lang3.StringUtils;
@@ -23,10 +24,11 @@ public interface EtradeApiServlet extends EtradeOAuthClient {
         }
         try {
             Message message = newMessage(request);
+            message.setPriority(RequestPriority.PROXY);
             setOAuthHeader(securityContext, message);
             ResponseEntity<String> responseEntity = EtradeRestTemplateFactory
                     .getTemplateFactory()
-                    .newCustomRestTemplate()
+                    .getRestTemplate()
                     .doGet(message, String.class);
             String responseBody = responseEntity.getBody();
             if (StringUtils.isBlank(responseBody)) {
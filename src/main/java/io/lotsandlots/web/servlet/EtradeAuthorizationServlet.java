@@ -9,7 +9,7 @@ import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
 import io.lotsandlots.etrade.rest.Message;
 import io.lotsandlots.etrade.oauth.OAuthToken;
 import io.lotsandlots.etrade.oauth.SecurityContext;
-import io.lotsandlots.util.TimeBoxedRunnableRunner;
+import io.lotsandlots.util.TaskScheduler;
 import io.lotsandlots.web.listener.LifecycleListener;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
@@ -40,7 +40,6 @@ import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.TimeUnit;
 
 @Api(value = "/etrade")
 public class EtradeAuthorizationServlet extends HttpServlet implements EtradeOAuthClient {
@@ -136,27 +135,32 @@ public class EtradeAuthorizationServlet extends HttpServlet implements EtradeOAu
 
                     EtradeOrdersDataFetcher ordersDataFetcher = new EtradeOrdersDataFetcher();
 
-                    TimeBoxedRunnableRunner<EtradeOrdersDataFetcher> etradeOrdersDataFetcherRunner =
-                            new TimeBoxedRunnableRunner<>(
-                                    ordersDataFetcher,
-                                    0,
-                                    ordersDataFetcher.getOrdersDataFetchIntervalSeconds(),
-                                    TimeUnit.SECONDS);
-                    lifecycleListener.setEtradeOrdersDataFetcherRunner(etradeOrdersDataFetcherRunner);
+                    TaskScheduler scheduler = TaskScheduler.getInstance();
+                    lifecycleListener.setEtradeOrdersDataFetcherTask(scheduler.scheduleRepeating(
+                            "etrade-orders-fetch",
+                            ordersDataFetcher,
+                            0,
+                            ordersDataFetcher.getOrdersDataFetchIntervalSeconds()));
 
                     EtradePortfolioDataFetcher portfolioDataFetcher = new EtradePortfolioDataFetcher();
                     lifecycleListener.setBuyOrderController(
                             new EtradeBuyOrderController(portfolioDataFetcher, ordersDataFetcher));
                     lifecycleListener.setSellOrderController(
                             new EtradeSellOrderController(portfolioDataFetcher, ordersDataFetcher));
-
-                    TimeBoxedRunnableRunner<EtradePortfolioDataFetcher> etradePortfolioDataFetcherRunner =
-                            new TimeBoxedRunnableRunner<>(
-                                    portfolioDataFetcher,
-                                    0,
-                                    portfolioDataFetcher.getPortfolioDataFetchIntervalSeconds(),
-                                    TimeUnit.SECONDS);
-                    lifecycleListener.setEtradePortfolioDataFetcherRunner(etradePortfolioDataFetcherRunner);
+                    ViewEtradeEventPublisher.getInstance().watch(portfolioDataFetcher, ordersDataFetcher);
+
+                    lifecycleListener.setEtradePortfolioDataFetcherTask(scheduler.scheduleRepeating(
+                            "etrade-portfolio-fetch",
+                            portfolioDataFetcher,
+                            0,
+                            portfolioDataFetcher.getPortfolioDataFetchIntervalSeconds()));
+                    if (portfolioDataFetcher.isAdaptiveLotsFetchEnabled()) {
+                        scheduler.scheduleRepeating(
+                                "etrade-due-lots-fetch",
+                                portfolioDataFetcher.getDuePositionLotsFetcher(),
+                                portfolioDataFetcher.getLotsFetchHotIntervalSeconds(),
+                                portfolioDataFetcher.getLotsFetchHotIntervalSeconds());
+                    }
 
                     isInitialized = true;
                 }
@@ -0,0 +1,31 @@
+package io.lotsandlots.web.servlet;
+
+import io.lotsandlots.util.MetricsRegistry;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Api(value = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    private MetricsRegistry metricsRegistry = MetricsRegistry.getInstance();
+
+    @ApiOperation(
+            httpMethod = "GET",
+            value = "Get counters, gauges and latency quantiles in the Prometheus text format.",
+            nickname = "metrics")
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("text/plain; version=0.0.4");
+        metricsRegistry.writePrometheusText(response.getWriter());
+    }
+
+    void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+}
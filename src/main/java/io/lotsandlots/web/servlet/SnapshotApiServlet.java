@@ -0,0 +1,93 @@
+package io.lotsandlots.web.servlet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves a ViewEtradeSnapshot as JSON, filtered by the symbol query parameter and paged by offset and limit. Bodies
+ * come from the snapshot's cache, gzipped if the client accepts it, and a client that already has the snapshot's
+ * version, as told by If-None-Match, gets a 304 without one.
+ */
+public interface SnapshotApiServlet {
+
+    default void doSnapshotGet(HttpServletRequest request,
+                               HttpServletResponse response,
+                               ViewEtradeSnapshot snapshot,
+                               boolean firstItemOnly) throws IOException {
+        String offset = request.getParameter("offset");
+        String limit = request.getParameter("limit");
+        int offsetValue = offset == null ? 0 : NumberUtils.toInt(offset, -1);
+        int limitValue = limit == null ? Integer.MAX_VALUE : NumberUtils.toInt(limit, -1);
+        if (offsetValue < 0 || limitValue < 0) {
+            response.sendError(400, "Query parameters 'offset' and 'limit' should have non-negative integer values");
+            return;
+        }
+        String symbol = request.getParameter("symbol");
+
+        ViewEtradeSnapshot.Body body = snapshot.getBody(
+                StringUtils.isBlank(symbol) ? null : symbol.toUpperCase(), firstItemOnly, offsetValue, limitValue);
+        byte[] gzippedBytes = isGzipAccepted(request) ? body.getGzippedBytes() : null;
+        String eTag = snapshot.getETag(gzippedBytes != null);
+        // Clients may keep the body, but have to check that it is still current before using it.
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("ETag", eTag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (isETagMatched(request.getHeader("If-None-Match"), eTag)) {
+            response.setStatus(304);
+            return;
+        }
+        byte[] bytes = body.getBytes();
+        if (gzippedBytes != null) {
+            response.setHeader("Content-Encoding", "gzip");
+            bytes = gzippedBytes;
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("application/json");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+
+    static boolean isGzipAccepted(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] codingAndParameters = coding.trim().split(";");
+            if (codingAndParameters[0].trim().equalsIgnoreCase("gzip")) {
+                // Accept-Encoding: gzip;q=0 refuses it.
+                for (int i = 1; i < codingAndParameters.length; i++) {
+                    String parameter = codingAndParameters[i].replace(" ", "");
+                    if (parameter.startsWith("q=") && NumberUtils.toDouble(parameter.substring(2), 1D) == 0D) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ifNoneMatch Entity tags a client has, e.g. "1", W/"2" or *. Weak tags match too, as they do for GET.
+     */
+    static boolean isETagMatched(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
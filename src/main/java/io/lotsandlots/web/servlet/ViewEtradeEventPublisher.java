@@ -0,0 +1,395 @@
+package io.lotsandlots.web.servlet;
+
+import com.typesafe.config.Config;
+import io.lotsandlots.etrade.EtradeOrdersDataFetcher;
+import io.lotsandlots.etrade.EtradePortfolioDataFetcher;
+import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.ConfigWrapper;
+import io.lotsandlots.util.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the lots and orders that changed in a fetch generation to the pages subscribed through
+ * ViewEtradeEventsServlet. When a fetch completes, lots and orders are serialized into a new ViewEtradeSnapshot,
+ * symbol by symbol, and compared with the snapshot published last. Only the symbols whose items differ are sent, in
+ * one event per table, and the snapshot replaces the one served by ApiLotsServlet or ApiOrdersServlet. Lots are
+ * compared after an orders fetch too, since a lot's orderStatus depends on the sell orders.
+ *
+ * Events are numbered from the time the publisher started, and the last view.eventsReplayCapacity of them are kept so
+ * that a page can catch up from the id it was rendered with, or a reconnecting EventSource from its Last-Event-ID.
+ * Serializing and replaying happen on one thread, so subscribers see events in order. Each subscriber writes its events
+ * with non-blocking IO from a queue of at most view.eventsSubscriberQueueCapacity messages, and is dropped when a
+ * stalled page lets that queue fill up, so neither a fetcher nor the other pages ever wait on a slow client.
+ */
+public class ViewEtradeEventPublisher implements EtradeOrdersDataFetcher.OnOrdersDataFetchCompletionHandler,
+                                                 EtradePortfolioDataFetcher.OnPortfolioDataFetchCompletionHandler {
+
+    private static final Config CONFIG = ConfigWrapper.getConfig();
+    private static final Logger LOG = LoggerFactory.getLogger(ViewEtradeEventPublisher.class);
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final MetricsRegistry.Counter SUBSCRIBERS_DROPPED = METRICS.counter(
+            "lotsandlots_view_event_subscribers_dropped_total",
+            "Pages dropped because they stopped reading events.");
+    private static ViewEtradeEventPublisher PUBLISHER = null;
+
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean publishScheduled = new AtomicBoolean(false);
+    private final Deque<Event> recentEvents = new ArrayDeque<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private long eventsHeartbeatSeconds = 15L;
+    private int eventsReplayCapacity = 256;
+    private int eventsSubscriberQueueCapacity = 512;
+    private volatile long lastEventId = System.currentTimeMillis();
+    private volatile ViewEtradeSnapshot lotsSnapshot = new ViewEtradeSnapshot(lastEventId, new HashMap<>());
+    private volatile EtradeOrdersDataFetcher ordersDataFetcher;
+    private volatile ViewEtradeSnapshot ordersSnapshot = new ViewEtradeSnapshot(lastEventId, new HashMap<>());
+    private volatile EtradePortfolioDataFetcher portfolioDataFetcher;
+
+    ViewEtradeEventPublisher() {
+        if (CONFIG.hasPath("view.eventsHeartbeatSeconds")) {
+            eventsHeartbeatSeconds = CONFIG.getLong("view.eventsHeartbeatSeconds");
+        }
+        if (CONFIG.hasPath("view.eventsReplayCapacity")) {
+            eventsReplayCapacity = CONFIG.getInt("view.eventsReplayCapacity");
+        }
+        if (CONFIG.hasPath("view.eventsSubscriberQueueCapacity")) {
+            eventsSubscriberQueueCapacity = CONFIG.getInt("view.eventsSubscriberQueueCapacity");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "view-etrade-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Comments keep idle connections from being closed by proxies, and find subscribers that have gone away.
+        executor.scheduleWithFixedDelay(
+                () -> sendToSubscribers(": heartbeat\n\n"),
+                eventsHeartbeatSeconds, eventsHeartbeatSeconds, TimeUnit.SECONDS);
+        METRICS.gauge("lotsandlots_view_event_subscribers",
+                      "Pages subscribed to lots and orders events.",
+                      subscribers::size);
+        LOG.info("Initialized ViewEtradeEventPublisher, eventsHeartbeatSeconds={} eventsReplayCapacity={} "
+                        + "eventsSubscriberQueueCapacity={}",
+                eventsHeartbeatSeconds, eventsReplayCapacity, eventsSubscriberQueueCapacity);
+    }
+
+    public static synchronized ViewEtradeEventPublisher getInstance() {
+        if (PUBLISHER == null) {
+            PUBLISHER = new ViewEtradeEventPublisher();
+        }
+        return PUBLISHER;
+    }
+
+    /**
+     * Id of the last event published. A page that loads its data after this is taken misses no event when it
+     * subscribes with it.
+     */
+    public long getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * Lots as of the latest generation that changed any, the same data the last "lots" event was sent from.
+     */
+    public ViewEtradeSnapshot getLotsSnapshot() {
+        return lotsSnapshot;
+    }
+
+    public ViewEtradeSnapshot getOrdersSnapshot() {
+        return ordersSnapshot;
+    }
+
+    /**
+     * A subscriber for a page's event stream. It starts writing once it is set as the stream's WriteListener.
+     */
+    public Subscriber newSubscriber(ServletOutputStream outputStream, Runnable onClose) {
+        return new Subscriber(outputStream, eventsSubscriberQueueCapacity, onClose);
+    }
+
+    /**
+     * Publish changes after every completed fetch of either fetcher.
+     */
+    public void watch(EtradePortfolioDataFetcher portfolioDataFetcher, EtradeOrdersDataFetcher ordersDataFetcher) {
+        this.portfolioDataFetcher = portfolioDataFetcher;
+        this.ordersDataFetcher = ordersDataFetcher;
+        portfolioDataFetcher.addOnPortfolioDataFetchCompletionHandler(this);
+        ordersDataFetcher.addOnOrdersDataFetchCompletionHandler(this);
+    }
+
+    @Override
+    public void handleOrdersDataFetchCompletion(long timeFetchStarted, long timeFetchStopped) {
+        schedulePublish();
+    }
+
+    @Override
+    public void handlePortfolioDataFetchCompletion(long timeFetchStarted,
+                                                   long timeFetchStopped,
+                                                   PortfolioResponse.Totals totals) {
+        schedulePublish();
+    }
+
+    /**
+     * Fetches that complete while a publish is queued are covered by it, since it reads the indexes when it runs.
+     */
+    private void schedulePublish() {
+        if (publishScheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                publishScheduled.set(false);
+                EtradePortfolioDataFetcher portfolioDataFetcher = this.portfolioDataFetcher;
+                EtradeOrdersDataFetcher ordersDataFetcher = this.ordersDataFetcher;
+                if (portfolioDataFetcher == null || ordersDataFetcher == null) {
+                    return;
+                }
+                try {
+                    publishChanges(portfolioDataFetcher.getSymbolToLotsIndex(),
+                                   ordersDataFetcher.getSymbolToSellOrdersIndex(),
+                                   ordersDataFetcher.getSymbolToBuyOrdersIndex());
+                } catch (Exception e) {
+                    LOG.error("Failed to publish lots and orders changes", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Must be called on the executor thread.
+     */
+    void publishChanges(Map<String, List<Lot>> symbolToLotsIndex,
+                        Map<String, List<Order>> symbolToSellOrdersIndex,
+                        Map<String, List<Order>> symbolToBuyOrdersIndex) {
+        Map<String, List<String>> lotItems = ViewEtradeSnapshot.newLotItems(symbolToLotsIndex, symbolToSellOrdersIndex);
+        Map<String, List<String>> changedLotItems = changedItems(lotsSnapshot.getSymbolToItems(), lotItems);
+        if (!changedLotItems.isEmpty()) {
+            long eventId = lastEventId + 1L;
+            lotsSnapshot = new ViewEtradeSnapshot(eventId, lotItems);
+            publish(new Event(eventId, "lots", ViewEtradeSnapshot.toJson(changedLotItems)), changedLotItems.size());
+        }
+        Map<String, List<String>> orderItems =
+                ViewEtradeSnapshot.newOrderItems(symbolToBuyOrdersIndex, symbolToSellOrdersIndex);
+        Map<String, List<String>> changedOrderItems = changedItems(ordersSnapshot.getSymbolToItems(), orderItems);
+        if (!changedOrderItems.isEmpty()) {
+            long eventId = lastEventId + 1L;
+            ordersSnapshot = new ViewEtradeSnapshot(eventId, orderItems);
+            publish(new Event(eventId, "orders", ViewEtradeSnapshot.toJson(changedOrderItems)),
+                    changedOrderItems.size());
+        }
+    }
+
+    private void publish(Event event, int changedSymbols) {
+        recentEvents.addLast(event);
+        while (recentEvents.size() > eventsReplayCapacity) {
+            recentEvents.removeFirst();
+        }
+        lastEventId = event.id;
+        METRICS.counter("lotsandlots_view_events_published_total",
+                        "Lots and orders events sent to subscribed pages.",
+                        "event", event.name).increment();
+        LOG.debug("Publishing event, id={} event={} changedSymbols={} subscribers={}",
+                event.id, event.name, changedSymbols, subscribers.size());
+        sendToSubscribers(event.toString());
+    }
+
+    /**
+     * @return Items of the symbols whose items differ, sorted by symbol. A symbol that is gone has no items.
+     */
+    static Map<String, List<String>> changedItems(Map<String, List<String>> publishedItems,
+                                                  Map<String, List<String>> currentItems) {
+        Map<String, List<String>> changedItems = new TreeMap<>();
+        for (Map.Entry<String, List<String>> entry : currentItems.entrySet()) {
+            if (!entry.getValue().equals(publishedItems.get(entry.getKey()))) {
+                changedItems.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String symbol : publishedItems.keySet()) {
+            if (!currentItems.containsKey(symbol)) {
+                changedItems.put(symbol, Collections.emptyList());
+            }
+        }
+        return changedItems;
+    }
+
+    /**
+     * Send the events published after lastEventIdSeen, then every new event. If some of those events are no longer
+     * kept, or lastEventIdSeen is from before a restart, a "reload" event is sent instead and the subscriber closed.
+     *
+     * @param lastEventIdSeen Null to only receive new events.
+     */
+    public void subscribe(Subscriber subscriber, Long lastEventIdSeen) {
+        executor.execute(() -> {
+            if (lastEventIdSeen != null && lastEventIdSeen != lastEventId) {
+                Event oldestEvent = recentEvents.peekFirst();
+                if (lastEventIdSeen > lastEventId || oldestEvent == null || lastEventIdSeen < oldestEvent.id - 1L) {
+                    LOG.debug("Events no longer available, lastEventIdSeen={} lastEventId={}",
+                            lastEventIdSeen, lastEventId);
+                    subscriber.send(new Event(lastEventId, "reload", "{}").toString());
+                    subscriber.close();
+                    return;
+                }
+                for (Event event : recentEvents) {
+                    if (event.id > lastEventIdSeen && !subscriber.send(event.toString())) {
+                        subscriber.close();
+                        return;
+                    }
+                }
+            }
+            subscribers.add(subscriber);
+        });
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        executor.execute(() -> subscribers.remove(subscriber));
+    }
+
+    private void sendToSubscribers(String message) {
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.send(message)) {
+                subscribers.remove(subscriber);
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for everything queued on the executor so far to run.
+     */
+    void awaitIdle() throws ExecutionException, InterruptedException {
+        executor.submit(() -> { }).get();
+    }
+
+    static class Event {
+
+        private final long id;
+        private final String data;
+        private final String name;
+
+        Event(long id, String name, String data) {
+            this.id = id;
+            this.data = data;
+            this.name = name;
+        }
+
+        /**
+         * The event in the text/event-stream format. Data written by Jackson has no line breaks, so it fits on one
+         * data line.
+         */
+        @Override
+        public String toString() {
+            return "id: " + id + "\nevent: " + name + "\ndata: " + data + "\n\n";
+        }
+    }
+
+    /**
+     * A page's event stream. Messages are queued by the publisher's thread and written with non-blocking IO, either
+     * right away or from onWritePossible once the container can take more.
+     */
+    public static class Subscriber implements WriteListener {
+
+        private final Runnable onClose;
+        private final ServletOutputStream outputStream;
+        private final Deque<byte[]> pendingMessages = new ArrayDeque<>();
+        private final int queueCapacity;
+        private boolean isClosed = false;
+        private boolean isFlushPending = false;
+        private boolean isStarted = false;
+
+        Subscriber(ServletOutputStream outputStream, int queueCapacity, Runnable onClose) {
+            this.onClose = onClose;
+            this.outputStream = outputStream;
+            this.queueCapacity = queueCapacity;
+        }
+
+        /**
+         * Queue a message without waiting for it to be written.
+         *
+         * @return False if the page has gone away, or has queueCapacity messages it has not read yet.
+         */
+        synchronized boolean send(String message) {
+            if (isClosed) {
+                return false;
+            }
+            if (pendingMessages.size() >= queueCapacity) {
+                LOG.info("Dropping event subscriber that stopped reading, pendingMessages={}", pendingMessages.size());
+                SUBSCRIBERS_DROPPED.increment();
+                isClosed = true;
+                pendingMessages.clear();
+                return false;
+            }
+            pendingMessages.addLast(message.getBytes(StandardCharsets.UTF_8));
+            if (isStarted) {
+                try {
+                    writePendingMessages();
+                } catch (IOException | RuntimeException e) {
+                    // The response may already have been completed by the container.
+                    isClosed = true;
+                    pendingMessages.clear();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            isStarted = true;
+            writePendingMessages();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                isClosed = true;
+                pendingMessages.clear();
+            }
+            LOG.debug("Failed to write to event stream", t);
+            close();
+        }
+
+        /**
+         * Write until the queue is empty or the container can't take more without blocking. In the latter case the
+         * container calls onWritePossible when it can.
+         */
+        private void writePendingMessages() throws IOException {
+            while (!isClosed && outputStream.isReady()) {
+                byte[] message = pendingMessages.pollFirst();
+                if (message != null) {
+                    outputStream.write(message);
+                    isFlushPending = true;
+                } else if (isFlushPending) {
+                    isFlushPending = false;
+                    outputStream.flush();
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                onClose.run();
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to close event stream", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.lotsandlots.web.servlet;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiImplicitParam;
+import io.swagger.annotations.ApiImplicitParams;
+import io.swagger.annotations.ApiOperation;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@Api(value = "/view/etrade")
+public class ViewEtradeEventsServlet extends HttpServlet {
+
+    private ViewEtradeEventPublisher eventPublisher = ViewEtradeEventPublisher.getInstance();
+
+    @ApiOperation(
+            httpMethod = "GET",
+            value = "Stream the lots and orders rows that change with each fetch, as server-sent events.",
+            nickname = "events")
+    @ApiImplicitParams(
+            {@ApiImplicitParam(name = "lastEventId", dataType = "integer", paramType = "query",
+                    value = "ID of the last event seen, used if there is no Last-Event-ID header.",
+                    example = "1644000000000")})
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // A reconnecting EventSource sends the id of the last event it received.
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (!StringUtils.isNumeric(lastEventId)) {
+            lastEventId = request.getParameter("lastEventId");
+        }
+        Long lastEventIdSeen = StringUtils.isNumeric(lastEventId) ? Long.valueOf(lastEventId) : null;
+
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("text/event-stream");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0L);
+        ServletOutputStream outputStream = response.getOutputStream();
+        ViewEtradeEventPublisher.Subscriber subscriber =
+                eventPublisher.newSubscriber(outputStream, asyncContext::complete);
+        subscriber.send("retry: 5000\n\n");
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                eventPublisher.unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                eventPublisher.unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                eventPublisher.unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        // Switches the stream to non-blocking IO. The container calls onWritePossible, which writes the retry above.
+        outputStream.setWriteListener(subscriber);
+        eventPublisher.subscribe(subscriber, lastEventIdSeen);
+    }
+
+    void setEventPublisher(ViewEtradeEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+}
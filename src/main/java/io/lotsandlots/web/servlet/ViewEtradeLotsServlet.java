@@ -1,33 +1,25 @@
 package io.lotsandlots.web.servlet;
 
-import io.lotsandlots.etrade.EtradeOrdersDataFetcher;
-import io.lotsandlots.etrade.EtradePortfolioDataFetcher;
-import io.lotsandlots.etrade.api.PositionLotsResponse;
-import io.lotsandlots.etrade.model.Order;
-import io.lotsandlots.util.DateFormatter;
 import io.lotsandlots.util.HtmlHelper;
-import io.lotsandlots.web.listener.LifecycleListener;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.web.util.HtmlUtils;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
+/**
+ * Page of lots, loaded from ApiLotsServlet and kept up to date by ViewEtradeEventsServlet. By default only the lowest
+ * priced lot of each position is shown, and showAllLots=true shows every lot.
+ */
 @Api(value = "/view/etrade")
 public class ViewEtradeLotsServlet extends HttpServlet {
 
-    private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("0.00");
-
-    private LifecycleListener lifecycleListener = LifecycleListener.getListener();
+    private ViewEtradeEventPublisher eventPublisher = ViewEtradeEventPublisher.getInstance();
 
     @ApiOperation(
             httpMethod = "GET",
@@ -39,36 +31,19 @@ public class ViewEtradeLotsServlet extends HttpServlet {
         if (!StringUtils.isNumeric(pageLength)) {
             pageLength = "999";
         }
-        String showAllLots = request.getParameter("showAllLots");
+        boolean isShowAllLots = "true".equals(request.getParameter("showAllLots"));
         String symbol = request.getParameter("symbol");
+        // Taken before the page loads its data, so that an event published meanwhile is replayed rather than missed.
+        long lastEventId = eventPublisher.getLastEventId();
 
-        //List<PositionLotsResponse.PositionLot> includedLots = new LinkedList<>();
-        //EtradePortfolioDataFetcher portfolioDataFetcher = lifecycleListener.getEtradePortfolioDataFetcher();
-        //if (portfolioDataFetcher != null) {
-        //    for (Map.Entry<String, List<PositionLotsResponse.PositionLot>> entry :
-        //            portfolioDataFetcher.getSymbolToLotsIndex().entrySet()) {
-        //        List<PositionLotsResponse.PositionLot> lots = entry.getValue();
-        //        if (!StringUtils.isBlank(symbol) && !entry.getKey().equals(symbol.toUpperCase())) {
-        //            continue;
-        //        }
-        //        if (showAllLots != null && showAllLots.equals("true")) {
-        //            includedLots.addAll(lots);
-        //        } else {
-        //            PositionLotsResponse.PositionLot lowestPricedLot = null;
-        //            for (PositionLotsResponse.PositionLot lot : lots) {
-        //                if (lowestPricedLot == null || lot.getPrice() < lowestPricedLot.getPrice()) {
-        //                    lowestPricedLot = lot;
-        //                }
-        //            }
-        //            includedLots.add(lowestPricedLot);
-        //        }
-        //    }
-        //}
-        //Map<String, List<Order>> symbolToOrdersIndex = new HashMap<>();
-        //EtradeOrdersDataFetcher ordersDataFetcher = lifecycleListener.getEtradeOrdersDataFetcher();
-        //if (ordersDataFetcher != null) {
-        //    symbolToOrdersIndex = ordersDataFetcher.getSymbolToSellOrdersIndex();
-        //}
+        UriComponentsBuilder apiUrlBuilder = UriComponentsBuilder.fromPath(
+                StringUtils.defaultString(request.getContextPath()) + "/api/lots");
+        if (!StringUtils.isBlank(symbol)) {
+            apiUrlBuilder.queryParam("symbol", symbol.toUpperCase());
+        }
+        if (!isShowAllLots) {
+            apiUrlBuilder.queryParam("lowestPricedOnly", "true");
+        }
 
         StringBuilder htmlBuilder = new StringBuilder();
         htmlBuilder.append("<html>");
@@ -78,7 +53,29 @@ public class ViewEtradeLotsServlet extends HttpServlet {
                 (symbol != null) ? HtmlUtils.htmlEscape(symbol) + " lots" : "Lots").append("</title>");
         HtmlHelper.appendDataTablesTags(htmlBuilder);
         HtmlHelper.appendDataTablesFeatures(htmlBuilder, "lots",
-                "\"order\": [[0, \"desc\"]],", "\"pageLength\": " + HtmlUtils.htmlEscape(pageLength));
+                "\"ajax\": {\"url\": " + HtmlHelper.toJavaScriptString(apiUrlBuilder.build().encode().toUriString())
+                        + ", \"dataSrc\": \"items\"},",
+                "\"columns\": ["
+                        + HtmlHelper.dataTablesColumn("totalCostForGainPct", HtmlHelper.RENDER_PERCENT) + ","
+                        + HtmlHelper.dataTablesColumn("orderStatus", "function(data, type) {"
+                                + "return type === 'display' && data !== 'OK'"
+                                + " ? '<p style=\"color:Red\"><b>' + data + '</b></p>' : data;"
+                                + "}") + ","
+                        + HtmlHelper.dataTablesColumn("symbol", HtmlHelper.RENDER_TEXT) + ","
+                        + HtmlHelper.dataTablesColumn("positionPctOfPortfolio", HtmlHelper.RENDER_PERCENT) + ","
+                        + HtmlHelper.dataTablesColumn("positionCost", HtmlHelper.RENDER_DOLLARS) + ","
+                        + HtmlHelper.dataTablesColumn("marketValue", HtmlHelper.RENDER_DOLLARS) + ","
+                        + HtmlHelper.dataTablesColumn("acquiredTimeMillis", HtmlHelper.RENDER_UTC_DATE)
+                        + "],",
+                "\"createdRow\": function(row, data) {"
+                        + "var pct = data.totalCostForGainPct;"
+                        + "$(row).css('background-color', pct > 0"
+                        + " ? (pct > 3 ? 'MediumSeaGreen' : 'PaleGreen')"
+                        + " : (pct < -3 ? 'LightCoral' : 'Pink'));"
+                        + "},",
+                "\"order\": [[0, \"desc\"]],",
+                "\"pageLength\": " + HtmlUtils.htmlEscape(pageLength));
+        HtmlHelper.appendLiveViewFeatures(htmlBuilder, "lots", "lots", lastEventId, symbol, !isShowAllLots);
         htmlBuilder.append("</head>");
         htmlBuilder.append("<body>");
 
@@ -93,49 +90,6 @@ public class ViewEtradeLotsServlet extends HttpServlet {
                 "dateAcquired"
         );
         htmlBuilder.append("<tbody>");
-        //for (PositionLotsResponse.PositionLot lot : includedLots) {
-        //    htmlBuilder.append("<tr");
-        //    if (lot.getTotalCostForGainPct() > 0) {
-        //        if (lot.getTotalCostForGainPct() > 3) {
-        //            htmlBuilder.append(" style=\"background-color: MediumSeaGreen\"");
-        //        } else {
-        //            htmlBuilder.append(" style=\"background-color: PaleGreen\"");
-        //        }
-        //    } else {
-        //        if (lot.getTotalCostForGainPct() < -3) {
-        //            htmlBuilder.append(" style=\"background-color: LightCoral\"");
-        //        } else {
-        //            htmlBuilder.append(" style=\"background-color: Pink\"");
-        //        }
-        //    }
-        //    htmlBuilder.append(">");
-
-        //    htmlBuilder.append("<td>").append(DECIMAL_FORMAT.format(lot.getTotalCostForGainPct())).append("%</td>");
-        //    if (!symbolToOrdersIndex.containsKey(lot.getSymbol())) {
-        //        htmlBuilder.append("<td>").append("<p style=\"color:Red\"><b>MISSING</b></p>").append("</td>");
-        //    } else {
-        //        List<Order> orders = symbolToOrdersIndex.get(lot.getSymbol());
-        //        if (orders.size() == lot.getTotalLotCount()) {
-        //            htmlBuilder.append("<td>").append("OK").append("</td>");
-        //        } else {
-        //            htmlBuilder.append("<td>").append("<p style=\"color:Red\"><b>MISMATCH</b></p>").append("</td>");
-        //        }
-        //    }
-        //    htmlBuilder.append("<td>").append(lot.getSymbol()).append("</td>");
-        //    htmlBuilder.append("<td>").append(DECIMAL_FORMAT.format(lot.getPositionPctOfPortfolio())).append("%</td>");
-        //    htmlBuilder.append("<td>$").append(DECIMAL_FORMAT.format(lot.getTotalPositionCost())).append("</td>");
-        //    htmlBuilder.append("<td>$").append(DECIMAL_FORMAT.format(lot.getMarketValue())).append("</td>");
-        //    if (lot.getAcquiredDate() != null) {
-        //        htmlBuilder.append("<td>")
-        //                .append(DateFormatter.epochSecondsToDateString(lot.getAcquiredDate() / 1000L))
-        //                .append("</td>");
-        //    } else {
-        //        htmlBuilder.append("<td>")
-        //                .append("null")
-        //                .append("</td>");
-        //    }
-        //    htmlBuilder.append("</tr>");
-        //}
         htmlBuilder.append("</tbody>");
         htmlBuilder.append("</table");
 
@@ -144,7 +98,7 @@ public class ViewEtradeLotsServlet extends HttpServlet {
         response.getWriter().print(htmlBuilder.substring(0, htmlBuilder.length() - 1));
     }
 
-    void setLifecycleListener(LifecycleListener lifecycleListener) {
-        this.lifecycleListener = lifecycleListener;
+    void setEventPublisher(ViewEtradeEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
     }
 }
@@ -1,30 +1,24 @@
 package io.lotsandlots.web.servlet;
 
-import io.lotsandlots.etrade.EtradeOrdersDataFetcher;
-import io.lotsandlots.etrade.model.Order;
-import io.lotsandlots.util.DateFormatter;
 import io.lotsandlots.util.HtmlHelper;
-import io.lotsandlots.web.listener.LifecycleListener;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.web.util.HtmlUtils;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
+/**
+ * Page of open orders, loaded from ApiOrdersServlet and kept up to date by ViewEtradeEventsServlet.
+ */
 @Api(value = "/view/etrade")
 public class ViewEtradeOrdersServlet extends HttpServlet {
 
-    private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("0.00");
-
-    private LifecycleListener lifecycleListener = LifecycleListener.getListener();
+    private ViewEtradeEventPublisher eventPublisher = ViewEtradeEventPublisher.getInstance();
 
     @ApiOperation(
             httpMethod = "GET",
@@ -37,35 +31,13 @@ public class ViewEtradeOrdersServlet extends HttpServlet {
             pageLength = "999";
         }
         String symbol = request.getParameter("symbol");
+        // Taken before the page loads its data, so that an event published meanwhile is replayed rather than missed.
+        long lastEventId = eventPublisher.getLastEventId();
 
-        List<Order> ordersToDisplay = new LinkedList<>();
-        EtradeOrdersDataFetcher ordersDataFetcher = lifecycleListener.getEtradeOrdersDataFetcher();
-        if (ordersDataFetcher != null) {
-            if (StringUtils.isBlank(symbol)) {
-                for (List<Order> buyOrders : ordersDataFetcher.getSymbolToBuyOrdersIndex().values()) {
-                    ordersToDisplay.addAll(buyOrders);
-                }
-                for (List<Order> sellOrders : ordersDataFetcher.getSymbolToSellOrdersIndex().values()) {
-                    ordersToDisplay.addAll(sellOrders);
-                }
-            } else {
-                for (Map.Entry<String, List<Order>> entry :
-                        ordersDataFetcher.getSymbolToBuyOrdersIndex().entrySet()) {
-                    List<Order> buyOrders = entry.getValue();
-                    if (!entry.getKey().equals(symbol.toUpperCase())) {
-                        continue;
-                    }
-                    ordersToDisplay.addAll(buyOrders);
-                }
-                for (Map.Entry<String, List<Order>> entry :
-                        ordersDataFetcher.getSymbolToSellOrdersIndex().entrySet()) {
-                    List<Order> sellOrders = entry.getValue();
-                    if (!entry.getKey().equals(symbol.toUpperCase())) {
-                        continue;
-                    }
-                    ordersToDisplay.addAll(sellOrders);
-                }
-            }
+        UriComponentsBuilder apiUrlBuilder = UriComponentsBuilder.fromPath(
+                StringUtils.defaultString(request.getContextPath()) + "/api/orders");
+        if (!StringUtils.isBlank(symbol)) {
+            apiUrlBuilder.queryParam("symbol", symbol.toUpperCase());
         }
 
         StringBuilder htmlBuilder = new StringBuilder();
@@ -75,7 +47,19 @@ public class ViewEtradeOrdersServlet extends HttpServlet {
                 (symbol != null) ? HtmlUtils.htmlEscape(symbol) + " orders" : "Orders").append("</title>");
         HtmlHelper.appendDataTablesTags(htmlBuilder);
         HtmlHelper.appendDataTablesFeatures(htmlBuilder, "orders",
-                "\"order\": [[0, \"desc\"]],", "\"pageLength\": " + HtmlUtils.htmlEscape(pageLength));
+                "\"ajax\": {\"url\": " + HtmlHelper.toJavaScriptString(apiUrlBuilder.build().encode().toUriString())
+                        + ", \"dataSrc\": \"items\"},",
+                "\"columns\": ["
+                        + HtmlHelper.dataTablesColumn("placedTimeMillis", HtmlHelper.RENDER_UTC_DATE) + ","
+                        + HtmlHelper.dataTablesColumn("symbol", HtmlHelper.RENDER_TEXT) + ","
+                        + HtmlHelper.dataTablesColumn("orderedQuantity", null) + ","
+                        + HtmlHelper.dataTablesColumn("limitPrice", HtmlHelper.RENDER_DOLLARS) + ","
+                        + HtmlHelper.dataTablesColumn("orderAction", HtmlHelper.RENDER_TEXT) + ","
+                        + HtmlHelper.dataTablesColumn("status", HtmlHelper.RENDER_TEXT)
+                        + "],",
+                "\"order\": [[0, \"desc\"]],",
+                "\"pageLength\": " + HtmlUtils.htmlEscape(pageLength));
+        HtmlHelper.appendLiveViewFeatures(htmlBuilder, "orders", "orders", lastEventId, symbol, false);
         htmlBuilder.append("</head>");
         htmlBuilder.append("<body>");
 
@@ -89,18 +73,6 @@ public class ViewEtradeOrdersServlet extends HttpServlet {
                 "status"
         );
         htmlBuilder.append("<tbody>");
-        for (Order order : ordersToDisplay) {
-            htmlBuilder.append("<tr>");
-            htmlBuilder.append("<td>")
-                       .append(DateFormatter.epochSecondsToDateString(order.getPlacedTime() / 1000L))
-                       .append("</td>");
-            htmlBuilder.append("<td>").append(order.getSymbol()).append("</td>");
-            htmlBuilder.append("<td>").append(order.getOrderedQuantity()).append("</td>");
-            htmlBuilder.append("<td>$").append(DECIMAL_FORMAT.format(order.getLimitPrice())).append("</td>");
-            htmlBuilder.append("<td>").append(order.getOrderAction()).append("</td>");
-            htmlBuilder.append("<td>").append(order.getStatus()).append("</td>");
-            htmlBuilder.append("</tr>");
-        }
         htmlBuilder.append("</tbody>");
         htmlBuilder.append("</table");
 
@@ -109,7 +81,7 @@ public class ViewEtradeOrdersServlet extends HttpServlet {
         response.getWriter().print(htmlBuilder.substring(0, htmlBuilder.length() - 1));
     }
 
-    void setLifecycleListener(LifecycleListener lifecycleListener) {
-        this.lifecycleListener = lifecycleListener;
+    void setEventPublisher(ViewEtradeEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
     }
 }
@@ -0,0 +1,260 @@
+package io.lotsandlots.web.servlet;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.FixedPoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Lots or orders as of one fetch generation, in the JSON served by ApiLotsServlet and ApiOrdersServlet. Every lot or
+ * order is serialized once, when ViewEtradeEventPublisher builds the snapshot, and a response body is assembled from
+ * those items on the first request for it and then kept, along with its gzipped bytes, for every later request with
+ * the same parameters. The version is the id of the event the snapshot was published with, so it changes only when
+ * an item does.
+ */
+public class ViewEtradeSnapshot {
+
+    private static final int GZIP_MIN_BYTES = 1024;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    // A body per symbol filter and page size in use, bounded in case a client walks through many pages.
+    private static final int MAX_CACHED_BODIES = 512;
+
+    private final ConcurrentMap<String, Body> bodies = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> symbolToItems;
+    private final long version;
+
+    /**
+     * @param symbolToItems Items of every symbol, as JSON objects.
+     */
+    ViewEtradeSnapshot(long version, Map<String, List<String>> symbolToItems) {
+        this.symbolToItems = Collections.unmodifiableMap(new TreeMap<>(symbolToItems));
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Strong entity tag of a body of this snapshot. Gzipped bodies have their own, since their bytes differ.
+     */
+    public String getETag(boolean isGzipped) {
+        return "\"" + version + (isGzipped ? "-gzip" : "") + "\"";
+    }
+
+    Map<String, List<String>> getSymbolToItems() {
+        return symbolToItems;
+    }
+
+    /**
+     * @param symbol Only items of this symbol, or null for every symbol.
+     * @param firstItemOnly Only the first item of each symbol, for lots the lowest priced.
+     * @param offset Number of items to skip.
+     * @param limit Most items to return.
+     */
+    public Body getBody(String symbol, boolean firstItemOnly, int offset, int limit) {
+        String key = symbol + "|" + firstItemOnly + "|" + offset + "|" + limit;
+        Body body = bodies.get(key);
+        if (body == null) {
+            body = new Body(newBodyBytes(symbol, firstItemOnly, offset, limit));
+            if (bodies.size() < MAX_CACHED_BODIES) {
+                Body cachedBody = bodies.putIfAbsent(key, body);
+                if (cachedBody != null) {
+                    body = cachedBody;
+                }
+            }
+        }
+        return body;
+    }
+
+    private byte[] newBodyBytes(String symbol, boolean firstItemOnly, int offset, int limit) {
+        List<String> items = new ArrayList<>();
+        if (symbol == null) {
+            for (List<String> symbolItems : symbolToItems.values()) {
+                addItems(items, symbolItems, firstItemOnly);
+            }
+        } else if (symbolToItems.containsKey(symbol)) {
+            addItems(items, symbolToItems.get(symbol), firstItemOnly);
+        }
+        int fromIndex = Math.min(offset, items.size());
+        int toIndex = (int) Math.min((long) fromIndex + limit, items.size());
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"version\":").append(version)
+            .append(",\"total\":").append(items.size())
+            .append(",\"offset\":").append(fromIndex)
+            .append(",\"items\":[");
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (i > fromIndex) {
+                json.append(',');
+            }
+            json.append(items.get(i));
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void addItems(List<String> items, List<String> symbolItems, boolean firstItemOnly) {
+        if (firstItemOnly) {
+            if (!symbolItems.isEmpty()) {
+                items.add(symbolItems.get(0));
+            }
+        } else {
+            items.addAll(symbolItems);
+        }
+    }
+
+    /**
+     * Serialize lots by symbol, lowest priced first. A lot's orderStatus is MISSING if its symbol has no sell orders,
+     * MISMATCH if the symbol has a different number of sell orders than lots, and OK otherwise.
+     */
+    static Map<String, List<String>> newLotItems(Map<String, List<Lot>> symbolToLotsIndex,
+                                                 Map<String, List<Order>> symbolToSellOrdersIndex) {
+        Map<String, List<String>> symbolToItems = new TreeMap<>();
+        for (Map.Entry<String, List<Lot>> entry : symbolToLotsIndex.entrySet()) {
+            List<Lot> lots = new ArrayList<>(entry.getValue());
+            lots.sort(Comparator.comparingLong(Lot::getPriceMicros));
+            List<Order> sellOrders = symbolToSellOrdersIndex.get(entry.getKey());
+            String orderStatus;
+            if (sellOrders == null) {
+                orderStatus = "MISSING";
+            } else if (sellOrders.size() == lots.size()) {
+                orderStatus = "OK";
+            } else {
+                orderStatus = "MISMATCH";
+            }
+            List<String> items = new ArrayList<>(lots.size());
+            for (Lot lot : lots) {
+                StringWriter writer = new StringWriter();
+                try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("acquiredTimeMillis", lot.getAcquiredTimeMillis());
+                    generator.writeNumberField("lotId", lot.getLotId());
+                    generator.writeNumberField("marketValue", FixedPoint.toDouble(lot.getMarketValueMicros()));
+                    generator.writeStringField("orderStatus", orderStatus);
+                    generator.writeNumberField("positionCost", FixedPoint.toDouble(lot.getPositionCostMicros()));
+                    generator.writeNumberField("positionPctOfPortfolio",
+                                               FixedPoint.toDouble(lot.getPositionPctOfPortfolioMicros()));
+                    generator.writeNumberField("price", FixedPoint.toDouble(lot.getPriceMicros()));
+                    generator.writeStringField("symbol", lot.getSymbol());
+                    generator.writeNumberField("totalCostForGainPct",
+                                               FixedPoint.toDouble(lot.getTotalCostForGainPctMicros()));
+                    generator.writeEndObject();
+                } catch (IOException e) {
+                    throw new IllegalStateException("StringWriter does not throw", e);
+                }
+                items.add(writer.toString());
+            }
+            symbolToItems.put(entry.getKey(), items);
+        }
+        return symbolToItems;
+    }
+
+    /**
+     * Serialize orders by symbol, buy orders first.
+     */
+    static Map<String, List<String>> newOrderItems(Map<String, List<Order>> symbolToBuyOrdersIndex,
+                                                   Map<String, List<Order>> symbolToSellOrdersIndex) {
+        Map<String, List<String>> symbolToItems = new TreeMap<>();
+        addOrderItems(symbolToItems, symbolToBuyOrdersIndex);
+        addOrderItems(symbolToItems, symbolToSellOrdersIndex);
+        return symbolToItems;
+    }
+
+    private static void addOrderItems(Map<String, List<String>> symbolToItems,
+                                      Map<String, List<Order>> symbolToOrdersIndex) {
+        for (Map.Entry<String, List<Order>> entry : symbolToOrdersIndex.entrySet()) {
+            List<String> items = symbolToItems.computeIfAbsent(entry.getKey(), symbol -> new ArrayList<>());
+            for (Order order : entry.getValue()) {
+                StringWriter writer = new StringWriter();
+                try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("limitPrice", FixedPoint.toDouble(order.getLimitPriceMicros()));
+                    generator.writeStringField("orderAction", order.getOrderAction());
+                    generator.writeNumberField("orderId", order.getOrderId());
+                    generator.writeNumberField("orderedQuantity", order.getOrderedQuantity());
+                    generator.writeNumberField("placedTimeMillis", order.getPlacedTimeMillis());
+                    generator.writeStringField("status", order.getStatus());
+                    generator.writeStringField("symbol", order.getSymbol());
+                    generator.writeEndObject();
+                } catch (IOException e) {
+                    throw new IllegalStateException("StringWriter does not throw", e);
+                }
+                items.add(writer.toString());
+            }
+        }
+    }
+
+    /**
+     * Items of the given symbols as a JSON object of arrays, e.g. {"A":[{...}],"B":[]}.
+     */
+    static String toJson(Map<String, List<String>> symbolToItems) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            for (Map.Entry<String, List<String>> entry : symbolToItems.entrySet()) {
+                generator.writeArrayFieldStart(entry.getKey());
+                for (String item : entry.getValue()) {
+                    generator.writeRawValue(item);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter does not throw", e);
+        }
+        return writer.toString();
+    }
+
+    public static class Body {
+
+        private final byte[] bytes;
+        private volatile byte[] gzippedBytes;
+
+        Body(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Compressed on first use. Racing callers may both compress, and either result is kept.
+         *
+         * @return Null if the body is too small to be worth compressing.
+         */
+        public byte[] getGzippedBytes() {
+            if (bytes.length < GZIP_MIN_BYTES) {
+                return null;
+            }
+            byte[] gzippedBytes = this.gzippedBytes;
+            if (gzippedBytes == null) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 4);
+                try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+                    gzipOutputStream.write(bytes);
+                } catch (IOException e) {
+                    throw new IllegalStateException("ByteArrayOutputStream does not throw", e);
+                }
+                gzippedBytes = outputStream.toByteArray();
+                this.gzippedBytes = gzippedBytes;
+            }
+            return gzippedBytes;
+        }
+    }
+}
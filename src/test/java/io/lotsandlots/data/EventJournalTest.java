@@ -0,0 +1,181 @@
+package io.lotsandlots.data;
+
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.FixedPoint;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test(groups = {"unit"})
+public class EventJournalTest {
+
+    private File dbFile;
+    private SqliteDatabase db;
+
+    @BeforeClass
+    public void beforeClass() throws IOException, SQLException {
+        dbFile = File.createTempFile("lotsandlots", ".db");
+        db = new SqliteDatabase("jdbc:sqlite:" + dbFile.getAbsolutePath());
+    }
+
+    @AfterClass
+    public void afterClass() {
+        db.close();
+        dbFile.delete();
+    }
+
+    public void testAppendAndReplay() throws IOException {
+        EventJournal journal = new EventJournal(newDirectory(), 1048576, null);
+        try {
+            journal.appendDecision("AAA", 1, "Follow threshold breached");
+            journal.appendPlacedOrder(newOrder("AAA", 1, 101L, "BUY", System.currentTimeMillis()));
+            journal.appendPlacedOrder(newOrder("BBB", 2, 102L, "SELL", System.currentTimeMillis()));
+
+            List<EventJournal.Record> records = replay(journal);
+            Assert.assertEquals(records.size(), 3);
+            Assert.assertEquals(records.get(0).getType(), EventJournal.DECISION);
+            Assert.assertEquals(records.get(0).getText(), "Follow threshold breached");
+            Assert.assertEquals(records.get(0).getSymbol(), "AAA");
+            Assert.assertTrue(records.get(1).isPlacedBuyOrder());
+            Assert.assertEquals(records.get(1).getOrderId(), 101L);
+            Assert.assertEquals(records.get(1).getPriceMicros(), FixedPoint.toMicros(9.99));
+            Assert.assertEquals(records.get(1).getQuantity(), 10L);
+            Assert.assertEquals(records.get(1).getSymbolId(), 1);
+            Assert.assertFalse(records.get(2).isPlacedBuyOrder());
+            Assert.assertEquals(records.get(2).getSymbol(), "BBB");
+        } finally {
+            journal.close();
+        }
+    }
+
+    public void testCompact() throws IOException, SQLException {
+        EventJournal journal = new EventJournal(newDirectory(), 1048576, db);
+        try {
+            long placedTimeMillis = System.currentTimeMillis();
+            journal.appendDecision("CCC", 3, "Did not find any lots");
+            journal.appendPlacedOrder(newOrder("CCC", 3, 103L, "BUY", placedTimeMillis));
+            journal.appendPlacedOrder(newOrder("CCC", 3, 104L, "SELL", placedTimeMillis));
+            journal.compact();
+            // A second pass only picks up what was appended since the first.
+            journal.compact();
+
+            Assert.assertEquals(countRows("SELECT COUNT(*) FROM journal_event WHERE symbol == 'CCC';"), 3);
+            Assert.assertEquals(countRows("SELECT COUNT(*) FROM placed_etrade_buy_order WHERE symbol == 'CCC';"), 1);
+            db.executePreparedQuery("SELECT * FROM placed_etrade_buy_order WHERE symbol == 'CCC';", stmt -> {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    Assert.assertTrue(rs.next());
+                    Assert.assertEquals(rs.getDouble("limit_price"), 9.99, 0.000001);
+                    Assert.assertEquals(rs.getString("order_id"), "103");
+                    Assert.assertEquals(rs.getLong("ordered_quantity"), 10L);
+                    Assert.assertEquals(rs.getLong("placed_time"), placedTimeMillis / 1000L);
+                    Assert.assertEquals(rs.getInt("symbol_id"), 3);
+                }
+            });
+        } finally {
+            journal.close();
+        }
+    }
+
+    public void testReopenAfterTornRecord() throws IOException, SQLException {
+        File directory = newDirectory();
+        EventJournal journal = new EventJournal(directory, 1048576, db);
+        journal.appendPlacedOrder(newOrder("DDD", 4, 105L, "BUY", System.currentTimeMillis()));
+        journal.compact();
+        journal.appendPlacedOrder(newOrder("DDD", 4, 106L, "BUY", System.currentTimeMillis()));
+        journal.flush();
+
+        // Simulate a crash halfway through writing the next record.
+        File segmentFile = directory.listFiles()[0];
+        int endPosition = lastRecordEnd(journal);
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.seek(endPosition);
+            file.writeInt(64);
+            file.writeInt(12345);
+            file.writeLong(-1L);
+        }
+
+        EventJournal reopenedJournal = new EventJournal(directory, 1048576, db);
+        try {
+            List<EventJournal.Record> records = replay(reopenedJournal);
+            Assert.assertEquals(records.size(), 2);
+            Assert.assertEquals(records.get(1).getOrderId(), 106L);
+
+            reopenedJournal.appendPlacedOrder(newOrder("DDD", 4, 107L, "BUY", System.currentTimeMillis()));
+            records = replay(reopenedJournal);
+            Assert.assertEquals(records.size(), 3);
+            Assert.assertEquals(records.get(2).getOrderId(), 107L);
+
+            // Only the records after the persisted compacted position are compacted.
+            reopenedJournal.compact();
+            Assert.assertEquals(countRows("SELECT COUNT(*) FROM journal_event WHERE symbol == 'DDD';"), 3);
+        } finally {
+            reopenedJournal.close();
+        }
+    }
+
+    public void testRetiredSegmentsAreDeleted() throws IOException {
+        EventJournal journal = new EventJournal(newDirectory(), 512, db);
+        try {
+            for (long orderId = 1L; orderId <= 20L; orderId++) {
+                // Placed long before the retention period.
+                journal.appendPlacedOrder(newOrder("EEE", 5, orderId, "SELL", 1000L));
+            }
+            Assert.assertTrue(journal.getSegmentCount() > 1);
+            Assert.assertEquals(replay(journal).size(), 20);
+
+            journal.compact();
+            Assert.assertEquals(journal.getSegmentCount(), 1);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private int countRows(String sql) throws SQLException {
+        AtomicInteger rowCount = new AtomicInteger();
+        db.executePreparedQuery(sql, stmt -> {
+            try (ResultSet rs = stmt.executeQuery()) {
+                rowCount.set(rs.getInt(1));
+            }
+        });
+        return rowCount.get();
+    }
+
+    private static int lastRecordEnd(EventJournal journal) {
+        AtomicInteger endPosition = new AtomicInteger();
+        journal.replay(record -> endPosition.set(record.nextPosition));
+        return endPosition.get();
+    }
+
+    private static File newDirectory() throws IOException {
+        return Files.createTempDirectory("lotsandlots-journal").toFile();
+    }
+
+    private static Order newOrder(String symbol, int symbolId, long orderId, String orderAction, long placedTimeMillis) {
+        Order order = new Order();
+        order.setLimitPriceMicros(FixedPoint.toMicros(9.99));
+        order.setOrderAction(orderAction);
+        order.setOrderId(orderId);
+        order.setOrderedQuantity(10L);
+        order.setPlacedTimeMillis(placedTimeMillis);
+        order.setSymbol(symbol);
+        order.setSymbolId(symbolId);
+        return order;
+    }
+
+    private static List<EventJournal.Record> replay(EventJournal journal) {
+        List<EventJournal.Record> records = new ArrayList<>();
+        journal.replay(records::add);
+        return records;
+    }
+}
@@ -0,0 +1,127 @@
+package io.lotsandlots.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upserts the lots of a position into an etrade_lot table one statement and commit per lot, as lots used to be
+ * written, against a single batch committed once. The database is a file in WAL mode like the application's, so the
+ * cost of each commit is part of the score.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class SqliteDatabaseBenchmark {
+
+    private static final String UPSERT_LOT = "INSERT OR REPLACE INTO etrade_lot ("
+            + "acquired_date,"
+            + "acquired_price,"
+            + "follow_price,"
+            + "last_price,"
+            + "lot_id,"
+            + "remaining_qty,"
+            + "symbol_id,"
+            + "target_price,"
+            + "updated_time"
+            + ") VALUES(?,?,?,?,?,?,?,?,?);";
+
+    @Param({"20", "200"})
+    private int lotCount;
+
+    private SqliteDatabase db;
+    private File dbFile;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        dbFile = File.createTempFile("lotsandlots-benchmark", ".db");
+        db = new SqliteDatabase("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        db.executeSql(
+                "CREATE TABLE IF NOT EXISTS etrade_lot ("
+                        + "acquired_date integer,"
+                        + "acquired_price real,"
+                        + "follow_price real,"
+                        + "last_price real,"
+                        + "lot_id text PRIMARY KEY,"
+                        + "remaining_qty real,"
+                        + "symbol_id integer,"
+                        + "target_price real,"
+                        + "updated_time integer"
+                        + ");"
+        );
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.close();
+        for (String suffix : new String[] {"", "-shm", "-wal"}) {
+            new File(dbFile.getAbsolutePath() + suffix).delete();
+        }
+    }
+
+    @Benchmark
+    public int upsertBatched() throws SQLException {
+        return db.executePreparedBatch(UPSERT_LOT, stmt -> {
+            for (int i = 0; i < lotCount; i++) {
+                bindLot(stmt, i);
+                stmt.addBatch();
+            }
+        });
+    }
+
+    @Benchmark
+    public int upsertOneAtATime() throws SQLException {
+        for (int i = 0; i < lotCount; i++) {
+            int lotIndex = i;
+            db.executePreparedUpdate(UPSERT_LOT, stmt -> {
+                bindLot(stmt, lotIndex);
+                stmt.executeUpdate();
+            });
+        }
+        return lotCount;
+    }
+
+    private static void bindLot(PreparedStatement stmt, int lotIndex) throws SQLException {
+        int updatedTime = (int) (System.currentTimeMillis() / 1000L);
+        stmt.setInt(1, 1640995200 + lotIndex * 86400);
+        stmt.setDouble(2, 24.5D);
+        stmt.setDouble(3, 23.77D);
+        stmt.setDouble(4, 25.01D);
+        stmt.setString(5, Long.toString(20000L + lotIndex));
+        stmt.setDouble(6, 4D);
+        stmt.setInt(7, 1);
+        stmt.setDouble(8, 25.24D);
+        stmt.setInt(9, updatedTime);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SqliteDatabaseBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,130 @@
+package io.lotsandlots.data;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test(groups = {"unit"})
+public class SqliteDatabaseTest {
+
+    private File dbFile;
+    private SqliteDatabase db;
+
+    @BeforeClass
+    public void beforeClass() throws IOException, SQLException {
+        dbFile = File.createTempFile("lotsandlots", ".db");
+        db = new SqliteDatabase("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        db.executeSql("CREATE TABLE IF NOT EXISTS test_row (id integer PRIMARY KEY, value text);");
+    }
+
+    @AfterClass
+    public void afterClass() {
+        db.close();
+        dbFile.delete();
+    }
+
+    public void testAddColumnIfMissing() throws SQLException {
+        db.executeSql("CREATE TABLE IF NOT EXISTS old_row (id integer PRIMARY KEY);");
+        db.addColumnIfMissing("old_row", "value", "text");
+        // Adding it again is a no-op rather than a duplicate column error.
+        db.addColumnIfMissing("old_row", "value", "text");
+        db.executeSql("INSERT OR REPLACE INTO old_row (id, value) VALUES(1, 'ADDED');");
+    }
+
+    public void testBatchIsAtomic() throws SQLException {
+        int rowCount = db.executePreparedBatch("INSERT OR REPLACE INTO test_row (id, value) VALUES(?,?);", stmt -> {
+            for (int i = 100; i < 110; i++) {
+                stmt.setInt(1, i);
+                stmt.setString(2, "BATCH");
+                stmt.addBatch();
+            }
+        });
+        Assert.assertEquals(rowCount, 10);
+        Assert.assertEquals(countRows("BATCH"), 10);
+
+        Assert.assertThrows(SQLException.class, () -> db.executePreparedBatch(
+                "INSERT INTO test_row (id, value) VALUES(?,?);", stmt -> {
+                    stmt.setInt(1, 200);
+                    stmt.setString(2, "ROLLED_BACK");
+                    stmt.addBatch();
+                    // Duplicate primary key fails the batch.
+                    stmt.setInt(1, 200);
+                    stmt.setString(2, "ROLLED_BACK");
+                    stmt.addBatch();
+                }));
+        Assert.assertEquals(countRows("ROLLED_BACK"), 0);
+    }
+
+    public void testConcurrentReadsSeeCommittedWrites() throws Exception {
+        db.executePreparedUpdate("INSERT OR REPLACE INTO test_row (id, value) VALUES(?,?);", stmt -> {
+            stmt.setInt(1, 1);
+            stmt.setString(2, "CONCURRENT_READS");
+            stmt.executeUpdate();
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger rowsRead = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit(() -> {
+                db.executePreparedQuery("SELECT value FROM test_row WHERE id == ?;", stmt -> {
+                    stmt.setInt(1, 1);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        Assert.assertTrue(rs.next());
+                        Assert.assertEquals(rs.getString("value"), "CONCURRENT_READS");
+                        rowsRead.incrementAndGet();
+                    }
+                });
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assert.assertEquals(rowsRead.get(), 32);
+    }
+
+    public void testInitializationFailureIsThrown() {
+        File missingDirectory = new File(System.getProperty("java.io.tmpdir"), "sqlite-missing-" + System.nanoTime());
+        Assert.assertThrows(SQLException.class, () -> new SqliteDatabase(
+                "jdbc:sqlite:" + new File(missingDirectory, "test.db").getAbsolutePath()));
+    }
+
+    public void testJournalModeIsWal() throws SQLException {
+        List<String> journalModes = new ArrayList<>();
+        db.executePreparedQuery("PRAGMA journal_mode;", stmt -> {
+            try (ResultSet rs = stmt.executeQuery()) {
+                journalModes.add(rs.getString(1));
+            }
+        });
+        Assert.assertEquals(journalModes.get(0).toLowerCase(), "wal");
+    }
+
+    public void testWriteExceptionIsPropagated() {
+        Assert.assertThrows(SQLException.class, () -> db.executeSql("INSERT INTO missing_table VALUES(1);"));
+    }
+
+    private int countRows(String value) throws SQLException {
+        AtomicInteger rowCount = new AtomicInteger();
+        db.executePreparedQuery("SELECT COUNT(*) FROM test_row WHERE value == ?;", stmt -> {
+            stmt.setString(1, value);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rowCount.set(rs.getInt(1));
+            }
+        });
+        return rowCount.get();
+    }
+}
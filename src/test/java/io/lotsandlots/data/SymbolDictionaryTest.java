@@ -0,0 +1,58 @@
+package io.lotsandlots.data;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+@Test(groups = {"unit"})
+public class SymbolDictionaryTest {
+
+    private File dbFile;
+    private SqliteDatabase db;
+
+    @BeforeClass
+    public void beforeClass() throws IOException, SQLException {
+        dbFile = File.createTempFile("lotsandlots", ".db");
+        db = new SqliteDatabase("jdbc:sqlite:" + dbFile.getAbsolutePath());
+    }
+
+    @AfterClass
+    public void afterClass() {
+        db.close();
+        dbFile.delete();
+    }
+
+    public void testIdOf() throws SQLException {
+        SymbolDictionary symbolDictionary = new SymbolDictionary(db);
+        Assert.assertEquals(symbolDictionary.find("AAA"), -1);
+        Assert.assertEquals(symbolDictionary.idOf("AAA"), 0);
+        Assert.assertEquals(symbolDictionary.idOf("BBB"), 1);
+        Assert.assertEquals(symbolDictionary.idOf(new String("AAA")), 0);
+        Assert.assertEquals(symbolDictionary.find("BBB"), 1);
+        Assert.assertEquals(symbolDictionary.size(), 2);
+        Assert.assertEquals(symbolDictionary.symbolOf(1), "BBB");
+        Assert.assertNull(symbolDictionary.symbolOf(2));
+        Assert.assertNull(symbolDictionary.symbolOf(-1));
+
+        // Ids survive a restart. The writer thread runs in order, so this write lands after the queued inserts.
+        db.executeSql("SELECT 1;");
+        SymbolDictionary reloadedDictionary = new SymbolDictionary(db);
+        Assert.assertEquals(reloadedDictionary.find("AAA"), 0);
+        Assert.assertEquals(reloadedDictionary.find("BBB"), 1);
+        Assert.assertEquals(reloadedDictionary.idOf("CCC"), 2);
+    }
+
+    public void testGrowth() {
+        SymbolDictionary symbolDictionary = new SymbolDictionary(null);
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals(symbolDictionary.idOf("SYMBOL_" + i), i);
+        }
+        Assert.assertEquals(symbolDictionary.symbolOf(150), "SYMBOL_150");
+        Assert.assertEquals(symbolDictionary.size(), 200);
+    }
+}
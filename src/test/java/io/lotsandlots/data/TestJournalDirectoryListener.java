@@ -0,0 +1,43 @@
+package io.lotsandlots.data;
+
+import org.testng.IExecutionListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Points the EventJournal at a new temporary directory for the test run and deletes it once every suite has run.
+ * It is registered in testng.xml, so it sets journal.directory before any test class loads the config.
+ */
+public class TestJournalDirectoryListener implements IExecutionListener {
+
+    private File journalDirectory;
+
+    @Override
+    public void onExecutionStart() {
+        try {
+            journalDirectory = Files.createTempDirectory("lotsandlots-test-journal").toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.setProperty("journal.directory", journalDirectory.getAbsolutePath());
+    }
+
+    @Override
+    public void onExecutionFinish() {
+        EventJournal journal = EventJournal.getInstanceIfInitialized();
+        if (journal != null) {
+            journal.close();
+        }
+        try (Stream<Path> paths = Files.walk(journalDirectory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.lotsandlots.etrade;
+
+import com.typesafe.config.ConfigFactory;
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.util.FixedPoint;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@Test(groups = {"unit"})
+public class AdaptiveLotsFetchPlannerTest {
+
+    private static AdaptiveLotsFetchPlanner newPlanner(int maxLotsFetchesPerMinute) {
+        return new AdaptiveLotsFetchPlanner(ConfigFactory.parseString(
+                "etrade {\n"
+                + "    adaptiveLotsFetchEnabled: true\n"
+                + "    lotsFetchColdIntervalSeconds: 300\n"
+                + "    lotsFetchHotDistanceRatio: 0.01\n"
+                + "    lotsFetchHotIntervalSeconds: 10\n"
+                + "    maxLotsFetchesPerMinute: " + maxLotsFetchesPerMinute + "\n"
+                + "}"));
+    }
+
+    private static List<Lot> newLots(double lastPrice, double lotPrice) {
+        Lot lot = new Lot();
+        lot.setFollowPriceMicros(FixedPoint.toMicros(lotPrice * 0.97D));
+        lot.setLastPriceMicros(FixedPoint.toMicros(lastPrice));
+        lot.setTargetPriceMicros(FixedPoint.toMicros(lotPrice * 1.03D));
+        return Collections.singletonList(lot);
+    }
+
+    public void testFetchIntervalMillis() {
+        AdaptiveLotsFetchPlanner planner = newPlanner(60);
+        Assert.assertTrue(planner.isEnabled());
+        Assert.assertEquals(planner.fetchIntervalMillis("UNKNOWN"), 0L);
+
+        // Last price is a cent away from the follow price.
+        planner.recordLots("HOT", newLots(96.99D, 100D), 1000L);
+        Assert.assertEquals(planner.fetchIntervalMillis("HOT"), 10000L);
+
+        // Last price sits between follow and target price and hasn't moved.
+        planner.recordLots("COLD", newLots(100D, 100D), 1000L);
+        Assert.assertEquals(planner.distanceRatio("COLD"), 0.03, 0.0001);
+        Assert.assertEquals(planner.fetchIntervalMillis("COLD"), 300000L);
+
+        // A 1% move in 10 seconds puts the threshold within reach of the next cold fetch.
+        planner.recordPrice("COLD", FixedPoint.toMicros(99D), 11000L);
+        long intervalMillis = planner.fetchIntervalMillis("COLD");
+        Assert.assertTrue(intervalMillis >= 10000L && intervalMillis < 300000L);
+    }
+
+    public void testAcquireDueSymbols() {
+        AdaptiveLotsFetchPlanner planner = newPlanner(2);
+        planner.recordLots("HOT", newLots(96.99D, 100D), 1000L);
+        planner.recordLots("COLD", newLots(100D, 100D), 1000L);
+
+        List<String> acquired = planner.acquireDueSymbols(Arrays.asList("COLD", "HOT", "NEW"), 21000L);
+        Assert.assertEquals(acquired, Arrays.asList("NEW", "HOT"));
+        // Acquired symbols are not due again until their interval passes.
+        Assert.assertTrue(planner.acquireDueSymbols(Arrays.asList("HOT", "NEW"), 22000L).isEmpty());
+        // Everything is due again, but only 2 fetches fit in the budget per minute.
+        Assert.assertEquals(planner.acquireDueSymbols(Collections.singletonList("COLD"), 400000L).size(), 1);
+        Assert.assertEquals(planner.acquireDueSymbols(Arrays.asList("HOT", "NEW"), 400000L).size(), 1);
+        Assert.assertTrue(planner.acquireDueSymbols(Arrays.asList("HOT", "NEW"), 400000L).isEmpty());
+    }
+}
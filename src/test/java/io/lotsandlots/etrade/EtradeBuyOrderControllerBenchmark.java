@@ -0,0 +1,100 @@
+package io.lotsandlots.etrade;
+
+import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
+import io.lotsandlots.util.FixedPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.GeneralSecurityException;
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The checks a buy order goes through once a quote arrives, on the path where every check passes and an order would
+ * be placed. The trading window is pinned to a Wednesday afternoon so the score does not depend on when it is run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class EtradeBuyOrderControllerBenchmark {
+
+    private static final float[] LAST_PRICES = {0.85F, 4.2F, 24.5F, 310.75F, 1250F};
+
+    private EtradeBuyOrderController controller;
+    private long lastPriceMicros;
+    private TradingPolicy policy;
+    private EtradeBuyOrderController.BuyOrderRunnable runnable;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        EtradeRestTemplateFactory.init();
+        EtradeOrdersDataFetcher ordersDataFetcher = new EtradeOrdersDataFetcher();
+        ordersDataFetcher.setLastSuccessfulFetchTimeMillis(System.currentTimeMillis());
+        // The controller only registers its handlers with the portfolio data fetcher, which never runs here.
+        controller = new EtradeBuyOrderController(new EtradePortfolioDataFetcher(), ordersDataFetcher);
+
+        String symbol = "BENCHMARK";
+        policy = TradingPolicyTable.getCurrent().get(symbol);
+        lastPriceMicros = (policy.getMinPriceMicros() + policy.getMaxPriceMicros()) / 2L;
+        PortfolioResponse.Totals totals = new PortfolioResponse.Totals();
+        totals.setCashBalance(100000F);
+        runnable = controller.new BuyOrderRunnable(symbol, totals) {
+            @Override
+            int currentDayOfWeek(OffsetDateTime now) {
+                return 3;
+            }
+
+            @Override
+            int currentHour(OffsetDateTime now) {
+                return 15;
+            }
+
+            @Override
+            int currentMinute(OffsetDateTime now) {
+                return 0;
+            }
+        };
+        if (!runnable.canProceedWithBuyOrderCreation(lastPriceMicros)) {
+            throw new IllegalStateException("Buy order checks do not pass, lastPrice="
+                    + FixedPoint.toDouble(lastPriceMicros));
+        }
+    }
+
+    @Benchmark
+    public boolean canProceedWithBuyOrderCreation() {
+        return runnable.canProceedWithBuyOrderCreation(lastPriceMicros);
+    }
+
+    @Benchmark
+    public void quantityFromLastPrice(Blackhole blackhole) {
+        for (float lastPrice : LAST_PRICES) {
+            blackhole.consume(controller.quantityFromLastPrice(policy, lastPrice));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(EtradeBuyOrderControllerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
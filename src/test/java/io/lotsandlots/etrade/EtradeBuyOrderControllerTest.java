@@ -1,10 +1,12 @@
 package io.lotsandlots.etrade;
 
 import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.etrade.api.ApiConfig;
 import io.lotsandlots.etrade.api.PortfolioResponse;
 import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
+import io.lotsandlots.util.FixedPoint;
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
@@ -117,7 +119,17 @@ public class EtradeBuyOrderControllerTest {
         Mockito.verify(spiedSymbolToBuyOrdersIndex).containsKey(Mockito.anyString());
         // It should return false before we check # of recent orders placed.
         Mockito.verify(orderController, Mockito.times(0))
-                .isBelowMaxBuyOrdersPerDayLimit(Mockito.anyString());
+                .isBelowMaxBuyOrdersPerDayLimit(Mockito.anyInt());
+
+        ////
+        // If portfolio totals have not been fetched, call should return false.
+        runnable = Mockito.spy(orderController.newBuyOrderRunnable("BUYING_CHECK_WITHOUT_TOTALS", null));
+        Mockito.doReturn(false).when(runnable).isEmbargoedTimeWindow();
+        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation());
+        runnable = Mockito.spy(orderController.newBuyOrderRunnable(
+                "BUYING_CHECK_WITHOUT_TOTALS", new PortfolioResponse.Totals()));
+        Mockito.doReturn(false).when(runnable).isEmbargoedTimeWindow();
+        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation());
 
         ////
         // If we've placed buy orders too frequently, call should return false.
@@ -163,12 +175,12 @@ public class EtradeBuyOrderControllerTest {
 
         Assert.assertTrue(runnable.canProceedWithBuyOrderCreation());
         // Based on maxPrice of 10 in test application.conf
-        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation(11F));
-        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation(10.01F));
-        Assert.assertTrue(runnable.canProceedWithBuyOrderCreation(10F));
+        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation(FixedPoint.toMicros(11D)));
+        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation(FixedPoint.toMicros(10.01D)));
+        Assert.assertTrue(runnable.canProceedWithBuyOrderCreation(FixedPoint.toMicros(10D)));
         // Based on minPrice of 8 in test application.conf
-        Assert.assertTrue(runnable.canProceedWithBuyOrderCreation(8F));
-        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation(7.99F));
+        Assert.assertTrue(runnable.canProceedWithBuyOrderCreation(FixedPoint.toMicros(8D)));
+        Assert.assertFalse(runnable.canProceedWithBuyOrderCreation(FixedPoint.toMicros(7.99D)));
     }
 
     public void testHandlePortfolioDataFetchCompletion() throws SQLException {
@@ -222,24 +234,57 @@ public class EtradeBuyOrderControllerTest {
         Assert.assertTrue(runnable.isEmbargoedTimeWindow());
     }
 
+    public void testOnPositionLotsUpdateRunnableRun() {
+        EtradePortfolioDataFetcher portfolioDataFetcher = Mockito.mock(EtradePortfolioDataFetcher.class);
+        Mockito.doReturn(120L).when(portfolioDataFetcher).getPortfolioDataExpirationSeconds();
+        Mockito.doReturn(new HashMap<>()).when(portfolioDataFetcher).getSymbolToLotsIndex();
+        EtradeBuyOrderController orderController =
+                new EtradeBuyOrderController(portfolioDataFetcher, Mockito.mock(EtradeOrdersDataFetcher.class));
+        ApiConfig apiConfig = new ApiConfig();
+        apiConfig.setOrdersPreviewUrl("https://baseUrl/orders/keyId/preview");
+
+        EtradeBuyOrderController.OnPositionLotsUpdateRunnable runnable = orderController
+                .new OnPositionLotsUpdateRunnable("ON_POSITION_LOTS_UPDATE", new PortfolioResponse.Totals());
+        runnable.securityContext = MOCK_TEMPLATE_FACTORY_WITH_INITIALIZED_SECURITY_CONTEXT.getSecurityContext();
+        runnable.setApiConfig(apiConfig);
+
+        ////
+        // If portfolio data fetching has not been completed yet, lots should not be looked at.
+        Mockito.doReturn(null).when(portfolioDataFetcher).getLastSuccessfulFetchTimeMillis();
+        runnable.run();
+        Mockito.verify(portfolioDataFetcher, Mockito.times(0)).getSymbolToLotsIndex();
+
+        ////
+        // If portfolio data is stale, lots should not be looked at.
+        Mockito.doReturn(System.currentTimeMillis() - 121000L)
+               .when(portfolioDataFetcher).getLastSuccessfulFetchTimeMillis();
+        runnable.run();
+        Mockito.verify(portfolioDataFetcher, Mockito.times(0)).getSymbolToLotsIndex();
+
+        Mockito.doReturn(System.currentTimeMillis()).when(portfolioDataFetcher).getLastSuccessfulFetchTimeMillis();
+        runnable.run();
+        Mockito.verify(portfolioDataFetcher).getSymbolToLotsIndex();
+    }
+
     public void testQuantityFromLastPrice() {
         float lastPrice;
         EtradeBuyOrderController orderController = new EtradeBuyOrderController(
                 Mockito.mock(EtradePortfolioDataFetcher.class), Mockito.mock(EtradeOrdersDataFetcher.class));
+        TradingPolicy policy = TradingPolicyTable.getCurrent().getDefaultPolicy();
 
         lastPrice = 11F;
-        Assert.assertEquals(orderController.quantityFromLastPrice(lastPrice), 91L);
+        Assert.assertEquals(orderController.quantityFromLastPrice(policy, lastPrice), 91L);
 
         lastPrice = 400F;
-        Assert.assertEquals(orderController.quantityFromLastPrice(lastPrice), 3L);
+        Assert.assertEquals(orderController.quantityFromLastPrice(policy, lastPrice), 3L);
 
         lastPrice = 800F;
-        Assert.assertEquals(orderController.quantityFromLastPrice(lastPrice), 2L);
+        Assert.assertEquals(orderController.quantityFromLastPrice(policy, lastPrice), 2L);
 
         lastPrice = 901F;
-        Assert.assertEquals(orderController.quantityFromLastPrice(lastPrice), 1L);
+        Assert.assertEquals(orderController.quantityFromLastPrice(policy, lastPrice), 1L);
 
         lastPrice = 3000F;
-        Assert.assertEquals(orderController.quantityFromLastPrice(lastPrice), 1L);
+        Assert.assertEquals(orderController.quantityFromLastPrice(policy, lastPrice), 1L);
     }
 }
@@ -0,0 +1,138 @@
+package io.lotsandlots.etrade;
+
+import com.typesafe.config.ConfigFactory;
+import io.lotsandlots.data.EventJournal;
+import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.etrade.oauth.OAuthToken;
+import io.lotsandlots.etrade.oauth.SecurityContext;
+import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
+import io.lotsandlots.util.ConfigWrapper;
+import io.lotsandlots.util.SymbolLaneExecutor;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the whole pipeline, orders fetch, portfolio and lots fetch, SQLite writes and the buy and sell controllers,
+ * against an EtradeStubServer at increasing portfolio sizes. Run with main() from the test classpath, e.g.
+ * mvn -B test-compile exec:java -Dexec.mainClass=io.lotsandlots.etrade.EtradeLoadTestRunner
+ * -Dexec.classpathScope=test -Dloadtest.positions=100,500 -Dloadtest.latencyMillis=50
+ *
+ * The first cycle at each size places a sell order for every lot. Later cycles turn over loadtest.turnoverRatio of
+ * the lots first, so their orphaned sell orders are canceled and replaced. Each cycle reports its duration from the
+ * start of the orders fetch until the controllers are idle, the API calls it made and the orders placed per second.
+ * SQLite and the journal go to a temporary directory.
+ */
+public class EtradeLoadTestRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> positionCounts = new ArrayList<>();
+        for (String positionCount : System.getProperty("loadtest.positions", "50,100,250,500").split(",")) {
+            positionCounts.add(Integer.parseInt(positionCount.trim()));
+        }
+        int buySymbolCount = Integer.getInteger("loadtest.buySymbols", 10);
+        int cycleCount = Integer.getInteger("loadtest.cycles", 5);
+        double errorRate = Double.parseDouble(System.getProperty("loadtest.errorRate", "0"));
+        long latencyMillis = Long.getLong("loadtest.latencyMillis", 0L);
+        int lotsPerPosition = Integer.getInteger("loadtest.lotsPerPosition", 20);
+        double turnoverRatio = Double.parseDouble(System.getProperty("loadtest.turnoverRatio", "0.05"));
+        int workerThreads = Integer.getInteger("loadtest.workerThreads", 8);
+
+        EtradeStubServer stub = new EtradeStubServer(0);
+        stub.start();
+        stub.setErrorRate(errorRate);
+        stub.setLatencyMillis(latencyMillis);
+        // Nothing may read the config before this, it is loaded once with system properties taking precedence.
+        File dataDirectory = Files.createTempDirectory("lotsandlots-loadtest").toFile();
+        System.setProperty("data.url", "jdbc:sqlite:" + new File(dataDirectory, "loadtest.db").getAbsolutePath());
+        System.setProperty("etrade.apiBaseUrl", stub.getBaseUrl());
+        System.setProperty("journal.directory", new File(dataDirectory, "journal").getAbsolutePath());
+        setPropertyIfAbsent("etrade.accountIdKey", "loadtest");
+        setPropertyIfAbsent("etrade.rateLimitBurst", "1000000");
+        setPropertyIfAbsent("etrade.rateLimitPermitsPerSecond", "1000000");
+
+        EtradeRestTemplateFactory.init();
+        SecurityContext securityContext = EtradeRestTemplateFactory.getTemplateFactory().getSecurityContext();
+        securityContext.setToken(new OAuthToken("loadtest", "loadtest", OAuthToken.TokenType.ACCESS));
+        securityContext.setInitialized(true);
+        // Buying is enabled for symbols without a position, so every completed portfolio fetch asks for quotes.
+        List<String> buySymbols = new ArrayList<>();
+        for (int i = 0; i < buySymbolCount; i++) {
+            buySymbols.add(String.format("B%04d", i));
+        }
+        TradingPolicyTable.setCurrent(TradingPolicyTable.fromConfig(ConfigFactory
+                .parseMap(Collections.singletonMap("etrade.enableBuyOrderCreation", buySymbols))
+                .withFallback(ConfigWrapper.getConfig())));
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        EtradeOrdersDataFetcher ordersDataFetcher = new EtradeOrdersDataFetcher();
+        EtradePortfolioDataFetcher portfolioDataFetcher = new EtradePortfolioDataFetcher();
+        new EtradeBuyOrderController(
+                portfolioDataFetcher, ordersDataFetcher, new SymbolLaneExecutor("buy", executor));
+        new EtradeSellOrderController(
+                portfolioDataFetcher, ordersDataFetcher, new SymbolLaneExecutor("sell", executor));
+
+        System.out.printf("%-10s%-8s%-7s%-10s%-10s%-10s%-10s%-10s%-10s%n",
+                "positions", "lots", "cycle", "millis", "apiCalls", "lotsGets", "placed", "canceled", "orders/s");
+        try {
+            for (int positionCount : positionCounts) {
+                stub.resetAccount(positionCount, lotsPerPosition);
+                for (int cycle = 1; cycle <= cycleCount; cycle++) {
+                    if (cycle > 1) {
+                        stub.turnOverLots(turnoverRatio);
+                    }
+                    long apiCallsBefore = stub.getTotalRequestCount();
+                    long canceledBefore = stub.getRequestCount(EtradeStubServer.CANCEL);
+                    long lotsGetsBefore = stub.getRequestCount(EtradeStubServer.LOTS);
+                    long placedBefore = stub.getRequestCount(EtradeStubServer.PLACE);
+                    long timeStartedNanos = System.nanoTime();
+
+                    ordersDataFetcher.run();
+                    portfolioDataFetcher.run();
+                    awaitIdle(executor);
+
+                    long durationMillis = Math.max(1L, (System.nanoTime() - timeStartedNanos) / 1000000L);
+                    long placed = stub.getRequestCount(EtradeStubServer.PLACE) - placedBefore;
+                    System.out.printf("%-10d%-8d%-7d%-10d%-10d%-10d%-10d%-10d%-10.1f%n",
+                            positionCount,
+                            positionCount * lotsPerPosition,
+                            cycle,
+                            durationMillis,
+                            stub.getTotalRequestCount() - apiCallsBefore,
+                            stub.getRequestCount(EtradeStubServer.LOTS) - lotsGetsBefore,
+                            placed,
+                            stub.getRequestCount(EtradeStubServer.CANCEL) - canceledBefore,
+                            placed * 1000D / durationMillis);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            EtradeRestTemplateFactory.getTemplateFactory().shutdown();
+            EventJournal.getInstance().close();
+            SqliteDatabase.getInstance().close();
+            stub.stop();
+        }
+    }
+
+    /**
+     * Wait until every task queued on the controllers' lanes has run, including tasks queued by other tasks.
+     */
+    private static void awaitIdle(ThreadPoolExecutor executor) throws InterruptedException {
+        while (executor.getCompletedTaskCount() < executor.getTaskCount()) {
+            Thread.sleep(5L);
+        }
+    }
+
+    private static void setPropertyIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.math.BigDecimal;
 import java.security.GeneralSecurityException;
 import java.util.UUID;
 
@@ -27,7 +28,7 @@ public class EtradeOrderCreatorTest {
 
     public void testNewPreviewOrderRequest() throws Exception {
         String clientOrderId = UUID.randomUUID().toString().substring(0, 8);;
-        float limitPrice = (float) Math.random();
+        BigDecimal limitPrice = BigDecimal.valueOf((long) (Math.random() * 100000), 2);
 
         TestEtradeOrderCreator etradeOrderCreator = new TestEtradeOrderCreator();
         OrderDetail orderDetail = new OrderDetail();
@@ -1,12 +1,23 @@
 package io.lotsandlots.etrade;
 
+import io.lotsandlots.data.SqliteDatabase;
+import io.lotsandlots.etrade.api.OrderDetail;
+import io.lotsandlots.etrade.api.OrdersResponse;
+import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.util.DateFormatter;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.math.BigDecimal;
 import java.security.GeneralSecurityException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 @Test(groups = {"unit"})
 public class EtradeOrdersDataFetcherTest {
@@ -16,15 +27,110 @@ public class EtradeOrdersDataFetcherTest {
         EtradeRestTemplateFactory.init();
     }
 
+    public void testAddSellOrder() {
+        EtradeOrdersDataFetcher dataFetcher = new EtradeOrdersDataFetcher();
+        OrdersResponse lastPage = new OrdersResponse();
+        lastPage.setOrderList(Collections.singletonList(newOrder(1005L, "OPEN")));
+        dataFetcher.handleOrderResponse(lastPage, System.currentTimeMillis() / 1000L, true);
+
+        Order placedOrder = new Order();
+        placedOrder.setOrderAction("SELL");
+        placedOrder.setOrderId(1006L);
+        placedOrder.setSymbol("TEST");
+        dataFetcher.addSellOrder("TEST", placedOrder);
+        List<Order> sellOrders = dataFetcher.getSymbolToSellOrdersIndex().get("TEST");
+        Assert.assertEquals(sellOrders.size(), 2);
+        Assert.assertEquals(sellOrders.get(0).getOrderId(), 1005L);
+        Assert.assertEquals(sellOrders.get(1).getOrderId(), 1006L);
+
+        dataFetcher.removeSellOrder("TEST", 1005L);
+        Assert.assertEquals(dataFetcher.getSymbolToSellOrdersIndex().get("TEST").size(), 1);
+    }
+
+    public void testHandleOrderResponseDeletesStaleOrders() throws SQLException {
+        EtradeOrdersDataFetcher dataFetcher = new EtradeOrdersDataFetcher();
+        // Stamped ahead of the current time so rows left behind by other tests are stale as well.
+        long fetchTimeSeconds = System.currentTimeMillis() / 1000L + 60L;
+
+        OrdersResponse firstPage = new OrdersResponse();
+        firstPage.setMarker(1L);
+        firstPage.setOrderList(Collections.singletonList(newOrder(1001L, "OPEN")));
+        dataFetcher.handleOrderResponse(firstPage, fetchTimeSeconds, true);
+        OrdersResponse lastPage = new OrdersResponse();
+        lastPage.setOrderList(Collections.singletonList(newOrder(1002L, "CANCELLED")));
+        dataFetcher.handleOrderResponse(lastPage, fetchTimeSeconds, true);
+        Assert.assertEquals(selectOrderIds(), Collections.singletonList("1001"));
+
+        OrdersResponse nextCyclePage = new OrdersResponse();
+        nextCyclePage.setOrderList(Collections.singletonList(newOrder(1003L, "PARTIAL")));
+        dataFetcher.handleOrderResponse(nextCyclePage, fetchTimeSeconds + 60L, true);
+        Assert.assertEquals(selectOrderIds(), Collections.singletonList("1003"));
+    }
+
+    public void testIncrementalFetchKeepsPartialOrders() throws SQLException {
+        EtradeOrdersDataFetcher dataFetcher = new EtradeOrdersDataFetcher();
+        // Stamped behind the current time so testHandleOrderResponseDeletesStaleOrders sees these rows as stale.
+        long fetchTimeSeconds = System.currentTimeMillis() / 1000L - 300L;
+        List<OrdersResponse.Order> orderList = new ArrayList<>();
+        orderList.add(newOrder(1007L, "OPEN"));
+        orderList.add(newOrder(1008L, "PARTIAL"));
+        OrdersResponse fullReconcilePage = new OrdersResponse();
+        fullReconcilePage.setOrderList(orderList);
+        dataFetcher.handleOrderResponse(fullReconcilePage, fetchTimeSeconds, true);
+        Assert.assertEquals(dataFetcher.getSymbolToSellOrdersIndex().get("TEST").size(), 2);
+
+        // Incremental fetches only return OPEN orders, the PARTIAL order is kept.
+        OrdersResponse incrementalPage = new OrdersResponse();
+        incrementalPage.setOrderList(Collections.singletonList(newOrder(1007L, "OPEN")));
+        dataFetcher.handleOrderResponse(incrementalPage, fetchTimeSeconds + 60L, false);
+        Assert.assertEquals(dataFetcher.getSymbolToSellOrdersIndex().get("TEST").size(), 2);
+        Assert.assertTrue(selectOrderIds().contains("1008"));
+
+        // A full reconcile would have returned it if it were still open.
+        dataFetcher.handleOrderResponse(incrementalPage, fetchTimeSeconds + 120L, true);
+        Assert.assertEquals(dataFetcher.getSymbolToSellOrdersIndex().get("TEST").size(), 1);
+        Assert.assertFalse(selectOrderIds().contains("1008"));
+    }
+
+    public void testIsFullReconcileDue() {
+        EtradeOrdersDataFetcher dataFetcher = new EtradeOrdersDataFetcher();
+        // Nothing has been fetched yet, so there is no open orders window to fetch incrementally from.
+        Assert.assertTrue(dataFetcher.isFullReconcileDue(System.currentTimeMillis()));
+        Assert.assertFalse(dataFetcher.isFullReconcileRequested());
+        dataFetcher.requestFullReconcile();
+        Assert.assertTrue(dataFetcher.isFullReconcileRequested());
+    }
+
+    public void testNewOrdersMessageIncremental() {
+        EtradeOrdersDataFetcher dataFetcher = new EtradeOrdersDataFetcher();
+        long fetchTimeSeconds = System.currentTimeMillis() / 1000L;
+        // The oldest open order was placed two days before the fetch.
+        long placedTimeMillis = (fetchTimeSeconds - 172800L) * 1000L;
+        OrdersResponse.Order openOrder = newOrder(1004L, "OPEN");
+        openOrder.getOrderDetailList().get(0).setPlacedTime(placedTimeMillis);
+        OrdersResponse lastPage = new OrdersResponse();
+        lastPage.setOrderList(Collections.singletonList(openOrder));
+        dataFetcher.handleOrderResponse(lastPage, fetchTimeSeconds, true);
+        Assert.assertEquals(dataFetcher.getOpenOrdersFromTimeSeconds(), Long.valueOf(placedTimeMillis / 1000L));
+
+        String fromDate = "fromDate=" + DateFormatter.epochSecondsToDateString(placedTimeMillis / 1000L, "MMddyyyy");
+        Message ordersMessage = dataFetcher.newOrdersMessage(null, false);
+        Assert.assertTrue(ordersMessage.getQueryString().contains("status=OPEN"));
+        Assert.assertTrue(ordersMessage.getQueryString().contains(fromDate));
+        ordersMessage = dataFetcher.newOrdersMessage(null, true);
+        Assert.assertFalse(ordersMessage.getQueryString().contains("status="));
+        Assert.assertFalse(ordersMessage.getQueryString().contains(fromDate));
+    }
+
     public void testNewOrdersMessageWithMarker() {
-        Message ordersMessage = new EtradeOrdersDataFetcher().newOrdersMessage("test");
+        Message ordersMessage = new EtradeOrdersDataFetcher().newOrdersMessage("test", true);
         Assert.assertTrue(ordersMessage.getQueryString().contains("fromDate"));
         Assert.assertTrue(ordersMessage.getQueryString().contains("toDate"));
         Assert.assertTrue(ordersMessage.getQueryString().contains("marker=test"));
     }
 
     public void testNewOrdersMessageWithoutMarker() {
-        Message ordersMessage = new EtradeOrdersDataFetcher().newOrdersMessage(null);
+        Message ordersMessage = new EtradeOrdersDataFetcher().newOrdersMessage(null, true);
         Assert.assertTrue(ordersMessage.getQueryString().contains("fromDate"));
         Assert.assertTrue(ordersMessage.getQueryString().contains("toDate"));
         Assert.assertFalse(ordersMessage.getQueryString().contains("marker"));
@@ -32,4 +138,35 @@ public class EtradeOrdersDataFetcherTest {
 
     public void testRun() {
     }
+
+    private OrdersResponse.Order newOrder(Long orderId, String status) {
+        OrderDetail.Product product = new OrderDetail.Product();
+        product.setSymbol("TEST");
+        OrderDetail.Instrument instrument = new OrderDetail.Instrument();
+        instrument.setOrderAction("SELL");
+        instrument.setOrderedQuantity(1L);
+        instrument.setProduct(product);
+        OrderDetail orderDetail = new OrderDetail();
+        orderDetail.setInstrumentList(Collections.singletonList(instrument));
+        orderDetail.setLimitPrice(new BigDecimal("1.00"));
+        orderDetail.setPlacedTime(1L);
+        orderDetail.setStatus(status);
+        OrdersResponse.Order order = new OrdersResponse.Order();
+        order.setOrderDetailList(Collections.singletonList(orderDetail));
+        order.setOrderId(orderId);
+        return order;
+    }
+
+    private List<String> selectOrderIds() throws SQLException {
+        List<String> orderIds = new ArrayList<>();
+        SqliteDatabase.getInstance().executePreparedQuery(
+                "SELECT order_id FROM etrade_order ORDER BY order_id;", stmt -> {
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            orderIds.add(rs.getString("order_id"));
+                        }
+                    }
+                });
+        return orderIds;
+    }
 }
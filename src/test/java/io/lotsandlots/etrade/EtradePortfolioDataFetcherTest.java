@@ -4,23 +4,28 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import io.lotsandlots.etrade.api.ApiConfig;
 import io.lotsandlots.etrade.api.PortfolioResponse;
-import io.lotsandlots.etrade.api.PositionLotsResponse;
+import io.lotsandlots.etrade.model.Lot;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.EtradeRestTemplate;
 import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.util.FixedPoint;
 import org.mockito.Mockito;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.ResponseExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Test(groups = {"unit"})
 public class EtradePortfolioDataFetcherTest {
@@ -30,6 +35,109 @@ public class EtradePortfolioDataFetcherTest {
         EtradeRestTemplateFactory.init();
     }
 
+    private static EtradeRestTemplate newStreamingRestTemplate(String json) {
+        EtradeRestTemplate mockRestTemplate = Mockito.mock(EtradeRestTemplate.class);
+        Mockito.doAnswer(invocation -> {
+            ResponseExtractor<?> responseExtractor = invocation.getArgument(1);
+            ClientHttpResponse mockResponse = Mockito.mock(ClientHttpResponse.class);
+            Mockito.doReturn(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))
+                    .when(mockResponse).getBody();
+            return responseExtractor.extractData(mockResponse);
+        }).when(mockRestTemplate).doGetStreaming(Mockito.any(Message.class), Mockito.any());
+        return mockRestTemplate;
+    }
+
+    public void testFetchPortfolioResponseFetchesLotsConcurrently() throws Exception {
+        StringBuilder positions = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                positions.append(",");
+            }
+            positions.append("{\"symbolDescription\":\"FETCH_LOTS_CONCURRENTLY_").append(i).append("\","
+                    + "\"Quick\":{\"lastTrade\":10.0},\"marketValue\":10.0,\"quantity\":1}");
+        }
+        EtradeRestTemplate mockRestTemplate = newStreamingRestTemplate(
+                "{\"PortfolioResponse\":{"
+                        + "\"AccountPortfolio\":[{\"accountId\":\"1\",\"Position\":[" + positions + "]}],"
+                        + "\"Totals\":{\"cashBalance\":100.0}}}");
+        EtradeRestTemplateFactory mockTemplateFactory = Mockito.mock(EtradeRestTemplateFactory.class);
+        Mockito.doReturn(mockRestTemplate).when(mockTemplateFactory).getRestTemplate();
+
+        ApiConfig apiConfig = new ApiConfig();
+        apiConfig.setPortfolioUrl("https://baseUrl/portfolio");
+        apiConfig.setPortfolioQueryString("count=100");
+        EtradePortfolioDataFetcher dataFetcher = Mockito.spy(new EtradePortfolioDataFetcher());
+        dataFetcher.setApiConfig(apiConfig);
+        dataFetcher.setRestTemplateFactory(mockTemplateFactory);
+        Mockito.doAnswer(invocation -> null).when(dataFetcher).setOAuthHeader(Mockito.any(), Mockito.any());
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        Mockito.doAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(100L);
+            inFlight.decrementAndGet();
+            completed.incrementAndGet();
+            return null;
+        }).when(dataFetcher).indexPositionLots(Mockito.any(), Mockito.anyString(), Mockito.any());
+        // Totals come after the positions, handlers should still get them.
+        List<Float> handledCashBalances = new LinkedList<>();
+        dataFetcher.addOnPositionLotsUpdateHandler((symbol, totals) -> {
+            synchronized (handledCashBalances) {
+                handledCashBalances.add(totals.getCashBalance());
+            }
+        });
+
+        dataFetcher.fetchPortfolioResponse(Mockito.mock(SecurityContext.class), null);
+        dataFetcher.awaitPendingLotFetches();
+        Assert.assertEquals(completed.get(), 4);
+        Assert.assertTrue(maxInFlight.get() > 1);
+        Assert.assertEquals(handledCashBalances.size(), 4);
+        for (Float cashBalance : handledCashBalances) {
+            Assert.assertEquals(cashBalance, 100.0F);
+        }
+    }
+
+    public void testFetchPositionLotsResponseUpdatesLotsIndex()
+            throws GeneralSecurityException, UnsupportedEncodingException {
+        long acquiredDate = System.currentTimeMillis();
+        EtradeRestTemplate mockRestTemplate = newStreamingRestTemplate(
+                "{\"PositionLotsResponse\":{\"PositionLot\":["
+                        + "{\"positionLotId\":1,\"acquiredDate\":" + acquiredDate + ",\"marketValue\":95.00,"
+                        + "\"price\":100.00,\"remainingQty\":1,\"locationCode\":0},"
+                        + "{\"positionLotId\":2,\"acquiredDate\":" + acquiredDate + ",\"marketValue\":95.00,"
+                        + "\"price\":90.00,\"remainingQty\":1,\"locationCode\":0}"
+                        + "]}}");
+        EtradeRestTemplateFactory mockTemplateFactory = Mockito.mock(EtradeRestTemplateFactory.class);
+        Mockito.doReturn(mockRestTemplate).when(mockTemplateFactory).getRestTemplate();
+
+        EtradePortfolioDataFetcher dataFetcher = Mockito.spy(new EtradePortfolioDataFetcher());
+        dataFetcher.setRestTemplateFactory(mockTemplateFactory);
+        Mockito.doAnswer(invocation -> null).when(dataFetcher).setOAuthHeader(Mockito.any(), Mockito.any());
+        List<String> updatedSymbols = new LinkedList<>();
+        dataFetcher.addOnPositionLotsUpdateHandler((symbol, totals) -> {
+            // Lots must already be indexed when handlers run.
+            Assert.assertEquals(dataFetcher.getSymbolToLotsIndex().get(symbol).size(), 2);
+            updatedSymbols.add(symbol);
+        });
+
+        PortfolioResponse.Position position = new PortfolioResponse.Position();
+        position.setLotsDetails("https://baseUrl/lots");
+        position.setPctOfPortfolio(1.00F);
+        position.setTotalCost(190.00F);
+        dataFetcher.fetchPositionLotsResponse(
+                Mockito.mock(SecurityContext.class), "FETCH_POSITION_LOTS_RESPONSE", position);
+        Assert.assertEquals(updatedSymbols.size(), 1);
+        List<Lot> indexedLots = dataFetcher.getSymbolToLotsIndex().get("FETCH_POSITION_LOTS_RESPONSE");
+        Assert.assertEquals(indexedLots.size(), 2);
+        for (Lot indexedLot : indexedLots) {
+            Assert.assertEquals(indexedLot.getSymbol(), "FETCH_POSITION_LOTS_RESPONSE");
+            Assert.assertEquals(indexedLot.getLastPriceMicros(), FixedPoint.toMicros(95D));
+            Assert.assertTrue(indexedLot.getFollowPriceMicros() < indexedLot.getPriceMicros());
+        }
+        Assert.assertEquals(dataFetcher.awaitPendingLotWrites(), 2L);
+    }
+
     public void testRun() throws GeneralSecurityException, UnsupportedEncodingException {
         SecurityContext mockSecurityContext = Mockito.mock(SecurityContext.class);
         Mockito.doReturn(true).when(mockSecurityContext).isInitialized();
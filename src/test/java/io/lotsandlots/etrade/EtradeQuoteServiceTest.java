@@ -0,0 +1,129 @@
+package io.lotsandlots.etrade;
+
+import io.lotsandlots.etrade.api.QuoteResponse;
+import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+@Test(groups = {"unit"})
+public class EtradeQuoteServiceTest {
+
+    @BeforeClass
+    public void beforeClass() throws GeneralSecurityException {
+        EtradeRestTemplateFactory.init();
+    }
+
+    public void testGetQuoteAsyncCoalescesIntoBatches() throws Exception {
+        EtradeQuoteService quoteService = Mockito.spy(new EtradeQuoteService());
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        Mockito.doAnswer(invocation -> {
+            List<String> symbols = invocation.getArgument(0);
+            batchSizes.add(symbols.size());
+            return newQuoteResponse(symbols);
+        }).when(quoteService).fetchQuoteResponse(Mockito.any());
+
+        List<String> symbols = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            symbols.add("COALESCE_" + i);
+        }
+        quoteService.prefetchQuotes(symbols);
+        // Asking again while the batch is in flight shares the pending quote.
+        CompletableFuture<QuoteResponse.QuoteData> future = quoteService.getQuoteAsync("COALESCE_0");
+        Assert.assertEquals(future.get().getAllQuoteDetails().getLastTrade(), Float.valueOf(1.00F));
+        for (String symbol : symbols) {
+            Assert.assertEquals(quoteService.getQuote(symbol).getProduct().getSymbol(), symbol);
+        }
+        Assert.assertEquals(batchSizes.size(), 2);
+        Assert.assertEquals(batchSizes.get(0), Integer.valueOf(EtradeQuoteService.MAX_SYMBOLS_PER_REQUEST));
+        Assert.assertEquals(batchSizes.get(1), Integer.valueOf(5));
+
+        // Cached quotes are served without another request.
+        quoteService.getQuote("COALESCE_29");
+        Assert.assertEquals(batchSizes.size(), 2);
+    }
+
+    public void testGetQuoteWithFailedFetch() throws Exception {
+        EtradeQuoteService quoteService = Mockito.spy(new EtradeQuoteService());
+        Mockito.doThrow(new RuntimeException("Thrown for test"))
+                .when(quoteService).fetchQuoteResponse(Mockito.any());
+        try {
+            quoteService.getQuote("FAILED_FETCH");
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(e.getCause().getMessage(), "Thrown for test");
+        }
+
+        // A failed fetch is not cached.
+        Mockito.doAnswer(invocation -> newQuoteResponse(invocation.getArgument(0)))
+                .when(quoteService).fetchQuoteResponse(Mockito.any());
+        Assert.assertNotNull(quoteService.getQuote("FAILED_FETCH"));
+    }
+
+    public void testGetQuoteWithHungFetch() throws Exception {
+        EtradeQuoteService quoteService = Mockito.spy(new EtradeQuoteService());
+        quoteService.setQuoteTimeoutMillis(100L);
+        CountDownLatch fetchReleased = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            fetchReleased.await();
+            return newQuoteResponse(invocation.getArgument(0));
+        }).when(quoteService).fetchQuoteResponse(Mockito.any());
+        try {
+            quoteService.getQuote("HUNG_FETCH");
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        } finally {
+            fetchReleased.countDown();
+        }
+    }
+
+    public void testGetQuoteWithManyBatches() throws Exception {
+        EtradeQuoteService quoteService = Mockito.spy(new EtradeQuoteService());
+        quoteService.setQuoteTimeoutMillis(300L);
+        Mockito.doAnswer(invocation -> {
+            Thread.sleep(150L);
+            return newQuoteResponse(invocation.getArgument(0));
+        }).when(quoteService).fetchQuoteResponse(Mockito.any());
+
+        // The last of four batches finishes after the timeout of one request, but within its own.
+        List<String> symbols = new ArrayList<>();
+        for (int i = 0; i < 4 * EtradeQuoteService.MAX_SYMBOLS_PER_REQUEST; i++) {
+            symbols.add("MANY_BATCHES_" + i);
+        }
+        quoteService.prefetchQuotes(symbols);
+        Collections.reverse(symbols);
+        for (String symbol : symbols) {
+            Assert.assertEquals(quoteService.getQuote(symbol).getProduct().getSymbol(), symbol);
+        }
+    }
+
+    private QuoteResponse newQuoteResponse(List<String> symbols) {
+        List<QuoteResponse.QuoteData> quoteDataList = new ArrayList<>();
+        for (String symbol : symbols) {
+            QuoteResponse.AllQuoteDetails allQuoteDetails = new QuoteResponse.AllQuoteDetails();
+            allQuoteDetails.setAsk(1.01F);
+            allQuoteDetails.setBid(0.99F);
+            allQuoteDetails.setLastTrade(1.00F);
+            QuoteResponse.Product product = new QuoteResponse.Product();
+            product.setSymbol(symbol);
+            QuoteResponse.QuoteData quoteData = new QuoteResponse.QuoteData();
+            quoteData.setAllQuoteDetails(allQuoteDetails);
+            quoteData.setProduct(product);
+            quoteDataList.add(quoteData);
+        }
+        QuoteResponse quoteResponse = new QuoteResponse();
+        quoteResponse.setQuoteDataList(quoteDataList);
+        return quoteResponse;
+    }
+}
@@ -1,11 +1,14 @@
 package io.lotsandlots.etrade;
 
 import io.lotsandlots.etrade.api.*;
+import io.lotsandlots.etrade.model.Lot;
 import io.lotsandlots.etrade.model.Order;
 import io.lotsandlots.etrade.oauth.SecurityContext;
 import io.lotsandlots.etrade.rest.EtradeRestTemplate;
 import io.lotsandlots.etrade.rest.EtradeRestTemplateFactory;
 import io.lotsandlots.etrade.rest.Message;
+import io.lotsandlots.util.FixedPoint;
+import io.lotsandlots.util.SymbolLaneExecutor;
 import org.mockito.Mockito;
 import org.springframework.http.ResponseEntity;
 import org.testng.Assert;
@@ -17,7 +20,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
 
 @Test(groups = {"unit"})
 public class EtradeSellOrderControllerTest {
@@ -30,6 +32,35 @@ public class EtradeSellOrderControllerTest {
     public void testCancelOrder() throws Exception {
     }
 
+    public void testDiffSellOrders() {
+        List<EtradeSellOrderController.LotToSell> lots = new ArrayList<>();
+        lots.add(new EtradeSellOrderController.LotToSell(1L, 10L, FixedPoint.toMicros(100.001D)));
+        lots.add(new EtradeSellOrderController.LotToSell(2L, 10L, FixedPoint.toMicros(103.00D)));
+        lots.add(new EtradeSellOrderController.LotToSell(3L, 5L, FixedPoint.toMicros(105.00D)));
+        lots.add(new EtradeSellOrderController.LotToSell(4L, 5L, FixedPoint.toMicros(106.00D)));
+
+        List<Order> sellOrders = new ArrayList<>();
+        // Placed against lot 1 with the same quantity and rounded limit price.
+        sellOrders.add(newSellOrder(11L, 1L, 10L, FixedPoint.toMicros(100.00D)));
+        // No lot id, but the same quantity and limit price as lot 2.
+        sellOrders.add(newSellOrder(12L, 0L, 10L, FixedPoint.toMicros(103.00D)));
+        // Placed against lot 3 with a stale limit price.
+        sellOrders.add(newSellOrder(13L, 3L, 5L, FixedPoint.toMicros(104.00D)));
+        // Placed against a lot that has been sold.
+        sellOrders.add(newSellOrder(15L, 5L, 5L, FixedPoint.toMicros(107.00D)));
+
+        EtradeSellOrderController.SellOrderDiff diff = EtradeSellOrderController.diffSellOrders(sellOrders, lots);
+        Assert.assertEquals(diff.orderIdsToCancel.size(), 2);
+        Assert.assertTrue(diff.orderIdsToCancel.contains(13L));
+        Assert.assertTrue(diff.orderIdsToCancel.contains(15L));
+        Assert.assertEquals(diff.lotsToSell.size(), 2);
+        Assert.assertEquals(diff.lotsToSell.get(0).lotId, 3L);
+        Assert.assertEquals(diff.lotsToSell.get(1).lotId, 4L);
+
+        Assert.assertTrue(EtradeSellOrderController.diffSellOrders(sellOrders.subList(0, 2), lots.subList(0, 2))
+                .isEmpty());
+    }
+
     public void testFetchPreviewOrderResponse() throws Exception {
         EtradeRestTemplate mockRestTemplate = Mockito.mock(EtradeRestTemplate.class);
         Mockito.doAnswer(invocation -> {
@@ -42,7 +73,7 @@ public class EtradeSellOrderControllerTest {
             return mockResponseEntity;
         }).when(mockRestTemplate).doPost(Mockito.any(Message.class), Mockito.anyString(), Mockito.any());
         EtradeRestTemplateFactory mockTemplateFactory = Mockito.mock(EtradeRestTemplateFactory.class);
-        Mockito.doReturn(mockRestTemplate).when(mockTemplateFactory).newCustomRestTemplate();
+        Mockito.doReturn(mockRestTemplate).when(mockTemplateFactory).getRestTemplate();
 
         EtradeSellOrderController.OnPositionLotsUpdateRunnable runnable =
                 Mockito.spy(new EtradeSellOrderController(
@@ -57,17 +88,26 @@ public class EtradeSellOrderControllerTest {
         Mockito.verify(mockRestTemplate).doPost(Mockito.any(), Mockito.any(), Mockito.any());
     }
 
+    public void testHandlePlaceOrderFailure() {
+        EtradeOrdersDataFetcher mockOrdersDataFetcher = Mockito.mock(EtradeOrdersDataFetcher.class);
+        EtradeSellOrderController.OnPositionLotsUpdateRunnable runnable =
+                new EtradeSellOrderController(Mockito.mock(EtradePortfolioDataFetcher.class), mockOrdersDataFetcher)
+                        .newSymbolToLotsIndexPutEventRunnable("HANDLE_PLACE_ORDER_FAILURE");
+        runnable.handlePlaceOrderFailure();
+        Mockito.verify(mockOrdersDataFetcher).requestFullReconcile();
+    }
+
     public void testHandleSymbolToLotsIndexPut() {
 
         EtradeOrdersDataFetcher mockOrdersDataFetcher;
         EtradeSellOrderController sellOrderController;
-        ExecutorService mockExecutor;
+        SymbolLaneExecutor mockExecutor;
 
         ////
         // If selling is disabled for a symbol, we should not submit a SymbolToLotsIndexPutEventRunnable.
 
 
-        mockExecutor = Mockito.mock(ExecutorService.class);
+        mockExecutor = Mockito.mock(SymbolLaneExecutor.class);
         sellOrderController = Mockito.spy(new EtradeSellOrderController(
                 Mockito.mock(EtradePortfolioDataFetcher.class),
                 Mockito.mock(EtradeOrdersDataFetcher.class),
@@ -76,13 +116,13 @@ public class EtradeSellOrderControllerTest {
         sellOrderController.handlePositionLotsUpdate(
                 "SYMBOL_TO_LOT_INDEX_PUT_WITH_DISABLED_SYMBOL", new PortfolioResponse.Totals());
         Mockito.verify(mockExecutor, Mockito.times(0))
-                .submit(Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
+                .execute(Mockito.anyInt(), Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
 
         ////
         // If orders data fetching has not been completed yet, we should not submit a SymbolToLotsIndexPutEventRunnable.
 
 
-        mockExecutor = Mockito.mock(ExecutorService.class);
+        mockExecutor = Mockito.mock(SymbolLaneExecutor.class);
         mockOrdersDataFetcher = Mockito.mock(EtradeOrdersDataFetcher.class);
         Mockito.doReturn(null).when(mockOrdersDataFetcher).getLastSuccessfulFetchTimeMillis();
 
@@ -91,12 +131,12 @@ public class EtradeSellOrderControllerTest {
         sellOrderController.handlePositionLotsUpdate(
                 "SYMBOL_TO_LOT_INDEX_PUT_BEFORE_ORDER_FETCH_COMPLETION", new PortfolioResponse.Totals());
         Mockito.verify(mockExecutor, Mockito.times(0))
-                .submit(Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
+                .execute(Mockito.anyInt(), Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
 
         ////
         // If orders data is not stale, we should submit a SymbolToLotsIndexPutEventRunnable.
 
-        mockExecutor = Mockito.mock(ExecutorService.class);
+        mockExecutor = Mockito.mock(SymbolLaneExecutor.class);
         mockOrdersDataFetcher = Mockito.mock(EtradeOrdersDataFetcher.class);
         Mockito.doReturn(System.currentTimeMillis()).when(mockOrdersDataFetcher).getLastSuccessfulFetchTimeMillis();
         Mockito.doReturn(120L).when(mockOrdersDataFetcher).getOrdersDataExpirationSeconds();
@@ -105,12 +145,13 @@ public class EtradeSellOrderControllerTest {
                 Mockito.mock(EtradePortfolioDataFetcher.class), mockOrdersDataFetcher, mockExecutor));
         sellOrderController.handlePositionLotsUpdate(
                 "SYMBOL_TO_LOT_INDEX_PUT_WITH_FRESH_ORDERS_DATA", new PortfolioResponse.Totals());
-        Mockito.verify(mockExecutor).submit(Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
+        Mockito.verify(mockExecutor)
+                .execute(Mockito.anyInt(), Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
 
         ////
         // If orders data is stale, we should not submit a SymbolToLotsIndexPutEventRunnable.
 
-        mockExecutor = Mockito.mock(ExecutorService.class);
+        mockExecutor = Mockito.mock(SymbolLaneExecutor.class);
         mockOrdersDataFetcher = Mockito.mock(EtradeOrdersDataFetcher.class);
         Mockito.doReturn(System.currentTimeMillis() - 2000L).when(mockOrdersDataFetcher).getLastSuccessfulFetchTimeMillis();
         Mockito.doReturn(1L).when(mockOrdersDataFetcher).getOrdersDataExpirationSeconds();
@@ -119,6 +160,25 @@ public class EtradeSellOrderControllerTest {
                 Mockito.mock(EtradePortfolioDataFetcher.class), mockOrdersDataFetcher, mockExecutor));
         sellOrderController.handlePositionLotsUpdate(
                 "SYMBOL_TO_LOT_INDEX_PUT_WITH_STALE_ORDERS_DATA", new PortfolioResponse.Totals());
+
+        ////
+        // If orders were placed for the symbol after the last orders fetch started, as happens when due lots are
+        // refreshed between orders fetches, we should not submit a SymbolToLotsIndexPutEventRunnable.
+
+        mockExecutor = Mockito.mock(SymbolLaneExecutor.class);
+        mockOrdersDataFetcher = Mockito.mock(EtradeOrdersDataFetcher.class);
+        long fetchTimeMillis = System.currentTimeMillis();
+        Mockito.doReturn(fetchTimeMillis).when(mockOrdersDataFetcher).getLastSuccessfulFetchTimeMillis();
+        Mockito.doReturn(fetchTimeMillis - 1000L).when(mockOrdersDataFetcher).getLastSuccessfulFetchStartTimeMillis();
+        Mockito.doReturn(120L).when(mockOrdersDataFetcher).getOrdersDataExpirationSeconds();
+
+        sellOrderController = Mockito.spy(new EtradeSellOrderController(
+                Mockito.mock(EtradePortfolioDataFetcher.class), mockOrdersDataFetcher, mockExecutor));
+        sellOrderController.recordOrderChange("SYMBOL_TO_LOT_INDEX_PUT_AWAITING_ORDERS_FETCH", fetchTimeMillis - 500L);
+        sellOrderController.handlePositionLotsUpdate(
+                "SYMBOL_TO_LOT_INDEX_PUT_AWAITING_ORDERS_FETCH", new PortfolioResponse.Totals());
+        Mockito.verify(mockExecutor, Mockito.times(0))
+                .execute(Mockito.anyInt(), Mockito.any(EtradeSellOrderController.OnPositionLotsUpdateRunnable.class));
     }
 
     public void testSymbolToLotsIndexPutEventRunnableRun() throws Exception {
@@ -141,19 +201,26 @@ public class EtradeSellOrderControllerTest {
         EtradeRestTemplateFactory mockTemplateFactory = Mockito.mock(EtradeRestTemplateFactory.class);
         Mockito.doReturn(mockSecurityContext).when(mockTemplateFactory).getSecurityContext();
 
-        PositionLotsResponse.PositionLot positionLot1 = new PositionLotsResponse.PositionLot();
-        positionLot1.setRemainingQty(10F);
-        positionLot1.setTargetPrice(100.00F);
-        PositionLotsResponse.PositionLot positionLot2 = new PositionLotsResponse.PositionLot();
-        positionLot2.setRemainingQty(10F);
-        positionLot2.setTargetPrice(103.00F);
-
-        List<PositionLotsResponse.PositionLot> positionLotList = new ArrayList<>();
-        positionLotList.add(positionLot1);
-        positionLotList.add(positionLot2);
+        Lot lot1 = new Lot();
+        lot1.setLotId(1L);
+        lot1.setRemainingQtyMicros(FixedPoint.toMicros(10D));
+        lot1.setTargetPriceMicros(FixedPoint.toMicros(100.00D));
+        Lot lot2 = new Lot();
+        lot2.setLotId(2L);
+        lot2.setRemainingQtyMicros(FixedPoint.toMicros(10D));
+        lot2.setTargetPriceMicros(FixedPoint.toMicros(103.00D));
+
+        List<Lot> lotList = new ArrayList<>();
+        lotList.add(lot1);
+        lotList.add(lot2);
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        symbolToLotsIndex.put("SYMBOL_TO_LOT_INDEX_PUT_RUNNABLE_RUN", lotList);
+        EtradePortfolioDataFetcher mockPortfolioDataFetcher = Mockito.mock(EtradePortfolioDataFetcher.class);
+        Mockito.doReturn(symbolToLotsIndex).when(mockPortfolioDataFetcher).getSymbolToLotsIndex();
+        Mockito.doReturn(120L).when(mockPortfolioDataFetcher).getPortfolioDataExpirationSeconds();
 
         EtradeSellOrderController sellOrderController = new EtradeSellOrderController(
-                Mockito.mock(EtradePortfolioDataFetcher.class), ordersDataFetcher);
+                mockPortfolioDataFetcher, ordersDataFetcher);
 
         EtradeSellOrderController.OnPositionLotsUpdateRunnable runnable =
                 Mockito.spy(sellOrderController.newSymbolToLotsIndexPutEventRunnable(
@@ -170,6 +237,34 @@ public class EtradeSellOrderControllerTest {
         Mockito.doAnswer(invocation -> null).when(runnable)
                 .cancelOrder(Mockito.any(), Mockito.anyLong());
 
+        ////
+        // If the lots have not been refreshed by a recent portfolio fetch, nothing should be done.
+
+        Mockito.doReturn(System.currentTimeMillis() - 121000L)
+               .when(mockPortfolioDataFetcher).getLastSuccessfulFetchTimeMillis();
         runnable.run();
+        Mockito.verify(runnable, Mockito.times(0)).cancelOrder(Mockito.any(), Mockito.anyLong());
+
+        Mockito.doReturn(System.currentTimeMillis()).when(mockPortfolioDataFetcher).getLastSuccessfulFetchTimeMillis();
+        runnable.run();
+        // The existing order matches neither lot, so it should be cancelled.
+        Mockito.verify(runnable).cancelOrder(Mockito.any(), Mockito.eq(1L));
+
+        // Nothing more is done for the symbol until orders have been fetched since.
+        Assert.assertTrue(sellOrderController.isAwaitingOrdersFetch("SYMBOL_TO_LOT_INDEX_PUT_RUNNABLE_RUN"));
+        runnable.run();
+        Mockito.verify(runnable, Mockito.times(1)).cancelOrder(Mockito.any(), Mockito.eq(1L));
+        Mockito.doReturn(System.currentTimeMillis() + 1L).when(ordersDataFetcher).getLastSuccessfulFetchStartTimeMillis();
+        Assert.assertFalse(sellOrderController.isAwaitingOrdersFetch("SYMBOL_TO_LOT_INDEX_PUT_RUNNABLE_RUN"));
+    }
+
+    private Order newSellOrder(long orderId, long lotId, long orderedQuantity, long limitPriceMicros) {
+        Order order = new Order();
+        order.setLimitPriceMicros(limitPriceMicros);
+        order.setLotId(lotId);
+        order.setOrderAction("SELL");
+        order.setOrderId(orderId);
+        order.setOrderedQuantity(orderedQuantity);
+        return order;
     }
 }
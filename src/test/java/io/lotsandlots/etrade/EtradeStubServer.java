@@ -0,0 +1,498 @@
+package io.lotsandlots.etrade;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.lotsandlots.etrade.api.CancelOrderRequest;
+import io.lotsandlots.etrade.api.CancelOrderResponse;
+import io.lotsandlots.etrade.api.OrderDetail;
+import io.lotsandlots.etrade.api.OrdersResponse;
+import io.lotsandlots.etrade.api.PlaceOrderRequest;
+import io.lotsandlots.etrade.api.PlaceOrderResponse;
+import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.etrade.api.PositionLotsResponse;
+import io.lotsandlots.etrade.api.PreviewOrderResponse;
+import io.lotsandlots.etrade.api.QuoteResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded Jetty server standing in for the E*Trade API, for driving the fetch, SQLite and controller pipeline
+ * end to end without an account. Point etrade.apiBaseUrl at getBaseUrl() before the EtradeRestTemplateFactory is
+ * initialized. It serves:
+ * - GET /v1/accounts/{key}/portfolio, paginated with count and pageNumber.
+ * - GET /v1/accounts/{key}/portfolio/{positionId}, the lots of a position, as linked from lotsDetails.
+ * - GET /v1/accounts/{key}/orders, the open orders, paginated with count and marker.
+ * - POST /v1/accounts/{key}/orders/preview and /v1/accounts/{key}/orders/place. Placed orders stay open.
+ * - PUT /v1/accounts/{key}/orders/cancel.
+ * - GET /v1/market/quote/{symbols}.
+ * Every request sleeps for latencyMillis and fails with a 500 at errorRate, drawn from a seeded Random so runs can be
+ * repeated. OAuth headers are not checked.
+ */
+public class EtradeStubServer {
+
+    public static final String CANCEL = "cancel";
+    public static final String LOTS = "lots";
+    public static final String ORDERS = "orders";
+    public static final String PLACE = "place";
+    public static final String PORTFOLIO = "portfolio";
+    public static final String PREVIEW = "preview";
+    public static final String QUOTE = "quote";
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtradeStubServer.class);
+    private static final ObjectMapper READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(DeserializationFeature.UNWRAP_ROOT_VALUE, true);
+    private static final ObjectMapper WRITER = new ObjectMapper()
+            .configure(SerializationFeature.WRAP_ROOT_VALUE, true)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private final AtomicLong nextId = new AtomicLong(1000000L);
+    private final SortedMap<Long, OrdersResponse.Order> openOrders = new TreeMap<>();
+    private final Map<Long, StubPosition> positionsById = new HashMap<>();
+    private final List<StubPosition> positions = new ArrayList<>();
+    private final Random random = new Random(42L);
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final Server server;
+
+    private volatile double errorRate = 0D;
+    private volatile long latencyMillis = 0L;
+
+    public EtradeStubServer(int port) {
+        server = new Server(port);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new StubServlet()), "/*");
+        server.setHandler(context);
+        for (String endpoint : new String[] {CANCEL, LOTS, ORDERS, PLACE, PORTFOLIO, PREVIEW, QUOTE}) {
+            requestCounts.put(endpoint, new AtomicLong());
+        }
+    }
+
+    public void start() throws Exception {
+        server.start();
+        LOG.info("Started E*Trade stub server, baseUrl={}", getBaseUrl());
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getRequestCount(String endpoint) {
+        return requestCounts.get(endpoint).get();
+    }
+
+    public long getTotalRequestCount() {
+        long totalRequestCount = 0L;
+        for (AtomicLong requestCount : requestCounts.values()) {
+            totalRequestCount += requestCount.get();
+        }
+        return totalRequestCount;
+    }
+
+    public synchronized int getOpenOrderCount() {
+        return openOrders.size();
+    }
+
+    /**
+     * Replace the account with positionCount positions of lotsPerPosition lots each and no open orders. Symbols are
+     * S0000, S0001 and so on, so a larger account holds every position of a smaller one.
+     */
+    public synchronized void resetAccount(int positionCount, int lotsPerPosition) {
+        openOrders.clear();
+        positions.clear();
+        positionsById.clear();
+        long acquiredDate = System.currentTimeMillis() - 86400000L;
+        for (int i = 0; i < positionCount; i++) {
+            StubPosition position = new StubPosition(nextId.incrementAndGet(), String.format("S%04d", i));
+            position.lastPrice = 20F + (i % 80);
+            for (int j = 0; j < lotsPerPosition; j++) {
+                // Acquired within 5% either side of the last price.
+                float price = position.lastPrice * (0.95F + (j % 11) / 100F);
+                position.lots.add(new StubLot(nextId.incrementAndGet(), acquiredDate, price, 1 + j % 5));
+            }
+            positions.add(position);
+            positionsById.put(position.positionId, position);
+        }
+    }
+
+    /**
+     * Sell ratio of all lots and buy a new lot of the same size at the last price in their place, as happens when
+     * sell orders fill and buy orders follow. The sell orders of replaced lots become orphans.
+     *
+     * @return Number of lots replaced.
+     */
+    public synchronized int turnOverLots(double ratio) {
+        int replacedLotCount = 0;
+        for (StubPosition position : positions) {
+            for (int i = 0; i < position.lots.size(); i++) {
+                if (random.nextDouble() < ratio) {
+                    StubLot lot = position.lots.get(i);
+                    position.lots.set(i, new StubLot(
+                            nextId.incrementAndGet(), System.currentTimeMillis(), position.lastPrice, lot.quantity));
+                    replacedLotCount++;
+                }
+            }
+        }
+        return replacedLotCount;
+    }
+
+    synchronized PortfolioResponse newPortfolioResponse(String accountIdKey, int pageNumber, int count) {
+        List<PortfolioResponse.Position> responsePositions = new ArrayList<>();
+        float totalMarketValue = 0F;
+        float totalPricePaid = 0F;
+        for (StubPosition position : positions) {
+            totalMarketValue += position.getMarketValue();
+            totalPricePaid += position.getTotalCost();
+        }
+        int fromIndex = Math.min((pageNumber - 1) * count, positions.size());
+        int toIndex = Math.min(fromIndex + count, positions.size());
+        for (StubPosition position : positions.subList(fromIndex, toIndex)) {
+            PortfolioResponse.Position responsePosition = new PortfolioResponse.Position();
+            responsePosition.setLotsDetails(
+                    getBaseUrl() + "/v1/accounts/" + accountIdKey + "/portfolio/" + position.positionId);
+            responsePosition.setMarketValue(position.getMarketValue());
+            responsePosition.setPctOfPortfolio(position.getMarketValue() * 100F / totalMarketValue);
+            responsePosition.setPositionId(position.positionId);
+            responsePosition.setPricePaid(position.getTotalCost());
+            responsePosition.setQuantity((int) position.getQuantity());
+            responsePosition.setSymbolDescription(position.symbol);
+            responsePosition.setTotalCost(position.getTotalCost());
+            responsePositions.add(responsePosition);
+        }
+        PortfolioResponse.AccountPortfolio accountPortfolio = new PortfolioResponse.AccountPortfolio();
+        accountPortfolio.setPositionList(responsePositions);
+        accountPortfolio.setTotalPages((positions.size() + count - 1) / count);
+        if (toIndex < positions.size()) {
+            accountPortfolio.setNextPageNo(Integer.toString(pageNumber + 1));
+        }
+        PortfolioResponse.Totals totals = new PortfolioResponse.Totals();
+        totals.setCashBalance(100000F);
+        totals.setTodaysGainLoss(0F);
+        totals.setTodaysGainLossPct(0F);
+        totals.setTotalGainLoss(totalMarketValue - totalPricePaid);
+        totals.setTotalGainLossPct((totalMarketValue - totalPricePaid) * 100F / totalPricePaid);
+        totals.setTotalMarketValue(totalMarketValue);
+        totals.setTotalPricePaid(totalPricePaid);
+
+        PortfolioResponse portfolioResponse = new PortfolioResponse();
+        portfolioResponse.setAccountPortfolioList(Collections.singletonList(accountPortfolio));
+        portfolioResponse.setTotals(totals);
+        return portfolioResponse;
+    }
+
+    synchronized PositionLotsResponse newPositionLotsResponse(long positionId) {
+        StubPosition position = positionsById.get(positionId);
+        if (position == null) {
+            return null;
+        }
+        List<PositionLotsResponse.PositionLot> positionLots = new ArrayList<>();
+        for (StubLot lot : position.lots) {
+            PositionLotsResponse.PositionLot positionLot = new PositionLotsResponse.PositionLot();
+            positionLot.setAcquiredDate(lot.acquiredDate);
+            positionLot.setAvailableQty((float) lot.quantity);
+            positionLot.setMarketValue(position.lastPrice * lot.quantity);
+            positionLot.setOriginalQty((float) lot.quantity);
+            positionLot.setPositionId(positionId);
+            positionLot.setPositionLotId(lot.lotId);
+            positionLot.setPrice(lot.price);
+            positionLot.setRemainingQty((float) lot.quantity);
+            positionLot.setTermCode(0);
+            positionLot.setTotalCost(lot.price * lot.quantity);
+            positionLot.setTotalCostForGainPct(lot.price * lot.quantity);
+            positionLot.setTotalGain((position.lastPrice - lot.price) * lot.quantity);
+            positionLots.add(positionLot);
+        }
+        PositionLotsResponse positionLotsResponse = new PositionLotsResponse();
+        positionLotsResponse.setPositionLots(positionLots);
+        return positionLotsResponse;
+    }
+
+    synchronized OrdersResponse newOrdersResponse(long marker, int count) {
+        List<OrdersResponse.Order> orderList = new ArrayList<>(count);
+        OrdersResponse ordersResponse = new OrdersResponse();
+        for (Map.Entry<Long, OrdersResponse.Order> entry : openOrders.tailMap(marker).entrySet()) {
+            if (orderList.size() == count) {
+                ordersResponse.setMarker(entry.getKey());
+                break;
+            }
+            orderList.add(entry.getValue());
+        }
+        ordersResponse.setOrderList(orderList);
+        return ordersResponse;
+    }
+
+    synchronized PlaceOrderResponse placeOrder(PlaceOrderRequest placeOrderRequest) {
+        long orderId = nextId.incrementAndGet();
+        long placedTime = System.currentTimeMillis();
+        OrderDetail requestOrderDetail = placeOrderRequest.getOrderDetailList().get(0);
+        OrderDetail.Instrument requestInstrument = requestOrderDetail.getInstrumentList().get(0);
+
+        OrderDetail.Instrument instrument = new OrderDetail.Instrument();
+        instrument.setLots(requestInstrument.getLots());
+        instrument.setOrderAction(requestInstrument.getOrderAction());
+        instrument.setOrderedQuantity(requestInstrument.getQuantity());
+        instrument.setProduct(requestInstrument.getProduct());
+        instrument.setQuantityType(requestInstrument.getQuantityType());
+        OrderDetail orderDetail = new OrderDetail();
+        orderDetail.newInstrumentList(instrument);
+        orderDetail.setLimitPrice(requestOrderDetail.getLimitPrice());
+        orderDetail.setOrderTerm(requestOrderDetail.getOrderTerm());
+        orderDetail.setPlacedTime(placedTime);
+        orderDetail.setPriceType(requestOrderDetail.getPriceType());
+        orderDetail.setStatus("OPEN");
+        OrdersResponse.Order order = new OrdersResponse.Order();
+        order.setOrderDetailList(Collections.singletonList(orderDetail));
+        order.setOrderId(orderId);
+        order.setOrderType(placeOrderRequest.getOrderType());
+        openOrders.put(orderId, order);
+
+        PlaceOrderResponse.OrderId responseOrderId = new PlaceOrderResponse.OrderId();
+        responseOrderId.setOrderId(orderId);
+        PlaceOrderResponse placeOrderResponse = new PlaceOrderResponse();
+        placeOrderResponse.setOrderDetailList(placeOrderRequest.getOrderDetailList());
+        placeOrderResponse.setOrderIdList(Collections.singletonList(responseOrderId));
+        placeOrderResponse.setPlacedTime(placedTime);
+        return placeOrderResponse;
+    }
+
+    synchronized CancelOrderResponse cancelOrder(CancelOrderRequest cancelOrderRequest) {
+        if (openOrders.remove(cancelOrderRequest.getOrderId()) == null) {
+            return null;
+        }
+        CancelOrderResponse cancelOrderResponse = new CancelOrderResponse();
+        cancelOrderResponse.setCancelTime(System.currentTimeMillis());
+        cancelOrderResponse.setOrderId(cancelOrderRequest.getOrderId());
+        return cancelOrderResponse;
+    }
+
+    PreviewOrderResponse newPreviewOrderResponse() {
+        PreviewOrderResponse.PreviewId previewId = new PreviewOrderResponse.PreviewId();
+        previewId.setPreviewId(nextId.incrementAndGet());
+        PreviewOrderResponse previewOrderResponse = new PreviewOrderResponse();
+        previewOrderResponse.setOrderType("EQ");
+        previewOrderResponse.setPreviewIdList(Collections.singletonList(previewId));
+        previewOrderResponse.setPreviewTime(System.currentTimeMillis());
+        return previewOrderResponse;
+    }
+
+    /**
+     * Symbols without a position are quoted at 10.
+     */
+    synchronized QuoteResponse newQuoteResponse(String[] symbols) {
+        Map<String, Float> symbolToLastPrice = new HashMap<>();
+        for (StubPosition position : positions) {
+            symbolToLastPrice.put(position.symbol, position.lastPrice);
+        }
+        List<QuoteResponse.QuoteData> quoteDataList = new ArrayList<>(symbols.length);
+        for (String symbol : symbols) {
+            float lastPrice = symbolToLastPrice.getOrDefault(symbol, 10F);
+            QuoteResponse.AllQuoteDetails allQuoteDetails = new QuoteResponse.AllQuoteDetails();
+            allQuoteDetails.setAsk(lastPrice + 0.01F);
+            allQuoteDetails.setAskSize(100L);
+            allQuoteDetails.setBid(lastPrice - 0.01F);
+            allQuoteDetails.setBidSize(100L);
+            allQuoteDetails.setLastTrade(lastPrice);
+            QuoteResponse.Product product = new QuoteResponse.Product();
+            product.setSecurityType("EQ");
+            product.setSymbol(symbol);
+            QuoteResponse.QuoteData quoteData = new QuoteResponse.QuoteData();
+            quoteData.setAllQuoteDetails(allQuoteDetails);
+            quoteData.setDateTime(System.currentTimeMillis() / 1000L);
+            quoteData.setProduct(product);
+            quoteData.setQuoteStatus("REALTIME");
+            quoteDataList.add(quoteData);
+        }
+        QuoteResponse quoteResponse = new QuoteResponse();
+        quoteResponse.setQuoteDataList(quoteDataList);
+        return quoteResponse;
+    }
+
+    private boolean isErrorInjected() {
+        if (errorRate <= 0D) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < errorRate;
+        }
+    }
+
+    private static int intParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    class StubServlet extends HttpServlet {
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            // /v1/accounts/{key}/portfolio -> ["", "v1", "accounts", "{key}", "portfolio"]
+            String[] path = request.getRequestURI().split("/");
+            String endpoint = endpointOf(request.getMethod(), path);
+            if (endpoint == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            requestCounts.get(endpoint).incrementAndGet();
+            if (latencyMillis > 0L) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (isErrorInjected()) {
+                writeError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Injected error");
+                return;
+            }
+            Object body;
+            switch (endpoint) {
+                case CANCEL:
+                    body = cancelOrder(READER.readValue(request.getInputStream(), CancelOrderRequest.class));
+                    break;
+                case LOTS:
+                    body = newPositionLotsResponse(Long.parseLong(path[5]));
+                    break;
+                case ORDERS:
+                    body = newOrdersResponse(
+                            Long.parseLong(request.getParameter("marker") == null
+                                    ? "0"
+                                    : request.getParameter("marker")),
+                            intParameter(request, "count", 25));
+                    break;
+                case PLACE:
+                    body = placeOrder(READER.readValue(request.getInputStream(), PlaceOrderRequest.class));
+                    break;
+                case PORTFOLIO:
+                    body = newPortfolioResponse(
+                            path[3], intParameter(request, "pageNumber", 1), intParameter(request, "count", 50));
+                    break;
+                case PREVIEW:
+                    body = newPreviewOrderResponse();
+                    break;
+                default:
+                    body = newQuoteResponse(path[4].split(","));
+            }
+            if (body == null) {
+                writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown id");
+                return;
+            }
+            response.setContentType("application/json");
+            WRITER.writeValue(response.getOutputStream(), body);
+        }
+
+        private String endpointOf(String method, String[] path) {
+            if (path.length == 5 && path[2].equals("market") && path[3].equals("quote") && method.equals("GET")) {
+                return QUOTE;
+            }
+            if (path.length < 5 || !path[1].equals("v1") || !path[2].equals("accounts")) {
+                return null;
+            }
+            if (path[4].equals("portfolio") && method.equals("GET")) {
+                return path.length == 5 ? PORTFOLIO : LOTS;
+            }
+            if (!path[4].equals("orders")) {
+                return null;
+            }
+            if (path.length == 5) {
+                return method.equals("GET") ? ORDERS : null;
+            }
+            if (path[5].equals("cancel") && method.equals("PUT")) {
+                return CANCEL;
+            }
+            if (path[5].equals("place") && method.equals("POST")) {
+                return PLACE;
+            }
+            if (path[5].equals("preview") && method.equals("POST")) {
+                return PREVIEW;
+            }
+            return null;
+        }
+
+        private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+            response.setStatus(status);
+            response.setContentType("application/json");
+            response.getWriter().write("{\"Error\":{\"code\":" + status + ",\"message\":\"" + message + "\"}}");
+        }
+    }
+
+    static class StubLot {
+
+        final long acquiredDate;
+        final long lotId;
+        final float price;
+        final long quantity;
+
+        StubLot(long lotId, long acquiredDate, float price, long quantity) {
+            this.acquiredDate = acquiredDate;
+            this.lotId = lotId;
+            this.price = price;
+            this.quantity = quantity;
+        }
+    }
+
+    static class StubPosition {
+
+        final List<StubLot> lots = new ArrayList<>();
+        final long positionId;
+        final String symbol;
+
+        float lastPrice;
+
+        StubPosition(long positionId, String symbol) {
+            this.positionId = positionId;
+            this.symbol = symbol;
+        }
+
+        float getMarketValue() {
+            return lastPrice * getQuantity();
+        }
+
+        long getQuantity() {
+            long quantity = 0L;
+            for (StubLot lot : lots) {
+                quantity += lot.quantity;
+            }
+            return quantity;
+        }
+
+        float getTotalCost() {
+            float totalCost = 0F;
+            for (StubLot lot : lots) {
+                totalCost += lot.price * lot.quantity;
+            }
+            return totalCost;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package io.lotsandlots.etrade;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lotsandlots.etrade.api.OrderDetail;
+import io.lotsandlots.etrade.api.OrdersResponse;
+import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.etrade.api.PortfolioResponseDecoder;
+import io.lotsandlots.etrade.api.PositionLotsResponseDecoder;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+@Test(groups = {"unit"})
+public class EtradeStubServerTest {
+
+    private static final ObjectMapper READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(DeserializationFeature.UNWRAP_ROOT_VALUE, true);
+
+    private EtradeStubServer stub;
+
+    @BeforeClass
+    public void beforeClass() throws Exception {
+        stub = new EtradeStubServer(0);
+        stub.start();
+    }
+
+    @AfterClass
+    public void afterClass() throws Exception {
+        stub.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        stub.setErrorRate(0D);
+        stub.resetAccount(3, 2);
+    }
+
+    public void testErrorInjection() throws IOException {
+        stub.setErrorRate(1D);
+        HttpURLConnection connection = open("GET", "/v1/accounts/key/portfolio");
+        Assert.assertEquals(connection.getResponseCode(), 500);
+    }
+
+    public void testPortfolioPagination() throws IOException {
+        List<String> lotsDetails = new ArrayList<>();
+        PortfolioResponseDecoder.PortfolioHandler handler = new PortfolioResponseDecoder.PortfolioHandler() {
+            @Override
+            public void handlePosition(PortfolioResponseDecoder.PositionFields position) {
+                lotsDetails.add(position.getLotsDetails());
+            }
+
+            @Override
+            public void handleTotals(PortfolioResponse.Totals totals) {
+                Assert.assertEquals(totals.getCashBalance(), 100000F);
+            }
+        };
+        String nextPageNo;
+        try (InputStream inputStream = open("GET", "/v1/accounts/key/portfolio?count=2").getInputStream()) {
+            nextPageNo = PortfolioResponseDecoder.decode(inputStream, handler);
+        }
+        Assert.assertEquals(nextPageNo, "2");
+        try (InputStream inputStream = open(
+                "GET", "/v1/accounts/key/portfolio?count=2&pageNumber=2").getInputStream()) {
+            nextPageNo = PortfolioResponseDecoder.decode(inputStream, handler);
+        }
+        Assert.assertNull(nextPageNo);
+        Assert.assertEquals(lotsDetails.size(), 3);
+
+        List<PositionLotsResponseDecoder.LotFields> lots = new ArrayList<>();
+        HttpURLConnection connection = (HttpURLConnection) new URL(lotsDetails.get(0)).openConnection();
+        try (InputStream inputStream = connection.getInputStream()) {
+            PositionLotsResponseDecoder.decode(inputStream, lots::add);
+        }
+        Assert.assertEquals(lots.size(), 2);
+        Assert.assertEquals(stub.getRequestCount(EtradeStubServer.LOTS), 1L);
+    }
+
+    public void testPlaceAndCancelOrder() throws IOException {
+        HttpURLConnection connection = open("POST", "/v1/accounts/key/orders/place");
+        write(connection, "{\"PlaceOrderRequest\":{\"orderType\":\"EQ\",\"Order\":[{\"limitPrice\":\"21.5\","
+                + "\"Instrument\":[{\"Lots\":{\"Lot\":[{\"id\":7,\"size\":3}]},\"orderAction\":\"SELL\","
+                + "\"Product\":{\"securityType\":\"EQ\",\"symbol\":\"S0001\"},\"quantity\":\"3\"}]}]}}");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+
+        OrdersResponse ordersResponse;
+        try (InputStream inputStream = open("GET", "/v1/accounts/key/orders?count=10").getInputStream()) {
+            ordersResponse = READER.readValue(inputStream, OrdersResponse.class);
+        }
+        Assert.assertEquals(ordersResponse.getOrderList().size(), 1);
+        Assert.assertFalse(ordersResponse.hasMarker());
+        OrdersResponse.Order order = ordersResponse.getOrderList().get(0);
+        OrderDetail.Instrument instrument = order.getOrderDetailList().get(0).getInstrumentList().get(0);
+        Assert.assertEquals(order.getOrderDetailList().get(0).getStatus(), "OPEN");
+        Assert.assertEquals(instrument.getLots().getLotList().get(0).getId(), Long.valueOf(7L));
+        Assert.assertEquals(instrument.getOrderedQuantity(), Long.valueOf(3L));
+
+        connection = open("PUT", "/v1/accounts/key/orders/cancel");
+        write(connection, "{\"CancelOrderRequest\":{\"orderId\":" + order.getOrderId() + "}}");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(stub.getOpenOrderCount(), 0);
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(stub.getBaseUrl() + path).openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static void write(HttpURLConnection connection, String body) throws IOException {
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
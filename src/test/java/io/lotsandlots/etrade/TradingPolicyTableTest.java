@@ -0,0 +1,61 @@
+package io.lotsandlots.etrade;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.lotsandlots.data.SymbolDictionary;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class TradingPolicyTableTest {
+
+    public void testFromConfig() {
+        Config config = ConfigFactory.parseString(
+                "etrade {\n"
+                + "    buyOrderCreationConstraints {\n"
+                + "        CONSTRAINED { maxPrice: 10 }\n"
+                + "    }\n"
+                + "    defaultOrderCreationThreshold: 0.05\n"
+                + "    disableSellOrderCreation: [SELL_DISABLED]\n"
+                + "    enableBuyOrderCreation: [BUY_ENABLED, CONSTRAINED]\n"
+                + "    idealLotSize: 2000\n"
+                + "    overrideOrderCreationThresholds {\n"
+                + "        \"OVERRIDE.B\": 0.02\n"
+                + "    }\n"
+                + "}");
+        TradingPolicyTable table = TradingPolicyTable.fromConfig(config);
+
+        TradingPolicy defaultPolicy = table.get("NOT_CONFIGURED");
+        Assert.assertSame(defaultPolicy, table.getDefaultPolicy());
+        Assert.assertEquals(defaultPolicy.getOrderCreationThreshold(), 0.05, 0.0001);
+        Assert.assertEquals(defaultPolicy.getIdealLotSize(), 2000F, 0.0001F);
+        Assert.assertEquals(defaultPolicy.getMinLotSize(), 900F, 0.0001F);
+        Assert.assertFalse(defaultPolicy.isBuyOrderCreationEnabled());
+        Assert.assertFalse(defaultPolicy.isSellOrderCreationDisabled());
+        Assert.assertEquals(defaultPolicy.getMaxPrice(), Float.POSITIVE_INFINITY, 0.0001F);
+        Assert.assertEquals(defaultPolicy.getMinPrice(), Float.NEGATIVE_INFINITY, 0.0001F);
+
+        Assert.assertEquals(table.get("OVERRIDE.B").getOrderCreationThreshold(), 0.02, 0.0001);
+        Assert.assertTrue(table.get("BUY_ENABLED").isBuyOrderCreationEnabled());
+        Assert.assertTrue(table.get("SELL_DISABLED").isSellOrderCreationDisabled());
+        Assert.assertEquals(table.getBuyOrderEnabledSymbols().size(), 2);
+
+        TradingPolicy constrainedPolicy = table.get("CONSTRAINED");
+        Assert.assertTrue(constrainedPolicy.isBuyOrderCreationEnabled());
+        Assert.assertEquals(constrainedPolicy.getMaxPrice(), 10F, 0.0001F);
+        // Constrained symbols default to a minPrice of 1.
+        Assert.assertEquals(constrainedPolicy.getMinPrice(), 1F, 0.0001F);
+        Assert.assertEquals(constrainedPolicy.getOrderCreationThreshold(), 0.05, 0.0001);
+
+        // Configured symbols are also indexed by id.
+        SymbolDictionary symbolDictionary = SymbolDictionary.getInstance();
+        Assert.assertSame(table.get(symbolDictionary.find("CONSTRAINED")), constrainedPolicy);
+        Assert.assertTrue(table.isBuyOrderCreationEnabled(symbolDictionary.find("BUY_ENABLED")));
+        Assert.assertFalse(table.isBuyOrderCreationEnabled(symbolDictionary.find("SELL_DISABLED")));
+        Assert.assertTrue(table.isSellOrderCreationDisabled(symbolDictionary.find("SELL_DISABLED")));
+        int unconfiguredSymbolId = symbolDictionary.idOf("NOT_CONFIGURED");
+        Assert.assertSame(table.get(unconfiguredSymbolId), defaultPolicy);
+        Assert.assertFalse(table.isBuyOrderCreationEnabled(unconfiguredSymbolId));
+        Assert.assertSame(table.get(-1), defaultPolicy);
+    }
+}
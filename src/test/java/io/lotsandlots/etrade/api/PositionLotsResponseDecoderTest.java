@@ -0,0 +1,101 @@
+package io.lotsandlots.etrade.api;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+
+@Test(groups = {"unit"})
+public class PositionLotsResponseDecoderTest {
+
+    private static InputStream toInputStream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void testDecodePositionLots() throws IOException {
+        List<Long> lotIds = new LinkedList<>();
+        List<Long> prices = new LinkedList<>();
+        int lotCount = PositionLotsResponseDecoder.decode(toInputStream(
+                "{\"PositionLotsResponse\":{\"PositionLot\":["
+                        + "{\"positionId\":10,\"positionLotId\":1,\"price\":100.25,\"termCode\":0,"
+                        + "\"marketValue\":95.5,\"remainingQty\":\"2\",\"acquiredDate\":1600000000000,"
+                        + "\"exchangeRate\":{\"rate\":1},\"totalCostForGainPct\":200.5},"
+                        + "{\"positionId\":10,\"positionLotId\":2,\"price\":90,\"remainingQty\":1,\"orderNo\":null},"
+                        + "{\"positionId\":10,\"positionLotId\":3,\"price\":54321.17,\"remainingQty\":0.5,"
+                        + "\"marketValue\":\"1234.56\",\"totalCostForGainPct\":-0.0000005}"
+                        + "]}}"),
+                lot -> {
+                    lotIds.add(lot.getPositionLotId());
+                    prices.add(lot.getPriceMicros());
+                    if (lot.getPositionLotId() == 1L) {
+                        Assert.assertEquals(lot.getAcquiredDate(), 1600000000000L);
+                        Assert.assertEquals(lot.getMarketValueMicros(), 95500000L);
+                        Assert.assertEquals(lot.getRemainingQtyMicros(), 2000000L);
+                        Assert.assertEquals(lot.getTotalCostForGainPctMicros(), 200500000L);
+                    } else if (lot.getPositionLotId() == 3L) {
+                        // Prices a float cannot hold to the cent are exact.
+                        Assert.assertEquals(lot.getMarketValueMicros(), 1234560000L);
+                        Assert.assertEquals(lot.getRemainingQtyMicros(), 500000L);
+                        Assert.assertEquals(lot.getTotalCostForGainPctMicros(), -1L);
+                    } else {
+                        // Fields left over from the previous lot must not leak into this one.
+                        Assert.assertEquals(lot.getAcquiredDate(), 0L);
+                        Assert.assertEquals(lot.getOrderNo(), 0);
+                    }
+                });
+        Assert.assertEquals(lotCount, 3);
+        Assert.assertEquals(lotIds.toString(), "[1, 2, 3]");
+        Assert.assertEquals(prices.toString(), "[100250000, 90000000, 54321170000]");
+    }
+
+    public void testDecodePortfolio() throws IOException {
+        List<String> symbols = new LinkedList<>();
+        PortfolioResponse.Totals[] totals = new PortfolioResponse.Totals[1];
+        String nextPageNo = PortfolioResponseDecoder.decode(toInputStream(
+                "{\"PortfolioResponse\":{\"Totals\":{\"cashBalance\":1000.5,\"totalMarketValue\":null},"
+                        + "\"AccountPortfolio\":[{\"accountId\":\"1\",\"nextPageNo\":\"2\",\"Position\":["
+                        + "{\"symbolDescription\":\"AAA\",\"Quick\":{\"lastTrade\":11.0},\"quantity\":10,"
+                        + "\"marketValue\":110.0,\"lotsDetails\":\"https://baseUrl/lots/AAA\"},"
+                        + "{\"symbolDescription\":\"BBB\",\"quantity\":5,\"pctOfPortfolio\":0.25,"
+                        + "\"totalCost\":50.0}"
+                        + "]}]}}"),
+                new PortfolioResponseDecoder.PortfolioHandler() {
+                    @Override
+                    public void handlePosition(PortfolioResponseDecoder.PositionFields position) {
+                        symbols.add(position.getSymbolDescription());
+                        if ("AAA".equals(position.getSymbolDescription())) {
+                            Assert.assertEquals(position.getLotsDetails(), "https://baseUrl/lots/AAA");
+                            Assert.assertEquals(position.getMarketValue(), 110F);
+                            Assert.assertEquals(position.getQuantity(), 10F);
+                        } else {
+                            Assert.assertNull(position.getLotsDetails());
+                            Assert.assertEquals(position.getPctOfPortfolio(), 0.25F);
+                            Assert.assertEquals(position.getTotalCost(), 50F);
+                        }
+                    }
+
+                    @Override
+                    public void handleTotals(PortfolioResponse.Totals freshTotals) {
+                        totals[0] = freshTotals;
+                    }
+                });
+        Assert.assertEquals(nextPageNo, "2");
+        Assert.assertEquals(symbols.toString(), "[AAA, BBB]");
+        Assert.assertEquals(totals[0].getCashBalance(), Float.valueOf(1000.5F));
+        Assert.assertNull(totals[0].getTotalMarketValue());
+    }
+
+    public void testDecodeEmptyResponse() {
+        try {
+            PositionLotsResponseDecoder.decode(toInputStream(""), lot -> Assert.fail("No lots expected"));
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            Assert.assertEquals(e.getMessage(), "Empty response");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package io.lotsandlots.etrade.api;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads full pages of E*Trade responses, 100 positions, 100 orders and the 50 lots of a position, the way the
+ * EtradeRestTemplate's ObjectMapper binds them. The portfolio and lots responses are also read with the streaming
+ * decoders the data fetchers use, for comparison. The payloads carry the fields E*Trade sends, including the quote
+ * details it nests in every position.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class ResponseDeserializationBenchmark {
+
+    private byte[] ordersResponse;
+    private ObjectReader ordersResponseReader;
+    private byte[] portfolioResponse;
+    private ObjectReader portfolioResponseReader;
+    private byte[] positionLotsResponse;
+    private ObjectReader positionLotsResponseReader;
+
+    @Setup
+    public void setup() {
+        // Configured like EtradeRestTemplateFactory's mapper.
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+              .configure(DeserializationFeature.UNWRAP_ROOT_VALUE, true);
+        ordersResponseReader = mapper.readerFor(OrdersResponse.class);
+        portfolioResponseReader = mapper.readerFor(PortfolioResponse.class);
+        positionLotsResponseReader = mapper.readerFor(PositionLotsResponse.class);
+
+        ordersResponse = newOrdersResponse(100);
+        portfolioResponse = newPortfolioResponse(100);
+        positionLotsResponse = newPositionLotsResponse(50);
+    }
+
+    @Benchmark
+    public OrdersResponse bindOrdersResponse() throws IOException {
+        return ordersResponseReader.readValue(ordersResponse);
+    }
+
+    @Benchmark
+    public PortfolioResponse bindPortfolioResponse() throws IOException {
+        return portfolioResponseReader.readValue(portfolioResponse);
+    }
+
+    @Benchmark
+    public PositionLotsResponse bindPositionLotsResponse() throws IOException {
+        return positionLotsResponseReader.readValue(positionLotsResponse);
+    }
+
+    @Benchmark
+    public String decodePortfolioResponse(Blackhole blackhole) throws IOException {
+        return PortfolioResponseDecoder.decode(
+                new ByteArrayInputStream(portfolioResponse),
+                new PortfolioResponseDecoder.PortfolioHandler() {
+                    @Override
+                    public void handlePosition(PortfolioResponseDecoder.PositionFields position) {
+                        blackhole.consume(position.getMarketValue());
+                    }
+
+                    @Override
+                    public void handleTotals(PortfolioResponse.Totals totals) {
+                        blackhole.consume(totals);
+                    }
+                });
+    }
+
+    @Benchmark
+    public int decodePositionLotsResponse(Blackhole blackhole) throws IOException {
+        return PositionLotsResponseDecoder.decode(
+                new ByteArrayInputStream(positionLotsResponse), lot -> blackhole.consume(lot.getPriceMicros()));
+    }
+
+    static byte[] newOrdersResponse(int orderCount) {
+        StringBuilder json = new StringBuilder("{\"OrdersResponse\":{\"marker\":\"1644000000000\",\"next\":"
+                + "\"https://api.etrade.com/v1/accounts/key/orders?marker=1644000000000\",\"Order\":[");
+        for (int i = 0; i < orderCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"orderId\":").append(1000 + i)
+                .append(",\"details\":\"https://api.etrade.com/v1/accounts/key/orders/").append(1000 + i)
+                .append("\",\"orderType\":\"EQ\",\"OrderDetail\":[{\"placedTime\":").append(1643000000000L + i)
+                .append(",\"orderValue\":").append(100 + i % 80).append(".5")
+                .append(",\"status\":\"OPEN\",\"orderTerm\":\"GOOD_UNTIL_CANCEL\",\"priceType\":\"LIMIT\",")
+                .append("\"limitPrice\":").append(20 + i % 80).append(".25")
+                .append(",\"stopPrice\":0,\"marketSession\":\"REGULAR\",\"allOrNone\":false,")
+                .append("\"netPrice\":0,\"netBid\":0,\"netAsk\":0,\"gcd\":0,\"ratio\":\"\",")
+                .append("\"Instrument\":[{\"symbolDescription\":\"SYMBOL ").append(i / 10)
+                .append(" INC COM\",\"orderAction\":\"SELL\",\"quantityType\":\"QUANTITY\",")
+                .append("\"orderedQuantity\":").append(1 + i % 5)
+                .append(",\"filledQuantity\":0.0,\"averageExecutionPrice\":0,\"estimatedCommission\":0,")
+                .append("\"estimatedFees\":0,\"Product\":{\"symbol\":\"S").append(i / 10)
+                .append("\",\"securityType\":\"EQ\"},\"Lots\":{\"Lot\":[{\"id\":").append(5000 + i)
+                .append(",\"size\":").append(1 + i % 5).append("}]}}]}]}");
+        }
+        return json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] newPortfolioResponse(int positionCount) {
+        StringBuilder json = new StringBuilder("{\"PortfolioResponse\":{\"Totals\":{\"todaysGainLoss\":-12.5,"
+                + "\"todaysGainLossPct\":-0.1,\"totalMarketValue\":250000.0,\"totalGainLoss\":1250.0,"
+                + "\"totalGainLossPct\":0.5,\"totalPricePaid\":248750.0,\"cashBalance\":10000.0},"
+                + "\"AccountPortfolio\":[{\"accountId\":\"12345678\",\"nextPageNo\":\"2\",\"totalPages\":5,"
+                + "\"Position\":[");
+        for (int i = 0; i < positionCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"positionId\":").append(10000 + i)
+                .append(",\"accountId\":\"12345678\",\"Product\":{\"symbol\":\"S").append(i)
+                .append("\",\"securityType\":\"EQ\",\"expiryYear\":0,\"expiryMonth\":0,\"expiryDay\":0,")
+                .append("\"strikePrice\":0},\"osiKey\":\"\",\"symbolDescription\":\"S").append(i)
+                .append("\",\"dateAcquired\":-57600000,\"pricePaid\":0,\"price\":0,\"commissions\":0,")
+                .append("\"otherFees\":0,\"quantity\":").append(40 + i % 60)
+                .append(",\"positionIndicator\":\"TYPE2\",\"positionType\":\"LONG\",\"change\":0.12,")
+                .append("\"changePct\":0.5,\"daysGain\":1.2,\"daysGainPct\":0.5,\"marketValue\":")
+                .append(2500 + i).append(".75,\"totalCost\":").append(2400 + i)
+                .append(".5,\"totalGain\":100.25,\"totalGainPct\":4.1,\"pctOfPortfolio\":1.0,")
+                .append("\"costPerShare\":24.5,\"todayCommissions\":0,\"todayFees\":0,\"todayPricePaid\":0,")
+                .append("\"todayQuantity\":0,\"adjPrevClose\":24.88,\"Quick\":{\"lastTrade\":25.01,")
+                .append("\"lastTradeTime\":1644000000,\"change\":0.12,\"changePct\":0.5,\"volume\":1234567,")
+                .append("\"quoteStatus\":\"REALTIME\"},\"lotsDetails\":")
+                .append("\"https://api.etrade.com/v1/accounts/key/portfolio/").append(10000 + i)
+                .append("\",\"quoteDetails\":\"https://api.etrade.com/v1/market/quote/S").append(i).append("\"}");
+        }
+        return json.append("]}]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] newPositionLotsResponse(int lotCount) {
+        StringBuilder json = new StringBuilder("{\"PositionLotsResponse\":{\"PositionLot\":[");
+        for (int i = 0; i < lotCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"positionId\":10000,\"positionLotId\":").append(20000 + i)
+                .append(",\"price\":").append(24 + i % 3).append(".5")
+                .append(",\"termCode\":0,\"daysGain\":-1.2,\"daysGainPct\":-0.5,\"marketValue\":99.3,")
+                .append("\"totalCost\":98.0,\"totalCostForGainPct\":98.0,\"totalGain\":1.3,\"lotSourceCode\":0,")
+                .append("\"originalQty\":4,\"remainingQty\":4,\"availableQty\":4,\"orderNo\":0,\"legNo\":0,")
+                .append("\"acquiredDate\":").append(1640995200000L + i * 86400000L)
+                .append(",\"locationCode\":0,\"exchangeRate\":1,\"settlementCurrency\":\"USD\",")
+                .append("\"paymentCurrency\":\"USD\"}");
+        }
+        return json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ResponseDeserializationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
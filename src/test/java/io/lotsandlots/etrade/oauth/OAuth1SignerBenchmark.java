@@ -0,0 +1,67 @@
+package io.lotsandlots.etrade.oauth;
+
+import io.lotsandlots.etrade.rest.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares signing a portfolio request with a new OAuth1Helper, as every request used to, against the shared
+ * OAuth1Signer. Run with main() and compare the score and gc.alloc.rate.norm between the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+public class OAuth1SignerBenchmark {
+
+    private Message message;
+    private SecurityContext securityContext;
+
+    @Setup
+    public void setup() {
+        securityContext = OAuth1SignerTest.newSecurityContext(
+                new OAuthToken("token/1", "token+secret", OAuthToken.TokenType.ACCESS));
+        message = OAuth1SignerTest.newMessage("count=100&lotsRequired=true&totalsRequired=true");
+    }
+
+    @Benchmark
+    public String signWithOAuth1Helper() throws UnsupportedEncodingException, GeneralSecurityException {
+        OAuth1Helper oAuth1Helper = new OAuth1Helper(securityContext, message);
+        oAuth1Helper.computeOAuthSignature();
+        oAuth1Helper.setAuthorizationHeader();
+        return message.getOauthHeader();
+    }
+
+    @Benchmark
+    public String signWithOAuth1Signer() throws GeneralSecurityException {
+        OAuth1Signer.getInstance().sign(securityContext, message);
+        return message.getOauthHeader();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(OAuth1SignerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,74 @@
+package io.lotsandlots.etrade.oauth;
+
+import io.lotsandlots.etrade.rest.Message;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class OAuth1SignerTest {
+
+    static SecurityContext newSecurityContext(OAuthToken token) {
+        OAuthConfig oauthConfig = new OAuthConfig();
+        oauthConfig.setConsumerKey("consumer+key/1");
+        oauthConfig.setSharedSecret("shared-secret");
+        SecurityContext securityContext = new SecurityContext();
+        securityContext.setOAuthConfig(oauthConfig);
+        securityContext.setToken(token);
+        securityContext.setInitialized(token != null);
+        return securityContext;
+    }
+
+    static Message newMessage(String queryString) {
+        Message message = new Message();
+        message.setHttpMethod("get");
+        message.setRequiresOauth(true);
+        message.setUrl("https://api.etrade.com/v1/accounts/abc/portfolio");
+        message.setQueryString(queryString);
+        return message;
+    }
+
+    private static void assertSameHeader(SecurityContext securityContext, Message message) throws Exception {
+        Message helperMessage = newMessage(message.getQueryString());
+        helperMessage.setVerifierCode(message.getVerifierCode());
+        OAuth1Helper helper = new OAuth1Helper(securityContext, helperMessage);
+        helper.computeOAuthSignature("bm9uY2U=", "1557366622");
+        helper.setAuthorizationHeader();
+
+        OAuth1Signer.getInstance().sign(securityContext, message, "bm9uY2U=", "1557366622");
+        Assert.assertEquals(message.getOauthHeader(), helperMessage.getOauthHeader());
+    }
+
+    public void testSignMatchesOAuth1Helper() throws Exception {
+        SecurityContext securityContext = newSecurityContext(
+                new OAuthToken("token/1", "token+secret", OAuthToken.TokenType.ACCESS));
+        assertSameHeader(securityContext, newMessage(null));
+        assertSameHeader(securityContext, newMessage("count=100&lotsRequired=true&totalsRequired=true"));
+        assertSameHeader(securityContext, newMessage("status=OPEN&marker=a%2Fb&fromDate=01012023"));
+
+        Message verifierMessage = newMessage(null);
+        verifierMessage.setVerifierCode("ABC12");
+        assertSameHeader(securityContext, verifierMessage);
+
+        // The cached Mac is rebuilt when the token changes.
+        securityContext.setToken(new OAuthToken("token/2", "other secret", OAuthToken.TokenType.ACCESS));
+        assertSameHeader(securityContext, newMessage("count=100"));
+    }
+
+    public void testSignRequestToken() throws Exception {
+        assertSameHeader(newSecurityContext(null), newMessage(null));
+    }
+
+    public void testSignWithoutOAuth() throws Exception {
+        SecurityContext securityContext = newSecurityContext(null);
+        Message message = newMessage(null);
+        message.setRequiresOauth(false);
+        OAuth1Signer.getInstance().sign(securityContext, message);
+        Assert.assertNull(message.getOauthHeader());
+        Assert.assertEquals(message.getQueryString(), "consumerKey=consumer+key/1");
+    }
+
+    public void testEncode() {
+        Assert.assertEquals(OAuth1Signer.encode("a b+c/\u00fc~"), "a%20b%2Bc%2F%C3%BC~");
+        Assert.assertEquals(OAuth1Signer.encode("plain-value_1.0"), "plain-value_1.0");
+    }
+}
@@ -0,0 +1,122 @@
+package io.lotsandlots.etrade.rest;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = {"unit"})
+public class EtradeRateLimiterTest {
+
+    private static Thread startAcquiring(EtradeRateLimiter rateLimiter,
+                                         RequestPriority priority,
+                                         List<RequestPriority> granted) {
+        Thread thread = new Thread(() -> {
+            try {
+                rateLimiter.acquire(priority);
+                granted.add(priority);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaitingCount(EtradeRateLimiter rateLimiter, int waitingCount) throws Exception {
+        long deadlineMillis = System.currentTimeMillis() + 5000L;
+        while (rateLimiter.getWaitingCount() < waitingCount && System.currentTimeMillis() < deadlineMillis) {
+            Thread.sleep(5L);
+        }
+        Assert.assertEquals(rateLimiter.getWaitingCount(), waitingCount);
+    }
+
+    public void testHigherPriorityIsServedFirst() throws Exception {
+        EtradeRateLimiter rateLimiter = new EtradeRateLimiter(2D, 1D, 0D);
+        rateLimiter.acquire(RequestPriority.ACCOUNT);
+
+        List<RequestPriority> granted = new CopyOnWriteArrayList<>();
+        Thread proxy = startAcquiring(rateLimiter, RequestPriority.PROXY, granted);
+        awaitWaitingCount(rateLimiter, 1);
+        Thread order = startAcquiring(rateLimiter, RequestPriority.ORDER, granted);
+        awaitWaitingCount(rateLimiter, 2);
+        proxy.join(5000L);
+        order.join(5000L);
+
+        Assert.assertEquals(granted.size(), 2);
+        Assert.assertEquals(granted.get(0), RequestPriority.ORDER);
+        Assert.assertEquals(granted.get(1), RequestPriority.PROXY);
+        Assert.assertTrue(rateLimiter.getTotalWaitMillis(RequestPriority.PROXY)
+                > rateLimiter.getTotalWaitMillis(RequestPriority.ORDER));
+    }
+
+    public void testReservedPermitsAreLeftForOrderTraffic() throws Exception {
+        EtradeRateLimiter rateLimiter = new EtradeRateLimiter(0.1D, 2D, 1D);
+        rateLimiter.acquire(RequestPriority.LOTS);
+        Assert.assertTrue(rateLimiter.getAvailablePermits() < 2D);
+
+        // Only the reserved permit is left, which order traffic may take without waiting.
+        long timeStartedMillis = System.currentTimeMillis();
+        rateLimiter.acquire(RequestPriority.ORDER);
+        Assert.assertTrue(System.currentTimeMillis() - timeStartedMillis < 1000L);
+        Assert.assertEquals(rateLimiter.getTotalWaitMillis(RequestPriority.ORDER), 0L, "ORDER should not wait");
+    }
+
+    public void testAcquireAsync() throws Exception {
+        EtradeRateLimiter rateLimiter = new EtradeRateLimiter(2D, 1D, 0D);
+        Assert.assertTrue(rateLimiter.acquireAsync(RequestPriority.LOTS).isDone());
+        Assert.assertFalse(rateLimiter.tryAcquire(RequestPriority.LOTS));
+
+        List<RequestPriority> granted = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> lots = rateLimiter.acquireAsync(RequestPriority.LOTS)
+                .thenRun(() -> granted.add(RequestPriority.LOTS));
+        lots.get(5, TimeUnit.SECONDS);
+        CompletableFuture<Void> quote = rateLimiter.acquireAsync(RequestPriority.QUOTE)
+                .thenRun(() -> granted.add(RequestPriority.QUOTE));
+        Assert.assertFalse(quote.isDone());
+        quote.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(granted.size(), 2);
+    }
+
+    public void testAsyncOrderIsServedBeforeParkedLots() throws Exception {
+        EtradeRateLimiter rateLimiter = new EtradeRateLimiter(1D, 2D, 1D);
+        rateLimiter.acquire(RequestPriority.LOTS);
+        rateLimiter.acquire(RequestPriority.ORDER);
+
+        // LOTS has to wait for both permits to refill, ORDER only for one.
+        CompletableFuture<Void> lots = rateLimiter.acquireAsync(RequestPriority.LOTS);
+        awaitWaitingCount(rateLimiter, 1);
+        CompletableFuture<Void> order = rateLimiter.acquireAsync(RequestPriority.ORDER);
+        awaitWaitingCount(rateLimiter, 2);
+        order.get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(lots.isDone());
+        // A newer request of the parked class waits behind it.
+        Assert.assertFalse(rateLimiter.tryAcquire(RequestPriority.LOTS));
+
+        lots.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(rateLimiter.getWaitingCount(), 0);
+        Assert.assertTrue(rateLimiter.getTotalWaitMillis(RequestPriority.LOTS)
+                > rateLimiter.getTotalWaitMillis(RequestPriority.ORDER));
+    }
+
+    public void testBlockedAcquireHandsPermitsToParkedWaiters() throws Exception {
+        EtradeRateLimiter rateLimiter = new EtradeRateLimiter(2D, 1D, 0D);
+        rateLimiter.acquire(RequestPriority.ACCOUNT);
+
+        List<RequestPriority> granted = new CopyOnWriteArrayList<>();
+        Thread order = startAcquiring(rateLimiter, RequestPriority.ORDER, granted);
+        awaitWaitingCount(rateLimiter, 1);
+        CompletableFuture<Void> quote = rateLimiter.acquireAsync(RequestPriority.QUOTE)
+                .thenRun(() -> granted.add(RequestPriority.QUOTE));
+        CompletableFuture<Void> preview = rateLimiter.acquireAsync(RequestPriority.PREVIEW)
+                .thenRun(() -> granted.add(RequestPriority.PREVIEW));
+        order.join(5000L);
+        preview.get(5, TimeUnit.SECONDS);
+        quote.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(granted.toString(), "[ORDER, PREVIEW, QUOTE]");
+    }
+}
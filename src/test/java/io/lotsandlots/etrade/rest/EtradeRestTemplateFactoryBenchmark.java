@@ -0,0 +1,116 @@
+package io.lotsandlots.etrade.rest;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lotsandlots.etrade.api.PositionLotsResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocation per request of building a template for every call, as was done before templates were shared,
+ * with reading through the shared template. Run with main() and compare gc.alloc.rate.norm between the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class EtradeRestTemplateFactoryBenchmark {
+
+    private static final byte[] POSITION_LOTS_RESPONSE = (
+            "{\"PositionLotsResponse\":{\"PositionLot\":["
+            + "{\"positionId\":1,\"positionLotId\":11,\"price\":100.5,\"termCode\":0,\"daysGain\":-1.2,"
+            + "\"daysGainPct\":-0.5,\"marketValue\":99.3,\"totalCost\":100.5,\"totalCostForGainPct\":100.5,"
+            + "\"totalGain\":-1.2,\"lotSourceCode\":0,\"originalQty\":1,\"remainingQty\":1,\"availableQty\":1,"
+            + "\"orderNo\":0,\"legNo\":0,\"acquiredDate\":1640995200000,\"locationCode\":0,\"exchangeRate\":1,"
+            + "\"settlementCurrency\":\"USD\",\"paymentCurrency\":\"USD\"},"
+            + "{\"positionId\":1,\"positionLotId\":12,\"price\":97.25,\"termCode\":0,\"daysGain\":-1.2,"
+            + "\"daysGainPct\":-0.5,\"marketValue\":99.3,\"totalCost\":97.25,\"totalCostForGainPct\":97.25,"
+            + "\"totalGain\":2.05,\"lotSourceCode\":0,\"originalQty\":1,\"remainingQty\":1,\"availableQty\":1,"
+            + "\"orderNo\":0,\"legNo\":0,\"acquiredDate\":1641081600000,\"locationCode\":0,\"exchangeRate\":1,"
+            + "\"settlementCurrency\":\"USD\",\"paymentCurrency\":\"USD\"}"
+            + "]}}").getBytes(StandardCharsets.UTF_8);
+
+    private EtradeRestTemplateFactory templateFactory;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        templateFactory = new EtradeRestTemplateFactory();
+    }
+
+    @Benchmark
+    public PositionLotsResponse readWithNewTemplate() throws IOException {
+        EtradeRestTemplate restTemplate = templateFactory.newCustomRestTemplate();
+        // Before templates were shared every converter also got its own ObjectMapper.
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+              .configure(DeserializationFeature.UNWRAP_ROOT_VALUE, true);
+        MappingJackson2HttpMessageConverter jsonConverter = findJsonConverter(restTemplate);
+        jsonConverter.setObjectMapper(mapper);
+        return read(jsonConverter);
+    }
+
+    @Benchmark
+    public PositionLotsResponse readWithSharedTemplate() throws IOException {
+        return read(findJsonConverter(templateFactory.getRestTemplate()));
+    }
+
+    private static MappingJackson2HttpMessageConverter findJsonConverter(EtradeRestTemplate restTemplate) {
+        for (HttpMessageConverter<?> converter : restTemplate.getMessageConverters()) {
+            if (converter instanceof MappingJackson2HttpMessageConverter) {
+                return (MappingJackson2HttpMessageConverter) converter;
+            }
+        }
+        throw new IllegalStateException("No JSON message converter");
+    }
+
+    private static PositionLotsResponse read(MappingJackson2HttpMessageConverter jsonConverter) throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        HttpInputMessage inputMessage = new HttpInputMessage() {
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(POSITION_LOTS_RESPONSE);
+            }
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        };
+        return (PositionLotsResponse) jsonConverter.read(PositionLotsResponse.class, inputMessage);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(EtradeRestTemplateFactoryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -1,17 +1,25 @@
 package io.lotsandlots.etrade.rest;
 
+import io.lotsandlots.etrade.EtradeStubServer;
+import io.lotsandlots.etrade.api.PortfolioResponse;
+import io.lotsandlots.util.LatencyHistogram;
+import io.lotsandlots.util.MetricsRegistry;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.mockito.stubbing.Answer;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.web.client.HttpServerErrorException;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 @Test(groups = {"unit"})
 public class EtradeRestTemplateTest {
@@ -21,6 +29,22 @@ public class EtradeRestTemplateTest {
         EtradeRestTemplateFactory.init();
     }
 
+    public void testAcquirePermitAsyncRecordsWait() throws Exception {
+        Message testMessage = new Message();
+        testMessage.setUrl("https://example.com");
+        testMessage.setPriority(RequestPriority.PREVIEW);
+        EtradeRestTemplate restTemplate = new EtradeRestTemplate(
+                EtradeRestTemplateFactory.getTemplateFactory().getClientHttpRequestFactory());
+        restTemplate.setRateLimiter(new EtradeRateLimiter(10D, 1D, 0D));
+        LatencyHistogram rateLimitWait = MetricsRegistry.getInstance().histogram(
+                "lotsandlots_etrade_rate_limit_wait_seconds",
+                "Time spent waiting for an E*Trade rate limit permit.",
+                "priority", RequestPriority.PREVIEW.name());
+        long count = rateLimitWait.getCount();
+        restTemplate.acquirePermitAsync(testMessage).get();
+        Assert.assertEquals(rateLimitWait.getCount(), count + 1L);
+    }
+
     public void testExecute() {
         String testUrl = "https://example.com";
         Message testMessage = new Message();
@@ -42,4 +66,79 @@ public class EtradeRestTemplateTest {
                 ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
         restTemplate.doGet(testMessage, responseClass);
     }
+
+    public void testExecuteAsync() throws Exception {
+        String testUrl = "https://example.com";
+        Message testMessage = new Message();
+        testMessage.setHttpMethod("PUT");
+        testMessage.setUrl(testUrl);
+        testMessage.setOAuthHeader("xxx");
+        testMessage.setPriority(RequestPriority.ORDER);
+
+        ClientHttpRequestFactory requestFactory = EtradeRestTemplateFactory
+                .getTemplateFactory()
+                .getClientHttpRequestFactory();
+        EtradeRestTemplate restTemplate = Mockito.spy(new EtradeRestTemplate(requestFactory));
+        restTemplate.setRateLimiter(new EtradeRateLimiter(10D, 1D, 0D));
+        ResponseEntity<String> responseEntity = ResponseEntity.ok("response");
+        Mockito.doAnswer(invocation -> {
+            Assert.assertEquals(invocation.getArgument(0, String.class), testUrl);
+            Assert.assertEquals(invocation.getArgument(1, HttpMethod.class), HttpMethod.PUT);
+            Assert.assertEquals(invocation.getArgument(2, HttpEntity.class).getBody(), "payload");
+            return CompletableFuture.completedFuture(responseEntity);
+        }).when(restTemplate).doExchangeAsync(
+                ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+        Assert.assertSame(restTemplate.doPutAsync(testMessage, "payload", String.class).get(), responseEntity);
+    }
+
+    public void testExecuteAsyncWithAsyncClient() throws Exception {
+        EtradeStubServer stub = new EtradeStubServer(0);
+        stub.start();
+        try {
+            stub.resetAccount(2, 1);
+            Message testMessage = new Message();
+            testMessage.setUrl(stub.getBaseUrl() + "/v1/accounts/key/portfolio");
+            testMessage.setPriority(RequestPriority.ACCOUNT);
+            EtradeRestTemplate restTemplate = EtradeRestTemplateFactory.getTemplateFactory().getRestTemplate();
+            ResponseEntity<PortfolioResponse> responseEntity =
+                    restTemplate.doGetAsync(testMessage, PortfolioResponse.class).get();
+            Assert.assertEquals(responseEntity.getStatusCode(), HttpStatus.OK);
+            Assert.assertEquals(
+                    responseEntity.getBody().getAccountPortfolioList().get(0).getPositionList().size(), 2);
+
+            // Error responses go through the template's error handler, as they do for blocking requests.
+            stub.setErrorRate(1D);
+            try {
+                restTemplate.doGetAsync(testMessage, PortfolioResponse.class).get();
+                Assert.fail("Expected HttpServerErrorException");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof HttpServerErrorException);
+            }
+        } finally {
+            stub.stop();
+        }
+    }
+
+    public void testExecuteAsyncWithoutAsyncClient() throws Exception {
+        Message testMessage = new Message();
+        testMessage.setUrl("https://example.com");
+        EtradeRestTemplate restTemplate = new EtradeRestTemplate(
+                EtradeRestTemplateFactory.getTemplateFactory().getClientHttpRequestFactory());
+        try {
+            restTemplate.doGetAsync(testMessage, String.class).get();
+            Assert.fail("Expected IllegalStateException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertNotNull(EtradeRestTemplateFactory.getTemplateFactory().getRestTemplate().getAsyncHttpClient());
+    }
+
+    public void testGetRestTemplate() {
+        EtradeRestTemplateFactory templateFactory = EtradeRestTemplateFactory.getTemplateFactory();
+        Assert.assertSame(templateFactory.getRestTemplate(), templateFactory.getRestTemplate());
+        Assert.assertNotSame(templateFactory.newCustomRestTemplate(), templateFactory.getRestTemplate());
+        // Converters built by the factory share one ObjectMapper.
+        Assert.assertSame(templateFactory.newMappingJackson2HttpMessageConverter().getObjectMapper(),
+                          templateFactory.newMappingJackson2HttpMessageConverter().getObjectMapper());
+    }
 }
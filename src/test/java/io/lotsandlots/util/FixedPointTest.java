@@ -0,0 +1,62 @@
+package io.lotsandlots.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+
+@Test(groups = {"unit"})
+public class FixedPointTest {
+
+    public void testToCents() {
+        Assert.assertEquals(FixedPoint.toCents(FixedPoint.toMicros(100.001D)), 10000L);
+        Assert.assertEquals(FixedPoint.toCents(FixedPoint.toMicros(100.005D)), 10001L);
+        Assert.assertEquals(FixedPoint.toCents(FixedPoint.toMicros(-100.005D)), -10001L);
+        // 1.015 is 1.01499999... as a double, but is exactly 1015000 micros.
+        Assert.assertEquals(FixedPoint.toCents(FixedPoint.toMicros(1.015D)), 102L);
+    }
+
+    public void testToMicros() {
+        Assert.assertEquals(FixedPoint.toMicros(10.01F), 10010000L);
+        Assert.assertEquals(FixedPoint.toMicros(Double.POSITIVE_INFINITY), Long.MAX_VALUE);
+        Assert.assertEquals(FixedPoint.toMicros(Double.NEGATIVE_INFINITY), Long.MIN_VALUE);
+        Assert.assertEquals(FixedPoint.toDouble(FixedPoint.toMicros(123.456789D)), 123.456789D, 0D);
+        Assert.assertEquals(FixedPoint.toMicros(new BigDecimal("54321.17")), 54321170000L);
+        Assert.assertEquals(FixedPoint.toMicros(new BigDecimal("-0.0000005")), -1L);
+    }
+
+    public void testParseMicros() {
+        // None of these survive a round trip through float to the micro.
+        Assert.assertEquals(FixedPoint.parseMicros("123.45"), 123450000L);
+        Assert.assertEquals(FixedPoint.parseMicros("1234.56"), 1234560000L);
+        Assert.assertEquals(FixedPoint.parseMicros("54321.17"), 54321170000L);
+        Assert.assertEquals(FixedPoint.toCents(FixedPoint.parseMicros("54321.17")), 5432117L);
+
+        Assert.assertEquals(FixedPoint.parseMicros("90"), 90000000L);
+        Assert.assertEquals(FixedPoint.parseMicros("-0.5"), -500000L);
+        Assert.assertEquals(FixedPoint.parseMicros(".25"), 250000L);
+        Assert.assertEquals(FixedPoint.parseMicros("1.0000005"), 1000001L);
+        Assert.assertEquals(FixedPoint.parseMicros("1.00000049"), 1000000L);
+        Assert.assertEquals(FixedPoint.parseMicros("-1.0000005"), -1000001L);
+        Assert.assertEquals(FixedPoint.parseMicros("1.5E2"), 150000000L);
+        Assert.assertEquals(FixedPoint.parseMicros("1234567890123.5"), 1234567890123500000L);
+        char[] json = "[54321.17]".toCharArray();
+        Assert.assertEquals(FixedPoint.parseMicros(json, 1, 8), 54321170000L);
+        try {
+            FixedPoint.parseMicros("-");
+            Assert.fail("Expected NumberFormatException");
+        } catch (NumberFormatException e) {
+            Assert.assertEquals(e.getMessage(), "Not a decimal number: -");
+        }
+        Assert.assertThrows(NumberFormatException.class, () -> FixedPoint.parseMicros("12a"));
+    }
+
+    public void testMultiplyAndDivide() {
+        long priceMicros = FixedPoint.toMicros(100D);
+        Assert.assertEquals(FixedPoint.multiply(priceMicros, 0.97D), FixedPoint.toMicros(97D));
+        Assert.assertEquals(FixedPoint.divide(FixedPoint.toMicros(95D), FixedPoint.toMicros(2D)),
+                            FixedPoint.toMicros(47.5D));
+        Assert.assertEquals(FixedPoint.divide(priceMicros, 0L), 0L);
+        Assert.assertEquals(FixedPoint.toUnits(FixedPoint.toMicros(9.99D)), 9L);
+    }
+}
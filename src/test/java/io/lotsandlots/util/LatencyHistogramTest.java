@@ -0,0 +1,43 @@
+package io.lotsandlots.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = {"unit"})
+public class LatencyHistogramTest {
+
+    public void testBucketBounds() {
+        for (long nanos : new long[] {0L, 1L, 15L, 16L, 17L, 1000L, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+            long upperBound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(nanos));
+            Assert.assertTrue(upperBound >= nanos, "nanos=" + nanos);
+            // Buckets are at most 1/8th of their lower bound wide.
+            Assert.assertTrue(upperBound - nanos <= Math.max(0L, nanos / 8), "nanos=" + nanos);
+        }
+        Assert.assertEquals(LatencyHistogram.bucketIndex(Long.MAX_VALUE),
+                            LatencyHistogram.bucketIndex(Long.MAX_VALUE - 1L));
+        Assert.assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)),
+                            Long.MAX_VALUE);
+    }
+
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getQuantileNanos(0.99), 0L);
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertEquals(histogram.getCount(), 1000L);
+        Assert.assertEquals(histogram.getMaxNanos(), TimeUnit.MILLISECONDS.toNanos(1000L));
+        Assert.assertEquals(histogram.getSumNanos(), TimeUnit.MILLISECONDS.toNanos(500500L));
+
+        long p50 = histogram.getQuantileNanos(0.5);
+        Assert.assertTrue(p50 >= TimeUnit.MILLISECONDS.toNanos(500L), "p50=" + p50);
+        Assert.assertTrue(p50 <= TimeUnit.MILLISECONDS.toNanos(563L), "p50=" + p50);
+        long p99 = histogram.getQuantileNanos(0.99);
+        Assert.assertTrue(p99 >= TimeUnit.MILLISECONDS.toNanos(990L), "p99=" + p99);
+        // Capped at the largest value recorded rather than the upper bound of its bucket.
+        Assert.assertEquals(histogram.getQuantileNanos(1.0), TimeUnit.MILLISECONDS.toNanos(1000L));
+    }
+}
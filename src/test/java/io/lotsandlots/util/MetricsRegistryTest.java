@@ -0,0 +1,59 @@
+package io.lotsandlots.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Test(groups = {"unit"})
+public class MetricsRegistryTest {
+
+    public void testCounterAndGauge() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_requests_total", "Requests.", "endpoint", "lots").increment();
+        registry.counter("test_requests_total", "Requests.", "endpoint", "lots").add(2L);
+        registry.counter("test_requests_total", "Requests.", "endpoint", "orders").increment();
+        AtomicLong queueDepth = new AtomicLong(7L);
+        registry.gauge("test_queue_depth", "Queue depth.", queueDepth::get);
+
+        Assert.assertEquals(registry.toPrometheusText(),
+                "# HELP test_queue_depth Queue depth.\n"
+                        + "# TYPE test_queue_depth gauge\n"
+                        + "test_queue_depth 7\n"
+                        + "# HELP test_requests_total Requests.\n"
+                        + "# TYPE test_requests_total counter\n"
+                        + "test_requests_total{endpoint=\"lots\"} 3\n"
+                        + "test_requests_total{endpoint=\"orders\"} 1\n");
+
+        // Gauges are read at scrape time, and registering again replaces the supplier.
+        queueDepth.set(3L);
+        Assert.assertTrue(registry.toPrometheusText().contains("test_queue_depth 3\n"));
+        registry.gauge("test_queue_depth", "Queue depth.", () -> 11L);
+        Assert.assertTrue(registry.toPrometheusText().contains("test_queue_depth 11\n"));
+    }
+
+    public void testHistogramIsWrittenAsSummary() {
+        MetricsRegistry registry = new MetricsRegistry();
+        LatencyHistogram histogram = registry.histogram("test_seconds", "Latency.", "type", "query");
+        Assert.assertSame(registry.histogram("test_seconds", "Latency.", "type", "query"), histogram);
+        histogram.record(2L, TimeUnit.SECONDS);
+        histogram.record(2L, TimeUnit.SECONDS);
+
+        String text = registry.toPrometheusText();
+        Assert.assertTrue(text.contains("# TYPE test_seconds summary\n"), text);
+        Assert.assertTrue(text.contains("test_seconds{type=\"query\",quantile=\"0.99\"} 2.0\n"), text);
+        Assert.assertTrue(text.contains("test_seconds_sum{type=\"query\"} 4.0\n"), text);
+        Assert.assertTrue(text.contains("test_seconds_count{type=\"query\"} 2\n"), text);
+    }
+
+    public void testLabelValuesAreEscaped() {
+        Assert.assertEquals(MetricsRegistry.labelsKey("a", "x\"y\\z\n", "b", null), "a=\"x\\\"y\\\\z\\n\",b=\"\"");
+    }
+
+    public void testTypeMismatch() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Total.");
+        Assert.assertThrows(IllegalArgumentException.class, () -> registry.histogram("test_total", "Total."));
+    }
+}
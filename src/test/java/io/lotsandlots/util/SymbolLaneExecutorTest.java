@@ -0,0 +1,111 @@
+package io.lotsandlots.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test(groups = {"unit"})
+public class SymbolLaneExecutorTest {
+
+    public void testCoalescing() {
+        Queue<Runnable> queue = new LinkedList<>();
+        SymbolLaneExecutor laneExecutor = new SymbolLaneExecutor("test", queue::add);
+        List<String> ran = new ArrayList<>();
+
+        laneExecutor.execute(0, () -> ran.add("A1"));
+        laneExecutor.execute(0, () -> ran.add("A2"));
+        laneExecutor.execute(0, () -> ran.add("A3"));
+        laneExecutor.execute(1, () -> ran.add("B1"));
+        // One queued run per lane, however many tasks were submitted.
+        Assert.assertEquals(queue.size(), 2);
+        Assert.assertEquals(laneExecutor.getCoalescedCount(), 2L);
+        Assert.assertEquals(laneExecutor.getSubmittedCount(), 4L);
+
+        while (!queue.isEmpty()) {
+            queue.poll().run();
+        }
+        Assert.assertEquals(ran.size(), 2);
+        Assert.assertEquals(ran.get(0), "A3");
+        Assert.assertEquals(ran.get(1), "B1");
+    }
+
+    public void testPendingTaskRequeuedAfterRun() {
+        Queue<Runnable> queue = new LinkedList<>();
+        SymbolLaneExecutor laneExecutor = new SymbolLaneExecutor("test", queue::add);
+        List<String> ran = new ArrayList<>();
+
+        laneExecutor.execute(0, () -> {
+            ran.add("A1");
+            // Submitted while A1 runs, so it must wait for the next turn of the lane.
+            laneExecutor.execute(0, () -> ran.add("A2"));
+            Assert.assertTrue(queue.isEmpty());
+        });
+        queue.poll().run();
+        Assert.assertEquals(queue.size(), 1);
+        queue.poll().run();
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(ran.size(), 2);
+        Assert.assertEquals(ran.get(1), "A2");
+        Assert.assertEquals(laneExecutor.getCoalescedCount(), 0L);
+    }
+
+    public void testRejectedTaskIsDropped() {
+        AtomicInteger attempts = new AtomicInteger();
+        SymbolLaneExecutor laneExecutor = new SymbolLaneExecutor("test", runnable -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new RejectedExecutionException();
+            }
+            runnable.run();
+        });
+        AtomicInteger ranCount = new AtomicInteger();
+        laneExecutor.execute(0, ranCount::incrementAndGet);
+        Assert.assertEquals(ranCount.get(), 0);
+        // The lane is usable again once the rejection has been handled.
+        laneExecutor.execute(0, ranCount::incrementAndGet);
+        Assert.assertEquals(ranCount.get(), 1);
+    }
+
+    public void testSerializedPerSymbol() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SymbolLaneExecutor laneExecutor = new SymbolLaneExecutor("test", executor);
+            int laneCount = 100;
+            AtomicInteger[] running = new AtomicInteger[laneCount];
+            AtomicInteger overlaps = new AtomicInteger();
+            CountDownLatch lastTasks = new CountDownLatch(laneCount);
+            for (int i = 0; i < laneCount; i++) {
+                running[i] = new AtomicInteger();
+            }
+            for (int round = 0; round < 50; round++) {
+                boolean isLastRound = round == 49;
+                for (int i = 0; i < laneCount; i++) {
+                    AtomicInteger laneRunning = running[i];
+                    laneExecutor.execute(i, () -> {
+                        if (laneRunning.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        laneRunning.decrementAndGet();
+                        if (isLastRound) {
+                            lastTasks.countDown();
+                        }
+                    });
+                }
+            }
+            // Coalescing never drops the newest task of a lane.
+            Assert.assertTrue(lastTasks.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(overlaps.get(), 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.lotsandlots.util;
+
+import com.typesafe.config.ConfigFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = {"unit"})
+public class TaskSchedulerTest {
+
+    private static TradingWindow alwaysOpen() {
+        return TradingWindow.fromConfig(ConfigFactory.parseString(
+                "etrade {\n"
+                + "    buyOrderCreationStartDayOfWeek: 1\n"
+                + "    buyOrderCreationStartHour: 0\n"
+                + "    buyOrderCreationStartMinute: 0\n"
+                + "    buyOrderCreationStopDayOfWeek: 8\n"
+                + "    buyOrderCreationStopHour: 24\n"
+                + "}"));
+    }
+
+    private static TradingWindow alwaysClosed() {
+        return TradingWindow.fromConfig(ConfigFactory.parseString(
+                "etrade.buyOrderCreationStopDayOfWeek: 1"));
+    }
+
+    public void testNextDelayMillis() {
+        TaskScheduler openScheduler = new TaskScheduler(alwaysOpen());
+        TaskScheduler closedScheduler = new TaskScheduler(alwaysClosed());
+        try {
+            for (int i = 0; i < 100; i++) {
+                long openDelayMillis = openScheduler.nextDelayMillis(60L);
+                Assert.assertTrue(openDelayMillis >= 54000L && openDelayMillis <= 66000L);
+                long closedDelayMillis = closedScheduler.nextDelayMillis(60L);
+                Assert.assertTrue(closedDelayMillis >= 810000L && closedDelayMillis <= 990000L);
+            }
+        } finally {
+            openScheduler.shutdown();
+            closedScheduler.shutdown();
+        }
+    }
+
+    public void testTickSkipsWhileInFlight() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(alwaysOpen());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable runnable = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        TaskScheduler.ScheduledTask<Runnable> task = scheduler.new ScheduledTask<>("test", runnable, 60L);
+        try {
+            task.tick();
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(task.isInFlight());
+
+            task.tick();
+            Assert.assertEquals(task.getSkippedCount(), 1L);
+
+            release.countDown();
+            long deadlineMillis = System.currentTimeMillis() + 5000L;
+            while (task.isInFlight() && System.currentTimeMillis() < deadlineMillis) {
+                Thread.sleep(10L);
+            }
+            Assert.assertFalse(task.isInFlight());
+            Assert.assertEquals(task.getRunCount(), 1L);
+            Assert.assertEquals(scheduler.getQueueDepth(), 0);
+        } finally {
+            task.cancel();
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.lotsandlots.web.servlet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+@Test(groups = {"unit"})
+public class ApiLotsServletTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static ViewEtradeEventPublisher newEventPublisher() {
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        List<Lot> lotListA = new LinkedList<>();
+        lotListA.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_A", 150.00D, 0D));
+        lotListA.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_A", 100.00D, 1.00D));
+        symbolToLotsIndex.put("VIEW_LOTS_SYMBOL_A", lotListA);
+        List<Lot> lotListB = new LinkedList<>();
+        lotListB.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_B", 150.00D, 0D));
+        lotListB.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_B", 100.00D, 4.00D));
+        symbolToLotsIndex.put("VIEW_LOTS_SYMBOL_B", lotListB);
+        List<Lot> lotListC = new LinkedList<>();
+        lotListC.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_C", 150.00D, 0D));
+        lotListC.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_C", 100.00D, -1.00D));
+        symbolToLotsIndex.put("VIEW_LOTS_SYMBOL_C", lotListC);
+        List<Lot> lotListD = new LinkedList<>();
+        lotListD.add(ViewFixtures.newLot("VIEW_LOTS_SYMBOL_D", 100.00D, -4.00D));
+        symbolToLotsIndex.put("VIEW_LOTS_SYMBOL_D", lotListD);
+
+        Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
+        List<Order> sellOrderListA = new LinkedList<>();
+        sellOrderListA.add(new Order());
+        symbolToSellOrdersIndex.put("VIEW_LOTS_SYMBOL_A", sellOrderListA);
+        List<Order> sellOrderListD = new LinkedList<>();
+        sellOrderListD.add(new Order());
+        symbolToSellOrdersIndex.put("VIEW_LOTS_SYMBOL_D", sellOrderListD);
+
+        ViewEtradeEventPublisher eventPublisher = new ViewEtradeEventPublisher();
+        eventPublisher.publishChanges(symbolToLotsIndex, symbolToSellOrdersIndex, new HashMap<>());
+        return eventPublisher;
+    }
+
+    private static HttpServletRequest newMockRequest(Map<String, String> parameters, String ifNoneMatch) {
+        HttpServletRequest mockRequest = Mockito.mock(HttpServletRequest.class);
+        Mockito.doAnswer((Answer<String>) invocation -> parameters.get((String) invocation.getArgument(0)))
+               .when(mockRequest).getParameter(Mockito.anyString());
+        Mockito.doReturn(ifNoneMatch).when(mockRequest).getHeader("If-None-Match");
+        return mockRequest;
+    }
+
+    private static ByteArrayOutputStream mockOutputStream(HttpServletResponse mockResponse) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Mockito.doReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                outputStream.write(b);
+            }
+        }).when(mockResponse).getOutputStream();
+        return outputStream;
+    }
+
+    public void testDoGet() throws Exception {
+        ViewEtradeEventPublisher eventPublisher = newEventPublisher();
+        HttpServletResponse mockResponse = Mockito.mock(HttpServletResponse.class);
+        ByteArrayOutputStream outputStream = mockOutputStream(mockResponse);
+
+        ApiLotsServlet apiLotsServlet = new ApiLotsServlet();
+        apiLotsServlet.setEventPublisher(eventPublisher);
+        apiLotsServlet.doGet(newMockRequest(new HashMap<>(), null), mockResponse);
+
+        Mockito.verify(mockResponse).setHeader("ETag", eventPublisher.getLotsSnapshot().getETag(false));
+        Mockito.verify(mockResponse).setContentType("application/json");
+        JsonNode json = OBJECT_MAPPER.readTree(outputStream.toByteArray());
+        Assert.assertEquals(json.get("version").asLong(), eventPublisher.getLotsSnapshot().getVersion());
+        Assert.assertEquals(json.get("total").asInt(), 7);
+        Map<String, String> symbolToOrderStatus = new HashMap<>();
+        for (JsonNode item : json.get("items")) {
+            symbolToOrderStatus.put(item.get("symbol").asText(), item.get("orderStatus").asText());
+        }
+        Assert.assertEquals(symbolToOrderStatus.get("VIEW_LOTS_SYMBOL_A"), "MISMATCH");
+        Assert.assertEquals(symbolToOrderStatus.get("VIEW_LOTS_SYMBOL_B"), "MISSING");
+        Assert.assertEquals(symbolToOrderStatus.get("VIEW_LOTS_SYMBOL_C"), "MISSING");
+        Assert.assertEquals(symbolToOrderStatus.get("VIEW_LOTS_SYMBOL_D"), "OK");
+    }
+
+    public void testDoGetLowestPricedOnly() throws Exception {
+        HttpServletResponse mockResponse = Mockito.mock(HttpServletResponse.class);
+        ByteArrayOutputStream outputStream = mockOutputStream(mockResponse);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("lowestPricedOnly", "true");
+        parameters.put("symbol", "view_lots_symbol_b");
+
+        ApiLotsServlet apiLotsServlet = new ApiLotsServlet();
+        apiLotsServlet.setEventPublisher(newEventPublisher());
+        apiLotsServlet.doGet(newMockRequest(parameters, null), mockResponse);
+
+        JsonNode items = OBJECT_MAPPER.readTree(outputStream.toByteArray()).get("items");
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertEquals(items.get(0).get("symbol").asText(), "VIEW_LOTS_SYMBOL_B");
+        Assert.assertEquals(items.get(0).get("price").asDouble(), 100.00D);
+        Assert.assertEquals(items.get(0).get("totalCostForGainPct").asDouble(), 4.00D);
+    }
+
+    public void testDoGetNotModified() throws Exception {
+        ViewEtradeEventPublisher eventPublisher = newEventPublisher();
+        HttpServletResponse mockResponse = Mockito.mock(HttpServletResponse.class);
+        ByteArrayOutputStream outputStream = mockOutputStream(mockResponse);
+
+        ApiLotsServlet apiLotsServlet = new ApiLotsServlet();
+        apiLotsServlet.setEventPublisher(eventPublisher);
+        apiLotsServlet.doGet(
+                newMockRequest(new HashMap<>(), eventPublisher.getLotsSnapshot().getETag(false)), mockResponse);
+
+        Mockito.verify(mockResponse).setStatus(304);
+        Assert.assertEquals(outputStream.size(), 0);
+    }
+
+    public void testDoGetWithInvalidLimit() throws Exception {
+        HttpServletResponse mockResponse = Mockito.mock(HttpServletResponse.class);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("limit", "-1");
+
+        ApiLotsServlet apiLotsServlet = new ApiLotsServlet();
+        apiLotsServlet.setEventPublisher(newEventPublisher());
+        apiLotsServlet.doGet(newMockRequest(parameters, null), mockResponse);
+
+        Mockito.verify(mockResponse).sendError(Mockito.eq(400), Mockito.anyString());
+    }
+}
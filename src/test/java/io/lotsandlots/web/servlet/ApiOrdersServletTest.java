@@ -0,0 +1,92 @@
+package io.lotsandlots.web.servlet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.FixedPoint;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Test(groups = {"unit"})
+public class ApiOrdersServletTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static List<Order> newOrderList(String symbol, String orderAction, double limitPrice) {
+        Order order = new Order();
+        order.setLimitPriceMicros(FixedPoint.toMicros(limitPrice));
+        order.setOrderAction(orderAction);
+        order.setPlacedTimeMillis(System.currentTimeMillis());
+        order.setSymbol(symbol);
+        return Collections.singletonList(order);
+    }
+
+    public void testDoGetWithSymbolParameter() throws Exception {
+        Map<String, List<Order>> symbolToBuyOrdersIndex = new HashMap<>();
+        symbolToBuyOrdersIndex.put("VIEW_ORDERS_SYMBOL_A", newOrderList("VIEW_ORDERS_SYMBOL_A", "BUY", 1.00D));
+        symbolToBuyOrdersIndex.put("VIEW_ORDERS_SYMBOL_B", newOrderList("VIEW_ORDERS_SYMBOL_B", "BUY", 2.00D));
+        Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
+        symbolToSellOrdersIndex.put("VIEW_ORDERS_SYMBOL_A", newOrderList("VIEW_ORDERS_SYMBOL_A", "SELL", 3.00D));
+        symbolToSellOrdersIndex.put("VIEW_ORDERS_SYMBOL_B", newOrderList("VIEW_ORDERS_SYMBOL_B", "SELL", 4.00D));
+        ViewEtradeEventPublisher eventPublisher = new ViewEtradeEventPublisher();
+        eventPublisher.publishChanges(new HashMap<>(), symbolToSellOrdersIndex, symbolToBuyOrdersIndex);
+
+        ////
+        // If asked for SYMBOL B, we should not include anything else.
+
+        HttpServletRequest mockRequest = Mockito.mock(HttpServletRequest.class);
+        Mockito.doAnswer((Answer<String>) invocation -> {
+            String parameter = invocation.getArgument(0);
+            if (parameter.equals("symbol")) {
+                return "VIEW_ORDERS_SYMBOL_B";
+            }
+            return null;
+        }).when(mockRequest).getParameter(Mockito.anyString());
+
+        HttpServletResponse mockResponse = Mockito.mock(HttpServletResponse.class);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Mockito.doReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                outputStream.write(b);
+            }
+        }).when(mockResponse).getOutputStream();
+
+        ApiOrdersServlet apiOrdersServlet = new ApiOrdersServlet();
+        apiOrdersServlet.setEventPublisher(eventPublisher);
+        apiOrdersServlet.doGet(mockRequest, mockResponse);
+
+        Mockito.verify(mockResponse).setHeader("ETag", eventPublisher.getOrdersSnapshot().getETag(false));
+        JsonNode json = OBJECT_MAPPER.readTree(outputStream.toByteArray());
+        Assert.assertEquals(json.get("total").asInt(), 2);
+        JsonNode items = json.get("items");
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(items.get(0).get("symbol").asText(), "VIEW_ORDERS_SYMBOL_B");
+        Assert.assertEquals(items.get(0).get("limitPrice").asDouble(), 2.00D);
+        Assert.assertEquals(items.get(0).get("orderAction").asText(), "BUY");
+        Assert.assertEquals(items.get(1).get("symbol").asText(), "VIEW_ORDERS_SYMBOL_B");
+        Assert.assertEquals(items.get(1).get("limitPrice").asDouble(), 4.00D);
+        Assert.assertEquals(items.get(1).get("orderAction").asText(), "SELL");
+    }
+}
@@ -0,0 +1,208 @@
+package io.lotsandlots.web.servlet;
+
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Test(groups = {"unit"})
+public class ViewEtradeEventPublisherTest {
+
+    private static ViewEtradeEventPublisher.Subscriber newSubscriber(ViewEtradeEventPublisher publisher,
+                                                                     EventStream stream,
+                                                                     Runnable onClose) throws IOException {
+        ViewEtradeEventPublisher.Subscriber subscriber = publisher.newSubscriber(stream, onClose);
+        subscriber.onWritePossible();
+        return subscriber;
+    }
+
+    private static int countEvents(String stream, String eventName) {
+        return stream.split("event: " + eventName + "\n", -1).length - 1;
+    }
+
+    public void testChangedItems() {
+        Map<String, List<String>> publishedItems = new HashMap<>();
+        publishedItems.put("A", Collections.singletonList("{\"a\":1}"));
+        publishedItems.put("B", Collections.singletonList("{\"b\":1}"));
+        publishedItems.put("C", Collections.singletonList("{\"c\":1}"));
+        Map<String, List<String>> currentItems = new HashMap<>();
+        currentItems.put("A", Collections.singletonList("{\"a\":1}"));
+        currentItems.put("B", Arrays.asList("{\"b\":1}", "{\"b\":2}"));
+        currentItems.put("D", Collections.singletonList("{\"d\":1}"));
+
+        Map<String, List<String>> changedItems = ViewEtradeEventPublisher.changedItems(publishedItems, currentItems);
+        Assert.assertEquals(new ArrayList<>(changedItems.keySet()), Arrays.asList("B", "C", "D"));
+        Assert.assertEquals(changedItems.get("B").size(), 2);
+        Assert.assertTrue(changedItems.get("C").isEmpty());
+    }
+
+    public void testPublishChangesSendsOnlyChangedSymbols() throws Exception {
+        ViewEtradeEventPublisher publisher = new ViewEtradeEventPublisher();
+        EventStream stream = new EventStream();
+        publisher.subscribe(newSubscriber(publisher, stream, () -> { }), null);
+        publisher.awaitIdle();
+
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        symbolToLotsIndex.put("EVENTS_A", Arrays.asList(ViewFixtures.newLot("EVENTS_A", 20D, 1D),
+                                                        ViewFixtures.newLot("EVENTS_A", 10D, 4D)));
+        symbolToLotsIndex.put("EVENTS_B", Collections.singletonList(ViewFixtures.newLot("EVENTS_B", 30D, -2D)));
+        Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
+        symbolToSellOrdersIndex.put("EVENTS_A", Arrays.asList(ViewFixtures.newOrder("EVENTS_A", "SELL", 1D),
+                                                              ViewFixtures.newOrder("EVENTS_A", "SELL", 1D)));
+        Map<String, List<Order>> symbolToBuyOrdersIndex = new HashMap<>();
+        long firstEventId = publisher.getLastEventId() + 1L;
+        publisher.publishChanges(symbolToLotsIndex, symbolToSellOrdersIndex, symbolToBuyOrdersIndex);
+        publisher.awaitIdle();
+
+        String firstGeneration = stream.toString();
+        Assert.assertTrue(firstGeneration.contains("id: " + firstEventId + "\nevent: lots\n"));
+        Assert.assertTrue(firstGeneration.contains("EVENTS_B"));
+        // Lowest priced lot first.
+        Assert.assertTrue(firstGeneration.indexOf("\"price\":10.0") < firstGeneration.indexOf("\"price\":20.0"));
+        Assert.assertEquals(publisher.getLotsSnapshot().getVersion(), firstEventId);
+        Assert.assertEquals(publisher.getOrdersSnapshot().getVersion(), firstEventId + 1L);
+        Assert.assertEquals(countEvents(firstGeneration, "orders"), 1);
+        Assert.assertEquals(publisher.getLastEventId(), firstEventId + 1L);
+
+        // Nothing changed, nothing sent, and the snapshots keep their versions.
+        publisher.publishChanges(symbolToLotsIndex, symbolToSellOrdersIndex, symbolToBuyOrdersIndex);
+        Assert.assertEquals(stream.toString(), firstGeneration);
+        Assert.assertEquals(publisher.getLotsSnapshot().getVersion(), firstEventId);
+
+        // A new sell order for EVENTS_B changes its orders and the orderStatus of its lot, but not EVENTS_A.
+        symbolToSellOrdersIndex.put("EVENTS_B",
+                                    Collections.singletonList(ViewFixtures.newOrder("EVENTS_B", "SELL", 1D)));
+        publisher.publishChanges(symbolToLotsIndex, symbolToSellOrdersIndex, symbolToBuyOrdersIndex);
+        String secondGeneration = stream.toString().substring(firstGeneration.length());
+        Assert.assertEquals(countEvents(secondGeneration, "lots"), 1);
+        Assert.assertEquals(countEvents(secondGeneration, "orders"), 1);
+        Assert.assertTrue(secondGeneration.contains("EVENTS_B"));
+        Assert.assertFalse(secondGeneration.contains("EVENTS_A"));
+
+        // A symbol that is sold out is sent without rows.
+        symbolToLotsIndex.remove("EVENTS_B");
+        publisher.publishChanges(symbolToLotsIndex, symbolToSellOrdersIndex, symbolToBuyOrdersIndex);
+        String thirdGeneration = stream.toString().substring(firstGeneration.length() + secondGeneration.length());
+        Assert.assertTrue(thirdGeneration.contains("data: {\"EVENTS_B\":[]}\n"));
+    }
+
+    public void testSubscribeReplaysMissedEvents() throws Exception {
+        ViewEtradeEventPublisher publisher = new ViewEtradeEventPublisher();
+        long renderedEventId = publisher.getLastEventId();
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        symbolToLotsIndex.put("EVENTS_C", Collections.singletonList(ViewFixtures.newLot("EVENTS_C", 5D, 1D)));
+        publisher.awaitIdle();
+        publisher.publishChanges(symbolToLotsIndex, new HashMap<>(), new HashMap<>());
+
+        EventStream stream = new EventStream();
+        AtomicBoolean isClosed = new AtomicBoolean(false);
+        publisher.subscribe(newSubscriber(publisher, stream, () -> isClosed.set(true)), renderedEventId);
+        publisher.awaitIdle();
+        Assert.assertTrue(stream.toString().startsWith("id: " + (renderedEventId + 1L) + "\nevent: lots\n"));
+        Assert.assertFalse(isClosed.get());
+    }
+
+    public void testSubscribeWithUnknownEventIdReloads() throws Exception {
+        ViewEtradeEventPublisher publisher = new ViewEtradeEventPublisher();
+        EventStream stream = new EventStream();
+        AtomicBoolean isClosed = new AtomicBoolean(false);
+        // An id from before a restart.
+        publisher.subscribe(
+                newSubscriber(publisher, stream, () -> isClosed.set(true)), publisher.getLastEventId() - 1000L);
+        publisher.awaitIdle();
+        Assert.assertTrue(stream.toString().contains("event: reload\n"));
+        Assert.assertTrue(isClosed.get());
+    }
+
+    public void testStalledSubscriberIsDropped() throws Exception {
+        ViewEtradeEventPublisher publisher = new ViewEtradeEventPublisher();
+        EventStream stream = new EventStream();
+        publisher.subscribe(newSubscriber(publisher, stream, () -> { }), null);
+        EventStream stalledStream = new EventStream();
+        stalledStream.isReady = false;
+        AtomicBoolean isStalledClosed = new AtomicBoolean(false);
+        ViewEtradeEventPublisher.Subscriber stalledSubscriber =
+                new ViewEtradeEventPublisher.Subscriber(stalledStream, 1, () -> isStalledClosed.set(true));
+        stalledSubscriber.onWritePossible();
+        publisher.subscribe(stalledSubscriber, null);
+        publisher.awaitIdle();
+
+        // Lots and orders events, one more than the stalled page can have queued.
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        symbolToLotsIndex.put("EVENTS_D", Collections.singletonList(ViewFixtures.newLot("EVENTS_D", 5D, 1D)));
+        Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
+        symbolToSellOrdersIndex.put("EVENTS_D",
+                                    Collections.singletonList(ViewFixtures.newOrder("EVENTS_D", "SELL", 1D)));
+        publisher.publishChanges(symbolToLotsIndex, symbolToSellOrdersIndex, new HashMap<>());
+
+        Assert.assertEquals(countEvents(stream.toString(), "lots"), 1);
+        Assert.assertEquals(countEvents(stream.toString(), "orders"), 1);
+        Assert.assertEquals(stalledStream.toString(), "");
+        Assert.assertTrue(isStalledClosed.get());
+        Assert.assertFalse(stalledSubscriber.send(": heartbeat\n\n"));
+    }
+
+    public void testSubscriberWritesWhenStreamIsReadyAgain() throws Exception {
+        EventStream stream = new EventStream();
+        stream.isReady = false;
+        ViewEtradeEventPublisher.Subscriber subscriber = new ViewEtradeEventPublisher.Subscriber(stream, 2, () -> { });
+        subscriber.onWritePossible();
+        Assert.assertTrue(subscriber.send("a"));
+        Assert.assertTrue(subscriber.send("b"));
+        Assert.assertEquals(stream.toString(), "");
+
+        stream.isReady = true;
+        subscriber.onWritePossible();
+        Assert.assertEquals(stream.toString(), "ab");
+        Assert.assertEquals(stream.flushCount, 1);
+        Assert.assertTrue(subscriber.send("c"));
+        Assert.assertEquals(stream.toString(), "abc");
+    }
+
+    /**
+     * A non-blocking stream that can stop accepting writes, like a page that has stopped reading.
+     */
+    private static class EventStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int flushCount = 0;
+        private volatile boolean isReady = true;
+
+        @Override
+        public boolean isReady() {
+            return isReady;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void flush() {
+            flushCount++;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.lotsandlots.web.servlet;
+
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.FixedPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves /api/orders for an account with orderCount open orders, about one sell order per lot: serializing a fetch
+ * generation, assembling a body from a new snapshot, and the cached and gzipped bodies every later request gets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class ViewEtradeSnapshotBenchmark {
+
+    @Param({"100", "10000"})
+    private int orderCount;
+
+    private Map<String, List<Order>> symbolToBuyOrdersIndex;
+    private Map<String, List<Order>> symbolToSellOrdersIndex;
+    private Map<String, List<String>> symbolToItems;
+    private ViewEtradeSnapshot snapshot;
+
+    @Setup
+    public void setup() {
+        long placedTimeMillis = System.currentTimeMillis();
+        symbolToBuyOrdersIndex = new HashMap<>();
+        symbolToSellOrdersIndex = new HashMap<>();
+        for (int i = 0; i < orderCount; i++) {
+            Order order = new Order();
+            order.setLimitPriceMicros(FixedPoint.toMicros(20D + (i % 80) + (i % 100) / 100D));
+            order.setOrderAction(i % 20 == 0 ? "BUY" : "SELL");
+            order.setOrderId(1000000L + i);
+            order.setOrderedQuantity(1L + i % 5);
+            order.setPlacedTimeMillis(placedTimeMillis - i * 60000L);
+            order.setStatus("OPEN");
+            order.setSymbol(String.format("S%04d", i / 20));
+            Map<String, List<Order>> symbolToOrdersIndex =
+                    "BUY".equals(order.getOrderAction()) ? symbolToBuyOrdersIndex : symbolToSellOrdersIndex;
+            symbolToOrdersIndex.computeIfAbsent(order.getSymbol(), symbol -> new ArrayList<>()).add(order);
+        }
+        symbolToItems = ViewEtradeSnapshot.newOrderItems(symbolToBuyOrdersIndex, symbolToSellOrdersIndex);
+        snapshot = new ViewEtradeSnapshot(1L, symbolToItems);
+        snapshot.getBody(null, false, 0, Integer.MAX_VALUE).getGzippedBytes();
+    }
+
+    @Benchmark
+    public Map<String, List<String>> newOrderItems() {
+        return ViewEtradeSnapshot.newOrderItems(symbolToBuyOrdersIndex, symbolToSellOrdersIndex);
+    }
+
+    @Benchmark
+    public byte[] getBodyUncached() {
+        return new ViewEtradeSnapshot(1L, symbolToItems).getBody(null, false, 0, Integer.MAX_VALUE).getBytes();
+    }
+
+    @Benchmark
+    public byte[] getBodyCached() {
+        return snapshot.getBody(null, false, 0, Integer.MAX_VALUE).getBytes();
+    }
+
+    @Benchmark
+    public byte[] getGzippedBodyCached() {
+        return snapshot.getBody(null, false, 0, Integer.MAX_VALUE).getGzippedBytes();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ViewEtradeSnapshotBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,138 @@
+package io.lotsandlots.web.servlet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+@Test(groups = {"unit"})
+public class ViewEtradeSnapshotTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static ViewEtradeSnapshot newLotsSnapshot() {
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        symbolToLotsIndex.put("SNAPSHOT_A", Arrays.asList(ViewFixtures.newLot("SNAPSHOT_A", 150D, 1.5D),
+                                                          ViewFixtures.newLot("SNAPSHOT_A", 100D, 1.5D)));
+        symbolToLotsIndex.put("SNAPSHOT_B", Arrays.asList(ViewFixtures.newLot("SNAPSHOT_B", 150D, 1.5D),
+                                                          ViewFixtures.newLot("SNAPSHOT_B", 100D, 1.5D)));
+        symbolToLotsIndex.put("SNAPSHOT_C", Collections.singletonList(ViewFixtures.newLot("SNAPSHOT_C", 10D, 1.5D)));
+        Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
+        symbolToSellOrdersIndex.put("SNAPSHOT_A",
+                                    Collections.singletonList(ViewFixtures.newOrder("SNAPSHOT_A", "SELL", 160D)));
+        symbolToSellOrdersIndex.put("SNAPSHOT_C",
+                                    Collections.singletonList(ViewFixtures.newOrder("SNAPSHOT_C", "SELL", 11D)));
+        return new ViewEtradeSnapshot(
+                7L, ViewEtradeSnapshot.newLotItems(symbolToLotsIndex, symbolToSellOrdersIndex));
+    }
+
+    private static JsonNode readBody(ViewEtradeSnapshot.Body body) throws IOException {
+        return OBJECT_MAPPER.readTree(body.getBytes());
+    }
+
+    public void testLotItems() throws IOException {
+        JsonNode json = readBody(newLotsSnapshot().getBody(null, false, 0, Integer.MAX_VALUE));
+        Assert.assertEquals(json.get("version").asLong(), 7L);
+        Assert.assertEquals(json.get("total").asInt(), 5);
+        JsonNode items = json.get("items");
+        Assert.assertEquals(items.size(), 5);
+
+        // Sorted by symbol, then lowest priced first.
+        Assert.assertEquals(items.get(0).get("symbol").asText(), "SNAPSHOT_A");
+        Assert.assertEquals(items.get(0).get("price").asDouble(), 100D);
+        Assert.assertEquals(items.get(0).get("totalCostForGainPct").asDouble(), 1.5D);
+        Assert.assertEquals(items.get(1).get("price").asDouble(), 150D);
+        Assert.assertEquals(items.get(0).get("orderStatus").asText(), "MISMATCH");
+        Assert.assertEquals(items.get(2).get("symbol").asText(), "SNAPSHOT_B");
+        Assert.assertEquals(items.get(2).get("orderStatus").asText(), "MISSING");
+        Assert.assertEquals(items.get(4).get("symbol").asText(), "SNAPSHOT_C");
+        Assert.assertEquals(items.get(4).get("orderStatus").asText(), "OK");
+    }
+
+    public void testOrderItems() throws IOException {
+        Map<String, List<Order>> symbolToBuyOrdersIndex = new HashMap<>();
+        symbolToBuyOrdersIndex.put("SNAPSHOT_B",
+                                   Collections.singletonList(ViewFixtures.newOrder("SNAPSHOT_B", "BUY", 2D)));
+        Map<String, List<Order>> symbolToSellOrdersIndex = new HashMap<>();
+        symbolToSellOrdersIndex.put("SNAPSHOT_A",
+                                    Collections.singletonList(ViewFixtures.newOrder("SNAPSHOT_A", "SELL", 3D)));
+        symbolToSellOrdersIndex.put("SNAPSHOT_B",
+                                    Collections.singletonList(ViewFixtures.newOrder("SNAPSHOT_B", "SELL", 4D)));
+        ViewEtradeSnapshot snapshot = new ViewEtradeSnapshot(
+                1L, ViewEtradeSnapshot.newOrderItems(symbolToBuyOrdersIndex, symbolToSellOrdersIndex));
+
+        JsonNode items = readBody(snapshot.getBody("SNAPSHOT_B", false, 0, Integer.MAX_VALUE)).get("items");
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(items.get(0).get("orderAction").asText(), "BUY");
+        Assert.assertEquals(items.get(0).get("limitPrice").asDouble(), 2D);
+        Assert.assertEquals(items.get(1).get("orderAction").asText(), "SELL");
+        Assert.assertEquals(items.get(1).get("limitPrice").asDouble(), 4D);
+    }
+
+    public void testGetBodyFiltersAndPages() throws IOException {
+        ViewEtradeSnapshot snapshot = newLotsSnapshot();
+
+        JsonNode lowestPriced = readBody(snapshot.getBody(null, true, 0, Integer.MAX_VALUE));
+        Assert.assertEquals(lowestPriced.get("total").asInt(), 3);
+        for (JsonNode item : lowestPriced.get("items")) {
+            Assert.assertNotEquals(item.get("price").asDouble(), 150D);
+        }
+
+        JsonNode symbol = readBody(snapshot.getBody("SNAPSHOT_B", false, 0, Integer.MAX_VALUE));
+        Assert.assertEquals(symbol.get("total").asInt(), 2);
+        Assert.assertEquals(symbol.get("items").get(1).get("symbol").asText(), "SNAPSHOT_B");
+
+        JsonNode page = readBody(snapshot.getBody(null, false, 1, 2));
+        Assert.assertEquals(page.get("total").asInt(), 5);
+        Assert.assertEquals(page.get("offset").asInt(), 1);
+        Assert.assertEquals(page.get("items").size(), 2);
+        Assert.assertEquals(page.get("items").get(0).get("price").asDouble(), 150D);
+
+        JsonNode pastTheEnd = readBody(snapshot.getBody(null, false, 10, 2));
+        Assert.assertEquals(pastTheEnd.get("offset").asInt(), 5);
+        Assert.assertEquals(pastTheEnd.get("items").size(), 0);
+
+        JsonNode unknownSymbol = readBody(snapshot.getBody("SNAPSHOT_Z", false, 0, Integer.MAX_VALUE));
+        Assert.assertEquals(unknownSymbol.get("total").asInt(), 0);
+    }
+
+    public void testGetBodyIsCached() {
+        ViewEtradeSnapshot snapshot = newLotsSnapshot();
+        ViewEtradeSnapshot.Body body = snapshot.getBody(null, true, 0, 100);
+        Assert.assertSame(snapshot.getBody(null, true, 0, 100), body);
+        Assert.assertNotSame(snapshot.getBody(null, false, 0, 100), body);
+    }
+
+    public void testGzippedBytes() throws IOException {
+        Map<String, List<Lot>> symbolToLotsIndex = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            symbolToLotsIndex.put("SNAPSHOT_" + i,
+                                  Collections.singletonList(ViewFixtures.newLot("SNAPSHOT_" + i, 10D + i, 1.5D)));
+        }
+        ViewEtradeSnapshot snapshot = new ViewEtradeSnapshot(
+                1L, ViewEtradeSnapshot.newLotItems(symbolToLotsIndex, new HashMap<>()));
+        ViewEtradeSnapshot.Body body = snapshot.getBody(null, false, 0, Integer.MAX_VALUE);
+        byte[] gzippedBytes = body.getGzippedBytes();
+        Assert.assertNotNull(gzippedBytes);
+        Assert.assertTrue(gzippedBytes.length < body.getBytes().length);
+        Assert.assertSame(body.getGzippedBytes(), gzippedBytes);
+        try (GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzippedBytes))) {
+            Assert.assertEquals(OBJECT_MAPPER.readTree(inputStream), readBody(body));
+        }
+
+        // Small bodies are not worth compressing.
+        Assert.assertNull(newLotsSnapshot().getBody("SNAPSHOT_C", false, 0, 1).getGzippedBytes());
+        Assert.assertNotEquals(snapshot.getETag(true), snapshot.getETag(false));
+    }
+}
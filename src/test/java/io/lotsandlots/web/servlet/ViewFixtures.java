@@ -0,0 +1,33 @@
+package io.lotsandlots.web.servlet;
+
+import io.lotsandlots.etrade.model.Lot;
+import io.lotsandlots.etrade.model.Order;
+import io.lotsandlots.util.FixedPoint;
+
+/**
+ * Lots and orders for the servlet and view tests, holding just the fields the views render.
+ */
+final class ViewFixtures {
+
+    private ViewFixtures() {
+    }
+
+    static Lot newLot(String symbol, double price, double totalCostForGainPct) {
+        Lot lot = new Lot();
+        lot.setAcquiredTimeMillis(System.currentTimeMillis());
+        lot.setPriceMicros(FixedPoint.toMicros(price));
+        lot.setSymbol(symbol);
+        lot.setTotalCostForGainPctMicros(FixedPoint.toMicros(totalCostForGainPct));
+        return lot;
+    }
+
+    static Order newOrder(String symbol, String orderAction, double limitPrice) {
+        Order order = new Order();
+        order.setLimitPriceMicros(FixedPoint.toMicros(limitPrice));
+        order.setOrderAction(orderAction);
+        order.setPlacedTimeMillis(System.currentTimeMillis());
+        order.setStatus("OPEN");
+        order.setSymbol(symbol);
+        return order;
+    }
+}